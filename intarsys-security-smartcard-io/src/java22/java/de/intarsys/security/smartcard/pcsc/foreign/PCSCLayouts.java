@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.foreign;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT_UNALIGNED;
+
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+
+import de.intarsys.tools.system.SystemTools;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * The memory layouts of the PC/SC types and structures for the current
+ * platform, computed once.
+ * 
+ * They are equivalent to the native-c declarations in
+ * {@link de.intarsys.security.smartcard.pcsc.nativec}, see
+ * {@link #checkLayouts()}.
+ */
+public final class PCSCLayouts {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	/**
+	 * DWORD and LONG, 8 byte in pcsc-lite on 64 bit Linux, 4 byte on all other
+	 * platforms.
+	 */
+	public static final ValueLayout DWORD = SystemTools.isLinux() ? JAVA_LONG : JAVA_INT;
+
+	/**
+	 * SCARDCONTEXT and SCARDHANDLE, a 32 bit integer on OS X.
+	 */
+	public static final ValueLayout HANDLE = SystemTools.isMac() ? JAVA_INT : JAVA_LONG;
+
+	/**
+	 * <pre>
+	 * typedef struct {
+	 * 	DWORD dwProtocol;
+	 * 	DWORD cbPciLength;
+	 * } SCARD_IO_REQUEST;
+	 * </pre>
+	 */
+	public static final StructLayout SCARD_IO_REQUEST = MemoryLayout.structLayout( //
+			DWORD.withName("dwProtocol"), //$NON-NLS-1$
+			DWORD.withName("cbPciLength")) //$NON-NLS-1$
+			.withName("SCARD_IO_REQUEST"); //$NON-NLS-1$
+
+	/**
+	 * The size of the ATR buffer in {@link #SCARD_READERSTATE}, including the
+	 * alignment bytes.
+	 */
+	public static final int SCARD_READERSTATE_ATR_SIZE = 36;
+
+	/**
+	 * See {@link de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE}.
+	 */
+	public static final StructLayout SCARD_READERSTATE = createReaderState();
+
+	public static final long SCARD_READERSTATE_CURRENT_STATE = offset(SCARD_READERSTATE, "dwCurrentState"); //$NON-NLS-1$
+
+	public static final long SCARD_READERSTATE_EVENT_STATE = offset(SCARD_READERSTATE, "dwEventState"); //$NON-NLS-1$
+
+	public static final long SCARD_READERSTATE_ATR_LENGTH = offset(SCARD_READERSTATE, "cbAtr"); //$NON-NLS-1$
+
+	public static final long SCARD_READERSTATE_ATR = offset(SCARD_READERSTATE, "rgbAtr"); //$NON-NLS-1$
+
+	/**
+	 * See {@link de.intarsys.security.smartcard.pcsc.nativec.PIN_VERIFY_STRUCTURE},
+	 * byte packed, without the trailing APDU data.
+	 */
+	public static final StructLayout PIN_VERIFY_STRUCTURE = MemoryLayout.structLayout( //
+			JAVA_BYTE.withName("bTimeOut"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bTimeOut2"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bmFormatString"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bmPINBlockString"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bmPINLengthFormat"), //$NON-NLS-1$
+			JAVA_SHORT_UNALIGNED.withName("wPINMaxExtraDigit"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bEntryValidationCondition"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bNumberMessage"), //$NON-NLS-1$
+			JAVA_SHORT_UNALIGNED.withName("wLangId"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bMsgIndex"), //$NON-NLS-1$
+			MemoryLayout.sequenceLayout(3, JAVA_BYTE).withName("bTeoPrologue"), //$NON-NLS-1$
+			JAVA_INT_UNALIGNED.withName("ulDataLength")) //$NON-NLS-1$
+			.withName("PIN_VERIFY_STRUCTURE"); //$NON-NLS-1$
+
+	public static final long PIN_VERIFY_STRUCTURE_DATA = PIN_VERIFY_STRUCTURE.byteSize();
+
+	/**
+	 * See {@link de.intarsys.security.smartcard.pcsc.nativec.PIN_MODIFY_STRUCTURE},
+	 * byte packed, without the trailing APDU data.
+	 */
+	public static final StructLayout PIN_MODIFY_STRUCTURE = MemoryLayout.structLayout( //
+			JAVA_BYTE.withName("bTimeOut"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bTimeOut2"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bmFormatString"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bmPINBlockString"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bmPINLengthFormat"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bInsertionOffsetOld"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bInsertionOffsetNew"), //$NON-NLS-1$
+			JAVA_SHORT_UNALIGNED.withName("wPINMaxExtraDigit"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bConfirmPIN"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bEntryValidationCondition"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bNumberMessage"), //$NON-NLS-1$
+			JAVA_SHORT_UNALIGNED.withName("wLangId"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bMsgIndex1"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bMsgIndex2"), //$NON-NLS-1$
+			JAVA_BYTE.withName("bMsgIndex3"), //$NON-NLS-1$
+			MemoryLayout.sequenceLayout(3, JAVA_BYTE).withName("bTeoPrologue"), //$NON-NLS-1$
+			JAVA_INT_UNALIGNED.withName("ulDataLength")) //$NON-NLS-1$
+			.withName("PIN_MODIFY_STRUCTURE"); //$NON-NLS-1$
+
+	public static final long PIN_MODIFY_STRUCTURE_DATA = PIN_MODIFY_STRUCTURE.byteSize();
+
+	/**
+	 * Compare the layouts to the native-c structure declarations. The memory
+	 * handed over via the {@link de.intarsys.security.smartcard.pcsc.nativec._IPCSC}
+	 * signature is allocated by native-c, a difference would corrupt memory.
+	 * 
+	 * @return <code>true</code> if all layouts match.
+	 */
+	public static boolean checkLayouts() {
+		boolean result = check(SCARD_READERSTATE,
+				de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE.META.getByteCount());
+		result &= check(PIN_VERIFY_STRUCTURE,
+				de.intarsys.security.smartcard.pcsc.nativec.PIN_VERIFY_STRUCTURE.META.getByteCount());
+		result &= check(PIN_MODIFY_STRUCTURE,
+				de.intarsys.security.smartcard.pcsc.nativec.PIN_MODIFY_STRUCTURE.META.getByteCount());
+		return result;
+	}
+
+	private static boolean check(MemoryLayout layout, int byteCount) {
+		if (layout.byteSize() == byteCount) {
+			return true;
+		}
+		Log.warn("layout {} has {} bytes, native-c declares {}", layout.name().orElse(""), layout.byteSize(), //$NON-NLS-1$ //$NON-NLS-2$
+				byteCount);
+		return false;
+	}
+
+	private static StructLayout createReaderState() {
+		long size = 2 * ADDRESS.byteSize() + 3 * DWORD.byteSize() + SCARD_READERSTATE_ATR_SIZE;
+		long padding = (ADDRESS.byteAlignment() - size % ADDRESS.byteAlignment()) % ADDRESS.byteAlignment();
+		MemoryLayout[] members = new MemoryLayout[padding == 0 ? 6 : 7];
+		members[0] = ADDRESS.withName("szReader"); //$NON-NLS-1$
+		members[1] = ADDRESS.withName("pvUserData"); //$NON-NLS-1$
+		members[2] = DWORD.withName("dwCurrentState"); //$NON-NLS-1$
+		members[3] = DWORD.withName("dwEventState"); //$NON-NLS-1$
+		members[4] = DWORD.withName("cbAtr"); //$NON-NLS-1$
+		members[5] = MemoryLayout.sequenceLayout(SCARD_READERSTATE_ATR_SIZE, JAVA_BYTE).withName("rgbAtr"); //$NON-NLS-1$
+		if (padding > 0) {
+			members[6] = MemoryLayout.paddingLayout(padding);
+		}
+		return MemoryLayout.structLayout(members).withName("SCARD_READERSTATE"); //$NON-NLS-1$
+	}
+
+	private static long offset(StructLayout layout, String member) {
+		return layout.byteOffset(groupElement(member));
+	}
+
+	private PCSCLayouts() {
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.foreign;
+
+import static de.intarsys.security.smartcard.pcsc.foreign.PCSCLayouts.DWORD;
+import static de.intarsys.security.smartcard.pcsc.foreign.PCSCLayouts.HANDLE;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.INativeObject;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.nativec.type.NativeVoid;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC;
+import de.intarsys.tools.system.SystemTools;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * The PC/SC wrapper based on the Java foreign function and memory API, an
+ * alternative to {@link _PCSC} without JNA on the call path.
+ * 
+ * All functions are bound once to a downcall handle. The native-c objects of
+ * the {@link _IPCSC} signature are passed by their address, there is no
+ * marshalling and no allocation per call.
+ * 
+ * Run with <code>--enable-native-access=ALL-UNNAMED</code> to avoid the
+ * restricted method warning.
+ */
+public class _PCSCForeign implements _IPCSC {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final Linker LINKER = Linker.nativeLinker();
+
+	private static final String MAC_FRAMEWORK = "/System/Library/Frameworks/PCSC.framework/PCSC"; //$NON-NLS-1$
+
+	private static final String SCARD_BEGIN_TRANSACTION = "SCardBeginTransaction"; //$NON-NLS-1$
+	private static final String SCARD_CANCEL = "SCardCancel"; //$NON-NLS-1$
+	private static final String SCARD_CONNECT = "SCardConnect"; //$NON-NLS-1$
+	private static final String SCARD_RECONNECT = "SCardReconnect"; //$NON-NLS-1$
+	private static final String SCARD_CONTROL = "SCardControl"; //$NON-NLS-1$
+	private static final String SCARD_DISCONNECT = "SCardDisconnect"; //$NON-NLS-1$
+	private static final String SCARD_END_TRANSACTION = "SCardEndTransaction"; //$NON-NLS-1$
+	private static final String SCARD_ESTABLISH_CONTEXT = "SCardEstablishContext"; //$NON-NLS-1$
+	private static final String SCARD_FREE_MEMORY = "SCardFreeMemory"; //$NON-NLS-1$
+	private static final String SCARD_GET_ATTRIB = "SCardGetAttrib"; //$NON-NLS-1$
+	private static final String SCARD_GET_STATUS_CHANGE = "SCardGetStatusChange"; //$NON-NLS-1$
+	private static final String SCARD_IS_VALID_CONTEXT = "SCardIsValidContext"; //$NON-NLS-1$
+	private static final String SCARD_LIST_READERS = "SCardListReaders"; //$NON-NLS-1$
+	private static final String SCARD_RELEASE_CONTEXT = "SCardReleaseContext"; //$NON-NLS-1$
+	private static final String SCARD_STATUS = "SCardStatus"; //$NON-NLS-1$
+	private static final String SCARD_TRANSMIT = "SCardTransmit"; //$NON-NLS-1$
+
+	private static final String SCARD_PCI_RAW_NAME = "g_rgSCardRawPci"; //$NON-NLS-1$
+	private static final String SCARD_PCI_T0_NAME = "g_rgSCardT0Pci"; //$NON-NLS-1$
+	private static final String SCARD_PCI_T1_NAME = "g_rgSCardT1Pci"; //$NON-NLS-1$
+
+	protected static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return new IllegalStateException(t);
+	}
+
+	protected static MemorySegment segment(INativeHandle handle) {
+		if (handle == null) {
+			return MemorySegment.NULL;
+		}
+		return MemorySegment.ofAddress(handle.getAddress());
+	}
+
+	protected static MemorySegment segment(INativeObject object) {
+		if (object == null) {
+			return MemorySegment.NULL;
+		}
+		return segment(object.getNativeHandle());
+	}
+
+	private final String pcscLibraryPath;
+
+	private final SymbolLookup lookup;
+
+	/**
+	 * copies of the global structures SCARD_PCI_RAW, SCARD_PCI_T0, SCARD_PCI_T1
+	 */
+	private INativeHandle scardPciRaw;
+	private INativeHandle scardPciT0;
+	private INativeHandle scardPciT1;
+
+	private MethodHandle callSCardBeginTransaction;
+	private MethodHandle callSCardCancel;
+	private MethodHandle callSCardConnect;
+	private MethodHandle callSCardReconnect;
+	private MethodHandle callSCardControl;
+	private MethodHandle callSCardDisconnect;
+	private MethodHandle callSCardEndTransaction;
+	private MethodHandle callSCardEstablishContext;
+	private MethodHandle callSCardFreeMemory;
+	private MethodHandle callSCardGetAttrib;
+	private MethodHandle callSCardGetStatusChange;
+	private MethodHandle callSCardIsValidContext;
+	private MethodHandle callSCardListReaders;
+	private MethodHandle callSCardReleaseContext;
+	private MethodHandle callSCardTransmit;
+	private MethodHandle callSCardStatus;
+
+	public _PCSCForeign(String pcscLibrary) {
+		String path = _PCSC.resolveLibraryPath(pcscLibrary);
+		if (SystemTools.isMac() && "PCSC".equals(path)) { //$NON-NLS-1$
+			path = MAC_FRAMEWORK;
+		}
+		pcscLibraryPath = path;
+		// the library is never unloaded, like in native-c
+		lookup = SymbolLookup.libraryLookup(pcscLibraryPath, Arena.global());
+		init();
+	}
+
+	/**
+	 * Bind the function <code>name</code>, returning a LONG. The handle is
+	 * adapted to take <code>long</code> for all integer arguments,
+	 * {@link MemorySegment} for all pointers and to return <code>int</code>.
+	 */
+	protected MethodHandle bind(String name, MemoryLayout... arguments) {
+		MemorySegment symbol = lookup.find(name).orElseThrow(() -> new UnsatisfiedLinkError(name));
+		MethodHandle handle = LINKER.downcallHandle(symbol, FunctionDescriptor.of(DWORD, arguments));
+		MethodType type = handle.type().changeReturnType(int.class);
+		for (int i = 0; i < type.parameterCount(); i++) {
+			if (type.parameterType(i).isPrimitive()) {
+				type = type.changeParameterType(i, long.class);
+			}
+		}
+		return MethodHandles.explicitCastArguments(handle, type);
+	}
+
+	protected MethodHandle bindOptional(String name, MemoryLayout... arguments) {
+		try {
+			return bind(name, arguments);
+		} catch (UnsatisfiedLinkError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A copy of the global SCARD_IO_REQUEST <code>name</code>.
+	 */
+	protected INativeHandle copyPci(String name) {
+		Optional<MemorySegment> symbol = lookup.find(name);
+		if (symbol.isEmpty()) {
+			return null;
+		}
+		byte[] value = symbol.get().reinterpret(PCSCLayouts.SCARD_IO_REQUEST.byteSize()).toArray(JAVA_BYTE);
+		NativeBuffer buffer = new NativeBuffer(value.length);
+		buffer.setByteArray(0, value, 0, value.length);
+		return buffer.getNativeHandle();
+	}
+
+	public String getPcscLibraryPath() {
+		return pcscLibraryPath;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		return scardPciRaw;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T0() {
+		return scardPciT0;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T1() {
+		return scardPciT1;
+	}
+
+	private void init() {
+		if (!PCSCLayouts.checkLayouts()) {
+			throw new IllegalStateException("native-c structures do not match the platform layout"); //$NON-NLS-1$
+		}
+		String suffix = SystemTools.isWindows() ? "A" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+		callSCardConnect = bind(SCARD_CONNECT + suffix, HANDLE, ADDRESS, DWORD, DWORD, ADDRESS, ADDRESS);
+		callSCardGetStatusChange = bind(SCARD_GET_STATUS_CHANGE + suffix, HANDLE, DWORD, ADDRESS, DWORD);
+		callSCardListReaders = bind(SCARD_LIST_READERS + suffix, HANDLE, ADDRESS, ADDRESS, ADDRESS);
+		callSCardStatus = bind(SCARD_STATUS + suffix, HANDLE, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS);
+		callSCardReconnect = bind(SCARD_RECONNECT, HANDLE, DWORD, DWORD, DWORD, ADDRESS);
+		callSCardBeginTransaction = bind(SCARD_BEGIN_TRANSACTION, HANDLE);
+		callSCardCancel = bind(SCARD_CANCEL, HANDLE);
+		if (SystemTools.isMac()) {
+			// SCardControl may not be available
+			callSCardControl = bindOptional(SCARD_CONTROL + "132", HANDLE, DWORD, ADDRESS, DWORD, ADDRESS, DWORD, //$NON-NLS-1$
+					ADDRESS);
+		} else {
+			callSCardControl = bind(SCARD_CONTROL, HANDLE, DWORD, ADDRESS, DWORD, ADDRESS, DWORD, ADDRESS);
+			callSCardFreeMemory = bind(SCARD_FREE_MEMORY, HANDLE, ADDRESS);
+		}
+		callSCardDisconnect = bind(SCARD_DISCONNECT, HANDLE, DWORD);
+		callSCardEndTransaction = bind(SCARD_END_TRANSACTION, HANDLE, DWORD);
+		callSCardEstablishContext = bind(SCARD_ESTABLISH_CONTEXT, DWORD, ADDRESS, ADDRESS, ADDRESS);
+		callSCardGetAttrib = bind(SCARD_GET_ATTRIB, HANDLE, DWORD, ADDRESS, ADDRESS);
+		// assume all contexts valid if not available
+		callSCardIsValidContext = bindOptional(SCARD_IS_VALID_CONTEXT, HANDLE);
+		callSCardReleaseContext = bind(SCARD_RELEASE_CONTEXT, HANDLE);
+		callSCardTransmit = bind(SCARD_TRANSMIT, HANDLE, ADDRESS, ADDRESS, DWORD, ADDRESS, ADDRESS, ADDRESS);
+
+		scardPciT0 = copyPci(SCARD_PCI_T0_NAME);
+		scardPciT1 = copyPci(SCARD_PCI_T1_NAME);
+		scardPciRaw = copyPci(SCARD_PCI_RAW_NAME);
+		Log.debug("{} bound {}", this, pcscLibraryPath); //$NON-NLS-1$
+	}
+
+	@Override
+	public int SCardBeginTransaction(final SCARDHANDLE hCard) {
+		try {
+			return (int) callSCardBeginTransaction.invokeExact(hCard.longValue());
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardCancel(final SCARDCONTEXT hContext) {
+		try {
+			return (int) callSCardCancel.invokeExact(hContext.longValue());
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardConnect(final SCARDCONTEXT hContext, final NativeString szReader, final long dwShareMode,
+			final long dwPreferredProtocols, final NativeLongLP64 phCard, final NativePcscDword pdwActiveProtocol) {
+		try {
+			return (int) callSCardConnect.invokeExact(hContext.longValue(), segment(szReader), dwShareMode,
+					dwPreferredProtocols, segment(phCard), segment(pdwActiveProtocol));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardControl(final SCARDHANDLE hCard, final long dwControlCode, final NativeBuffer pbSendBuffer,
+			final long cbSendLength, final NativeBuffer pbRecvBuffer, final long cbRecvLength,
+			final NativePcscDword lpBytesReturned) {
+		if (callSCardControl == null) {
+			lpBytesReturned.setValue(0);
+			return 0;
+		}
+		try {
+			return (int) callSCardControl.invokeExact(hCard.longValue(), dwControlCode, segment(pbSendBuffer),
+					cbSendLength, segment(pbRecvBuffer), cbRecvLength, segment(lpBytesReturned));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardDisconnect(final SCARDHANDLE hCard, final long dwDisposition) {
+		try {
+			return (int) callSCardDisconnect.invokeExact(hCard.longValue(), dwDisposition);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardEndTransaction(final SCARDHANDLE hCard, final long dwDisposition) {
+		try {
+			return (int) callSCardEndTransaction.invokeExact(hCard.longValue(), dwDisposition);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardEstablishContext(final long dwScope, final NativeLongLP64 phContext) {
+		try {
+			return (int) callSCardEstablishContext.invokeExact(dwScope, MemorySegment.NULL, MemorySegment.NULL,
+					segment(phContext));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
+		if (callSCardFreeMemory == null) {
+			return SCARD_S_SUCCESS;
+		}
+		try {
+			return (int) callSCardFreeMemory.invokeExact(hContext.longValue(), segment(pvMem));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardGetAttrib(final SCARDHANDLE hCard, long dwAttrId, final NativeBuffer pbAttr,
+			final NativePcscDword pcbAttrLength) {
+		try {
+			return (int) callSCardGetAttrib.invokeExact(hCard.longValue(), dwAttrId, segment(pbAttr),
+					segment(pcbAttrLength));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardGetStatusChange(final SCARDCONTEXT hContext, final long dwTimeout,
+			final INativeObject rgReaderStates, final long cReaders) {
+		try {
+			return (int) callSCardGetStatusChange.invokeExact(hContext.longValue(), dwTimeout,
+					segment(rgReaderStates), cReaders);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardIsValidContext(final SCARDCONTEXT hContext) {
+		if (callSCardIsValidContext == null) {
+			return SCARD_S_SUCCESS;
+		}
+		try {
+			return (int) callSCardIsValidContext.invokeExact(hContext.longValue());
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardListReaders(final SCARDCONTEXT hContext, final NativeString mszGroups,
+			final INativeObject mszReaders, final NativePcscDword pcchReaders) {
+		try {
+			return (int) callSCardListReaders.invokeExact(hContext.longValue(), segment(mszGroups),
+					segment(mszReaders), segment(pcchReaders));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardReconnect(SCARDHANDLE hCard, long dwShareMode, long dwPreferredProtocols, long dwInitialization,
+			NativePcscDword pdwActiveProtocol) {
+		try {
+			return (int) callSCardReconnect.invokeExact(hCard.longValue(), dwShareMode, dwPreferredProtocols,
+					dwInitialization, segment(pdwActiveProtocol));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardReleaseContext(final SCARDCONTEXT hContext) {
+		try {
+			return (int) callSCardReleaseContext.invokeExact(hContext.longValue());
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardStatus(final SCARDHANDLE hCard, final INativeObject szReaderName,
+			final NativePcscDword pcchReaderLen, final NativePcscDword pdwState, final NativePcscDword pdwProtocol,
+			final NativeBuffer pbAtr, final NativePcscDword pcbAtrLen) {
+		try {
+			return (int) callSCardStatus.invokeExact(hCard.longValue(), segment(szReaderName), segment(pcchReaderLen),
+					segment(pdwState), segment(pdwProtocol), segment(pbAtr), segment(pcbAtrLen));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public int SCardTransmit(final SCARDHANDLE hCard, final INativeHandle pioSendPci, final INativeObject pbSendBuffer,
+			final long cbSendLength, final INativeObject pioRecvPci, final NativeBuffer pbRecvBuffer,
+			final NativePcscDword pcbRecvLength) {
+		try {
+			return (int) callSCardTransmit.invokeExact(hCard.longValue(), segment(pioSendPci), segment(pbSendBuffer),
+					cbSendLength, segment(pioRecvPci), segment(pbRecvBuffer), segment(pcbRecvLength));
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PC/SC foreign function wrapper"; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * The PC/SC native library wrapper based on the Java foreign function and
+ * memory API (Java 22 and later).
+ * 
+ * The functions are bound once via downcall handles, the memory is still
+ * provided by the native-c objects of the {@link de.intarsys.security.smartcard.pcsc.nativec._IPCSC}
+ * signature and passed without copying.
+ */
+package de.intarsys.security.smartcard.pcsc.foreign;
@@ -0,0 +1,85 @@
+package de.intarsys.security.smartcard.card;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link RequestAPDU} encoding for the ISO 7816-4 cases and
+ * {@link ResponseAPDU} decoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class APDUBenchmark {
+
+	@Param({ "1", "2s", "3s", "4s", "2e", "3e", "4e" })
+	public String isoCase;
+
+	@Param({ "16", "1024" })
+	public int dataLength;
+
+	private RequestAPDU request;
+
+	private byte[] responseBytes;
+
+	@Benchmark
+	public byte[] requestGetBytes() {
+		return request.getBytes();
+	}
+
+	@Benchmark
+	public int requestGetLength() {
+		return request.getLength();
+	}
+
+	@Benchmark
+	public byte[] responseGetData() throws CardException {
+		return new ResponseAPDU(responseBytes).getData();
+	}
+
+	@Setup
+	public void setup() {
+		// short APDUs are limited to 255 bytes of data
+		byte[] data = new byte[isoCase.endsWith("e") ? dataLength : Math.min(dataLength, 255)];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		switch (isoCase) {
+		case "1":
+			request = new RequestAPDU(0x00, 0xA4, 0x04, 0x00);
+			break;
+		case "2s":
+			request = new RequestAPDU(0x00, 0xB0, 0x00, 0x00, 256, false);
+			break;
+		case "3s":
+			request = new RequestAPDU(0x00, 0xD6, 0x00, 0x00, data, false);
+			break;
+		case "4s":
+			request = new RequestAPDU(0x00, 0x88, 0x00, 0x00, data, 256, false);
+			break;
+		case "2e":
+			request = new RequestAPDU(0x00, 0xB0, 0x00, 0x00, 65536, true);
+			break;
+		case "3e":
+			request = new RequestAPDU(0x00, 0xD6, 0x00, 0x00, data, true);
+			break;
+		case "4e":
+			request = new RequestAPDU(0x00, 0x2A, 0x9E, 0x9A, data, 65536, true);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown case " + isoCase);
+		}
+		responseBytes = new byte[dataLength + 2];
+		System.arraycopy(data, 0, responseBytes, 0, Math.min(data.length, dataLength));
+		responseBytes[dataLength] = (byte) 0x90;
+		responseBytes[dataLength + 1] = 0x00;
+	}
+}
@@ -0,0 +1,52 @@
+package de.intarsys.security.smartcard.card;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * {@link ATR} parsing and formatting.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ATRBenchmark {
+
+	@Param({
+			// contact card, T=1
+			"3BDD18008131FE4580F9A0000000770100700A90008B",
+			// contactless (PC/SC part 3 ATR)
+			"3B8F8001804F0CA000000306030001000000006A",
+			// minimal
+			"3B00" })
+	public String atrHex;
+
+	private byte[] bytes;
+
+	private ATR atr;
+
+	@Benchmark
+	public ATR create() {
+		return ATR.create(bytes);
+	}
+
+	@Setup
+	public void setup() {
+		bytes = HexTools.hexStringToBytes(atrHex);
+		atr = ATR.create(bytes);
+	}
+
+	@Benchmark
+	public String toStringDetail() {
+		return atr.toStringDetail();
+	}
+}
@@ -0,0 +1,101 @@
+package de.intarsys.security.smartcard.card;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link T0CardTransmitter} and {@link T1CardTransmitter} round trips against
+ * an in memory card.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TransmitterBenchmark {
+
+	/**
+	 * An in memory card. In T=0 mode case 2 and 4 commands are answered with
+	 * "61xx" and the data is fetched with GET RESPONSE.
+	 */
+	static class MemoryCard implements ICardTransmitter {
+
+		private final byte[] data;
+
+		private final boolean t0;
+
+		public MemoryCard(int length, boolean t0) {
+			this.data = new byte[length];
+			this.t0 = t0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(RequestAPDU request) throws CardException {
+			if (request.getIns() == 0xC0) {
+				return new ResponseAPDU(data, 0x9000);
+			}
+			if (request.getLe() < 0) {
+				return new ResponseAPDU(null, 0x9000);
+			}
+			if (t0) {
+				return new ResponseAPDU(null, 0x6100 | data.length);
+			}
+			return new ResponseAPDU(data, 0x9000);
+		}
+	}
+
+	private ICardTransmitter t0;
+
+	private ICardTransmitter t1;
+
+	private RequestAPDU case2;
+
+	private RequestAPDU case3;
+
+	private RequestAPDU case4;
+
+	@Setup
+	public void setup() {
+		t0 = new T0CardTransmitter(new MemoryCard(128, true));
+		t1 = new T1CardTransmitter(new MemoryCard(128, false));
+		byte[] data = new byte[64];
+		case2 = new RequestAPDU(0x00, 0xB0, 0x00, 0x00, 128, false);
+		case3 = new RequestAPDU(0x00, 0xD6, 0x00, 0x00, data, false);
+		case4 = new RequestAPDU(0x00, 0x88, 0x00, 0x00, data, 128, false);
+	}
+
+	@Benchmark
+	public ResponseAPDU t0Case2() throws CardException {
+		return t0.transmit(case2);
+	}
+
+	@Benchmark
+	public ResponseAPDU t0Case3() throws CardException {
+		return t0.transmit(case3);
+	}
+
+	@Benchmark
+	public ResponseAPDU t0Case4() throws CardException {
+		return t0.transmit(case4);
+	}
+
+	@Benchmark
+	public ResponseAPDU t1Case2() throws CardException {
+		return t1.transmit(case2);
+	}
+
+	@Benchmark
+	public ResponseAPDU t1Case3() throws CardException {
+		return t1.transmit(case3);
+	}
+
+	@Benchmark
+	public ResponseAPDU t1Case4() throws CardException {
+		return t1.transmit(case4);
+	}
+}
@@ -0,0 +1,116 @@
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * The native-c (JNA) binding compared to the foreign function binding, against
+ * the system PC/SC service.
+ *
+ * This needs a Java 22 VM (see "jmhJvm" in build.gradle) and a card reader,
+ * "transmit" needs a card inserted. Select the reader with
+ * <code>-p reader=...</code>, by default the first reader is used.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class BackendBenchmark {
+
+	/**
+	 * The card connection, only set up for the benchmarks using it.
+	 */
+	@State(Scope.Thread)
+	public static class Card {
+
+		private IPCSCConnection connection;
+
+		private byte[] request;
+
+		@Setup(Level.Trial)
+		public void setup(BackendBenchmark benchmark) throws PCSCException {
+			connection = benchmark.context.connect("benchmark", benchmark.reader, _IPCSC.SCARD_SHARE_SHARED, //$NON-NLS-1$
+					_IPCSC.SCARD_PROTOCOL_Tx);
+			// GET CHALLENGE, supported by most cards and without side effects
+			request = HexTools.hexStringToBytes("0084000008"); //$NON-NLS-1$
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws PCSCException {
+			connection.disconnect(_IPCSC.SCARD_LEAVE_CARD);
+		}
+	}
+
+	@Param({ "false", "true" })
+	public boolean useForeign;
+
+	@Param({ "" })
+	public String reader;
+
+	private CommonPCSCContext context;
+
+	private PCSCCardReaderState state;
+
+	@Benchmark
+	public PCSCCardReaderState getStatusChange() throws PCSCException {
+		try {
+			return context.getStatusChange(reader, state, 0);
+		} catch (TimeoutException e) {
+			// no change, with blocking getStatusChange
+			return state;
+		}
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		return context.isValid();
+	}
+
+	@Benchmark
+	public List<IPCSCCardReader> listReaders() throws PCSCException {
+		return context.listReaders();
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		NativePCSCLib lib = new NativePCSCLib();
+		lib.setUseForeign(useForeign);
+		lib.initialize();
+		if (useForeign && !lib.getPcsc().getClass().getName().endsWith("Foreign")) { //$NON-NLS-1$
+			throw new IllegalStateException("foreign function binding not available"); //$NON-NLS-1$
+		}
+		context = (CommonPCSCContext) lib.establishContext();
+		if (reader.isEmpty()) {
+			List<IPCSCCardReader> readers = context.listReaders();
+			if (readers.isEmpty()) {
+				throw new IllegalStateException("no card reader"); //$NON-NLS-1$
+			}
+			reader = readers.get(0).getName();
+		}
+		state = context.getStatusChange(reader, null, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws PCSCException {
+		context.dispose();
+	}
+
+	@Benchmark
+	public byte[] transmit(Card card) throws PCSCException {
+		return card.connection.transmit(card.request, 0, card.request.length, 258, false);
+	}
+}
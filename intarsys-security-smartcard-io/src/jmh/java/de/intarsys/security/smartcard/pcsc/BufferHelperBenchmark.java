@@ -0,0 +1,99 @@
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.simulator.ILatency;
+import de.intarsys.security.smartcard.pcsc.simulator.RuleCardEmulation;
+import de.intarsys.security.smartcard.pcsc.simulator.SimulatedCard;
+import de.intarsys.security.smartcard.pcsc.simulator.SimulatorPCSCLib;
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * Concurrent "getStatus" and "getAttrib" calls, each benchmark thread on a
+ * reader of its own, against the in process simulator.
+ *
+ * The simulated calls take some microseconds, so throughput should scale
+ * with the number of threads as long as the calls are not serialized. Compare
+ * with <code>-t 1</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class BufferHelperBenchmark {
+
+	/**
+	 * The connection to the reader of the benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class Reader {
+
+		private IPCSCConnection connection;
+
+		@Setup(Level.Trial)
+		public void setup(BufferHelperBenchmark benchmark) throws PCSCException {
+			String name = READER + " " + benchmark.readerCounter.getAndIncrement(); //$NON-NLS-1$
+			benchmark.lib.getSimulator().addReader(name)
+					.insertCard(new SimulatedCard(HexTools.hexStringToBytes(ATR), new RuleCardEmulation()));
+			connection = benchmark.context.connect("benchmark", name, _IPCSC.SCARD_SHARE_SHARED, //$NON-NLS-1$
+					_IPCSC.SCARD_PROTOCOL_T1);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws PCSCException {
+			connection.disconnect(_IPCSC.SCARD_LEAVE_CARD);
+		}
+	}
+
+	private static final String ATR = "3B8F8001804F0CA000000306030001000000006A"; //$NON-NLS-1$
+
+	private static final String READER = "simulated reader"; //$NON-NLS-1$
+
+	@Param({ "20" })
+	public int latencyMicros;
+
+	private SimulatorPCSCLib lib;
+
+	private IPCSCContext context;
+
+	private final AtomicInteger readerCounter = new AtomicInteger();
+
+	@Benchmark
+	public byte[] getAttrib(Reader reader) throws PCSCException {
+		return reader.connection.getAttrib(PCSCAttribute.SCARD_ATTR_ATR_STRING);
+	}
+
+	@Benchmark
+	public CardStatus getStatus(Reader reader) throws PCSCException {
+		return reader.connection.getStatus();
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws PCSCException {
+		lib = new SimulatorPCSCLib();
+		lib.initialize();
+		ILatency latency = ILatency.fixed(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+		lib.getSimulator().setLatency("SCardGetAttrib", latency); //$NON-NLS-1$
+		lib.getSimulator().setLatency("SCardStatus", latency); //$NON-NLS-1$
+		context = lib.establishContext();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws PCSCException {
+		context.dispose();
+	}
+}
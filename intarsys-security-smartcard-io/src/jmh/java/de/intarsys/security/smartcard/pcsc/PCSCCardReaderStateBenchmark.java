@@ -0,0 +1,55 @@
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * Decoding a native {@link SCARD_READERSTATE} to a {@link PCSCCardReaderState}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PCSCCardReaderStateBenchmark {
+
+	private SCARD_READERSTATE readerState;
+
+	private PCSCCardReaderState state;
+
+	@Benchmark
+	public byte[] getATR() {
+		return new PCSCCardReaderState(readerState).getATR();
+	}
+
+	@Benchmark
+	public boolean predicates() {
+		PCSCCardReaderState tempState = new PCSCCardReaderState(readerState);
+		return tempState.isPresent() & !tempState.isEmpty() & !tempState.isUnavailable() & !tempState.isMute()
+				& tempState.isChanged() & !tempState.isExclusive();
+	}
+
+	@Setup
+	public void setup() {
+		readerState = new SCARD_READERSTATE();
+		readerState.setCurrentState(_IPCSC.SCARD_STATE_EMPTY);
+		readerState.setEventState(_IPCSC.SCARD_STATE_PRESENT | _IPCSC.SCARD_STATE_INUSE
+				| _IPCSC.SCARD_STATE_CHANGED | (3 << 16));
+		readerState.setATR(HexTools.hexStringToBytes("3BDD18008131FE4580F9A0000000770100700A90008B")); //$NON-NLS-1$
+		state = new PCSCCardReaderState(readerState);
+	}
+
+	@Benchmark
+	public String toStringDetail() {
+		return state.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.simulator.RuleCardEmulation;
+import de.intarsys.security.smartcard.pcsc.simulator.SimulatedCard;
+import de.intarsys.security.smartcard.pcsc.simulator.SimulatorPCSCLib;
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * The PC/SC transmit pipeline (context, connection, native marshalling)
+ * against the in process simulator, without any card reader latency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SimulatorTransmitBenchmark {
+
+	private static final String READER = "simulated reader"; //$NON-NLS-1$
+
+	@Param({ "false", "true" })
+	public boolean useExecutorThread;
+
+	private IPCSCContext context;
+
+	private IPCSCConnection connection;
+
+	private byte[] request;
+
+	@Setup(Level.Trial)
+	public void setup() throws PCSCException {
+		SimulatorPCSCLib lib = new SimulatorPCSCLib();
+		lib.setUseExecutorThread(useExecutorThread);
+		lib.initialize();
+		RuleCardEmulation emulation = new RuleCardEmulation();
+		emulation.addPrefixRule("00B0", "00112233445566778899AABBCCDDEEFF9000"); //$NON-NLS-1$ //$NON-NLS-2$
+		lib.getSimulator().addReader(READER)
+				.insertCard(new SimulatedCard(HexTools.hexStringToBytes("3B8F8001804F0CA000000306030001000000006A"), //$NON-NLS-1$
+						emulation));
+		context = lib.establishContext();
+		connection = context.connect("benchmark", READER, _IPCSC.SCARD_SHARE_SHARED, _IPCSC.SCARD_PROTOCOL_T1); //$NON-NLS-1$
+		request = HexTools.hexStringToBytes("00B0000010"); //$NON-NLS-1$
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws PCSCException {
+		connection.disconnect(_IPCSC.SCARD_LEAVE_CARD);
+		context.dispose();
+	}
+
+	@Benchmark
+	public byte[] transmit() throws PCSCException {
+		return connection.transmit(request, 0, request.length, 258, false);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.card;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Signal a failure in the middle of a batch transmission, see
+ * {@link ICardConnection#transmitBatch(List, java.util.function.IntPredicate)}.
+ * 
+ * The responses received before the failure are kept, the cause is the
+ * exception for the failed request.
+ * 
+ */
+public class CardBatchException extends CardException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient List<ResponseAPDU> responses;
+
+	public CardBatchException(CardException cause, List<ResponseAPDU> responses) {
+		super(null, cause);
+		this.responses = Collections.unmodifiableList(responses);
+	}
+
+	@Override
+	public String getLocalizedMessage() {
+		return getCause().getLocalizedMessage();
+	}
+
+	/**
+	 * The responses received before the failed request, in order.
+	 * 
+	 * @return The responses received before the failed request.
+	 */
+	public List<ResponseAPDU> getResponses() {
+		return responses;
+	}
+
+}
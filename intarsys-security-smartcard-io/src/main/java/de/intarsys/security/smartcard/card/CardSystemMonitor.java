@@ -34,9 +34,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
+import de.intarsys.security.smartcard.pcsc.PCSCThreadTools;
 import de.intarsys.tools.attribute.Attribute;
 import de.intarsys.tools.concurrent.TaskFailed;
-import de.intarsys.tools.concurrent.ThreadTools;
 import de.intarsys.tools.event.AttributeChangedEvent;
 import de.intarsys.tools.event.INotificationListener;
 import de.intarsys.tools.message.IMessageBundle;
@@ -163,7 +163,7 @@ public class CardSystemMonitor {
 	public CardSystemMonitor(ICardSystem cardSystem) {
 		this.label = ObjectTools.createLabel(this);
 		this.cardSystem = cardSystem;
-		this.eventExecutor = Executors.newSingleThreadScheduledExecutor(ThreadTools.newThreadFactoryDaemon(toString()));
+		this.eventExecutor = Executors.newSingleThreadScheduledExecutor(PCSCThreadTools.newThreadFactory(toString()));
 	}
 
 	public CardSystemMonitor(ICardSystem cardSystem, ScheduledExecutorService executor) {
@@ -248,16 +248,11 @@ public class CardSystemMonitor {
 	}
 
 	public boolean isCardAvailable() {
-		for (ICardTerminal terminal : getCardSystem().getCardTerminals()) {
-			if (terminal.getCard() != null) {
-				return true;
-			}
-		}
-		return false;
+		return getCardSystem().getSnapshot().isCardAvailable();
 	}
 
 	public boolean isCardTerminalAvailable() {
-		return getCardSystem().getCardTerminals().length > 0;
+		return getCardSystem().getSnapshot().getCardTerminalCount() > 0;
 	}
 
 	public boolean isStarted() {
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.card;
+
+/**
+ * An immutable view of the {@link ICardTerminal} instances of an
+ * {@link ICardSystem}, their {@link ICard} and {@link EnumCardState}.
+ * 
+ * A new snapshot with an incremented version is published whenever a terminal
+ * is added or removed or a card changes. Accessing a snapshot requires neither
+ * locks nor native calls.
+ * 
+ */
+public final class CardSystemSnapshot {
+
+	public static final CardSystemSnapshot EMPTY = new CardSystemSnapshot(0, new ICardTerminal[0], new ICard[0],
+			new EnumCardState[0]);
+
+	private final long version;
+
+	private final ICardTerminal[] cardTerminals;
+
+	private final ICard[] cards;
+
+	private final EnumCardState[] cardStates;
+
+	protected CardSystemSnapshot(long version, ICardTerminal[] cardTerminals, ICard[] cards,
+			EnumCardState[] cardStates) {
+		this.version = version;
+		this.cardTerminals = cardTerminals;
+		this.cards = cards;
+		this.cardStates = cardStates;
+	}
+
+	/**
+	 * The {@link ICard} in <code>terminal</code> at the time of the snapshot.
+	 * 
+	 * @param terminal
+	 * @return The {@link ICard} in <code>terminal</code> or <code>null</code>.
+	 */
+	public ICard getCard(ICardTerminal terminal) {
+		int index = indexOf(terminal);
+		return index < 0 ? null : cards[index];
+	}
+
+	/**
+	 * The state of the {@link ICard} in <code>terminal</code> at the time of
+	 * the snapshot.
+	 * 
+	 * @param terminal
+	 * @return The {@link EnumCardState} or <code>null</code> if there is no
+	 *         card.
+	 */
+	public EnumCardState getCardState(ICardTerminal terminal) {
+		int index = indexOf(terminal);
+		return index < 0 ? null : cardStates[index];
+	}
+
+	/**
+	 * The card terminal with the requested name.
+	 * 
+	 * @param name
+	 * @return The card terminal with the requested name or <code>null</code>.
+	 */
+	public ICardTerminal getCardTerminal(String name) {
+		for (ICardTerminal terminal : cardTerminals) {
+			if (terminal.getName().equals(name)) {
+				return terminal;
+			}
+		}
+		return null;
+	}
+
+	public int getCardTerminalCount() {
+		return cardTerminals.length;
+	}
+
+	/**
+	 * The {@link ICardTerminal} instances at the time of the snapshot.
+	 * 
+	 * @return A copy of the {@link ICardTerminal} instances.
+	 */
+	public ICardTerminal[] getCardTerminals() {
+		return cardTerminals.clone();
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	protected int indexOf(ICardTerminal terminal) {
+		for (int i = 0; i < cardTerminals.length; i++) {
+			if (cardTerminals[i] == terminal) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * <code>true</code> if any terminal contains a card.
+	 * 
+	 * @return <code>true</code> if any terminal contains a card.
+	 */
+	public boolean isCardAvailable() {
+		for (ICard card : cards) {
+			if (card != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <code>true</code> if this snapshot is not the one with
+	 * <code>version</code>.
+	 * 
+	 * @param version
+	 * @return <code>true</code> if anything changed since <code>version</code>.
+	 */
+	public boolean isChangedSince(long version) {
+		return this.version != version;
+	}
+
+	@Override
+	public String toString() {
+		return "card system snapshot " + version + ", " + cardTerminals.length + " terminals"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
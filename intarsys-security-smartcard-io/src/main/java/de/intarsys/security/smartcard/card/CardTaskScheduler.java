@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.card;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.intarsys.security.smartcard.pcsc.PCSCThreadTools;
+import de.intarsys.tools.concurrent.ThreadTools;
+import de.intarsys.tools.yalf.api.ILogger;
+import de.intarsys.tools.yalf.api.IMDC;
+import de.intarsys.tools.yalf.api.Yalf;
+
+/**
+ * A shared pool of worker threads for the card connections.
+ * <p>
+ * Each connection gets a {@link ScheduledExecutorService} "lane" of its own.
+ * A lane executes its tasks one after the other in submission order, but
+ * without a dedicated thread. The tasks of all lanes are executed by a
+ * bounded number of worker threads, delayed tasks are queued to their lane by
+ * a single timer thread.
+ * <p>
+ * Tasks marked with {@link IBlockingTask} may wait in PC/SC for an unbounded
+ * time, for example in "SCardBeginTransaction" while another process holds
+ * the card. They are executed by an unbounded pool of their own, so waiting
+ * connections never starve the other lanes of worker threads.
+ * <p>
+ * When {@link PCSCThreadTools#isVirtualThreads()} is enabled at creation time,
+ * each lane drains its tasks in a virtual thread of its own and the thread
+ * limit does not apply.
+ * <p>
+ * The MDC of the submitting thread is propagated to the task.
+ */
+public final class CardTaskScheduler {
+
+	/**
+	 * Marker for a task that may block its thread for an unbounded time.
+	 */
+	public interface IBlockingTask {
+	}
+
+	/**
+	 * A serial executor on top of the shared worker pool.
+	 */
+	private class Lane extends AbstractExecutorService implements ScheduledExecutorService {
+
+		private final String id;
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		private final Set<ScheduledFuture<?>> delayed = ConcurrentHashMap.newKeySet();
+
+		private final AtomicBoolean active = new AtomicBoolean();
+
+		private volatile boolean shutdown;
+
+		private final Object lockTermination = new Object();
+
+		protected Lane(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (lockTermination) {
+				while (!isTerminated()) {
+					long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (wait <= 0) {
+						return false;
+					}
+					lockTermination.wait(wait);
+				}
+				return true;
+			}
+		}
+
+		protected void drain(boolean blocking) {
+			try {
+				Thread thread = Thread.currentThread();
+				String name = thread.getName();
+				thread.setName(id);
+				try {
+					// give other lanes a chance
+					for (int i = 0; i < LANE_BATCH; i++) {
+						Runnable task = tasks.peek();
+						if (task == null || (task instanceof IBlockingTask) != blocking) {
+							// hand over to the other pool
+							break;
+						}
+						tasks.poll();
+						runTask(task);
+					}
+				} finally {
+					thread.setName(name);
+				}
+			} finally {
+				active.set(false);
+				if (!tasks.isEmpty()) {
+					schedule();
+				} else if (shutdown) {
+					synchronized (lockTermination) {
+						lockTermination.notifyAll();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			if (shutdown) {
+				throw new RejectedExecutionException(id + " is shut down"); //$NON-NLS-1$
+			}
+			Map<String, String> contextMap = Yalf.get().getMDC().getCopyOfContextMap();
+			Runnable task = () -> {
+				IMDC mdc = Yalf.get().getMDC();
+				Map<String, String> previousContextMap = mdc.getCopyOfContextMap();
+				if (contextMap == null) {
+					mdc.clear();
+				} else {
+					mdc.setContextMap(contextMap);
+				}
+				try {
+					command.run();
+				} finally {
+					if (previousContextMap == null) {
+						mdc.clear();
+					} else {
+						mdc.setContextMap(previousContextMap);
+					}
+				}
+			};
+			tasks.add(command instanceof IBlockingTask ? (Runnable & IBlockingTask) task::run : task);
+			schedule();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown && !active.get() && tasks.isEmpty();
+		}
+
+		protected void runTask(Runnable task) {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				Log.warn("{} task failed", id, e); //$NON-NLS-1$
+			} finally {
+				// never leak an interrupt to the next lane
+				Thread.interrupted();
+			}
+		}
+
+		protected void schedule() {
+			if (active.compareAndSet(false, true)) {
+				boolean blocking = tasks.peek() instanceof IBlockingTask;
+				try {
+					(blocking ? blockingDispatcher : dispatcher).execute(() -> drain(blocking));
+				} catch (RejectedExecutionException e) {
+					active.set(false);
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+			return scheduleTask(new FutureTask<>(callable), delay, unit);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			return scheduleTask(new FutureTask<>(command, null), delay, unit);
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+				TimeUnit unit) {
+			return track(timer.scheduleAtFixedRate(() -> submitDelayed(command), initialDelay, period, unit));
+		}
+
+		protected <V> ScheduledFuture<V> scheduleTask(FutureTask<V> task, long delay, TimeUnit unit) {
+			ScheduledFuture<?> timerFuture = timer.schedule(() -> {
+				if (!submitDelayed(task)) {
+					task.cancel(false);
+				}
+			}, delay, unit);
+			ScheduledFuture<V> future = new ScheduledFuture<V>() {
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					timerFuture.cancel(false);
+					return task.cancel(mayInterruptIfRunning);
+				}
+
+				@Override
+				public int compareTo(Delayed o) {
+					return timerFuture.compareTo(o);
+				}
+
+				@Override
+				public V get() throws InterruptedException, ExecutionException {
+					return task.get();
+				}
+
+				@Override
+				public V get(long timeout, TimeUnit timeUnit)
+						throws InterruptedException, ExecutionException, TimeoutException {
+					return task.get(timeout, timeUnit);
+				}
+
+				@Override
+				public long getDelay(TimeUnit timeUnit) {
+					return timerFuture.getDelay(timeUnit);
+				}
+
+				@Override
+				public boolean isCancelled() {
+					return task.isCancelled();
+				}
+
+				@Override
+				public boolean isDone() {
+					return task.isDone();
+				}
+			};
+			track(future);
+			return future;
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+				TimeUnit unit) {
+			return track(timer.scheduleWithFixedDelay(() -> submitDelayed(command), initialDelay, delay, unit));
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+			for (ScheduledFuture<?> future : delayed) {
+				future.cancel(false);
+			}
+			delayed.clear();
+			if (isTerminated()) {
+				synchronized (lockTermination) {
+					lockTermination.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown();
+			// a running task is not interrupted, the worker is shared
+			List<Runnable> pending = new ArrayList<>();
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				pending.add(task);
+			}
+			return pending;
+		}
+
+		protected boolean submitDelayed(Runnable command) {
+			if (shutdown) {
+				return false;
+			}
+			try {
+				execute(command);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "lane " + id; //$NON-NLS-1$
+		}
+
+		protected ScheduledFuture<?> track(ScheduledFuture<?> future) {
+			// forget timer tasks already fired or canceled
+			delayed.removeIf(ScheduledFuture::isDone);
+			delayed.add(future);
+			if (shutdown) {
+				future.cancel(false);
+			}
+			return future;
+		}
+	}
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	/**
+	 * The default maximum number of worker threads.
+	 */
+	public static final int DEFAULT_MAX_THREADS = 32;
+
+	/**
+	 * The number of tasks a lane may execute before giving up its worker.
+	 */
+	private static final int LANE_BATCH = 16;
+
+	/**
+	 * The time an idle worker thread is kept alive.
+	 */
+	private static final long KEEP_ALIVE = 60000;
+
+	private static CardTaskScheduler ACTIVE;
+
+	public static synchronized CardTaskScheduler get() {
+		if (ACTIVE == null) {
+			ACTIVE = new CardTaskScheduler(DEFAULT_MAX_THREADS);
+		}
+		return ACTIVE;
+	}
+
+	private final ThreadPoolExecutor workers;
+
+	private final ThreadPoolExecutor waiters;
+
+	private final Executor dispatcher;
+
+	private final Executor blockingDispatcher;
+
+	private final ScheduledThreadPoolExecutor timer;
+
+	public CardTaskScheduler(int maxThreads) {
+		super();
+		workers = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), ThreadTools.newThreadFactoryDaemon("card worker")); //$NON-NLS-1$
+		workers.allowCoreThreadTimeOut(true);
+		waiters = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<>(), ThreadTools.newThreadFactoryDaemon("card waiter")); //$NON-NLS-1$
+		if (PCSCThreadTools.isVirtualThreads()) {
+			ThreadFactory factory = PCSCThreadTools.newThreadFactory("card worker"); //$NON-NLS-1$
+			dispatcher = command -> factory.newThread(command).start();
+			blockingDispatcher = dispatcher;
+		} else {
+			dispatcher = workers;
+			blockingDispatcher = waiters;
+		}
+		timer = new ScheduledThreadPoolExecutor(1, ThreadTools.newThreadFactoryDaemon("card timer")); //$NON-NLS-1$
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Create a new serial lane on top of the shared worker threads.
+	 * 
+	 * @param id
+	 *            The lane id, used as thread name while executing its tasks.
+	 * @return A new {@link ScheduledExecutorService} executing its tasks in
+	 *         order.
+	 */
+	public ScheduledExecutorService createLane(String id) {
+		return new Lane(id);
+	}
+
+	/**
+	 * The number of worker threads currently executing a task.
+	 * 
+	 * @return The number of worker threads currently executing a task.
+	 */
+	public int getActiveThreads() {
+		return workers.getActiveCount();
+	}
+
+	/**
+	 * The number of threads currently executing an {@link IBlockingTask}.
+	 * 
+	 * @return The number of threads currently executing an
+	 *         {@link IBlockingTask}.
+	 */
+	public int getBlockingThreads() {
+		return waiters.getActiveCount();
+	}
+
+	public int getMaxThreads() {
+		return workers.getMaximumPoolSize();
+	}
+
+	/**
+	 * The number of worker threads. A thread is blocked for the duration of a
+	 * PCSC call, so this should be at least the number of connections
+	 * expected to call concurrently. Waiting for a transaction
+	 * ({@link IBlockingTask}) does not take a worker. This has no effect in
+	 * virtual thread mode.
+	 * 
+	 * @param maxThreads
+	 */
+	public void setMaxThreads(int maxThreads) {
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException("maxThreads must be positive"); //$NON-NLS-1$
+		}
+		if (maxThreads > workers.getMaximumPoolSize()) {
+			workers.setMaximumPoolSize(maxThreads);
+			workers.setCorePoolSize(maxThreads);
+		} else {
+			workers.setCorePoolSize(maxThreads);
+			workers.setMaximumPoolSize(maxThreads);
+		}
+	}
+}
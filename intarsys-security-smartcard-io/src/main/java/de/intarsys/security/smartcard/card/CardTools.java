@@ -29,11 +29,9 @@
  */
 package de.intarsys.security.smartcard.card;
 
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -41,13 +39,10 @@ import de.intarsys.tools.attribute.Attribute;
 import de.intarsys.tools.concurrent.AbstractFutureTask;
 import de.intarsys.tools.concurrent.ITaskCallback;
 import de.intarsys.tools.concurrent.TaskFailed;
-import de.intarsys.tools.concurrent.ThreadTools;
 import de.intarsys.tools.exception.ExceptionTools;
 import de.intarsys.tools.oid.IOIDGenerator;
 import de.intarsys.tools.oid.PronouncableOIDGenerator;
 import de.intarsys.tools.yalf.api.ILogger;
-import de.intarsys.tools.yalf.api.IMDC;
-import de.intarsys.tools.yalf.api.Yalf;
 
 /**
  * Tool methods for handling the {@link ICard} subsystem
@@ -342,37 +337,43 @@ public final class CardTools {
 		return task;
 	}
 
+	/**
+	 * Create the executor for a new card connection. This is a serial lane on
+	 * the shared {@link CardTaskScheduler}, not a thread of its own.
+	 * 
+	 * @param id
+	 * @return A new {@link ScheduledExecutorService} for a connection.
+	 */
 	public static ScheduledExecutorService createExecutor(String id) {
-		return new ScheduledThreadPoolExecutor(1, ThreadTools.newThreadFactoryDaemon(id)) {
-			@Override
-			public void execute(Runnable command) {
-				Map<String, String> contextMap = Yalf.get().getMDC().getCopyOfContextMap();
-				super.execute(() -> {
-					IMDC mdc = Yalf.get().getMDC();
-					Map<String, String> previousContextMap = mdc.getCopyOfContextMap();
-					if (contextMap == null) {
-						mdc.clear();
-					} else {
-						mdc.setContextMap(contextMap);
-					}
-					try {
-						command.run();
-					} finally {
-						if (previousContextMap == null) {
-							mdc.clear();
-						} else {
-							mdc.setContextMap(previousContextMap);
-						}
-					}
-				});
-			}
-		};
+		return CardTaskScheduler.get().createLane(id);
 	}
 
 	public static String createId() {
 		return OID_GENERATOR.createOID();
 	}
 
+	/**
+	 * The maximum number of data bytes in a single command APDU to card. This
+	 * is limited by the extended length support of the card and by the
+	 * dwMaxAPDUDataSize reported by the card terminal, if known. Larger data
+	 * must be split, e.g. with command chaining.
+	 * 
+	 * @param card
+	 * @return The maximum number of data bytes in a single command APDU.
+	 */
+	public static int getMaxCommandDataSize(ICard card) {
+		int result = card.getAtr().supportsExtendedLength() ? 65535 : 255;
+		try {
+			int terminalMax = card.getCardTerminal().getFeatures().getMaxApduDataSize();
+			if (terminalMax > 0) {
+				result = Math.min(result, terminalMax);
+			}
+		} catch (CardException e) {
+			Log.debug("{} terminal features not available ({})", card, ExceptionTools.getMessage(e)); //$NON-NLS-1$
+		}
+		return result;
+	}
+
 	/**
 	 * Factor out common code to handle retry attempts.
 	 * 
@@ -29,13 +29,22 @@
  */
 package de.intarsys.security.smartcard.card;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
 
+import de.intarsys.security.smartcard.jfr.CardIOEvent;
+import de.intarsys.security.smartcard.jfr.KeepAliveEvent;
+import de.intarsys.security.smartcard.jfr.TransactionEvent;
 import de.intarsys.security.smartcard.pcsc.PCSCAttribute;
 import de.intarsys.tools.attribute.AttributeMap;
 import de.intarsys.tools.concurrent.AbstractFutureTask;
@@ -49,14 +58,16 @@ import de.intarsys.tools.yalf.api.ILogger;
  * A common implementation for {@link ICardConnection}.
  * 
  * This implementation provides the skeleton for real card acccess. Most
- * important, it relies on an {@link Executor} to move card access in a thread
- * of its own. This executor is used at least for connection, transaction and
- * close.
+ * important, it relies on an {@link Executor} to move card access out of the
+ * client thread. This executor is used at least for connection, transaction and
+ * close. By default it is a serial lane of the shared
+ * {@link CardTaskScheduler}.
  * 
  */
 public abstract class CommonCardConnection implements ICardConnection {
 
-	public class BeginTransactionTask extends AbstractFutureTask<Void> {
+	public class BeginTransactionTask extends AbstractFutureTask<Void>
+			implements CardTaskScheduler.IBlockingTask {
 
 		public BeginTransactionTask() {
 			super();
@@ -69,7 +80,17 @@ public abstract class CommonCardConnection implements ICardConnection {
 			synchronized (lock) {
 				transactionActive = true;
 			}
-			basicBeginTransaction();
+			TransactionEvent event = new TransactionEvent();
+			event.operation = TransactionEvent.BEGIN;
+			event.begin();
+			try {
+				basicBeginTransaction();
+			} catch (CardException | RuntimeException e) {
+				event.setError(e);
+				throw e;
+			} finally {
+				commitEvent(event);
+			}
 			return null;
 		}
 
@@ -141,6 +162,11 @@ public abstract class CommonCardConnection implements ICardConnection {
 
 	private final AttributeMap attributes = new AttributeMap();
 
+	/*
+	 * the futures of the requests queued by transmitAsync, guarded by lock
+	 */
+	private final Set<CompletableFuture<ResponseAPDU>> pendingTransmits = new LinkedHashSet<>();
+
 	private boolean transactionActive = false;
 
 	private long touched;
@@ -220,8 +246,15 @@ public abstract class CommonCardConnection implements ICardConnection {
 	protected abstract void basicClose(int mode) throws CardException;
 
 	protected void basicCloseFinally(int mode) {
+		List<CompletableFuture<ResponseAPDU>> aborted;
 		synchronized (lock) {
 			executor.shutdownNow();
+			aborted = new ArrayList<>(pendingTransmits);
+			pendingTransmits.clear();
+		}
+		// the lane is gone, the queued requests would never complete
+		for (CompletableFuture<ResponseAPDU> future : aborted) {
+			future.completeExceptionally(new CardReset());
 		}
 	}
 
@@ -250,6 +283,59 @@ public abstract class CommonCardConnection implements ICardConnection {
 
 	protected abstract ResponseAPDU basicTransmit(RequestAPDU request) throws CardException;
 
+	/**
+	 * Transmit using {@link ByteBuffer} instances. This default implementation
+	 * falls back to {@link #basicTransmit(RequestAPDU)}, subclasses should
+	 * redefine to avoid the copies.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param sensitiveContent
+	 * @return The number of response bytes.
+	 * @throws CardException
+	 */
+	protected int basicTransmit(ByteBuffer request, ByteBuffer response, boolean sensitiveContent)
+			throws CardException {
+		byte[] requestBytes = new byte[request.remaining()];
+		request.get(requestBytes);
+		RequestAPDU requestAPDU = new RequestAPDU(requestBytes);
+		requestAPDU.setSensitiveContent(sensitiveContent);
+		byte[] responseBytes = basicTransmit(requestAPDU).getBytes();
+		if (responseBytes.length > response.remaining()) {
+			throw new CardException("response buffer too small"); //$NON-NLS-1$
+		}
+		response.put(responseBytes);
+		return responseBytes.length;
+	}
+
+	/**
+	 * Transmit a sequence of APDUs. This default implementation simply
+	 * transmits one request after the other, subclasses should redefine to
+	 * send the batch with a single hop to the PC/SC layer.
+	 * 
+	 * @param requests
+	 * @param stopCondition
+	 * @return The responses received.
+	 * @throws CardException
+	 */
+	protected List<ResponseAPDU> basicTransmitBatch(List<RequestAPDU> requests, IntPredicate stopCondition)
+			throws CardException {
+		List<ResponseAPDU> responses = new ArrayList<>(requests.size());
+		for (RequestAPDU request : requests) {
+			ResponseAPDU response;
+			try {
+				response = basicTransmit(request);
+			} catch (CardException e) {
+				throw new CardBatchException(e, responses);
+			}
+			responses.add(response);
+			if (stopCondition != null && stopCondition.test(response.getSw())) {
+				break;
+			}
+		}
+		return responses;
+	}
+
 	@Override
 	public Future<Void> beginTransaction(final ITaskCallback<Void> callback) {
 		if (getCard() == null) {
@@ -303,6 +389,20 @@ public abstract class CommonCardConnection implements ICardConnection {
 		Log.trace("{} request close {}", getLogLabel(), mode); //$NON-NLS-1$
 	}
 
+	/**
+	 * Complete and commit a flight recorder event for this connection.
+	 * 
+	 * @param event
+	 */
+	protected void commitEvent(CardIOEvent event) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.reader = cardTerminal == null ? null : cardTerminal.getName();
+			event.connectionId = id;
+			event.commit();
+		}
+	}
+
 	@Override
 	public byte[] control(int controlCode, byte[] inBuffer, int inBufferOffset, int inBufferLength, int outBufferSize)
 			throws CardException {
@@ -331,13 +431,20 @@ public abstract class CommonCardConnection implements ICardConnection {
 				return;
 			}
 		}
+		TransactionEvent event = new TransactionEvent();
+		event.operation = TransactionEvent.END;
+		event.begin();
 		try {
 			checkValidity();
 			basicEndTransaction();
+		} catch (CardException | RuntimeException e) {
+			event.setError(e);
+			throw e;
 		} finally {
 			synchronized (lock) {
 				transactionActive = false;
 			}
+			commitEvent(event);
 		}
 	}
 
@@ -440,7 +547,17 @@ public abstract class CommonCardConnection implements ICardConnection {
 			if (idle >= PCSC_TRANSACTION_TIMEOUT) {
 				idle = 0;
 				keepAliveCount++;
-				getStatus();
+				KeepAliveEvent event = new KeepAliveEvent();
+				event.checkCount = keepAliveCount;
+				event.begin();
+				try {
+					getStatus();
+				} catch (CardException | RuntimeException e) {
+					event.setError(e);
+					throw e;
+				} finally {
+					commitEvent(event);
+				}
 			}
 			keepAliveExecutor.schedule(runKeepAlive, PCSC_TRANSACTION_TIMEOUT - idle, TimeUnit.MILLISECONDS);
 		} catch (CardException e) {
@@ -497,4 +614,53 @@ public abstract class CommonCardConnection implements ICardConnection {
 		return basicTransmit(request);
 	}
 
+	@Override
+	public int transmit(ByteBuffer request, ByteBuffer response, boolean sensitiveContent) throws CardException {
+		synchronized (lock) {
+			checkValidity();
+			markTouched();
+		}
+		return basicTransmit(request, response, sensitiveContent);
+	}
+
+	@Override
+	public CompletableFuture<ResponseAPDU> transmitAsync(RequestAPDU request) {
+		CompletableFuture<ResponseAPDU> future = new CompletableFuture<>();
+		synchronized (lock) {
+			pendingTransmits.add(future);
+		}
+		execute(() -> {
+			synchronized (lock) {
+				pendingTransmits.remove(future);
+			}
+			// cancelled before dispatch
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.complete(transmit(request));
+			} catch (CardException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public List<ResponseAPDU> transmitBatch(List<RequestAPDU> requests, IntPredicate stopCondition)
+			throws CardException {
+		synchronized (lock) {
+			checkValidity();
+			markTouched();
+		}
+		try {
+			return basicTransmitBatch(requests, stopCondition);
+		} finally {
+			synchronized (lock) {
+				// a long batch counts as activity until its end
+				markTouched();
+			}
+		}
+	}
+
 }
@@ -42,7 +42,7 @@ import java.util.concurrent.ScheduledFuture;
 import javax.annotation.PreDestroy;
 
 import de.intarsys.security.smartcard.card.standard.StandardCardTerminal;
-import de.intarsys.tools.concurrent.ThreadTools;
+import de.intarsys.security.smartcard.pcsc.PCSCThreadTools;
 import de.intarsys.tools.event.AttributeChangedEvent;
 import de.intarsys.tools.event.DeferredEventDispatcher;
 import de.intarsys.tools.event.Event;
@@ -68,10 +68,20 @@ public abstract class CommonCardSystem implements ICardSystem {
 
 	private ScheduledFuture<?> scheduledUpdate;
 
+	/**
+	 * <code>true</code> while the terminal monitor keeps the snapshot up to
+	 * date.
+	 */
+	private volatile boolean monitoring;
+
+	private volatile CardSystemSnapshot snapshot = CardSystemSnapshot.EMPTY;
+
 	private boolean disposed;
 
 	private boolean enabled = true;
 
+	private boolean hotPlug = true;
+
 	private final Runnable updateCardTerminalsCall = new Runnable() {
 		@Override
 		public void run() {
@@ -85,6 +95,32 @@ public abstract class CommonCardSystem implements ICardSystem {
 		}
 	};
 
+	private final Runnable monitorCardTerminalsCall = new Runnable() {
+		@Override
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				updateCardTerminalsCall.run();
+				boolean signaled;
+				try {
+					signaled = waitCardTerminalsChange();
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					Log.debug("{} wait for card terminals change failed", CommonCardSystem.this, e); //$NON-NLS-1$
+					signaled = false;
+				}
+				if (!signaled) {
+					// fallback to polling
+					try {
+						Thread.sleep(POLLING_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	};
+
 	private final Map<String, ICardTerminal> cardTerminalMap;
 
 	public CommonCardSystem() {
@@ -110,6 +146,12 @@ public abstract class CommonCardSystem implements ICardSystem {
 	protected void basicDispose() {
 	}
 
+	/**
+	 * Cancel a pending {@link #waitCardTerminalsChange()}.
+	 */
+	protected void cancelWaitCardTerminalsChange() {
+	}
+
 	@Override
 	@PreDestroy
 	public void dispose() {
@@ -123,6 +165,7 @@ public abstract class CommonCardSystem implements ICardSystem {
 			terminals = cardTerminalMap.values().toArray(
 					new StandardCardTerminal[cardTerminalMap.size()]);
 			cardTerminalMap.clear();
+			publishSnapshot();
 			stopEventScheduler();
 			basicDispose();
 		}
@@ -152,9 +195,7 @@ public abstract class CommonCardSystem implements ICardSystem {
 
 	@Override
 	public ICardTerminal getCardTerminal(String name) {
-		synchronized (lock) {
-			return cardTerminalMap.get(name);
-		}
+		return snapshot.getCardTerminal(name);
 	}
 
 	/**
@@ -164,11 +205,25 @@ public abstract class CommonCardSystem implements ICardSystem {
 	 */
 	@Override
 	public ICardTerminal[] getCardTerminals() {
-		updateCardTerminals();
-		synchronized (lock) {
-			return cardTerminalMap.values().toArray(
-					new ICardTerminal[cardTerminalMap.size()]);
+		return getSnapshot().getCardTerminals();
+	}
+
+	/**
+	 * The current {@link CardSystemSnapshot}.
+	 * 
+	 * While the terminal monitor is running, this is a plain volatile read.
+	 * Otherwise the terminals are updated in the calling thread.
+	 * 
+	 * @return The current {@link CardSystemSnapshot}.
+	 */
+	@Override
+	public CardSystemSnapshot getSnapshot() {
+		CardSystemSnapshot tempSnapshot = snapshot;
+		if (monitoring && tempSnapshot.getVersion() > 0) {
+			return tempSnapshot;
 		}
+		updateCardTerminals();
+		return snapshot;
 	}
 
 	@Override
@@ -182,6 +237,27 @@ public abstract class CommonCardSystem implements ICardSystem {
 		return enabled;
 	}
 
+	public boolean isHotPlug() {
+		return hotPlug;
+	}
+
+	/**
+	 * Publish a new {@link CardSystemSnapshot} reflecting the current
+	 * terminals and cards.
+	 */
+	protected void publishSnapshot() {
+		synchronized (lock) {
+			ICardTerminal[] terminals = cardTerminalMap.values().toArray(new ICardTerminal[cardTerminalMap.size()]);
+			ICard[] cards = new ICard[terminals.length];
+			EnumCardState[] cardStates = new EnumCardState[terminals.length];
+			for (int i = 0; i < terminals.length; i++) {
+				cards[i] = terminals[i].getCard();
+				cardStates[i] = cards[i] == null ? null : cards[i].getState();
+			}
+			snapshot = new CardSystemSnapshot(snapshot.getVersion() + 1, terminals, cards, cardStates);
+		}
+	}
+
 	@Override
 	public void removeNotificationListener(EventType type,
 			INotificationListener listener) {
@@ -197,21 +273,40 @@ public abstract class CommonCardSystem implements ICardSystem {
 		this.enabled = enabled;
 	}
 
+	/**
+	 * <code>true</code> if the terminal monitor should wait for a reader
+	 * arrival or removal signaled by the platform instead of polling.
+	 * 
+	 * This must be set before the terminal monitor is started.
+	 * 
+	 * @param hotPlug
+	 */
+	public void setHotPlug(boolean hotPlug) {
+		this.hotPlug = hotPlug;
+	}
+
 	protected void startEventScheduler() {
 		Log.info("{} start terminal monitor", this); //$NON-NLS-1$
 		scheduledExecutor = Executors
-				.newSingleThreadScheduledExecutor(ThreadTools
-						.newThreadFactoryDaemon("CardSystem terminal monitor")); //$NON-NLS-1$
-		scheduledUpdate = scheduledExecutor.scheduleWithFixedDelay(
-				updateCardTerminalsCall, 0, POLLING_INTERVAL, MILLISECONDS);
+				.newSingleThreadScheduledExecutor(PCSCThreadTools
+						.newThreadFactory("CardSystem terminal monitor")); //$NON-NLS-1$
+		monitoring = true;
+		if (isHotPlug()) {
+			scheduledUpdate = scheduledExecutor.schedule(monitorCardTerminalsCall, 0, MILLISECONDS);
+		} else {
+			scheduledUpdate = scheduledExecutor.scheduleWithFixedDelay(
+					updateCardTerminalsCall, 0, POLLING_INTERVAL, MILLISECONDS);
+		}
 	}
 
 	protected void stopEventScheduler() {
 		Log.debug("{} stop terminal monitor", this); //$NON-NLS-1$
+		monitoring = false;
 		if (scheduledUpdate != null) {
 			scheduledUpdate.cancel(true);
 			scheduledUpdate = null;
 			scheduledExecutor.shutdownNow();
+			cancelWaitCardTerminalsChange();
 		}
 	}
 
@@ -246,6 +341,9 @@ public abstract class CommonCardSystem implements ICardSystem {
 					triggerEvent(new AttributeChangedEvent(this,
 							ICardSystem.ATTR_CARD_TERMINALS, terminal, null));
 				}
+				if (!newTerminals.isEmpty() || !oldTerminals.isEmpty() || snapshot.getVersion() == 0) {
+					publishSnapshot();
+				}
 			}
 			for (ICardTerminal terminal : oldTerminals.values()) {
 				// do not hold lock when calling dispose
@@ -274,4 +372,19 @@ public abstract class CommonCardSystem implements ICardSystem {
 			Map<String, ICardTerminal> newTerminals) {
 	}
 
+	/**
+	 * Wait until the collection of card terminals may have changed.
+	 * 
+	 * The default implementation does not support hot plug notifications and
+	 * returns <code>false</code> immediately.
+	 * 
+	 * @return <code>true</code> if the wait was ended by a notification,
+	 *         <code>false</code> if notifications are not available and the
+	 *         caller should fall back to polling.
+	 * @throws InterruptedException
+	 */
+	protected boolean waitCardTerminalsChange() throws InterruptedException {
+		return false;
+	}
+
 }
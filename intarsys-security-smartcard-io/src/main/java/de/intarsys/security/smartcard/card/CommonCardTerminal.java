@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 
+import de.intarsys.security.smartcard.pcsc.PCSCReaderFeatures;
 import de.intarsys.tools.attribute.AttributeMap;
 import de.intarsys.tools.event.Event;
 import de.intarsys.tools.event.EventDispatcher;
@@ -69,6 +70,8 @@ public abstract class CommonCardTerminal implements ICardTerminal {
 
 	private final List<Runnable> resourceFinalizers;
 
+	private volatile PCSCReaderFeatures features;
+
 	protected CommonCardTerminal(CommonCardSystem cardSystem, String id)
 			throws CardException {
 		super();
@@ -106,6 +109,16 @@ public abstract class CommonCardTerminal implements ICardTerminal {
 		return card;
 	}
 
+	/**
+	 * Discover the CCID features of the terminal.
+	 * 
+	 * @return The CCID features of the terminal.
+	 * @throws CardException
+	 */
+	protected PCSCReaderFeatures basicGetFeatures() throws CardException {
+		return PCSCReaderFeatures.NONE;
+	}
+
 	protected void basicSetCard(CommonCard card) {
 		this.card = card;
 	}
@@ -174,6 +187,18 @@ public abstract class CommonCardTerminal implements ICardTerminal {
 		return eventDispatcher;
 	}
 
+	@Override
+	public PCSCReaderFeatures getFeatures() throws CardException {
+		PCSCReaderFeatures result = features;
+		if (result == null) {
+			checkValidity();
+			// a failed discovery is not remembered
+			result = basicGetFeatures();
+			features = result;
+		}
+		return result;
+	}
+
 	public String getId() {
 		return id;
 	}
@@ -219,6 +244,7 @@ public abstract class CommonCardTerminal implements ICardTerminal {
 
 	protected void triggerCardEvent(ICard card, EnumCardState oldState,
 			EnumCardState newState) {
+		getCardSystem().publishSnapshot();
 		final CardEvent event = new CardEvent(card, oldState, newState);
 		triggerEvent(event);
 	}
@@ -29,7 +29,11 @@
  */
 package de.intarsys.security.smartcard.card;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
 
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
 import de.intarsys.tools.attribute.IAttributeSupport;
@@ -163,4 +167,60 @@ public interface ICardConnection extends ICardTransmitter, IAttributeSupport {
 	 */
 	public void reconnect(int mode) throws CardException;
 
+	/**
+	 * Transmit an APDU without intermediate {@link RequestAPDU} and
+	 * {@link ResponseAPDU} objects.
+	 * 
+	 * The remaining bytes of <code>request</code> are sent, the response
+	 * (including the status word) is written to <code>response</code> starting
+	 * at its position. The positions of both buffers are advanced.
+	 * 
+	 * @param request
+	 *            The APDU request
+	 * @param response
+	 *            The buffer for the APDU response
+	 * @param sensitiveContent
+	 *            <code>true</code> if the request must not be logged
+	 * @return The number of response bytes.
+	 * @throws CardException
+	 */
+	public int transmit(ByteBuffer request, ByteBuffer response, boolean sensitiveContent) throws CardException;
+
+	/**
+	 * Transmit an APDU asynchronously.
+	 * 
+	 * The request is queued in the serial lane of the connection, asynchronous
+	 * requests are transmitted in the order they were issued. Synchronous
+	 * transmits are not queued, they are serialized with the asynchronous ones
+	 * but may be transmitted between two of them.
+	 * 
+	 * Cancelling the result before the request is dispatched does not remove it
+	 * from the queue, it is skipped when its turn comes. When the connection is
+	 * closed, the requests still queued fail with {@link CardReset}.
+	 * 
+	 * @param request
+	 *            The APDU request
+	 * @return A {@link CompletableFuture} for the response.
+	 */
+	public CompletableFuture<ResponseAPDU> transmitAsync(RequestAPDU request);
+
+	/**
+	 * Transmit a sequence of APDUs as a single unit.
+	 * 
+	 * The connection is checked once and all requests are sent with a single
+	 * hop to the PC/SC layer. After each response <code>stopCondition</code>
+	 * is tested with its status word, if it matches the remaining requests are
+	 * not sent. If a request fails, the batch is aborted with a
+	 * {@link CardBatchException} holding the responses received so far.
+	 * 
+	 * @param requests
+	 *            The APDU requests
+	 * @param stopCondition
+	 *            The status words to stop at, may be <code>null</code>
+	 * @return The responses received, in order.
+	 * @throws CardException
+	 */
+	public List<ResponseAPDU> transmitBatch(List<RequestAPDU> requests, IntPredicate stopCondition)
+			throws CardException;
+
 }
@@ -86,6 +86,15 @@ public interface ICardSystem extends INotificationSupport {
 	 */
 	public ICardTerminal[] getCardTerminals();
 
+	/**
+	 * The current {@link CardSystemSnapshot}. Use
+	 * {@link CardSystemSnapshot#isChangedSince(long)} to detect changes
+	 * without listening to events.
+	 * 
+	 * @return The current {@link CardSystemSnapshot}.
+	 */
+	public CardSystemSnapshot getSnapshot();
+
 	/**
 	 * <code>true</code> if this object is already disposed.
 	 * 
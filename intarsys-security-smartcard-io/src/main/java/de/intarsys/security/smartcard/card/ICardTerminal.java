@@ -29,6 +29,7 @@
  */
 package de.intarsys.security.smartcard.card;
 
+import de.intarsys.security.smartcard.pcsc.PCSCReaderFeatures;
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
 import de.intarsys.tools.attribute.IAttributeSupport;
 import de.intarsys.tools.event.INotificationSupport;
@@ -84,6 +85,18 @@ public interface ICardTerminal extends INotificationSupport, IAttributeSupport {
 	 */
 	public ICardSystem getCardSystem();
 
+	/**
+	 * The CCID features of the terminal, like the control codes for secure PIN
+	 * entry or the maximum APDU data size.
+	 * 
+	 * The features are discovered once, this may need a direct connection to
+	 * the terminal.
+	 * 
+	 * @return The CCID features of the terminal.
+	 * @throws CardException
+	 */
+	public PCSCReaderFeatures getFeatures() throws CardException;
+
 	/**
 	 * The name of the {@link ICardTerminal}.
 	 * 
@@ -29,6 +29,7 @@
  */
 package de.intarsys.security.smartcard.card;
 
+import de.intarsys.security.smartcard.pcsc.PCSCReaderFeatures;
 import de.intarsys.tools.event.EventType;
 import de.intarsys.tools.event.INotificationListener;
 import de.intarsys.tools.message.IMessageBundle;
@@ -82,6 +83,11 @@ public class NoCardTerminal implements ICardTerminal {
 		return null;
 	}
 
+	@Override
+	public PCSCReaderFeatures getFeatures() {
+		return PCSCReaderFeatures.NONE;
+	}
+
 	@Override
 	public String getName() {
 		return Msg.getString("NoCardTerminal.name"); //$NON-NLS-1$
@@ -29,15 +29,23 @@
  */
 package de.intarsys.security.smartcard.card.standard;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.IntPredicate;
 
+import de.intarsys.security.smartcard.card.CardBatchException;
 import de.intarsys.security.smartcard.card.CardException;
 import de.intarsys.security.smartcard.card.CommonCardConnection;
 import de.intarsys.security.smartcard.card.RequestAPDU;
 import de.intarsys.security.smartcard.card.ResponseAPDU;
 import de.intarsys.security.smartcard.pcsc.IPCSCConnection;
+import de.intarsys.security.smartcard.pcsc.PCSCBatchException;
+import de.intarsys.security.smartcard.pcsc.PCSCContextPool;
 import de.intarsys.security.smartcard.pcsc.PCSCException;
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.exception.ExceptionTools;
 import de.intarsys.tools.yalf.api.ILogger;
 
 /**
@@ -53,9 +61,10 @@ import de.intarsys.tools.yalf.api.ILogger;
  * {@link StandardCard} is part of the abstraction layer that is built on top of
  * the PCSC API. From a PCSC point of view, both a PCSC context AND a PCSC
  * connection are made for a new StandardCardConnection. This is the least
- * common denominator for different PCSC platforms and versions. Again, this is
- * why both the connection and the context are disposed when closing the
- * connection.
+ * common denominator for different PCSC platforms and versions. The context is
+ * leased from the {@link PCSCContextPool} of the card system if available and
+ * is returned when closing the connection, otherwise both the connection and
+ * the context are disposed.
  * 
  */
 public class StandardCardConnection extends CommonCardConnection {
@@ -64,18 +73,32 @@ public class StandardCardConnection extends CommonCardConnection {
 
 	private final IPCSCConnection pcscConnection;
 
+	private final PCSCContextPool contextPool;
+
 	protected StandardCardConnection(StandardCard pCard,
 			ScheduledExecutorService executorTask, boolean exclusive,
 			IPCSCConnection pPcscConnection) {
+		this(pCard, executorTask, exclusive, pPcscConnection, null);
+	}
+
+	protected StandardCardConnection(StandardCard pCard, ScheduledExecutorService executorTask, boolean exclusive,
+			IPCSCConnection pPcscConnection, PCSCContextPool pContextPool) {
 		super(pCard, pPcscConnection.getId(), executorTask, exclusive);
 		this.pcscConnection = pPcscConnection;
+		this.contextPool = pContextPool;
 		Log.debug("{} created for {}", this, pcscConnection); //$NON-NLS-1$
 	}
 
 	protected StandardCardConnection(StandardCardTerminal pCardTerminal, ScheduledExecutorService executorTask,
 			boolean exclusive, IPCSCConnection pPcscConnection) {
+		this(pCardTerminal, executorTask, exclusive, pPcscConnection, null);
+	}
+
+	protected StandardCardConnection(StandardCardTerminal pCardTerminal, ScheduledExecutorService executorTask,
+			boolean exclusive, IPCSCConnection pPcscConnection, PCSCContextPool pContextPool) {
 		super(pCardTerminal, pPcscConnection.getId(), executorTask, exclusive);
 		this.pcscConnection = pPcscConnection;
+		this.contextPool = pContextPool;
 		Log.debug("{} created for {}", this, pcscConnection); //$NON-NLS-1$
 	}
 
@@ -91,10 +114,22 @@ public class StandardCardConnection extends CommonCardConnection {
 
 	@Override
 	protected void basicClose(int mode) throws CardException {
+		boolean failed = false;
 		try {
 			pcscConnection.disconnect(mode);
 		} catch (Exception e) {
-			//
+			// common after the card or reader is gone, the close itself succeeds
+			Log.debug("{} disconnect failed ({})", this, ExceptionTools.getMessage(e)); //$NON-NLS-1$
+			failed = true;
+		}
+		if (contextPool != null) {
+			// the state of the context is unknown after a failed disconnect
+			if (failed) {
+				contextPool.evict(pcscConnection.getContext());
+			} else {
+				contextPool.release(pcscConnection.getContext());
+			}
+			return;
 		}
 		try {
 			pcscConnection.getContext().dispose();
@@ -182,6 +217,46 @@ public class StandardCardConnection extends CommonCardConnection {
 		}
 	}
 
+	@Override
+	protected int basicTransmit(ByteBuffer request, ByteBuffer response, boolean sensitiveContent)
+			throws CardException {
+		try {
+			return pcscConnection.transmit(request, response, sensitiveContent);
+		} catch (PCSCException e) {
+			throw CardException.create(e);
+		}
+	}
+
+	@Override
+	protected List<ResponseAPDU> basicTransmitBatch(List<RequestAPDU> requests, IntPredicate stopCondition)
+			throws CardException {
+		List<byte[]> requestBytes = new ArrayList<>(requests.size());
+		boolean[] sensitiveContent = new boolean[requests.size()];
+		int receiveLength = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			RequestAPDU request = requests.get(i);
+			requestBytes.add(request.getBytes());
+			receiveLength = Math.max(receiveLength, request.getReceiveLength());
+			sensitiveContent[i] = request.isSensitiveContent();
+		}
+		try {
+			return createResponses(
+					pcscConnection.transmitBatch(requestBytes, receiveLength, sensitiveContent, stopCondition));
+		} catch (PCSCBatchException e) {
+			throw new CardBatchException(CardException.create(e.getCause()), createResponses(e.getResponses()));
+		} catch (PCSCException e) {
+			throw CardException.create(e);
+		}
+	}
+
+	protected List<ResponseAPDU> createResponses(List<byte[]> responseBytes) throws CardException {
+		List<ResponseAPDU> responses = new ArrayList<>(responseBytes.size());
+		for (byte[] response : responseBytes) {
+			responses.add(new ResponseAPDU(response));
+		}
+		return responses;
+	}
+
 	public IPCSCConnection getPcscConnection() {
 		return pcscConnection;
 	}
@@ -32,17 +32,22 @@ package de.intarsys.security.smartcard.card.standard;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import de.intarsys.security.smartcard.card.CardException;
 import de.intarsys.security.smartcard.card.CommonCardSystem;
 import de.intarsys.security.smartcard.card.ICardTerminal;
+import de.intarsys.security.smartcard.pcsc.CommonPCSCContext;
 import de.intarsys.security.smartcard.pcsc.EmptyContext;
 import de.intarsys.security.smartcard.pcsc.IPCSCCardReader;
 import de.intarsys.security.smartcard.pcsc.IPCSCContext;
 import de.intarsys.security.smartcard.pcsc.IPCSCContextFactory;
+import de.intarsys.security.smartcard.pcsc.PCSCCardReaderState;
 import de.intarsys.security.smartcard.pcsc.PCSCContextFactory;
+import de.intarsys.security.smartcard.pcsc.PCSCContextPool;
 import de.intarsys.security.smartcard.pcsc.PCSCException;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
 import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
 import de.intarsys.tools.event.AttributeChangedEvent;
 import de.intarsys.tools.exception.ExceptionTools;
@@ -58,6 +63,14 @@ import de.intarsys.tools.yalf.api.ILogger;
  * (found and removed) are propagated to registered listeners as
  * {@link AttributeChangedEvent} events.
  * <p>
+ * In hot plug mode the monitoring thread waits for the "\\?PnP?\Notification"
+ * pseudo reader and lists the readers only when PC/SC signals a change. If
+ * this is not supported, we fall back to polling.
+ * <p>
+ * The PCSC contexts needed for card connections are leased from a
+ * {@link PCSCContextPool}. The pool is bound to the lifetime of the system
+ * context and is recreated with it.
+ * <p>
  * {@link StandardCardSystem} is used in a multithreaded environment and its
  * state is accessed by either the monitoring thread and the client code
  * requesting the {@link StandardCardTerminal} instances.
@@ -68,12 +81,34 @@ public class StandardCardSystem extends CommonCardSystem {
 
 	private static final ILogger Log = PACKAGE.Log;
 
+	/**
+	 * The maximum time to wait for a PnP notification. This is a safety net
+	 * for a cancel request that is lost when issued right before the wait.
+	 */
+	private static final int PNP_TIMEOUT = 60000;
+
 	private Pattern cardTerminalsHide = Pattern.compile(".*datev.*", Pattern.CASE_INSENSITIVE);
 
 	private IPCSCContext pcscContext;
 
+	private volatile PCSCContextPool contextPool;
+
+	private int contextPoolMaxIdle = PCSCContextPool.DEFAULT_MAX_IDLE;
+
+	private int contextPoolMaxActive = PCSCContextPool.DEFAULT_MAX_ACTIVE;
+
+	private int contextPoolWarmUp = 0;
+
 	private final IPCSCContextFactory pcscContextFactory;
 
+	private IPCSCContext pnpContext;
+
+	private PCSCCardReaderState pnpState;
+
+	private boolean pnpSupported = true;
+
+	private final Object lockPnp = new Object();
+
 	public StandardCardSystem(IPCSCContext context) {
 		super();
 		this.pcscContext = context;
@@ -92,6 +127,57 @@ public class StandardCardSystem extends CommonCardSystem {
 	@Override
 	protected void basicDispose() {
 		pcscStop();
+		pnpStop();
+	}
+
+	@Override
+	protected void cancelWaitCardTerminalsChange() {
+		IPCSCContext tempContext;
+		synchronized (lockPnp) {
+			tempContext = pnpContext;
+		}
+		if (tempContext instanceof CommonPCSCContext) {
+			try {
+				((CommonPCSCContext) tempContext).cancelGetStatusChange();
+			} catch (PCSCException e) {
+				Log.trace("{} cancel PnP notification failed", this); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * The pool of PCSC contexts used for card connections. This may be
+	 * <code>null</code> if no PCSC context is available.
+	 * 
+	 * @return The pool of PCSC contexts used for card connections.
+	 */
+	public PCSCContextPool getContextPool() {
+		return contextPool;
+	}
+
+	/**
+	 * The maximum number of contexts leased at a time, unlimited by default.
+	 * A connect beyond waits for a context to be returned and fails after
+	 * {@link PCSCContextPool#getLeaseTimeout()}.
+	 * 
+	 * @return The maximum number of contexts leased at a time.
+	 */
+	public int getContextPoolMaxActive() {
+		return contextPoolMaxActive;
+	}
+
+	public int getContextPoolMaxIdle() {
+		return contextPoolMaxIdle;
+	}
+
+	/**
+	 * The number of idle contexts established in advance when the pool is
+	 * created.
+	 * 
+	 * @return The number of idle contexts established in advance.
+	 */
+	public int getContextPoolWarmUp() {
+		return contextPoolWarmUp;
 	}
 
 	protected IPCSCContext getPcscContext() {
@@ -121,10 +207,25 @@ public class StandardCardSystem extends CommonCardSystem {
 				Log.warn("{} can't establish PCSC context", this, e);
 				pcscContext = new EmptyContext();
 			}
+			if (pcscContext != null && !(pcscContext instanceof EmptyContext)) {
+				PCSCContextPool tempPool = new PCSCContextPool(pcscContext, getContextPoolMaxIdle(),
+						getContextPoolMaxActive());
+				try {
+					tempPool.warmUp(getContextPoolWarmUp());
+				} catch (PCSCException e) {
+					Log.debug("{} context pool warm up failed ({})", this, e.getErrorCode()); //$NON-NLS-1$
+				}
+				contextPool = tempPool;
+			}
 		}
 	}
 
 	private void pcscStop() {
+		PCSCContextPool tempPool = contextPool;
+		contextPool = null;
+		if (tempPool != null) {
+			tempPool.dispose();
+		}
 		if (pcscContext != null) {
 			try {
 				pcscContext.dispose();
@@ -135,6 +236,62 @@ public class StandardCardSystem extends CommonCardSystem {
 		}
 	}
 
+	private IPCSCContext pnpStart() throws PCSCException {
+		synchronized (lockPnp) {
+			if (pnpContext == null) {
+				IPCSCContext tempContext = getPcscContext();
+				if (!(tempContext instanceof CommonPCSCContext)) {
+					// PnP notification is per library, a multi context is polled
+					return null;
+				}
+				CommonPCSCContext newContext = (CommonPCSCContext) tempContext.establishContext();
+				// waiting for PnP is useless when polling
+				newContext.setUseBlockingGetStatusChange(true);
+				pnpContext = newContext;
+				pnpState = null;
+			}
+			return pnpContext;
+		}
+	}
+
+	private void pnpStop() {
+		IPCSCContext tempContext;
+		synchronized (lockPnp) {
+			tempContext = pnpContext;
+			pnpContext = null;
+			pnpState = null;
+		}
+		if (tempContext != null) {
+			try {
+				tempContext.dispose();
+			} catch (PCSCException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * @see #getContextPoolMaxActive()
+	 * 
+	 * @param contextPoolMaxActive
+	 */
+	public void setContextPoolMaxActive(int contextPoolMaxActive) {
+		this.contextPoolMaxActive = contextPoolMaxActive;
+	}
+
+	public void setContextPoolMaxIdle(int contextPoolMaxIdle) {
+		this.contextPoolMaxIdle = contextPoolMaxIdle;
+	}
+
+	/**
+	 * @see #getContextPoolWarmUp()
+	 * 
+	 * @param contextPoolWarmUp
+	 */
+	public void setContextPoolWarmUp(int contextPoolWarmUp) {
+		this.contextPoolWarmUp = contextPoolWarmUp;
+	}
+
 	@Override
 	public void setEnabled(boolean enabled) {
 		super.setEnabled(enabled);
@@ -208,4 +365,61 @@ public class StandardCardSystem extends CommonCardSystem {
 			}
 		}
 	}
+
+	@Override
+	protected boolean waitCardTerminalsChange() throws InterruptedException {
+		if (!pnpSupported || !isEnabled()) {
+			return false;
+		}
+		IPCSCContext context;
+		PCSCCardReaderState currentState;
+		try {
+			context = pnpStart();
+		} catch (PCSCException e) {
+			Log.debug("{} can't establish PnP context ({})", this, ExceptionTools.getMessage(e)); //$NON-NLS-1$
+			return false;
+		}
+		if (context == null) {
+			return false;
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException();
+		}
+		synchronized (lockPnp) {
+			currentState = pnpState;
+		}
+		try {
+			PCSCCardReaderState newState = context.getStatusChange(_IPCSC.SCARD_PNP_NOTIFICATION, currentState,
+					PNP_TIMEOUT);
+			if (newState.isUnknown() || newState.isIgnore()) {
+				Log.info("{} PnP notification not supported, use polling", this); //$NON-NLS-1$
+				pnpSupported = false;
+				pnpStop();
+				return false;
+			}
+			synchronized (lockPnp) {
+				pnpState = newState;
+			}
+			Log.trace("{} PnP notification", this); //$NON-NLS-1$
+			return true;
+		} catch (TimeoutException e) {
+			return true;
+		} catch (PCSCException e) {
+			if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_CANCELLED) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException();
+				}
+				return true;
+			}
+			if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_UNKNOWN_READER) {
+				Log.info("{} PnP notification not supported, use polling", this); //$NON-NLS-1$
+				pnpSupported = false;
+			} else {
+				Log.debug("{} PnP notification failed ({})", this, ExceptionTools.getMessage(e)); //$NON-NLS-1$
+			}
+			// context may be broken, start over
+			pnpStop();
+			return false;
+		}
+	}
 }
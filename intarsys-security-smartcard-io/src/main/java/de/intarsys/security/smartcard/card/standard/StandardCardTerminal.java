@@ -36,11 +36,14 @@ import de.intarsys.security.smartcard.card.CardException;
 import de.intarsys.security.smartcard.card.CommonCardConnection;
 import de.intarsys.security.smartcard.card.CommonCardTerminal;
 import de.intarsys.security.smartcard.card.EnumCardState;
+import de.intarsys.security.smartcard.card.ICardConnection;
 import de.intarsys.security.smartcard.pcsc.IPCSCCardReader;
 import de.intarsys.security.smartcard.pcsc.IPCSCConnection;
 import de.intarsys.security.smartcard.pcsc.IPCSCContext;
 import de.intarsys.security.smartcard.pcsc.PCSCCardReaderState;
+import de.intarsys.security.smartcard.pcsc.PCSCContextPool;
 import de.intarsys.security.smartcard.pcsc.PCSCException;
+import de.intarsys.security.smartcard.pcsc.PCSCReaderFeatures;
 import de.intarsys.security.smartcard.pcsc.PCSCStatusMonitor;
 import de.intarsys.security.smartcard.pcsc.PCSCTools;
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
@@ -114,22 +117,19 @@ public class StandardCardTerminal extends CommonCardTerminal implements INotific
 	@Override
 	protected CommonCardConnection basicConnectDirect(String suffix, ScheduledExecutorService executor)
 			throws CardException {
+		PCSCContextPool pool = getContextPool();
 		IPCSCContext context = null;
 		try {
-			context = getPcscCardReader().getContext().establishContext();
+			context = leaseContext(pool);
 			Log.trace("{} create connection context {}", getLogLabel(), context);
 			IPCSCConnection connection = context.connect(suffix, getPcscCardReader().getName(),
 					_IPCSC.SCARD_SHARE_DIRECT,
 					PCSCTools.DirectConnectProtocol);
-			StandardCardConnection newChannel = new StandardCardConnection(this, executor, true, connection);
+			StandardCardConnection newChannel = new StandardCardConnection(this, executor, true, connection, pool);
 			return newChannel;
 		} catch (PCSCException e) {
 			if (context != null) {
-				try {
-					context.dispose();
-				} catch (PCSCException ignore) {
-					//
-				}
+				releaseContext(pool, context, e);
 			}
 			throw CardException.create(e);
 		}
@@ -137,20 +137,17 @@ public class StandardCardTerminal extends CommonCardTerminal implements INotific
 
 	protected StandardCardConnection basicConnectExclusive(StandardCard card, String suffix, int protocol,
 			ScheduledExecutorService executor) throws CardException {
+		PCSCContextPool pool = getContextPool();
 		IPCSCContext context = null;
 		try {
-			context = getPcscCardReader().getContext().establishContext();
+			context = leaseContext(pool);
 			Log.trace("{} create connection context {}", getLogLabel(), context);
 			IPCSCConnection pcscConnection = context.connect(suffix, getPcscCardReader().getName(),
 					_IPCSC.SCARD_SHARE_EXCLUSIVE, protocol);
-			return new StandardCardConnection(card, executor, true, pcscConnection);
+			return new StandardCardConnection(card, executor, true, pcscConnection, pool);
 		} catch (PCSCException e) {
 			if (context != null) {
-				try {
-					context.dispose();
-				} catch (PCSCException ignore) {
-					//
-				}
+				releaseContext(pool, context, e);
 			}
 			throw CardException.create(e);
 		}
@@ -158,20 +155,17 @@ public class StandardCardTerminal extends CommonCardTerminal implements INotific
 
 	protected StandardCardConnection basicConnectShared(StandardCard card, String suffix, int protocol,
 			ScheduledExecutorService executor) throws CardException {
+		PCSCContextPool pool = getContextPool();
 		IPCSCContext context = null;
 		try {
-			context = getPcscCardReader().getContext().establishContext();
+			context = leaseContext(pool);
 			Log.trace("{} create connection context {}", getLogLabel(), context);
 			IPCSCConnection pcscConnection = context.connect(suffix, getPcscCardReader().getName(),
 					_IPCSC.SCARD_SHARE_SHARED, protocol);
-			return new StandardCardConnection(card, executor, false, pcscConnection);
+			return new StandardCardConnection(card, executor, false, pcscConnection, pool);
 		} catch (PCSCException e) {
 			if (context != null) {
-				try {
-					context.dispose();
-				} catch (PCSCException ignore) {
-					//
-				}
+				releaseContext(pool, context, e);
 			}
 			throw CardException.create(e);
 		}
@@ -183,6 +177,29 @@ public class StandardCardTerminal extends CommonCardTerminal implements INotific
 		monitor.removeStatusListener(listenStatus);
 	}
 
+	@Override
+	protected PCSCReaderFeatures basicGetFeatures() throws CardException {
+		StandardCardConnection connection = (StandardCardConnection) connectDirect();
+		try {
+			return connection.getPcscConnection().getFeatures();
+		} catch (PCSCException e) {
+			throw CardException.create(e);
+		} finally {
+			try {
+				connection.close(ICardConnection.MODE_LEAVE_CARD);
+			} catch (CardException e) {
+				Log.debug("{} close feature discovery connection failed", getLogLabel(), e); //$NON-NLS-1$
+			}
+		}
+	}
+
+	protected PCSCContextPool getContextPool() {
+		if (getCardSystem() instanceof StandardCardSystem) {
+			return ((StandardCardSystem) getCardSystem()).getContextPool();
+		}
+		return null;
+	}
+
 	@Override
 	public String getName() {
 		return getPcscCardReader().getName();
@@ -192,6 +209,27 @@ public class StandardCardTerminal extends CommonCardTerminal implements INotific
 		return pcscCardReader;
 	}
 
+	protected IPCSCContext leaseContext(PCSCContextPool pool) throws PCSCException {
+		if (pool == null) {
+			return getPcscCardReader().getContext().establishContext();
+		}
+		return pool.lease();
+	}
+
+	protected void releaseContext(PCSCContextPool pool, IPCSCContext context, PCSCException e) {
+		if (pool == null) {
+			try {
+				context.dispose();
+			} catch (PCSCException ignore) {
+				//
+			}
+		} else if (e != null && PCSCContextPool.isInvalidHandle(e)) {
+			pool.evict(context);
+		} else {
+			pool.release(context);
+		}
+	}
+
 	@Override
 	public void renew() {
 		EnumCardState cardState = null;
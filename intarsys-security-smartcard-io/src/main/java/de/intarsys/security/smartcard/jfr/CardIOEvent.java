@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.jfr;
+
+import de.intarsys.security.smartcard.pcsc.PCSCException;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * The common base for smartcard I/O flight recorder events.
+ * <p>
+ * The events are created and committed unconditionally, the flight recorder
+ * reduces this to a flag check when disabled. Fields should only be computed
+ * when {@link #shouldCommit()}.
+ */
+@Category({ "Smartcard", "PC/SC" })
+public abstract class CardIOEvent extends Event {
+
+	/**
+	 * The return code if the operation failed without a PC/SC return code.
+	 */
+	public static final int RC_FAILED = -1;
+
+	@Label("Reader")
+	public String reader;
+
+	@Label("Connection Id")
+	public String connectionId;
+
+	@Label("Return Code")
+	public int returnCode;
+
+	/**
+	 * Set {@link #returnCode} from the PC/SC error code of <code>t</code> or
+	 * one of its causes.
+	 * 
+	 * @param t
+	 */
+	public void setError(Throwable t) {
+		Throwable cause = t;
+		while (cause != null) {
+			if (cause instanceof PCSCException) {
+				returnCode = ((PCSCException) cause).getErrorCode();
+				return;
+			}
+			cause = cause.getCause();
+		}
+		returnCode = RC_FAILED;
+	}
+}
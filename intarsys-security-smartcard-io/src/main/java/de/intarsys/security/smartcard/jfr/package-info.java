@@ -0,0 +1,8 @@
+/**
+ * Java Flight Recorder events for smartcard I/O.
+ * <p>
+ * Enable with a recording setting like
+ * <code>de.intarsys.smartcard.Transmit#enabled=true</code> or the "Smartcard"
+ * category in JMC.
+ */
+package de.intarsys.security.smartcard.jfr;
@@ -29,6 +29,8 @@
  */
 package de.intarsys.security.smartcard.pcsc;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -43,6 +45,7 @@ import de.intarsys.tools.concurrent.ThreadTools;
 import de.intarsys.tools.oid.IOIDGenerator;
 import de.intarsys.tools.oid.PronouncableOIDGenerator;
 import de.intarsys.tools.yalf.api.ILogger;
+import de.intarsys.tools.yalf.api.Level;
 
 /**
  * A common implementation for {@link IPCSCContext}.
@@ -57,6 +60,26 @@ import de.intarsys.tools.yalf.api.ILogger;
  */
 public abstract class CommonPCSCContext implements IPCSCContext {
 
+	/**
+	 * The native state of a single reader, reused by
+	 * {@link CommonPCSCContext#getStatusChange(String, PCSCCardReaderState, int)}.
+	 */
+	private static class ReaderStateSlot {
+
+		private final SCARD_READERSTATE[] states = new SCARD_READERSTATE[] { new SCARD_READERSTATE() };
+
+		private boolean inUse;
+
+		/*
+		 * the state whose ATR is in the native structure
+		 */
+		private PCSCCardReaderState written;
+
+		protected ReaderStateSlot(String readerName) {
+			states[0].setReader(new NativeString(readerName));
+		}
+	}
+
 	private static final IOIDGenerator<String> OID_GENERATOR = new PronouncableOIDGenerator();
 
 	private static final ILogger Log = PACKAGE.Log;
@@ -93,6 +116,19 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 
 	private boolean useBlockingGetStatusChange;
 
+	/*
+	 * reader name -> native reader state, guarded by lock
+	 */
+	private final Map<String, ReaderStateSlot> readerStateSlots = new HashMap<>();
+
+	protected final PCSCScratch scratch = new PCSCScratch();
+
+	private PCSCControlCodeMapping controlCodeMapping = new PCSCControlCodeMapping();
+
+	private PCSCReaderFeatureCache readerFeatureCache = new PCSCReaderFeatureCache();
+
+	private PCSCAttributeCache attributeCache = new PCSCAttributeCache();
+
 	protected CommonPCSCContext(INativePCSCLib pLib, _IPCSC pPcsc, SCARDCONTEXT pHContext) {
 		lib = pLib;
 		pcsc = pPcsc;
@@ -101,11 +137,37 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 		Log.debug("{} created, handle {}, {} active", getLogLabel(), Long.toHexString(hContext.longValue()), count);
 	}
 
+	/**
+	 * Cancel a pending "getStatusChange" request.
+	 * 
+	 * @throws PCSCException
+	 */
+	public abstract void cancelGetStatusChange() throws PCSCException;
+
+	private ReaderStateSlot claimSlot(String readerName) {
+		synchronized (lock) {
+			ReaderStateSlot slot = readerStateSlots.get(readerName);
+			if (slot == null) {
+				slot = new ReaderStateSlot(readerName);
+				readerStateSlots.put(readerName, slot);
+			} else if (slot.inUse) {
+				// concurrent request for the same reader
+				return new ReaderStateSlot(readerName);
+			}
+			slot.inUse = true;
+			return slot;
+		}
+	}
+
 	protected void basicRelease(SCARDCONTEXT pHContext) throws PCSCException {
 		int rc = pcsc.SCardReleaseContext(pHContext);
 		PCSCException.checkReturnCode(rc);
 	}
 
+	private TimeoutException createTimeoutException() {
+		return new TimeoutException(new PCSCException(_IPCSC.SCARD_E_TIMEOUT).getLocalizedMessage());
+	}
+
 	@Override
 	public void dispose() throws PCSCException {
 		if (isReleaseVeto()) {
@@ -128,6 +190,8 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 			basicRelease(tempContext);
 		} catch (PCSCException e) {
 			Log.debug("{} release exception", getLogLabel(), e); //$NON-NLS-1$
+		} finally {
+			scratch.dispose();
 		}
 	}
 
@@ -173,6 +237,24 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 		}
 	}
 
+	/**
+	 * The attributes cached per reader.
+	 * 
+	 * @return The attributes cached per reader.
+	 */
+	public PCSCAttributeCache getAttributeCache() {
+		return attributeCache;
+	}
+
+	/**
+	 * The control code encoding learned per reader.
+	 * 
+	 * @return The control code encoding learned per reader.
+	 */
+	public PCSCControlCodeMapping getControlCodeMapping() {
+		return controlCodeMapping;
+	}
+
 	public SCARDCONTEXT getHContext() {
 		synchronized (lockContext) {
 			return hContext;
@@ -205,36 +287,84 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 		return null;
 	}
 
-	protected abstract void getStatusChange(SCARD_READERSTATE newState,
+	/**
+	 * The CCID features discovered per reader.
+	 * 
+	 * @return The CCID features discovered per reader.
+	 */
+	public PCSCReaderFeatureCache getReaderFeatureCache() {
+		return readerFeatureCache;
+	}
+
+	/**
+	 * Wait for a status change of any of the readers in <code>states</code>.
+	 * 
+	 * <code>states</code> must be a single structure or created using
+	 * {@link SCARD_READERSTATE#createArray(int)}.
+	 * 
+	 * @param states
+	 * @param millisecTimeout
+	 * @return <code>false</code> if the timeout elapsed.
+	 * @throws PCSCException
+	 */
+	protected abstract boolean basicGetStatusChange(SCARD_READERSTATE[] states,
 			int millisecTimeout) throws PCSCException;
 
+	/**
+	 * Get the status change for all readers in <code>states</code> in a single
+	 * call. Upon return the event state of at least one reader differs from its
+	 * current state.
+	 * 
+	 * <code>states</code> must be created using
+	 * {@link SCARD_READERSTATE#createArray(int)}.
+	 * 
+	 * @param states
+	 * @param millisecTimeout
+	 * @throws PCSCException
+	 * @throws TimeoutException
+	 */
+	public void getStatusChange(SCARD_READERSTATE[] states, int millisecTimeout)
+			throws PCSCException, TimeoutException {
+		if (!waitStatusChange(states, millisecTimeout)) {
+			throw createTimeoutException();
+		}
+	}
+
 	@Override
 	public final PCSCCardReaderState getStatusChange(String readerName,
 			PCSCCardReaderState currentState, int millisecTimeout)
 			throws PCSCException, TimeoutException {
-		SCARD_READERSTATE newState = new SCARD_READERSTATE();
-		newState.setReader(new NativeString(readerName));
-		if (currentState != null) {
-			newState.setCurrentState(currentState.getEventState());
-			newState.setEventState(currentState.getEventState());
-			newState.setATR(currentState.getATR());
-		} else {
-			newState.setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
-			newState.setEventState(_IPCSC.SCARD_STATE_UNAWARE);
-		}
+		ReaderStateSlot slot = claimSlot(readerName);
 		try {
-			Log.trace(
-					"{} getStatusChange({}), blocking={}", getLogLabel(), readerName, isUseBlockingGetStatusChange()); //$NON-NLS-1$ //$NON-NLS-2$
-			getStatusChange(newState, millisecTimeout);
-			PCSCCardReaderState state = new PCSCCardReaderState(newState);
-			Log.trace("{} getStatusChange(), -> \n{}", getLogLabel(), state.toString()); //$NON-NLS-1$
-			return state;
-		} catch (PCSCException e) {
-			if (e.getErrorCode() == _IPCSC.SCARD_E_TIMEOUT) {
+			SCARD_READERSTATE newState = slot.states[0];
+			if (currentState != null) {
+				newState.setCurrentState(currentState.getEventState());
+				newState.setEventState(currentState.getEventState());
+				if (currentState != slot.written) {
+					newState.setATR(currentState.basicGetATR());
+					// a timeout leaves the structure as written
+					slot.written = currentState;
+				}
+			} else {
+				newState.setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
+				newState.setEventState(_IPCSC.SCARD_STATE_UNAWARE);
+			}
+			if (Log.isLoggable(Level.TRACE)) {
+				Log.trace(
+						"{} getStatusChange({}), blocking={}", getLogLabel(), readerName, isUseBlockingGetStatusChange()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			if (!basicGetStatusChange(slot.states, millisecTimeout)) {
 				Log.trace("{} getStatusChange({}) timeout", getLogLabel(), readerName); //$NON-NLS-1$
-				throw new TimeoutException(e.getLocalizedMessage());
+				throw createTimeoutException();
 			}
-			throw e;
+			PCSCCardReaderState state = new PCSCCardReaderState(readerName, newState);
+			slot.written = state;
+			if (Log.isLoggable(Level.TRACE)) {
+				Log.trace("{} getStatusChange(), -> \n{}", getLogLabel(), state.toString()); //$NON-NLS-1$
+			}
+			return state;
+		} finally {
+			releaseSlot(slot);
 		}
 	}
 
@@ -245,6 +375,20 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 		}
 	}
 
+	/**
+	 * <code>true</code> if the native context is still valid. This is a
+	 * health check before reusing a context.
+	 * 
+	 * @return <code>true</code> if the native context is still valid.
+	 */
+	public boolean isValid() {
+		SCARDCONTEXT tempContext = getHContext();
+		if (tempContext == null) {
+			return false;
+		}
+		return getPcsc().SCardIsValidContext(tempContext) == _PCSC_RETURN_CODES.SCARD_S_SUCCESS;
+	}
+
 	protected boolean isReleaseVeto() {
 		return false;
 	}
@@ -253,6 +397,24 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 		return useBlockingGetStatusChange;
 	}
 
+	private void releaseSlot(ReaderStateSlot slot) {
+		synchronized (lock) {
+			slot.inUse = false;
+		}
+	}
+
+	public void setAttributeCache(PCSCAttributeCache attributeCache) {
+		this.attributeCache = attributeCache;
+	}
+
+	public void setControlCodeMapping(PCSCControlCodeMapping controlCodeMapping) {
+		this.controlCodeMapping = controlCodeMapping;
+	}
+
+	public void setReaderFeatureCache(PCSCReaderFeatureCache readerFeatureCache) {
+		this.readerFeatureCache = readerFeatureCache;
+	}
+
 	public void setUseBlockingGetStatusChange(boolean useBlockingGetStatusChange) {
 		this.useBlockingGetStatusChange = useBlockingGetStatusChange;
 	}
@@ -261,4 +423,31 @@ public abstract class CommonPCSCContext implements IPCSCContext {
 	public String toString() {
 		return getLogLabel();
 	}
+
+	/**
+	 * Wait for a status change of any of the readers in <code>states</code>,
+	 * see {@link #getStatusChange(SCARD_READERSTATE[], int)}.
+	 * 
+	 * Other than {@link #getStatusChange(SCARD_READERSTATE[], int)} a timeout is
+	 * signaled by the result, so that a monitor loop waking up regularly
+	 * doesn't allocate.
+	 * 
+	 * @param states
+	 * @param millisecTimeout
+	 * @return <code>false</code> if the timeout elapsed.
+	 * @throws PCSCException
+	 */
+	public boolean waitStatusChange(SCARD_READERSTATE[] states, int millisecTimeout) throws PCSCException {
+		if (Log.isLoggable(Level.TRACE)) {
+			Log.trace(
+					"{} getStatusChange({} readers), blocking={}", getLogLabel(), states.length, isUseBlockingGetStatusChange()); //$NON-NLS-1$
+		}
+		if (!basicGetStatusChange(states, millisecTimeout)) {
+			if (Log.isLoggable(Level.TRACE)) {
+				Log.trace("{} getStatusChange({} readers) timeout", getLogLabel(), states.length); //$NON-NLS-1$
+			}
+			return false;
+		}
+		return true;
+	}
 }
@@ -29,11 +29,19 @@
  */
 package de.intarsys.security.smartcard.pcsc;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Paths;
+
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
+import de.intarsys.security.smartcard.pcsc.lite.PCSCLiteClient;
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
 import de.intarsys.security.smartcard.pcsc.nativec._PCSC;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSCInstrumented;
 import de.intarsys.security.smartcard.pcsc.nativec._PCSCThreadedExecutor;
+import de.intarsys.security.smartcard.pcsc.trace.PCSCRecorder;
 import de.intarsys.tools.system.SystemTools;
 import de.intarsys.tools.yalf.api.ILogger;
 
@@ -53,30 +61,204 @@ public abstract class CommonPCSCLib implements INativePCSCLib {
 
 	private static final ILogger Log = PACKAGE.Log;
 
+	/**
+	 * The time in milliseconds before an inconclusive probe for a blocking
+	 * "getStatusChange" is repeated.
+	 */
+	public static final long CANCEL_PROBE_INTERVAL = 30000;
+
+	/**
+	 * The foreign function backend, available in the multi-release jar on
+	 * Java 22 and later.
+	 */
+	private static final String FOREIGN_PCSC = "de.intarsys.security.smartcard.pcsc.foreign._PCSCForeign"; //$NON-NLS-1$
+
 	private _IPCSC pcsc;
 
 	private String path;
 
+	private String socketPath;
+
 	private boolean useExecutorThread = false;
 
-	private boolean useBlockingGetStatusChange = SystemTools.isWindows();
+	private boolean useForeign = false;
+
+	private boolean useInstrumentation = false;
+
+	private PCSCMetrics metrics;
+
+	private String tracePath;
+
+	private PCSCRecorder recorder;
+
+	/*
+	 * null to detect when initializing
+	 */
+	private Boolean useBlockingGetStatusChange;
+
+	/*
+	 * the wrapper to probe with while detection is inconclusive, guarded by
+	 * this
+	 */
+	private _IPCSC cancelProbe;
+
+	private long cancelProbeTime;
+
+	private IPCSCPollingStrategy pollingStrategy = new PCSCAdaptivePolling();
+
+	private final PCSCPollingStatistics pollingStatistics = new PCSCPollingStatistics();
+
+	private final PCSCControlCodeMapping controlCodeMapping = new PCSCControlCodeMapping();
+
+	private final PCSCReaderFeatureCache readerFeatureCache = new PCSCReaderFeatureCache();
+
+	private final PCSCAttributeCache attributeCache = new PCSCAttributeCache();
 
 	public CommonPCSCLib() {
 	}
 
 	protected void createNativeWrapper() {
 		try {
-			_PCSC nativeWrapper = new _PCSC(path);
-			if (useExecutorThread) {
+			_IPCSC nativeWrapper = createPcsc();
+			if (useBlockingGetStatusChange == null) {
+				// probe the library itself, the probe must not be recorded
+				if (SystemTools.isWindows()) {
+					useBlockingGetStatusChange = true;
+				} else {
+					cancelProbe = nativeWrapper;
+					detectBlockingGetStatusChange();
+				}
+			}
+			if (useInstrumentation) {
+				// innermost, we want to see the time spent in the library
+				_PCSCInstrumented instrumented = new _PCSCInstrumented(nativeWrapper);
+				metrics = new PCSCMetrics(instrumented, path);
+				metrics.setPollingStatistics(pollingStatistics);
+				metrics.register();
+				nativeWrapper = instrumented;
+			}
+			// never block a virtual thread in native code
+			if (useExecutorThread || PCSCThreadTools.isVirtualThreads()) {
 				pcsc = new _PCSCThreadedExecutor(nativeWrapper);
 			} else {
 				pcsc = nativeWrapper;
 			}
+			if (tracePath != null) {
+				// outermost, the recorder must see the calling thread
+				recorder = new PCSCRecorder(pcsc, new BufferedOutputStream(new FileOutputStream(tracePath)));
+				pcsc = recorder;
+				Log.info("recording PC/SC trace to {}", tracePath); //$NON-NLS-1$
+			}
 		} catch (Throwable t) {
 			Log.warn("No PC/SC interface available: {}\n{}", t.getMessage(), t);
 		}
 	}
 
+	/**
+	 * Create the {@link _IPCSC} implementation, by default the binding to the
+	 * native library at {@link #getPath()}. If {@link #getSocketPath()} is set,
+	 * pcscd is accessed directly via {@link PCSCLiteClient}.
+	 * 
+	 * @return The {@link _IPCSC} implementation.
+	 */
+	protected _IPCSC createPcsc() {
+		if (socketPath != null) {
+			return new PCSCLiteClient(Paths.get(socketPath));
+		}
+		if (useForeign) {
+			_IPCSC result = createPcscForeign();
+			if (result != null) {
+				return result;
+			}
+		}
+		return new _PCSC(path);
+	}
+
+	/**
+	 * Create the binding to the native library at {@link #getPath()} via the
+	 * foreign function and memory API or <code>null</code> if not available on
+	 * this VM.
+	 * 
+	 * @return The {@link _IPCSC} implementation or <code>null</code>.
+	 */
+	protected _IPCSC createPcscForeign() {
+		if (Runtime.version().feature() < 22) {
+			Log.warn("foreign function PC/SC binding requires Java 22, using native-c"); //$NON-NLS-1$
+			return null;
+		}
+		try {
+			return (_IPCSC) Class.forName(FOREIGN_PCSC).getConstructor(String.class).newInstance(path);
+		} catch (ReflectiveOperationException e) {
+			Log.warn("foreign function PC/SC binding not available ({}), using native-c", e.toString()); //$NON-NLS-1$
+			return null;
+		}
+	}
+
+	/**
+	 * Probe for {@link #isUseBlockingGetStatusChange()}, if not yet known. An
+	 * inconclusive probe is repeated after {@link #CANCEL_PROBE_INTERVAL}
+	 * milliseconds, until then "getStatusChange" is polled.
+	 */
+	protected synchronized void detectBlockingGetStatusChange() {
+		if (cancelProbe == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (cancelProbeTime != 0 && now - cancelProbeTime < CANCEL_PROBE_INTERVAL) {
+			return;
+		}
+		cancelProbeTime = now;
+		Boolean supported = PCSCTools.checkCancelSupported(cancelProbe);
+		Log.debug("{} blocking getStatusChange detected {}", getPath(), supported); //$NON-NLS-1$
+		if (supported != null) {
+			useBlockingGetStatusChange = supported;
+			cancelProbe = null;
+		}
+	}
+
+	/**
+	 * Release the resources for instrumentation and recording.
+	 */
+	@PreDestroy
+	public void dispose() {
+		if (metrics != null) {
+			metrics.unregister();
+		}
+		if (recorder != null) {
+			recorder.close();
+		}
+	}
+
+	/**
+	 * The attributes cached per reader, shared by all contexts of this
+	 * library.
+	 * 
+	 * @return The attributes cached per reader.
+	 */
+	public PCSCAttributeCache getAttributeCache() {
+		return attributeCache;
+	}
+
+	/**
+	 * The control code encoding learned per reader, shared by all contexts of
+	 * this library.
+	 * 
+	 * @return The control code encoding learned per reader.
+	 */
+	public PCSCControlCodeMapping getControlCodeMapping() {
+		return controlCodeMapping;
+	}
+
+	/**
+	 * The {@link PCSCMetrics} if {@link #isUseInstrumentation()} or
+	 * <code>null</code>.
+	 * 
+	 * @return The {@link PCSCMetrics} or <code>null</code>.
+	 */
+	public PCSCMetrics getMetrics() {
+		return metrics;
+	}
+
 	public String getPath() {
 		return path;
 	}
@@ -85,41 +267,167 @@ public abstract class CommonPCSCLib implements INativePCSCLib {
 		return pcsc;
 	}
 
+	/**
+	 * The {@link PCSCRecorder} if {@link #getTracePath()} is set or
+	 * <code>null</code>.
+	 * 
+	 * @return The {@link PCSCRecorder} or <code>null</code>.
+	 */
+	public PCSCRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * The statistics of the "getStatusChange" polling, shared by all contexts
+	 * of this library.
+	 * 
+	 * @return The statistics of the "getStatusChange" polling.
+	 */
+	public PCSCPollingStatistics getPollingStatistics() {
+		return pollingStatistics;
+	}
+
+	public IPCSCPollingStrategy getPollingStrategy() {
+		return pollingStrategy;
+	}
+
+	/**
+	 * The CCID features discovered per reader, shared by all contexts of this
+	 * library.
+	 * 
+	 * @return The CCID features discovered per reader.
+	 */
+	public PCSCReaderFeatureCache getReaderFeatureCache() {
+		return readerFeatureCache;
+	}
+
+	public String getSocketPath() {
+		return socketPath;
+	}
+
+	public String getTracePath() {
+		return tracePath;
+	}
+
 	@PostConstruct
 	public void initialize() {
 		createNativeWrapper();
 		NativePCSCContextFactory.get().registerLibrary(this);
 	}
 
-	public boolean isUseBlockingGetStatusChange() {
-		return useBlockingGetStatusChange;
+	/**
+	 * <code>true</code> if "getStatusChange" blocks in the library and is
+	 * interrupted using "SCardCancel". Otherwise the library is polled, see
+	 * {@link #getPollingStrategy()}.
+	 * 
+	 * If not set explicitly this is detected by {@link #initialize()}, see
+	 * {@link PCSCTools#isCancelSupported(_IPCSC)}.
+	 * 
+	 * @return <code>true</code> if "getStatusChange" blocks in the library.
+	 */
+	public synchronized boolean isUseBlockingGetStatusChange() {
+		return Boolean.TRUE.equals(useBlockingGetStatusChange);
 	}
 
 	public boolean isUseExecutorThread() {
 		return useExecutorThread;
 	}
 
+	public boolean isUseForeign() {
+		return useForeign;
+	}
+
+	public boolean isUseInstrumentation() {
+		return useInstrumentation;
+	}
+
 	public void setPath(String path) {
 		this.path = path;
 	}
 
-	public void setUseBlockingGetStatusChange(boolean useBlockingGetStatusChange) {
+	/**
+	 * The strategy for the wait between two polls when not
+	 * {@link #isUseBlockingGetStatusChange()}. This applies to the contexts
+	 * established afterwards. The default {@link PCSCAdaptivePolling} detects
+	 * a change of an idle reader within a second, like the fixed polling
+	 * before.
+	 * 
+	 * @param pollingStrategy
+	 */
+	public void setPollingStrategy(IPCSCPollingStrategy pollingStrategy) {
+		this.pollingStrategy = pollingStrategy;
+	}
+
+	/**
+	 * Talk to the pcscd socket at <code>socketPath</code> using
+	 * {@link PCSCLiteClient} instead of loading the native library. This must
+	 * be set before {@link #initialize()}.
+	 * 
+	 * @param socketPath
+	 */
+	public void setSocketPath(String socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	/**
+	 * Record all PC/SC calls to the file <code>tracePath</code>, see
+	 * {@link PCSCRecorder}. This must be set before {@link #initialize()}.
+	 * 
+	 * @param tracePath
+	 */
+	public void setTracePath(String tracePath) {
+		this.tracePath = tracePath;
+	}
+
+	public synchronized void setUseBlockingGetStatusChange(boolean useBlockingGetStatusChange) {
 		this.useBlockingGetStatusChange = useBlockingGetStatusChange;
+		this.cancelProbe = null;
 	}
 
 	public void setUseExecutorThread(boolean useExecutorThread) {
 		this.useExecutorThread = useExecutorThread;
 	}
 
+	/**
+	 * Bind the native library via the foreign function and memory API instead
+	 * of native-c, see
+	 * <code>de.intarsys.security.smartcard.pcsc.foreign._PCSCForeign</code>.
+	 * This requires Java 22, on older VMs native-c is used. This must be set
+	 * before {@link #initialize()}.
+	 * 
+	 * @param useForeign
+	 */
+	public void setUseForeign(boolean useForeign) {
+		this.useForeign = useForeign;
+	}
+
+	/**
+	 * Record PC/SC call latencies and return codes, see {@link PCSCMetrics}.
+	 * This must be set before {@link #initialize()}.
+	 * 
+	 * @param useInstrumentation
+	 */
+	public void setUseInstrumentation(boolean useInstrumentation) {
+		this.useInstrumentation = useInstrumentation;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("PC/SC library; path ");
 		sb.append(getPath());
+		if (getSocketPath() != null) {
+			sb.append("; socket ");
+			sb.append(getSocketPath());
+		}
+		sb.append("; foreign ");
+		sb.append(isUseForeign());
 		sb.append("; executor ");
 		sb.append(isUseExecutorThread());
 		sb.append("; blocking ");
 		sb.append(isUseBlockingGetStatusChange());
+		sb.append("; instrumented ");
+		sb.append(isUseInstrumentation());
 		return sb.toString();
 	}
 }
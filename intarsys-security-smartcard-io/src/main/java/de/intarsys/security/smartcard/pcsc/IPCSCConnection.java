@@ -1,5 +1,10 @@
 package de.intarsys.security.smartcard.pcsc;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
 /**
  * The iconified PC/SC connection. The methods are mapped directly to the
  * repsective PC/SC API functions.
@@ -73,6 +78,21 @@ public interface IPCSCConnection {
 	 */
 	public byte[] getAttrib(int id) throws PCSCException;
 
+	/**
+	 * Get several PC/SC attributes at once. Attributes describing the reader
+	 * itself are cached for the reader, only attributes that may change are
+	 * read again (see {@link PCSCAttribute#isImmutable(int)}).
+	 * 
+	 * The result maps each id to its value, an attribute not available has an
+	 * empty value, as with {@link #getAttrib(int)}. A failed connection or
+	 * service is reported with a {@link PCSCException}.
+	 * 
+	 * @param ids
+	 * @return A map from attribute id to value, in the order of ids.
+	 * @throws PCSCException
+	 */
+	public Map<Integer, byte[]> getAttribs(int... ids) throws PCSCException;
+
 	/**
 	 * The {@link IPCSCContext} that created the connection.
 	 * 
@@ -80,6 +100,15 @@ public interface IPCSCConnection {
 	 */
 	public IPCSCContext getContext();
 
+	/**
+	 * The CCID features of the reader, discovered once and cached for the
+	 * reader.
+	 * 
+	 * @return The CCID features of the reader.
+	 * @throws PCSCException
+	 */
+	public PCSCReaderFeatures getFeatures() throws PCSCException;
+
 	/**
 	 * A name uniquely identifying the connection
 	 * 
@@ -137,4 +166,49 @@ public interface IPCSCConnection {
 	public byte[] transmit(byte[] bytes, int i, int length, int receiveLength,
 			boolean sensitiveContent) throws PCSCException;
 
+	/**
+	 * Send bytes to the card.
+	 * 
+	 * The remaining bytes of <code>request</code> are sent, the response is
+	 * written to <code>response</code> starting at its position. The positions
+	 * of both buffers are advanced. At most <code>response.remaining()</code>
+	 * bytes are received. The buffers are reused as they are, no intermediate
+	 * APDU objects are created.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param sensitiveContent
+	 * @return The number of bytes received.
+	 * @throws PCSCException
+	 */
+	public int transmit(ByteBuffer request, ByteBuffer response,
+			boolean sensitiveContent) throws PCSCException;
+
+	/**
+	 * Send a sequence of APDUs to the card in a single dispatch to the PC/SC
+	 * layer, see {@link de.intarsys.security.smartcard.pcsc.nativec._IPCSC#dispatch}.
+	 * 
+	 * The requests are sent in order. After each response
+	 * <code>stopCondition</code> is tested with the status word, if it
+	 * matches the remaining requests are not sent. If a request fails, the
+	 * batch is aborted with a {@link PCSCBatchException} holding the responses
+	 * received so far.
+	 * 
+	 * @param requests
+	 *            The APDU requests
+	 * @param receiveLength
+	 *            The maximum length of each response
+	 * @param sensitiveContent
+	 *            Per request <code>true</code> if it must not be logged, may be
+	 *            <code>null</code>
+	 * @param stopCondition
+	 *            The status word (SW1 << 8 | SW2) to stop at, may be
+	 *            <code>null</code>
+	 * @return The responses received, in order.
+	 * @throws PCSCException
+	 */
+	public List<byte[]> transmitBatch(List<byte[]> requests, int receiveLength,
+			boolean[] sensitiveContent, IntPredicate stopCondition)
+			throws PCSCException;
+
 }
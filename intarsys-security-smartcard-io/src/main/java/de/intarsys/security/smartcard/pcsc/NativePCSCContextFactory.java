@@ -31,10 +31,11 @@ package de.intarsys.security.smartcard.pcsc;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 
 import de.intarsys.security.smartcard.pcsc.nativec._PCSC;
 import de.intarsys.tools.component.SingletonClass;
-import de.intarsys.tools.system.SystemTools;
 import de.intarsys.tools.yalf.api.ILogger;
 import de.intarsys.tools.yalf.api.Level;
 
@@ -57,6 +58,8 @@ public class NativePCSCContextFactory implements IPCSCContextFactory {
 
 	private final List<INativePCSCLib> libraries;
 
+	private int timeout = PCSCMultiContext.DEFAULT_TIMEOUT;
+
 	private NativePCSCContextFactory() {
 		libraries = new ArrayList<INativePCSCLib>(2);
 	}
@@ -68,21 +71,42 @@ public class NativePCSCContextFactory implements IPCSCContextFactory {
 			NativePCSCLib lib = new NativePCSCLib();
 			lib.setPath(SYSTEM_DEFAULT_LIBRARY);
 			lib.setUseExecutorThread(false);
-			lib.setUseBlockingGetStatusChange(SystemTools.isWindows());
 			lib.initialize();
 		}
-		List<IPCSCContext> contexts = new ArrayList<IPCSCContext>(libraries.size());
+		List<INativePCSCLib> tempLibraries = getLibraries();
+		List<IPCSCContext> contexts = new ArrayList<IPCSCContext>(tempLibraries.size());
 		PCSCException cause = null;
-		for (INativePCSCLib pcsclib : libraries) {
-			IPCSCContext context;
-
+		if (tempLibraries.size() == 1) {
 			try {
-				context = pcsclib.establishContext();
-				contexts.add(context);
+				contexts.add(tempLibraries.get(0).establishContext());
 			} catch (PCSCException e) {
 				cause = e;
 				Log.log(Level.SEVERE, "Failed to establish PC/SC context", e); //$NON-NLS-1$
 			}
+		} else {
+			// one slow library must not stall the others
+			List<CompletableFuture<IPCSCContext>> futures = PCSCFanOut.submit(tempLibraries,
+					INativePCSCLib::establishContext);
+			long deadline = System.currentTimeMillis() + timeout;
+			for (int i = 0; i < tempLibraries.size(); i++) {
+				try {
+					contexts.add(PCSCFanOut.await(futures.get(i), deadline));
+				} catch (PCSCException e) {
+					cause = e;
+					Log.log(Level.SEVERE, "Failed to establish PC/SC context", e); //$NON-NLS-1$
+				} catch (TimeoutException e) {
+					Log.log(Level.SEVERE, "Failed to establish PC/SC context for " + tempLibraries.get(i) //$NON-NLS-1$
+							+ " within " + timeout + " ms"); //$NON-NLS-1$ //$NON-NLS-2$
+					// don't leak the late context
+					futures.get(i).thenAccept(context -> {
+						try {
+							context.dispose();
+						} catch (PCSCException ex) {
+							// ignore
+						}
+					});
+				}
+			}
 		}
 		if (contexts.size() == 0) {
 			if (cause == null) {
@@ -94,13 +118,25 @@ public class NativePCSCContextFactory implements IPCSCContextFactory {
 		if (contexts.size() == 1) {
 			return contexts.get(0);
 		}
-		return new PCSCMultiContext(this, contexts);
+		PCSCMultiContext multiContext = new PCSCMultiContext(this, contexts);
+		multiContext.setTimeout(timeout);
+		return multiContext;
 	}
 
 	public List<INativePCSCLib> getLibraries() {
 		return new ArrayList<>(libraries);
 	}
 
+	/**
+	 * The time in milliseconds to wait for a single library when establishing
+	 * a context or listing the readers.
+	 * 
+	 * @return The time in milliseconds to wait for a single library.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
 	public void registerLibrary(INativePCSCLib pcsclib) {
 		if (Log.isLoggable(Level.TRACE)) {
 			Log.trace("Adding library " + pcsclib); //$NON-NLS-1$
@@ -108,6 +144,15 @@ public class NativePCSCContextFactory implements IPCSCContextFactory {
 		libraries.add(pcsclib);
 	}
 
+	/**
+	 * @see #getTimeout()
+	 * 
+	 * @param timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
 	@Override
 	public String toString() {
 		return "PCSC context factory"; //$NON-NLS-1$
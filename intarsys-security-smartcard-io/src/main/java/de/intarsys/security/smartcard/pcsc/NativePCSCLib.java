@@ -46,8 +46,14 @@ public class NativePCSCLib extends CommonPCSCLib {
 		if (pcsc == null) {
 			return new EmptyContext();
 		}
+		detectBlockingGetStatusChange();
 		PCSCContext result = new PCSCContext(this, pcsc);
 		result.setUseBlockingGetStatusChange(isUseBlockingGetStatusChange());
+		result.setPollingStrategy(getPollingStrategy());
+		result.setPollingStatistics(getPollingStatistics());
+		result.setControlCodeMapping(getControlCodeMapping());
+		result.setReaderFeatureCache(getReaderFeatureCache());
+		result.setAttributeCache(getAttributeCache());
 		return result;
 	}
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An {@link IPCSCPollingStrategy} with exponential backoff.
+ * 
+ * Right after a change the readers are polled every {@link #getMinDelay()}
+ * milliseconds, with each idle poll the delay is doubled up to
+ * {@link #getMaxDelay()}. The delay is randomized by {@link #getJitter()} so
+ * that multiple processes polling the same service don't wake up in lockstep,
+ * but never exceeds {@link #getMaxDelay()}.
+ * 
+ * The default (100 to 1000 ms) keeps the worst case delay for a change of an
+ * idle reader at one second, as with {@link #FIXED}. A larger maximum saves
+ * wakeups at the cost of a later detection.
+ * 
+ */
+public class PCSCAdaptivePolling implements IPCSCPollingStrategy {
+
+	/**
+	 * The classic strategy, a poll every second.
+	 */
+	public static final PCSCAdaptivePolling FIXED = new PCSCAdaptivePolling(1000, 1000, 0);
+
+	private final long minDelay;
+
+	private final long maxDelay;
+
+	private final double jitter;
+
+	public PCSCAdaptivePolling() {
+		this(100, 1000, 0.2);
+	}
+
+	public PCSCAdaptivePolling(long minDelay, long maxDelay, double jitter) {
+		if (minDelay <= 0 || maxDelay < minDelay) {
+			throw new IllegalArgumentException("invalid delay range"); //$NON-NLS-1$
+		}
+		if (jitter < 0 || jitter >= 1) {
+			throw new IllegalArgumentException("jitter must be in [0, 1)"); //$NON-NLS-1$
+		}
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.jitter = jitter;
+	}
+
+	@Override
+	public long getDelay(int idlePolls) {
+		long delay = maxDelay;
+		// avoid the overflow
+		if (idlePolls < 32 && (minDelay << idlePolls) < maxDelay) {
+			delay = minDelay << idlePolls;
+		}
+		if (jitter > 0) {
+			double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+			delay = Math.max(1, Math.min(maxDelay, (long) (delay * factor)));
+		}
+		return delay;
+	}
+
+	/**
+	 * The relative randomization of the delay.
+	 * 
+	 * @return The relative randomization of the delay.
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public long getMinDelay() {
+		return minDelay;
+	}
+
+	@Override
+	public String toString() {
+		return "adaptive polling " + minDelay + "-" + maxDelay + " ms"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
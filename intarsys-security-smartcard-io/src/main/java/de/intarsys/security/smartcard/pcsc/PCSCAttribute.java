@@ -154,6 +154,31 @@ public class PCSCAttribute {
 	public static final int SCARD_PERF_TRANSMISSION_TIME = SCARD_ATTR_VALUE(
 			SCARD_CLASS_PERF, 0x0003);
 
+	/**
+	 * <code>true</code> if the attribute attrId describes the reader itself and
+	 * never changes while the reader is attached. The attributes of the
+	 * current ICC state and protocol, the performance counters and vendor
+	 * defined attributes may change.
+	 * 
+	 * @param attrId
+	 * @return <code>true</code> if the attribute never changes.
+	 */
+	public static boolean isImmutable(int attrId) {
+		switch (attrId >>> 16) {
+		case SCARD_CLASS_VENDOR_INFO:
+		case SCARD_CLASS_COMMUNICATIONS:
+		case SCARD_CLASS_PROTOCOL:
+		case SCARD_CLASS_POWER_MGMT:
+		case SCARD_CLASS_SECURITY:
+		case SCARD_CLASS_MECHANICAL:
+			return true;
+		case SCARD_CLASS_SYSTEM:
+			return attrId != SCARD_ATTR_DEVICE_IN_USE && attrId != SCARD_ATTR_SUPRESS_T1_IFS_REQUEST;
+		default:
+			return false;
+		}
+	}
+
 	private static int SCARD_ATTR_VALUE(int attrClass, int attrTag) {
 		return (attrClass << 16) | (attrTag);
 	}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The attributes of each reader that never change (see
+ * {@link PCSCAttribute#isImmutable(int)}).
+ * 
+ * An attribute not supported by the reader is cached as an empty value. The
+ * readers no longer listed are dropped in
+ * {@link #retainReaders(Collection)}, so that a different device showing up
+ * with the same name is read again.
+ * 
+ * This is shared by all contexts of a {@link CommonPCSCLib}. A
+ * <code>null</code> reader name (a connection created without one) is never
+ * cached.
+ */
+public class PCSCAttributeCache {
+
+	private final Map<String, Map<Integer, byte[]>> attributesByReader = new ConcurrentHashMap<>();
+
+	public PCSCAttributeCache() {
+	}
+
+	/**
+	 * Forget the attributes of all readers.
+	 */
+	public void clear() {
+		attributesByReader.clear();
+	}
+
+	/**
+	 * The cached value of attribute attrId of readerName or <code>null</code>.
+	 * 
+	 * @param readerName
+	 * @param attrId
+	 * @return The cached value or <code>null</code>.
+	 */
+	public byte[] get(String readerName, int attrId) {
+		if (readerName == null) {
+			return null;
+		}
+		Map<Integer, byte[]> attributes = attributesByReader.get(readerName);
+		if (attributes == null) {
+			return null;
+		}
+		byte[] value = attributes.get(attrId);
+		return value == null ? null : value.clone();
+	}
+
+	/**
+	 * Cache value for attribute attrId of readerName, ignored if the attribute
+	 * may change.
+	 * 
+	 * @param readerName
+	 * @param attrId
+	 * @param value
+	 */
+	public void put(String readerName, int attrId, byte[] value) {
+		if (readerName == null || !PCSCAttribute.isImmutable(attrId)) {
+			return;
+		}
+		attributesByReader.computeIfAbsent(readerName, key -> new ConcurrentHashMap<>()).put(attrId,
+				value.clone());
+	}
+
+	/**
+	 * Forget the attributes of readerName.
+	 * 
+	 * @param readerName
+	 */
+	public void remove(String readerName) {
+		if (readerName == null) {
+			return;
+		}
+		attributesByReader.remove(readerName);
+	}
+
+	/**
+	 * Forget the attributes of all readers not in readerNames.
+	 * 
+	 * @param readerNames
+	 */
+	public void retainReaders(Collection<String> readerNames) {
+		attributesByReader.keySet().retainAll(readerNames);
+	}
+
+	@Override
+	public String toString() {
+		return "PCSCAttributeCache " + attributesByReader.keySet(); //$NON-NLS-1$
+	}
+}
@@ -29,9 +29,6 @@
  */
 package de.intarsys.security.smartcard.pcsc;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
 import de.intarsys.tools.hex.HexTools;
@@ -41,64 +38,109 @@ import de.intarsys.tools.string.PrettyPrinter;
 /**
  * The PC/SC model level card reader state.
  * 
+ * This is an immutable value decoded from the native
+ * {@link SCARD_READERSTATE}, it does not keep any native memory.
+ * 
  */
 public class PCSCCardReaderState implements IPrettyPrintable {
 
 	public static final PCSCCardReaderState UNAWARE = new PCSCCardReaderState(null);
 
-	private final SCARD_READERSTATE readerState;
+	private static final int[] STATE_FLAGS = new int[] { //
+			_IPCSC.SCARD_STATE_ATRMATCH, //
+			_IPCSC.SCARD_STATE_CHANGED, //
+			_IPCSC.SCARD_STATE_EMPTY, //
+			_IPCSC.SCARD_STATE_EXCLUSIVE, //
+			_IPCSC.SCARD_STATE_IGNORE, //
+			_IPCSC.SCARD_STATE_INUSE, //
+			_IPCSC.SCARD_STATE_MUTE, //
+			_IPCSC.SCARD_STATE_PRESENT, //
+			_IPCSC.SCARD_STATE_UNAVAILABLE, //
+			_IPCSC.SCARD_STATE_UNAWARE, //
+			_IPCSC.SCARD_STATE_UNKNOWN, //
+			_IPCSC.SCARD_STATE_UNPOWERED, //
+	};
+
+	private static final String[] STATE_LABELS = new String[] { //
+			"ATRMATCH", //$NON-NLS-1$
+			"CHANGED", //$NON-NLS-1$
+			"EMPTY", //$NON-NLS-1$
+			"EXCLUSIVE", //$NON-NLS-1$
+			"IGNORE", //$NON-NLS-1$
+			"INUSE", //$NON-NLS-1$
+			"MUTE", //$NON-NLS-1$
+			"PRESENT", //$NON-NLS-1$
+			"UNAVAILABLE", //$NON-NLS-1$
+			"UNAWARE", //$NON-NLS-1$
+			"UNKNOWN", //$NON-NLS-1$
+			"UNPOWERED", //$NON-NLS-1$
+	};
+
+	private static byte[] decodeATR(SCARD_READERSTATE readerState) {
+		if (readerState == null || readerState.getATRSize() < 5) {
+			return null;
+		}
+		return readerState.getATR();
+	}
+
+	private final String reader;
 
-	private static final Map<Integer, String> STATE_LABELS = new HashMap<Integer, String>();
+	private final int currentState;
 
-	static {
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_ATRMATCH, "ATRMATCH");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_CHANGED, "CHANGED");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_EMPTY, "EMPTY");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_EXCLUSIVE, "EXCLUSIVE");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_IGNORE, "IGNORE");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_INUSE, "INUSE");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_MUTE, "MUTE");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_PRESENT, "PRESENT");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_UNAVAILABLE, "UNAVAILABLE");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_UNAWARE, "UNAWARE");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_UNKNOWN, "UNKNOWN");
-		STATE_LABELS.put(_IPCSC.SCARD_STATE_UNPOWERED, "UNPOWERED");
-	}
+	private final int eventState;
+
+	/*
+	 * null if no ATR available
+	 */
+	private final byte[] atr;
 
 	protected PCSCCardReaderState(SCARD_READERSTATE readerState) {
-		this.readerState = readerState;
+		this(readerState == null ? null : readerState.getReader(), readerState);
+	}
+
+	/**
+	 * Decode <code>readerState</code>, using the known name
+	 * <code>reader</code> instead of reading it from native memory.
+	 * 
+	 * @param reader
+	 * @param readerState
+	 */
+	protected PCSCCardReaderState(String reader, SCARD_READERSTATE readerState) {
+		this(reader, readerState == null ? _IPCSC.SCARD_STATE_UNAWARE : readerState.getCurrentState(),
+				readerState == null ? _IPCSC.SCARD_STATE_UNAWARE : readerState.getEventState(),
+				decodeATR(readerState));
+	}
+
+	protected PCSCCardReaderState(String reader, int currentState, int eventState, byte[] atr) {
+		this.reader = reader;
+		this.currentState = currentState;
+		this.eventState = eventState;
+		this.atr = atr;
+	}
+
+	/**
+	 * The ATR without copying, must not be modified.
+	 * 
+	 * @return The ATR or <code>null</code>.
+	 */
+	byte[] basicGetATR() {
+		return atr;
 	}
 
 	public byte[] getATR() {
-		if (readerState == null) {
-			return null;
-		}
-		byte[] atr = readerState.getATR();
-		if (atr.length < 5) {
-			return null;
-		}
-		return atr;
+		return atr == null ? null : atr.clone();
 	}
 
 	public int getCurrentState() {
-		if (readerState == null) {
-			return _IPCSC.SCARD_STATE_UNAWARE;
-		}
-		return readerState.getCurrentState();
+		return currentState;
 	}
 
 	public int getEventState() {
-		if (readerState == null) {
-			return _IPCSC.SCARD_STATE_UNAWARE;
-		}
-		return readerState.getEventState();
+		return eventState;
 	}
 
 	public String getReader() {
-		if (readerState == null) {
-			return null;
-		}
-		return readerState.getReader();
+		return reader;
 	}
 
 	public boolean isATRMatch() {
@@ -133,7 +175,7 @@ public class PCSCCardReaderState implements IPrettyPrintable {
 		return (getEventState() & _IPCSC.SCARD_STATE_PRESENT) != 0;
 	}
 
-	protected boolean isSet(int state, Integer flag) {
+	protected boolean isSet(int state, int flag) {
 		return (state & flag) != 0;
 	}
 
@@ -148,6 +190,7 @@ public class PCSCCardReaderState implements IPrettyPrintable {
 	private boolean isUnpowered() {
 		return (getEventState() & _IPCSC.SCARD_STATE_UNPOWERED) != 0;
 	}
+
 	@Override
 	public final String toString() {
 		return new PrettyPrinter().toString(this);
@@ -155,27 +198,27 @@ public class PCSCCardReaderState implements IPrettyPrintable {
 
 	@Override
 	public void toString(PrettyPrinter printer) {
-		if (readerState == null) {
+		if (this == UNAWARE) {
 			printer.appendString("<unaware>");
 			return;
 		}
-		printer.appendMember("reader", readerState.getReader(), null);
-		printer.appendMember("currentState", Integer.toBinaryString(readerState.getCurrentState()),
-				toStringState(readerState.getCurrentState()));
-		printer.appendMember("eventState", Integer.toBinaryString(readerState.getEventState()),
-				toStringState(readerState.getEventState()));
-		printer.appendMember("cAtr", readerState.getATRSize(), null);
-		printer.appendMember("bAtr", HexTools.bytesToHexString(readerState.getATR()), null);
+		printer.appendMember("reader", reader, null);
+		printer.appendMember("currentState", Integer.toBinaryString(currentState),
+				toStringState(currentState));
+		printer.appendMember("eventState", Integer.toBinaryString(eventState),
+				toStringState(eventState));
+		printer.appendMember("cAtr", atr == null ? 0 : atr.length, null);
+		printer.appendMember("bAtr", atr == null ? "" : HexTools.bytesToHexString(atr), null); //$NON-NLS-1$
 	}
 
 	protected String toStringState(int state) {
 		StringBuilder builder = new StringBuilder();
-		for (Integer flag : STATE_LABELS.keySet()) {
-			if (isSet(state, flag)) {
+		for (int i = 0; i < STATE_FLAGS.length; i++) {
+			if (isSet(state, STATE_FLAGS[i])) {
 				if (builder.length() > 0) {
 					builder.append(", "); //$NON-NLS-1$
 				}
-				builder.append(STATE_LABELS.get(flag));
+				builder.append(STATE_LABELS[i]);
 			}
 		}
 		return builder.toString();
@@ -31,12 +31,25 @@ package de.intarsys.security.smartcard.pcsc;
 
 import static de.intarsys.security.smartcard.pcsc.PCSCTools.BufferHelper;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
 
 import de.intarsys.nativec.api.INativeHandle;
 import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.security.smartcard.jfr.ControlEvent;
+import de.intarsys.security.smartcard.jfr.TransmitEvent;
 import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
 import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.security.smartcard.pcsc.trace.PCSCRecorder;
 import de.intarsys.tools.exception.ExceptionTools;
 import de.intarsys.tools.hex.HexTools;
 import de.intarsys.tools.yalf.api.ILogger;
@@ -52,10 +65,16 @@ public class PCSCConnection implements IPCSCConnection {
 
 	private static final AtomicInteger Counter = new AtomicInteger(0);
 
-	private static final Object lockGetMapped = new Object();
+	/**
+	 * The initial buffer size for an attribute value, a larger value is read
+	 * again with the size needed.
+	 */
+	private static final int ATTRIB_SIZE = 256;
 
 	private final String id;
 
+	private final String readerName;
+
 	private final CommonPCSCContext context;
 
 	private final SCARDHANDLE hCard;
@@ -72,9 +91,30 @@ public class PCSCConnection implements IPCSCConnection {
 
 	private NativePcscDword nRecvLength;
 
+	private final PCSCScratch scratch = new PCSCScratch();
+
+	/**
+	 * Staging for {@link ByteBuffer} content without an accessible array.
+	 */
+	private byte[] transferBuffer;
+
+	/**
+	 * Guards the transfer buffers, transmit and control calls from different
+	 * threads (e.g. synchronous and asynchronous transmits) are serialized.
+	 * This must not be a monitor, the call may park a virtual thread in the
+	 * executor and would pin its carrier.
+	 */
+	private final ReentrantLock lockTransfer = new ReentrantLock();
+
 	public PCSCConnection(CommonPCSCContext context, String id, SCARDHANDLE hCard, int shareMode, int protocol,
 			INativeHandle protocolHandle) {
+		this(context, id, null, hCard, shareMode, protocol, protocolHandle);
+	}
+
+	public PCSCConnection(CommonPCSCContext context, String id, String readerName, SCARDHANDLE hCard, int shareMode,
+			int protocol, INativeHandle protocolHandle) {
 		this.id = id;
+		this.readerName = readerName;
 		this.context = context;
 		this.hCard = hCard;
 		this.shareMode = shareMode;
@@ -85,6 +125,124 @@ public class PCSCConnection implements IPCSCConnection {
 				hCard.longValue()), shareMode, protocol, count);
 	}
 
+	/**
+	 * SCardTransmit of the first <code>apduLength</code> bytes in
+	 * {@link #sendBuffer}.
+	 * 
+	 * @param apduLength
+	 * @param sensitiveContent
+	 * @return The PC/SC return code
+	 */
+	protected int basicTransmit(int apduLength, boolean sensitiveContent) {
+		TransmitEvent event = new TransmitEvent();
+		event.begin();
+		int rc;
+		if (sensitiveContent) {
+			PCSCRecorder.setSensitiveContent(true);
+			try {
+				rc = getContext().getPcsc().SCardTransmit(hCard, protocolHandle, sendBuffer, apduLength, null,
+						recvBuffer, nRecvLength);
+			} finally {
+				PCSCRecorder.setSensitiveContent(false);
+			}
+		} else {
+			rc = getContext().getPcsc().SCardTransmit(hCard, protocolHandle, sendBuffer, apduLength, null, recvBuffer,
+					nRecvLength);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.reader = readerName;
+			event.connectionId = id;
+			event.returnCode = rc;
+			event.requestBytes = apduLength;
+			event.responseBytes = rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS ? nRecvLength.intValue() : 0;
+			event.commit();
+		}
+		return rc;
+	}
+
+	/**
+	 * Transmit <code>requests</code> one by one, the responses are added to
+	 * <code>responses</code>.
+	 * 
+	 * @return The PC/SC return code of the first failed request or
+	 *         {@link _PCSC_RETURN_CODES#SCARD_S_SUCCESS}
+	 */
+	protected int basicTransmitBatch(List<byte[]> requests, int recvLength, boolean[] sensitiveContent,
+			IntPredicate stopCondition, List<byte[]> responses) {
+		ensureRecvBuffer(recvLength);
+		for (int i = 0; i < requests.size(); i++) {
+			byte[] apdu = requests.get(i);
+			boolean sensitive = sensitiveContent != null && sensitiveContent[i];
+			logBytes("transmit", apdu, 0, apdu.length, sensitive); //$NON-NLS-1$
+			ensureSendBuffer(apdu.length);
+			sendBuffer.setByteArray(0, apdu, 0, apdu.length);
+			nRecvLength.setValue(recvLength);
+			int rc = basicTransmit(apdu.length, sensitive);
+			if (rc != _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+				return rc;
+			}
+			int responseSize = nRecvLength.intValue();
+			byte[] response = recvBuffer.getByteArray(0, responseSize);
+			logBytes("receive", response, 0, responseSize, false); //$NON-NLS-1$
+			responses.add(response);
+			if (stopCondition != null && responseSize >= 2
+					&& stopCondition.test(((response[responseSize - 2] & 0xff) << 8) | (response[responseSize - 1] & 0xff))) {
+				break;
+			}
+		}
+		return _PCSC_RETURN_CODES.SCARD_S_SUCCESS;
+	}
+
+	/**
+	 * Read the first <code>count</code> attributes in <code>attrIds</code>
+	 * one by one, the values are added to <code>values</code>. A value not
+	 * available is empty.
+	 * 
+	 * @return The PC/SC return code of a failed connection or service (see
+	 *         {@link PCSCTools#isConnectionFailure(int)}) or
+	 *         {@link _PCSC_RETURN_CODES#SCARD_S_SUCCESS}
+	 */
+	protected int basicGetAttribs(int[] attrIds, int count, Map<Integer, byte[]> values) {
+		PCSCAttributeCache cache = getContext().getAttributeCache();
+		PCSCScratch tempScratch = scratch.claim();
+		try {
+			NativePcscDword length = tempScratch.dword(0, 0);
+			for (int i = 0; i < count; i++) {
+				int attrId = attrIds[i];
+				NativeBuffer buffer = tempScratch.buffer(ATTRIB_SIZE);
+				length.setValue(buffer.getSize());
+				int rc = getContext().getPcsc().SCardGetAttrib(hCard, attrId, buffer, length);
+				if (rc == _PCSC_RETURN_CODES.SCARD_E_INSUFFICIENT_BUFFER) {
+					buffer = tempScratch.buffer(length.intValue());
+					length.setValue(buffer.getSize());
+					rc = getContext().getPcsc().SCardGetAttrib(hCard, attrId, buffer, length);
+				}
+				byte[] value;
+				if (rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+					value = buffer.getByteArray(0, length.intValue());
+					logBytes("attrib 0x" + Integer.toHexString(attrId) + " response", //$NON-NLS-1$ //$NON-NLS-2$
+							value, 0, value.length, false);
+					cache.put(readerName, attrId, value);
+				} else {
+					Log.trace("{} get attrib {}, exception {}", getLogLabel(), attrId, rc); //$NON-NLS-1$
+					if (PCSCTools.isConnectionFailure(rc)) {
+						return rc;
+					}
+					value = new byte[0];
+					if (rc == _PCSC_RETURN_CODES.SCARD_E_UNSUPPORTED_FEATURE) {
+						// will not be supported later on either
+						cache.put(readerName, attrId, value);
+					}
+				}
+				values.put(attrId, value);
+			}
+			return _PCSC_RETURN_CODES.SCARD_S_SUCCESS;
+		} finally {
+			tempScratch.release();
+		}
+	}
+
 	@Override
 	public void beginTransaction() throws PCSCException {
 		Log.trace("{} begin transaction", getLogLabel()); //$NON-NLS-1$
@@ -105,29 +263,46 @@ public class PCSCConnection implements IPCSCConnection {
 	@Override
 	public byte[] control(int controlCode, byte[] inBuffer, int inBufferOffset, int inBufferLength, int outBufferSize)
 			throws PCSCException {
-		logBytes("control 0x" + Integer.toHexString(controlCode) + " request", //$NON-NLS-1$ //$NON-NLS-2$
-				inBuffer, inBufferOffset, inBufferLength, false);
-		if (inBuffer != null) {
-			if (sendBuffer == null || sendBuffer.getSize() < inBufferLength) {
-				int tempLength = Math.max(inBufferLength, 512);
-				sendBuffer = new NativeBuffer(tempLength);
+		lockTransfer.lock();
+		try {
+			logBytes("control 0x" + Integer.toHexString(controlCode) + " request", //$NON-NLS-1$ //$NON-NLS-2$
+					inBuffer, inBufferOffset, inBufferLength, false);
+			if (inBuffer != null) {
+				if (sendBuffer == null || sendBuffer.getSize() < inBufferLength) {
+					int tempLength = Math.max(inBufferLength, 512);
+					sendBuffer = new NativeBuffer(tempLength);
+				}
+				sendBuffer.setByteArray(0, inBuffer, inBufferOffset, inBufferLength);
 			}
-			sendBuffer.setByteArray(0, inBuffer, inBufferOffset, inBufferLength);
-		}
-		if (recvBuffer == null || recvBuffer.getSize() < outBufferSize) {
-			int tempLength = Math.max(outBufferSize, 4096);
-			recvBuffer = new NativeBuffer(tempLength);
-			nRecvLength = new NativePcscDword();
+			if (recvBuffer == null || recvBuffer.getSize() < outBufferSize) {
+				int tempLength = Math.max(outBufferSize, 4096);
+				recvBuffer = new NativeBuffer(tempLength);
+				nRecvLength = new NativePcscDword();
+			}
+			nRecvLength.setValue(outBufferSize);
+			ControlEvent event = new ControlEvent();
+			event.begin();
+			int rc = getContext().getPcsc().SCardControl(hCard, controlCode, sendBuffer, inBufferLength, recvBuffer,
+					recvBuffer.getSize(), nRecvLength);
+			int size = nRecvLength.intValue();
+			event.end();
+			if (event.shouldCommit()) {
+				event.reader = readerName;
+				event.connectionId = id;
+				event.returnCode = rc;
+				event.controlCode = controlCode;
+				event.requestBytes = inBufferLength;
+				event.responseBytes = rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS ? size : 0;
+				event.commit();
+			}
+			PCSCException.checkReturnCode(rc, size);
+			byte[] result = recvBuffer.getByteArray(0, size);
+			logBytes("control 0x" + Integer.toHexString(controlCode) + " response", //$NON-NLS-1$ //$NON-NLS-2$
+					result, 0, result.length, false);
+			return result;
+		} finally {
+			lockTransfer.unlock();
 		}
-		nRecvLength.setValue(outBufferSize);
-		int rc = getContext().getPcsc().SCardControl(hCard, controlCode, sendBuffer, inBufferLength, recvBuffer,
-				recvBuffer.getSize(), nRecvLength);
-		int size = nRecvLength.intValue();
-		PCSCException.checkReturnCode(rc, size);
-		byte[] result = recvBuffer.getByteArray(0, size);
-		logBytes("control 0x" + Integer.toHexString(controlCode) + " response", //$NON-NLS-1$ //$NON-NLS-2$
-				result, 0, result.length, false);
-		return result;
 	}
 
 	/**
@@ -137,6 +312,12 @@ public class PCSCConnection implements IPCSCConnection {
 	 * BELIEVE to use Win* but really need PCSClite control codes for accessing the
 	 * card terminal.
 	 * 
+	 * The encoding that worked is remembered for the reader (see
+	 * {@link PCSCControlCodeMapping}), later calls use it without retry. If it
+	 * is rejected later on (see {@link PCSCTools#isControlCodeFailure(int)}),
+	 * the other encoding is tried and remembered if it works. Other failures,
+	 * like a PIN pad timeout, keep the encoding.
+	 * 
 	 * @param code
 	 * @param inBuffer
 	 * @param inBufferOffset
@@ -148,43 +329,70 @@ public class PCSCConnection implements IPCSCConnection {
 	@Override
 	public byte[] controlMapped(int code, byte[] inBuffer, int inBufferOffset, int inBufferLength, int outBufferSize)
 			throws PCSCException {
-		int controlCode = PCSCContextFactory.mapControlCode(code);
-		// be sure this lock is static, multiple connections may fail in
-		// controlMapped unexpectedly otherwise
-		synchronized (lockGetMapped) {
+		PCSCControlCodeMapping mapping = getContext().getControlCodeMapping();
+		Boolean learned = mapping.getPcscLite(readerName);
+		if (learned != null) {
 			try {
-				return control(controlCode, inBuffer, inBufferOffset, inBufferLength, outBufferSize);
+				return control(PCSCControlCodeMapping.map(code, learned), inBuffer, inBufferOffset, inBufferLength,
+						outBufferSize);
 			} catch (PCSCException e1) {
-				if (PCSCContextFactory.isPcscLite()) {
-					// we already use PCSCLite - no use in retrying
-					Log.trace("{} control mapped request failed ({})", getLogLabel(), ExceptionTools.getMessage(e1));
+				if (!PCSCTools.isControlCodeFailure(e1.getErrorCode())) {
 					throw e1;
 				}
-				Log.debug("{} control mapped request failed - retry PCSC lite version", getLogLabel()); //$NON-NLS-1$
-				// switch to PCSCLite and retry. This is necessary in a Citrix
-				// environment with Unix/Mac based client
-				PCSCContextFactory.setPcscLite(true);
-				controlCode = PCSCContextFactory.mapControlCode(code);
+				// the same reader name may now be served by a client on
+				// another platform, try the other encoding
+				Log.debug("{} control mapped request failed - retry other encoding", getLogLabel()); //$NON-NLS-1$
 				try {
-					// if this is fine we return the result and let the
-					// system stay in the PCSC lite state!
-					return control(controlCode, inBuffer, inBufferOffset, inBufferLength, outBufferSize);
+					byte[] result = control(PCSCControlCodeMapping.map(code, !learned), inBuffer, inBufferOffset,
+							inBufferLength, outBufferSize);
+					mapping.setPcscLite(readerName, !learned);
+					return result;
 				} catch (PCSCException e2) {
-					// bad luck if both fail, we must revert to windows...
-					PCSCContextFactory.setPcscLite(false);
-					// and fail with the initial exception
-					Log.trace("{} control mapped request failed ({})", getLogLabel(), ExceptionTools.getMessage(e1));
+					Log.trace("{} control mapped request failed ({})", getLogLabel(), //$NON-NLS-1$
+							ExceptionTools.getMessage(e1));
 					throw e1;
 				}
 			}
 		}
+		boolean pcscLite = PCSCContextFactory.isPcscLite();
+		try {
+			byte[] result = control(PCSCControlCodeMapping.map(code, pcscLite), inBuffer, inBufferOffset,
+					inBufferLength, outBufferSize);
+			mapping.setPcscLite(readerName, pcscLite);
+			return result;
+		} catch (PCSCException e1) {
+			if (pcscLite) {
+				// we already use PCSCLite - no use in retrying
+				Log.trace("{} control mapped request failed ({})", getLogLabel(), ExceptionTools.getMessage(e1));
+				throw e1;
+			}
+			Log.debug("{} control mapped request failed - retry PCSC lite version", getLogLabel()); //$NON-NLS-1$
+			// retry with PCSCLite. This is necessary in a Citrix
+			// environment with Unix/Mac based client
+			try {
+				byte[] result = control(PCSCControlCodeMapping.map(code, true), inBuffer, inBufferOffset,
+						inBufferLength, outBufferSize);
+				// if this is fine this reader stays in the PCSC lite state
+				Log.debug("{} use PCSC lite control codes for {}", getLogLabel(), readerName); //$NON-NLS-1$
+				mapping.setPcscLite(readerName, true);
+				return result;
+			} catch (PCSCException e2) {
+				// bad luck if both fail, fail with the initial exception
+				Log.trace("{} control mapped request failed ({})", getLogLabel(), ExceptionTools.getMessage(e1));
+				throw e1;
+			}
+		}
 	}
 
 	@Override
 	public void disconnect(int disposition) throws PCSCException {
 		int count = Counter.decrementAndGet();
 		Log.debug("{} disconnect {}, {} active", getLogLabel(), disposition, count); //$NON-NLS-1$
-		getContext().fromConnectionDisconnect(this, disposition);
+		try {
+			getContext().fromConnectionDisconnect(this, disposition);
+		} finally {
+			scratch.dispose();
+		}
 	}
 
 	@Override
@@ -194,19 +402,50 @@ public class PCSCConnection implements IPCSCConnection {
 		getContext().fromConnectionEndTransaction(this, disposition);
 	}
 
+	private void ensureRecvBuffer(int recvLength) {
+		if (recvBuffer == null || recvBuffer.getSize() < recvLength) {
+			int tempLength = Math.max(recvLength, 4096);
+			recvBuffer = new NativeBuffer(tempLength);
+			nRecvLength = new NativePcscDword();
+		}
+	}
+
+	private void ensureSendBuffer(int apduLength) {
+		if (sendBuffer == null || sendBuffer.getSize() < apduLength) {
+			int tempLength = Math.max(apduLength, 512);
+			sendBuffer = new NativeBuffer(tempLength);
+		}
+	}
+
 	@Override
 	public byte[] getAttrib(int attrId) throws PCSCException {
-		Log.trace("{} get attrib {}", getLogLabel(), Integer.toHexString(attrId)); //$NON-NLS-1$
-		byte[] result;
-		try {
-			result = BufferHelper.call(context,
-					(buffer, bufferSize) -> getContext().getPcsc().SCardGetAttrib(hCard, attrId, buffer, bufferSize));
-		} catch (PCSCException ex) {
-			Log.trace("{} get attrib {}, exception {}", getLogLabel(), attrId, ex.getErrorCode()); //$NON-NLS-1$
-			return new byte[0];
+		return getAttribs(attrId).get(attrId);
+	}
+
+	@Override
+	public Map<Integer, byte[]> getAttribs(int... attrIds) throws PCSCException {
+		PCSCAttributeCache cache = getContext().getAttributeCache();
+		Map<Integer, byte[]> values = new HashMap<>();
+		int[] missing = new int[attrIds.length];
+		int count = 0;
+		for (int attrId : attrIds) {
+			byte[] value = cache.get(readerName, attrId);
+			if (value == null) {
+				missing[count++] = attrId;
+			} else {
+				values.put(attrId, value);
+			}
+		}
+		if (count > 0) {
+			Log.trace("{} get attribs {} of {}", getLogLabel(), count, attrIds.length); //$NON-NLS-1$
+			int tempCount = count;
+			int rc = getContext().getPcsc().dispatch(hCard, () -> basicGetAttribs(missing, tempCount, values));
+			PCSCException.checkReturnCode(rc);
+		}
+		Map<Integer, byte[]> result = new LinkedHashMap<>();
+		for (int attrId : attrIds) {
+			result.put(attrId, values.get(attrId));
 		}
-		logBytes("attrib 0x" + Integer.toHexString(attrId) + " response", //$NON-NLS-1$ //$NON-NLS-2$
-				result, 0, result.length, false);
 		return result;
 	}
 
@@ -215,6 +454,11 @@ public class PCSCConnection implements IPCSCConnection {
 		return context;
 	}
 
+	@Override
+	public PCSCReaderFeatures getFeatures() throws PCSCException {
+		return getContext().getReaderFeatureCache().getFeatures(readerName, this);
+	}
+
 	protected SCARDHANDLE getHCard() {
 		return hCard;
 	}
@@ -233,6 +477,15 @@ public class PCSCConnection implements IPCSCConnection {
 		return protocol;
 	}
 
+	/**
+	 * The name of the reader connected or <code>null</code> if unknown.
+	 * 
+	 * @return The name of the reader connected or <code>null</code>.
+	 */
+	public String getReaderName() {
+		return readerName;
+	}
+
 	@Override
 	public int getShareMode() {
 		return shareMode;
@@ -244,15 +497,46 @@ public class PCSCConnection implements IPCSCConnection {
 		 * this pollutes the log
 		 */
 		// Log.trace("{} get status", getLogLabel()); //$NON-NLS-1$
-		NativePcscDword nativeState = new NativePcscDword();
-		NativePcscDword nativeProtocol = new NativePcscDword();
 		int atrSize = 32;
-		NativeBuffer nativeAtr = new NativeBuffer(atrSize);
-		NativePcscDword nativeAtrSize = new NativePcscDword(atrSize);
-		byte[] result = BufferHelper.call(context, (buffer, bufferSize) -> getContext().getPcsc().SCardStatus(hCard,
-				buffer, bufferSize, nativeState, nativeProtocol, nativeAtr, nativeAtrSize));
-		return new CardStatus(new String(result).split("\0"), nativeState.intValue(), nativeProtocol.intValue(),
-				nativeAtr.getByteArray(0, nativeAtrSize.intValue()));
+		PCSCScratch tempScratch = scratch.claim();
+		try {
+			NativePcscDword nativeState = tempScratch.dword(0, 0);
+			NativePcscDword nativeProtocol = tempScratch.dword(1, 0);
+			NativeBuffer nativeAtr = tempScratch.buffer(atrSize);
+			NativePcscDword nativeAtrSize = tempScratch.dword(2, atrSize);
+			byte[] result = BufferHelper.call(context, (buffer, bufferSize) -> getContext().getPcsc().SCardStatus(hCard,
+					buffer, bufferSize, nativeState, nativeProtocol, nativeAtr, nativeAtrSize));
+			return new CardStatus(new String(result).split("\0"), nativeState.intValue(), nativeProtocol.intValue(),
+					nativeAtr.getByteArray(0, nativeAtrSize.intValue()));
+		} finally {
+			tempScratch.release();
+		}
+	}
+
+	private byte[] getTransferBuffer(int length) {
+		if (transferBuffer == null || transferBuffer.length < length) {
+			transferBuffer = new byte[Math.max(length, 512)];
+		}
+		return transferBuffer;
+	}
+
+	protected void logBytes(String mode, ByteBuffer buffer, int length, boolean sensitiveContent) {
+		if (Log.isLoggable(Level.TRACE)) {
+			// only peek if sensitive, the content must not be materialized
+			int count = sensitiveContent ? Math.min(4, length) : length;
+			byte[] bytes = new byte[count];
+			buffer.duplicate().get(bytes);
+			if (sensitiveContent) {
+				Log.trace("" //$NON-NLS-1$
+						+ getLogLabel() + " " //$NON-NLS-1$
+						+ mode + "[" //$NON-NLS-1$
+						+ length + "]: " //$NON-NLS-1$
+						+ HexTools.bytesToHexString(bytes, 0, count, true)
+						+ " <sensitive content omitted>"); //$NON-NLS-1$
+			} else {
+				logBytes(mode, bytes, 0, count, false);
+			}
+		}
 	}
 
 	protected void logBytes(String mode, byte[] bytes, int offset, int length, boolean sensitiveContent) {
@@ -279,9 +563,14 @@ public class PCSCConnection implements IPCSCConnection {
 	@Override
 	public void reconnect(int shareMode, int protocol, int initialization) throws PCSCException {
 		Log.trace("{} reconnect {}, {}, {}", getLogLabel(), shareMode, protocol, initialization); //$NON-NLS-1$ //$NON-NLS-2$
-		NativePcscDword activeProtocol = new NativePcscDword();
-		int rc = getContext().getPcsc().SCardReconnect(hCard, shareMode, protocol, initialization, activeProtocol);
-		PCSCException.checkReturnCode(rc);
+		PCSCScratch tempScratch = scratch.claim();
+		try {
+			int rc = getContext().getPcsc().SCardReconnect(hCard, shareMode, protocol, initialization,
+					tempScratch.dword(0, 0));
+			PCSCException.checkReturnCode(rc);
+		} finally {
+			tempScratch.release();
+		}
 	}
 
 	@Override
@@ -292,24 +581,79 @@ public class PCSCConnection implements IPCSCConnection {
 	@Override
 	public byte[] transmit(byte[] apdu, int apduOffset, int apduLength, int recvLength, boolean sensitiveContent)
 			throws PCSCException {
-		logBytes("transmit", apdu, apduOffset, apduLength, sensitiveContent); //$NON-NLS-1$
-		if (sendBuffer == null || sendBuffer.getSize() < apduLength) {
-			int tempLength = Math.max(apduLength, 512);
-			sendBuffer = new NativeBuffer(tempLength);
+		lockTransfer.lock();
+		try {
+			logBytes("transmit", apdu, apduOffset, apduLength, sensitiveContent); //$NON-NLS-1$
+			ensureSendBuffer(apduLength);
+			sendBuffer.setByteArray(0, apdu, apduOffset, apduLength);
+			ensureRecvBuffer(recvLength);
+			nRecvLength.setValue(recvLength);
+			int rc = basicTransmit(apduLength, sensitiveContent);
+			PCSCException.checkReturnCode(rc);
+			int responseSize = nRecvLength.intValue();
+			byte[] result = recvBuffer.getByteArray(0, responseSize);
+			logBytes("receive", result, 0, result.length, false); //$NON-NLS-1$
+			return result;
+		} finally {
+			lockTransfer.unlock();
 		}
-		sendBuffer.setByteArray(0, apdu, apduOffset, apduLength);
-		if (recvBuffer == null || recvBuffer.getSize() < recvLength) {
-			int tempLength = Math.max(recvLength, 4096);
-			recvBuffer = new NativeBuffer(tempLength);
-			nRecvLength = new NativePcscDword();
+	}
+
+	@Override
+	public int transmit(ByteBuffer request, ByteBuffer response, boolean sensitiveContent) throws PCSCException {
+		lockTransfer.lock();
+		try {
+			int apduLength = request.remaining();
+			int recvLength = response.remaining();
+			logBytes("transmit", request, apduLength, sensitiveContent); //$NON-NLS-1$
+			ensureSendBuffer(apduLength);
+			if (request.hasArray()) {
+				sendBuffer.setByteArray(0, request.array(), request.arrayOffset() + request.position(), apduLength);
+			} else {
+				byte[] tempBytes = getTransferBuffer(apduLength);
+				request.duplicate().get(tempBytes, 0, apduLength);
+				sendBuffer.setByteArray(0, tempBytes, 0, apduLength);
+				if (sensitiveContent) {
+					Arrays.fill(tempBytes, 0, apduLength, (byte) 0);
+				}
+			}
+			ensureRecvBuffer(recvLength);
+			nRecvLength.setValue(recvLength);
+			int rc = basicTransmit(apduLength, sensitiveContent);
+			PCSCException.checkReturnCode(rc);
+			request.position(request.position() + apduLength);
+			int responseSize = nRecvLength.intValue();
+			int responsePosition = response.position();
+			response.put(recvBuffer.getByteArray(0, responseSize));
+			if (Log.isLoggable(Level.TRACE)) {
+				ByteBuffer received = response.duplicate();
+				received.position(responsePosition);
+				logBytes("receive", received, responseSize, false); //$NON-NLS-1$
+			}
+			return responseSize;
+		} finally {
+			lockTransfer.unlock();
 		}
-		nRecvLength.setValue(recvLength);
-		int rc = getContext().getPcsc().SCardTransmit(hCard, protocolHandle, sendBuffer, apduLength, null, recvBuffer,
-				nRecvLength);
-		PCSCException.checkReturnCode(rc);
-		int responseSize = nRecvLength.intValue();
-		byte[] result = recvBuffer.getByteArray(0, responseSize);
-		logBytes("receive", result, 0, result.length, false); //$NON-NLS-1$
-		return result;
 	}
+
+	@Override
+	public List<byte[]> transmitBatch(List<byte[]> requests, int recvLength, boolean[] sensitiveContent,
+			IntPredicate stopCondition) throws PCSCException {
+		lockTransfer.lock();
+		try {
+			Log.trace("{} transmit batch of {}", getLogLabel(), requests.size()); //$NON-NLS-1$
+			List<byte[]> responses = new ArrayList<>(requests.size());
+			int rc = getContext().getPcsc().dispatch(hCard,
+					() -> basicTransmitBatch(requests, recvLength, sensitiveContent, stopCondition, responses));
+			try {
+				PCSCException.checkReturnCode(rc);
+			} catch (PCSCException e) {
+				throw new PCSCBatchException(e, responses);
+			}
+			return responses;
+		} finally {
+			lockTransfer.unlock();
+		}
+	}
+
 }
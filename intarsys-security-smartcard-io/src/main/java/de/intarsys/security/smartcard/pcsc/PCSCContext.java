@@ -35,10 +35,15 @@ import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCA
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.intarsys.nativec.api.INativeHandle;
 import de.intarsys.nativec.type.NativeLongLP64;
 import de.intarsys.nativec.type.NativeString;
+import de.intarsys.security.smartcard.jfr.ConnectEvent;
+import de.intarsys.security.smartcard.jfr.StatusChangeEvent;
 import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
 import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
 import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
@@ -59,6 +64,23 @@ public class PCSCContext extends CommonPCSCContext {
 
 	private boolean interrupted;
 
+	/*
+	 * the polling wait must not use a monitor, this would pin the carrier of a
+	 * virtual thread
+	 */
+	private final ReentrantLock lockInterrupt = new ReentrantLock();
+
+	private final Condition interruptSignal = lockInterrupt.newCondition();
+
+	private IPCSCPollingStrategy pollingStrategy = new PCSCAdaptivePolling();
+
+	private PCSCPollingStatistics pollingStatistics = new PCSCPollingStatistics();
+
+	/*
+	 * the number of polls since the last change, guarded by lockInterrupt
+	 */
+	private int idlePolls;
+
 	public PCSCContext(INativePCSCLib lib, _IPCSC pcsc) throws PCSCException {
 		this(lib, pcsc, establish(pcsc));
 	}
@@ -67,6 +89,7 @@ public class PCSCContext extends CommonPCSCContext {
 		super(lib, pcsc, pHContext);
 	}
 
+	@Override
 	public void cancelGetStatusChange() throws PCSCException {
 		Log.trace("{} cancel getStatusChange", this); //$NON-NLS-1$
 		if (isUseBlockingGetStatusChange()) {
@@ -79,9 +102,12 @@ public class PCSCContext extends CommonPCSCContext {
 				}
 			}
 		} else {
-			synchronized (lock) {
+			lockInterrupt.lock();
+			try {
 				interrupted = true;
-				lock.notifyAll();
+				interruptSignal.signalAll();
+			} finally {
+				lockInterrupt.unlock();
 			}
 		}
 	}
@@ -89,63 +115,119 @@ public class PCSCContext extends CommonPCSCContext {
 	@Override
 	public IPCSCConnection connect(String id, String readerName, int shareMode, int protocol) throws PCSCException {
 		Log.trace("{} connect id {}, {}, {}, {}", this, id, readerName, shareMode, protocol); //$NON-NLS-1$
-		NativeString nReaderName = new NativeString(readerName);
-		NativeLongLP64 phCard = new NativeLongLP64();
-		NativePcscDword activeProtocol = new NativePcscDword();
+		PCSCScratch tempScratch = scratch.claim();
+		NativeString nReaderName = tempScratch.string(readerName);
+		NativeLongLP64 phCard = tempScratch.handle();
+		NativePcscDword activeProtocol = tempScratch.dword(0, 0);
 
+		int tempProtocol;
+		SCARDHANDLE hCard;
+		ConnectEvent event = new ConnectEvent();
+		event.begin();
 		try {
 			synchronized (lock) {
 				connectCounter++;
 			}
+			// a reader in use is likely to change soon
+			resetIdlePolls();
 			SCARDCONTEXT tempContext = getHContext();
 			if (tempContext == null) {
+				event.returnCode = _PCSC_RETURN_CODES.SCARD_E_INVALID_HANDLE;
 				throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_INVALID_HANDLE);
 			}
 			int rc = getPcsc().SCardConnect(tempContext, nReaderName, shareMode, protocol, phCard, activeProtocol);
+			event.returnCode = rc;
 			PCSCException.checkReturnCode(rc);
+			tempProtocol = activeProtocol.intValue();
+			hCard = new SCARDHANDLE(phCard.longValue());
 		} finally {
 			synchronized (lock) {
 				connectCounter--;
 			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.reader = readerName;
+				event.connectionId = id;
+				event.shareMode = shareMode;
+				event.protocol = activeProtocol.intValue();
+				event.commit();
+			}
+			tempScratch.release();
 		}
 
-		INativeHandle protocolHandle = getProtocolHandle(activeProtocol.intValue());
-		return new PCSCConnection(this, id, new SCARDHANDLE(phCard.longValue()), shareMode, activeProtocol.intValue(),
-				protocolHandle);
+		INativeHandle protocolHandle = getProtocolHandle(tempProtocol);
+		return new PCSCConnection(this, id, readerName, hCard, shareMode, tempProtocol, protocolHandle);
 	}
 
 	@Override
-	protected void getStatusChange(SCARD_READERSTATE readerState, int millisecTimeout) throws PCSCException {
+	protected boolean basicGetStatusChange(SCARD_READERSTATE[] readerStates, int millisecTimeout)
+			throws PCSCException {
+		StatusChangeEvent event = new StatusChangeEvent();
+		event.begin();
 		try {
 			long start = System.currentTimeMillis();
-			synchronized (lock) {
-				interrupted = false;
+			setInterrupted(false);
+			/*
+			 * polling resets the current state, blocking compares with the
+			 * current state in place and doesn't allocate
+			 */
+			int[] currentStates = null;
+			if (!isUseBlockingGetStatusChange()) {
+				currentStates = new int[readerStates.length];
+				for (int i = 0; i < readerStates.length; i++) {
+					currentStates[i] = readerStates[i].getCurrentState();
+				}
 			}
-			int currentState = readerState.getCurrentState();
-			while (readerState.getEventState() == currentState) {
+			// the wait before the current poll
+			long delay = 0;
+			while (!isChanged(readerStates, currentStates)) {
 				if (!isUseBlockingGetStatusChange()) {
-					readerState.setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
+					for (SCARD_READERSTATE readerState : readerStates) {
+						readerState.setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
+					}
+					pollingStatistics.recordWakeup();
 				}
 				SCARDCONTEXT tempContext = getHContext();
 				if (tempContext == null) {
 					throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_CANCELLED);
 				}
-				int rc = getPcsc().SCardGetStatusChange(tempContext, millisecTimeout, readerState, 1);
+				int rc = getPcsc().SCardGetStatusChange(tempContext, millisecTimeout, readerStates[0],
+						readerStates.length);
+				if (rc == _PCSC_RETURN_CODES.SCARD_E_TIMEOUT) {
+					event.returnCode = rc;
+					return false;
+				}
 				PCSCException.checkReturnCode(rc);
-				if (!isUseBlockingGetStatusChange() && readerState.getEventState() == currentState) {
-					synchronized (lock) {
+				if (!isUseBlockingGetStatusChange()) {
+					lockInterrupt.lock();
+					try {
+						if (isChanged(readerStates, currentStates)) {
+							idlePolls = 0;
+							if (delay > 0) {
+								pollingStatistics.recordDetection(delay);
+							}
+							break;
+						}
 						if (interrupted) {
 							throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_CANCELLED);
 						}
 						if (millisecTimeout == 0) {
-							return;
+							return true;
 						}
 						long timePassed = System.currentTimeMillis() - start;
 						if (millisecTimeout > 0 && timePassed >= millisecTimeout) {
-							throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_TIMEOUT);
+							event.returnCode = _PCSC_RETURN_CODES.SCARD_E_TIMEOUT;
+							return false;
+						}
+						delay = pollingStrategy.getDelay(idlePolls);
+						if (idlePolls < Integer.MAX_VALUE) {
+							idlePolls++;
+						}
+						if (millisecTimeout > 0) {
+							delay = Math.min(delay, millisecTimeout - timePassed);
 						}
 						try {
-							lock.wait(1000);
+							interruptSignal.await(delay, TimeUnit.MILLISECONDS);
 						} catch (InterruptedException e) {
 							Thread.currentThread().interrupt();
 							throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_CANCELLED);
@@ -153,16 +235,55 @@ public class PCSCContext extends CommonPCSCContext {
 						if (interrupted) {
 							throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_CANCELLED);
 						}
+					} finally {
+						lockInterrupt.unlock();
 					}
 				}
 			}
+			return true;
+		} catch (PCSCException e) {
+			event.returnCode = e.getErrorCode();
+			throw e;
 		} finally {
-			synchronized (lock) {
-				interrupted = false;
+			setInterrupted(false);
+			event.end();
+			if (event.shouldCommit()) {
+				event.reader = readerStates.length == 1 ? readerStates[0].getReader() : null;
+				event.readerCount = readerStates.length;
+				event.timeout = millisecTimeout;
+				event.commit();
 			}
 		}
 	}
 
+	public PCSCPollingStatistics getPollingStatistics() {
+		return pollingStatistics;
+	}
+
+	public IPCSCPollingStrategy getPollingStrategy() {
+		return pollingStrategy;
+	}
+
+	/**
+	 * <code>true</code> if any event state differs from the current state, as
+	 * given in <code>currentStates</code> or, if <code>null</code>, in the
+	 * structure itself.
+	 * 
+	 * @param readerStates
+	 * @param currentStates
+	 * @return <code>true</code> if any event state differs from the current
+	 *         state
+	 */
+	protected boolean isChanged(SCARD_READERSTATE[] readerStates, int[] currentStates) {
+		for (int i = 0; i < readerStates.length; i++) {
+			int currentState = currentStates == null ? readerStates[i].getCurrentState() : currentStates[i];
+			if (readerStates[i].getEventState() != currentState) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	protected boolean isReleaseVeto() {
 		synchronized (lock) {
@@ -182,21 +303,63 @@ public class PCSCContext extends CommonPCSCContext {
 					(buffer, bufferSize) -> getPcsc().SCardListReaders(nativeContext, null, buffer, bufferSize));
 		} catch (PCSCException ex) {
 			if (ex.getErrorCode() == SCARD_E_NO_READERS_AVAILABLE) {
+				getAttributeCache().clear();
+				getControlCodeMapping().clear();
+				getReaderFeatureCache().clear();
 				return Collections.emptyList();
 			}
 			throw ex;
 		}
 
 		List<IPCSCCardReader> readerList = new ArrayList<IPCSCCardReader>(3);
+		List<String> readerNames = new ArrayList<>(3);
 		int start = 0;
 		for (int i = 0; i < result.length; i++) {
 			if (result[i] == 0) {
 				if (i > start) {
-					readerList.add(new PCSCCardReader(this, new String(result, start, i - start)));
+					String readerName = new String(result, start, i - start);
+					readerNames.add(readerName);
+					readerList.add(new PCSCCardReader(this, readerName));
 				}
 				start = i + 1;
 			}
 		}
+		// a reader detached may come back as a different device
+		getAttributeCache().retainReaders(readerNames);
+		getControlCodeMapping().retainReaders(readerNames);
+		getReaderFeatureCache().retainReaders(readerNames);
 		return readerList;
 	}
+
+	private void resetIdlePolls() {
+		lockInterrupt.lock();
+		try {
+			idlePolls = 0;
+		} finally {
+			lockInterrupt.unlock();
+		}
+	}
+
+	private void setInterrupted(boolean value) {
+		lockInterrupt.lock();
+		try {
+			interrupted = value;
+		} finally {
+			lockInterrupt.unlock();
+		}
+	}
+
+	public void setPollingStatistics(PCSCPollingStatistics pollingStatistics) {
+		this.pollingStatistics = pollingStatistics;
+	}
+
+	/**
+	 * The strategy for the wait between two polls when not
+	 * {@link #isUseBlockingGetStatusChange()}.
+	 * 
+	 * @param pollingStrategy
+	 */
+	public void setPollingStrategy(IPCSCPollingStrategy pollingStrategy) {
+		this.pollingStrategy = pollingStrategy;
+	}
 }
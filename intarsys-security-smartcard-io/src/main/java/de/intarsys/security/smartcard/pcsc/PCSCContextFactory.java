@@ -55,10 +55,7 @@ public class PCSCContextFactory {
 	}
 
 	public static synchronized int mapControlCode(int code) {
-		if (pcscLite) {
-			return 0x42000000 | code;
-		}
-		return 0x310000 | (code << 2);
+		return PCSCControlCodeMapping.map(code, pcscLite);
 	}
 
 	protected static synchronized void setPcscLite(boolean pPcscLite) {
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * A pool of established {@link IPCSCContext} instances.
+ * 
+ * A context is leased for the lifetime of a connection and released to the
+ * pool afterwards. Idle contexts are health checked before reuse, broken ones
+ * are evicted.
+ * 
+ * At most {@link #getMaxIdle()} idle contexts are kept. The number of
+ * contexts leased at a time is not limited by default, a limit can be set with
+ * {@link #getMaxActive()}. A lease beyond the limit waits up to
+ * {@link #getLeaseTimeout()} for a context to be returned.
+ * {@link #warmUp(int)} establishes idle contexts in advance.
+ * 
+ */
+public class PCSCContextPool {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	public static final int DEFAULT_MAX_IDLE = 4;
+
+	/**
+	 * No limit for the number of contexts leased at a time.
+	 */
+	public static final int DEFAULT_MAX_ACTIVE = Integer.MAX_VALUE;
+
+	public static final int DEFAULT_LEASE_TIMEOUT = 5000;
+
+	/**
+	 * <code>true</code> if <code>e</code> indicates a context that can't be
+	 * reused.
+	 * 
+	 * @param e
+	 * @return <code>true</code> if <code>e</code> indicates a broken context.
+	 */
+	public static boolean isInvalidHandle(PCSCException e) {
+		int code = e.getErrorCode();
+		return code == _PCSC_RETURN_CODES.ERROR_INVALID_HANDLE || code == _PCSC_RETURN_CODES.SCARD_E_INVALID_HANDLE
+				|| code == _PCSC_RETURN_CODES.SCARD_E_SERVICE_STOPPED
+				|| code == _PCSC_RETURN_CODES.SCARD_E_NO_SERVICE;
+	}
+
+	private final IPCSCContextFactory factory;
+
+	private final int maxIdle;
+
+	private final int maxActive;
+
+	private int leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+
+	private final Deque<IPCSCContext> idle = new ArrayDeque<>();
+
+	/*
+	 * the number of contexts leased, guarded by lock
+	 */
+	private int active;
+
+	private boolean disposed;
+
+	private long hitCount;
+
+	private long missCount;
+
+	private long evictionCount;
+
+	private final Object lock = new Object();
+
+	public PCSCContextPool(IPCSCContextFactory factory) {
+		this(factory, DEFAULT_MAX_IDLE);
+	}
+
+	public PCSCContextPool(IPCSCContextFactory factory, int maxIdle) {
+		this(factory, maxIdle, DEFAULT_MAX_ACTIVE);
+	}
+
+	public PCSCContextPool(IPCSCContextFactory factory, int maxIdle, int maxActive) {
+		this.factory = factory;
+		this.maxIdle = maxIdle;
+		this.maxActive = maxActive;
+	}
+
+	/**
+	 * Wait for a free lease.
+	 * 
+	 * @throws PCSCException
+	 *             If no context is returned within {@link #getLeaseTimeout()}
+	 */
+	protected void acquire() throws PCSCException {
+		synchronized (lock) {
+			long deadline = System.currentTimeMillis() + leaseTimeout;
+			while (!disposed && active >= maxActive) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					Log.warn("{} no context available after {} ms", this, leaseTimeout); //$NON-NLS-1$
+					throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_TIMEOUT);
+				}
+				try {
+					lock.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_CANCELLED);
+				}
+			}
+			active++;
+		}
+	}
+
+	/**
+	 * Dispose all idle contexts. Contexts currently leased are disposed upon
+	 * release.
+	 */
+	public void dispose() {
+		List<IPCSCContext> temp;
+		synchronized (lock) {
+			disposed = true;
+			temp = new ArrayList<>(idle);
+			idle.clear();
+			lock.notifyAll();
+		}
+		for (IPCSCContext context : temp) {
+			disposeContext(context);
+		}
+	}
+
+	protected void disposeContext(IPCSCContext context) {
+		try {
+			context.dispose();
+		} catch (PCSCException e) {
+			Log.trace("{} error releasing {}", this, context); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Remove a broken leased <code>context</code> from use.
+	 * 
+	 * @param context
+	 */
+	public void evict(IPCSCContext context) {
+		synchronized (lock) {
+			releaseLease();
+		}
+		evictIdle(context);
+	}
+
+	protected void evictIdle(IPCSCContext context) {
+		synchronized (lock) {
+			evictionCount++;
+		}
+		Log.debug("{} evict {}", this, context); //$NON-NLS-1$
+		disposeContext(context);
+	}
+
+	/**
+	 * The number of contexts currently leased.
+	 * 
+	 * @return The number of contexts currently leased.
+	 */
+	public int getActiveCount() {
+		synchronized (lock) {
+			return active;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized (lock) {
+			return evictionCount;
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	/**
+	 * The ratio of leases served from the pool.
+	 * 
+	 * @return The ratio of leases served from the pool, 0 if there were none.
+	 */
+	public double getHitRate() {
+		synchronized (lock) {
+			long total = hitCount + missCount;
+			return total == 0 ? 0 : (double) hitCount / total;
+		}
+	}
+
+	public int getLeaseTimeout() {
+		return leaseTimeout;
+	}
+
+	public int getIdleCount() {
+		synchronized (lock) {
+			return idle.size();
+		}
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	protected boolean isHealthy(IPCSCContext context) {
+		if (context.isDisposed()) {
+			return false;
+		}
+		if (context instanceof CommonPCSCContext) {
+			return ((CommonPCSCContext) context).isValid();
+		}
+		return true;
+	}
+
+	/**
+	 * Lease a context, either from the pool or newly established. Waits for a
+	 * context to be returned if {@link #getMaxActive()} contexts are leased.
+	 * 
+	 * @return An established {@link IPCSCContext}.
+	 * @throws PCSCException
+	 */
+	public IPCSCContext lease() throws PCSCException {
+		acquire();
+		while (true) {
+			IPCSCContext context;
+			synchronized (lock) {
+				// most recently used first
+				context = idle.pollFirst();
+			}
+			if (context == null) {
+				break;
+			}
+			if (isHealthy(context)) {
+				synchronized (lock) {
+					hitCount++;
+				}
+				return context;
+			}
+			evictIdle(context);
+		}
+		synchronized (lock) {
+			missCount++;
+		}
+		try {
+			return factory.establishContext();
+		} catch (PCSCException | RuntimeException e) {
+			synchronized (lock) {
+				releaseLease();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Return a leased <code>context</code> to the pool.
+	 * 
+	 * @param context
+	 */
+	public void release(IPCSCContext context) {
+		synchronized (lock) {
+			releaseLease();
+			if (context.isDisposed()) {
+				return;
+			}
+			if (!disposed && idle.size() < maxIdle) {
+				idle.addFirst(context);
+				return;
+			}
+		}
+		disposeContext(context);
+	}
+
+	private void releaseLease() {
+		if (active > 0) {
+			active--;
+		}
+		lock.notify();
+	}
+
+	/**
+	 * @see #getLeaseTimeout()
+	 * 
+	 * @param leaseTimeout
+	 */
+	public void setLeaseTimeout(int leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			return "context pool (active " + active + ", idle " + idle.size() + ", hit " + hitCount + ", miss " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+					+ missCount + ", evicted " + evictionCount + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	/**
+	 * Establish idle contexts until <code>count</code> (at most
+	 * {@link #getMaxIdle()}) are available, so that the first connections
+	 * don't pay for establishing their context.
+	 * 
+	 * @param count
+	 * @throws PCSCException
+	 */
+	public void warmUp(int count) throws PCSCException {
+		while (true) {
+			synchronized (lock) {
+				if (disposed || idle.size() >= Math.min(count, maxIdle)) {
+					return;
+				}
+			}
+			IPCSCContext context = factory.establishContext();
+			synchronized (lock) {
+				if (!disposed && idle.size() < maxIdle) {
+					idle.addLast(context);
+					continue;
+				}
+			}
+			disposeContext(context);
+			return;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The control code encoding learned for each reader.
+ * 
+ * Control codes are defined differently in Win* and PCSClite environments. In
+ * a terminal server environment a reader may need the PCSClite encoding even
+ * if we BELIEVE to use Win*, and readers of different clients may need
+ * different encodings side by side. The encoding that worked once for a reader
+ * is remembered here, so later control calls need no retry.
+ * 
+ * This is shared by all contexts of a {@link CommonPCSCLib}. A
+ * <code>null</code> reader name (a connection created without one) is never
+ * remembered.
+ */
+public class PCSCControlCodeMapping {
+
+	/**
+	 * Map control code to the Win* or PCSClite encoding.
+	 * 
+	 * @param code
+	 * @param pcscLite
+	 * @return The encoded control code.
+	 */
+	public static int map(int code, boolean pcscLite) {
+		if (pcscLite) {
+			return 0x42000000 | code;
+		}
+		return 0x310000 | (code << 2);
+	}
+
+	private final Map<String, Boolean> pcscLiteByReader = new ConcurrentHashMap<>();
+
+	public PCSCControlCodeMapping() {
+	}
+
+	/**
+	 * Forget the encodings learned for all readers.
+	 */
+	public void clear() {
+		pcscLiteByReader.clear();
+	}
+
+	/**
+	 * The encoding learned for readerName, <code>true</code> for PCSClite or
+	 * <code>null</code> if not yet known.
+	 * 
+	 * @param readerName
+	 * @return The encoding learned for readerName or <code>null</code>.
+	 */
+	public Boolean getPcscLite(String readerName) {
+		if (readerName == null) {
+			return null;
+		}
+		return pcscLiteByReader.get(readerName);
+	}
+
+	/**
+	 * Forget the encoding learned for readerName.
+	 * 
+	 * @param readerName
+	 */
+	public void remove(String readerName) {
+		if (readerName == null) {
+			return;
+		}
+		pcscLiteByReader.remove(readerName);
+	}
+
+	/**
+	 * Forget the encodings of all readers not in readerNames.
+	 * 
+	 * @param readerNames
+	 */
+	public void retainReaders(Collection<String> readerNames) {
+		pcscLiteByReader.keySet().retainAll(readerNames);
+	}
+
+	/**
+	 * Remember the encoding that worked for readerName.
+	 * 
+	 * @param readerName
+	 * @param pcscLite
+	 */
+	public void setPcscLite(String readerName, boolean pcscLite) {
+		if (readerName == null) {
+			return;
+		}
+		pcscLiteByReader.put(readerName, pcscLite);
+	}
+
+	@Override
+	public String toString() {
+		return "PCSCControlCodeMapping " + pcscLiteByReader; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+
+/**
+ * Run a PC/SC operation for a set of libraries or contexts in parallel.
+ * 
+ * Each element is handled in a thread of a pool bounded by
+ * {@link #MAX_THREADS}, the caller waits for the results up to a common
+ * deadline. A library that does not answer in time is left behind, its thread
+ * is released when the library returns.
+ */
+final class PCSCFanOut {
+
+	/**
+	 * A PC/SC operation on a single element.
+	 */
+	interface Task<T, R> {
+		R apply(T element) throws PCSCException;
+	}
+
+	public static final int MAX_THREADS = 16;
+
+	private static final ExecutorService Executor;
+
+	static {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), PCSCThreadTools.newThreadFactory("pcsc-fanout")); //$NON-NLS-1$
+		executor.allowCoreThreadTimeOut(true);
+		Executor = executor;
+	}
+
+	/**
+	 * Wait for <code>future</code> until <code>deadline</code> (in
+	 * {@link System#currentTimeMillis()}).
+	 * 
+	 * @param future
+	 * @param deadline
+	 * @return The result of <code>future</code>
+	 * @throws PCSCException
+	 *             The exception of the operation
+	 * @throws TimeoutException
+	 *             If the deadline has passed
+	 */
+	static <R> R await(CompletableFuture<R> future, long deadline) throws PCSCException, TimeoutException {
+		long wait = Math.max(deadline - System.currentTimeMillis(), 0);
+		try {
+			return future.get(wait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_CANCELLED);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof PCSCException) {
+				throw (PCSCException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new PCSCException("unexpected exception", cause); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Start <code>task</code> for each of <code>elements</code>.
+	 * 
+	 * @param elements
+	 * @param task
+	 * @return The futures for the results, in the order of
+	 *         <code>elements</code>.
+	 */
+	static <T, R> List<CompletableFuture<R>> submit(List<T> elements, Task<T, R> task) {
+		List<CompletableFuture<R>> futures = new ArrayList<>(elements.size());
+		for (T element : elements) {
+			futures.add(submit(element, task));
+		}
+		return futures;
+	}
+
+	/**
+	 * Start <code>task</code> for <code>element</code>.
+	 * 
+	 * @param element
+	 * @param task
+	 * @return The future for the result.
+	 */
+	static <T, R> CompletableFuture<R> submit(T element, Task<T, R> task) {
+		CompletableFuture<R> future = new CompletableFuture<>();
+		Executor.execute(() -> {
+			try {
+				future.complete(task.apply(element));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	private PCSCFanOut() {
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.intarsys.security.smartcard.pcsc.nativec._PCSCInstrumented;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.tools.reflect.ClassTools;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * The statistics of an {@link _PCSCInstrumented} PC/SC library, published as
+ * an MXBean in the platform MBean server.
+ * 
+ */
+public class PCSCMetrics implements PCSCMetricsMXBean {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	public static final String DOMAIN = "de.intarsys.security.smartcard"; //$NON-NLS-1$
+
+	private final _PCSCInstrumented pcsc;
+
+	private final String name;
+
+	private ObjectName objectName;
+
+	private PCSCPollingStatistics pollingStatistics;
+
+	public PCSCMetrics(_PCSCInstrumented pcsc, String name) {
+		this.pcsc = pcsc;
+		this.name = name == null ? "default" : name; //$NON-NLS-1$
+	}
+
+	@Override
+	public Map<String, Integer> getInFlight() {
+		return pcsc.getInFlight();
+	}
+
+	@Override
+	public Map<String, PCSCLatencySummary> getLatencies() {
+		Map<String, PCSCLatencySummary> result = new LinkedHashMap<>();
+		for (String function : pcsc.getFunctionNames()) {
+			result.put(function, PCSCLatencySummary.create(pcsc.getHistogram(function)));
+		}
+		return result;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	public _PCSCInstrumented getPcsc() {
+		return pcsc;
+	}
+
+	public PCSCPollingStatistics getPollingStatistics() {
+		return pollingStatistics;
+	}
+
+	@Override
+	public Map<String, Long> getReturnCodes() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (Map.Entry<Integer, Long> entry : pcsc.getReturnCodeCounts().entrySet()) {
+			String codeName = ClassTools.getConstantName(_PCSC_RETURN_CODES.class, entry.getKey());
+			if (codeName == null) {
+				codeName = "0x" + Integer.toHexString(entry.getKey()); //$NON-NLS-1$
+			}
+			result.merge(codeName, entry.getValue(), Long::sum);
+		}
+		return result;
+	}
+
+	@Override
+	public PCSCLatencySummary getStatusDetectionLatency() {
+		if (pollingStatistics == null) {
+			return new PCSCLatencySummary(0, 0, 0, 0, 0, 0);
+		}
+		return pollingStatistics.getDetectionLatency();
+	}
+
+	@Override
+	public double getStatusPollsPerSecond() {
+		if (pollingStatistics == null) {
+			return 0;
+		}
+		return pollingStatistics.getWakeupsPerSecond();
+	}
+
+	/**
+	 * Register with the platform MBean server. Failure is logged, as the
+	 * statistics are still available via the API.
+	 */
+	public synchronized void register() {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName tempName = new ObjectName(
+					DOMAIN + ":type=PCSCMetrics,name=" + ObjectName.quote(name)); //$NON-NLS-1$
+			if (server.isRegistered(tempName)) {
+				server.unregisterMBean(tempName);
+			}
+			server.registerMBean(this, tempName);
+			objectName = tempName;
+			Log.debug("registered PC/SC metrics {}", tempName); //$NON-NLS-1$
+		} catch (Exception e) {
+			Log.warn("PC/SC metrics not registered ({})", e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	@Override
+	public void reset() {
+		pcsc.reset();
+		if (pollingStatistics != null) {
+			pollingStatistics.reset();
+		}
+	}
+
+	public void setPollingStatistics(PCSCPollingStatistics pollingStatistics) {
+		this.pollingStatistics = pollingStatistics;
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			Log.debug("PC/SC metrics not unregistered ({})", e.getMessage()); //$NON-NLS-1$
+		}
+		objectName = null;
+	}
+}
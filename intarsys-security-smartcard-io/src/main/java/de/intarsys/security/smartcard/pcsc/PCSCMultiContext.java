@@ -30,9 +30,16 @@
 package de.intarsys.security.smartcard.pcsc;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.tools.yalf.api.ILogger;
+
 /**
  * A special context that can elegate to multiple libraries.
  * 
@@ -41,27 +48,75 @@ import java.util.concurrent.TimeoutException;
  * control these, together with the standard PC/SC resources, using single
  * {@link IPCSCContext}.
  * 
+ * The readers are listed in parallel for all contexts, a context not
+ * answering within {@link #getTimeout()} contributes the readers it listed
+ * before. As long as such a listing is pending, it is not started again and
+ * the context contributes its last listing without waiting. A single context
+ * is listed by the calling thread. Connect and status change requests are
+ * routed to the context owning the reader.
+ * 
  */
 public class PCSCMultiContext implements IPCSCContext {
 
+	private static final ILogger Log = PACKAGE.Log;
+
+	public static final int DEFAULT_TIMEOUT = 5000;
+
 	private final List<IPCSCContext> contexts;
 
 	private final IPCSCContextFactory system;
 
 	private boolean disposed = false;
 
+	/*
+	 * reader name -> owning context, guarded by this
+	 */
+	private Map<String, IPCSCContext> readerIndex = new HashMap<>();
+
+	/*
+	 * the last successful listing per context, guarded by this
+	 */
+	private final Map<IPCSCContext, List<IPCSCCardReader>> readersByContext = new IdentityHashMap<>();
+
+	/*
+	 * the most recent listing started per context, guarded by this
+	 */
+	private final Map<IPCSCContext, CompletableFuture<List<IPCSCCardReader>>> listings = new IdentityHashMap<>();
+
+	private int timeout = DEFAULT_TIMEOUT;
+
 	public PCSCMultiContext(IPCSCContextFactory system,
 			List<IPCSCContext> contexts) {
 		this.system = system;
 		this.contexts = contexts;
 	}
 
+	/**
+	 * Cancel the pending status change requests of all contexts.
+	 * 
+	 * @throws PCSCException
+	 */
 	public void cancelGetStatusChange() throws PCSCException {
+		PCSCException cause = null;
+		for (IPCSCContext context : contexts) {
+			try {
+				if (context instanceof CommonPCSCContext) {
+					((CommonPCSCContext) context).cancelGetStatusChange();
+				} else if (context instanceof PCSCMultiContext) {
+					((PCSCMultiContext) context).cancelGetStatusChange();
+				}
+			} catch (PCSCException e) {
+				cause = e;
+			}
+		}
+		if (cause != null) {
+			throw cause;
+		}
 	}
 
 	@Override
 	public IPCSCConnection connect(String id, String readerName, int shareMode, int protocol) throws PCSCException {
-		return null;
+		return getContext(readerName).connect(id, readerName, shareMode, protocol);
 	}
 
 	@Override
@@ -86,11 +141,51 @@ public class PCSCMultiContext implements IPCSCContext {
 		return system.establishContext();
 	}
 
+	/**
+	 * The context owning the reader <code>readerName</code>.
+	 * 
+	 * @param readerName
+	 * @return The context owning the reader <code>readerName</code>.
+	 * @throws PCSCException
+	 *             If no context knows the reader
+	 */
+	protected IPCSCContext getContext(String readerName) throws PCSCException {
+		IPCSCContext context;
+		synchronized (this) {
+			context = readerIndex.get(readerName);
+		}
+		if (context == null) {
+			// reader attached since the last listing
+			listReaders();
+			synchronized (this) {
+				context = readerIndex.get(readerName);
+			}
+			if (context == null) {
+				throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_UNKNOWN_READER);
+			}
+		}
+		return context;
+	}
+
+	public List<IPCSCContext> getContexts() {
+		return new ArrayList<>(contexts);
+	}
+
 	@Override
 	public PCSCCardReaderState getStatusChange(String readerName,
 			PCSCCardReaderState currentState, int millisecTimeout)
 			throws PCSCException, TimeoutException {
-		return null;
+		return getContext(readerName).getStatusChange(readerName, currentState, millisecTimeout);
+	}
+
+	/**
+	 * The time in milliseconds to wait for a single library when listing the
+	 * readers.
+	 * 
+	 * @return The time in milliseconds to wait for a single library.
+	 */
+	public int getTimeout() {
+		return timeout;
 	}
 
 	@Override
@@ -102,11 +197,90 @@ public class PCSCMultiContext implements IPCSCContext {
 
 	@Override
 	public List<IPCSCCardReader> listReaders() throws PCSCException {
+		if (contexts.size() == 1) {
+			// nothing to run in parallel
+			IPCSCContext context = contexts.get(0);
+			List<IPCSCCardReader> readers = context.listReaders();
+			Map<String, IPCSCContext> index = new HashMap<>();
+			for (IPCSCCardReader reader : readers) {
+				index.put(reader.getName(), context);
+			}
+			synchronized (this) {
+				readerIndex = index;
+			}
+			return readers;
+		}
+		List<CompletableFuture<List<IPCSCCardReader>>> futures = new ArrayList<>(contexts.size());
+		boolean[] pending = new boolean[contexts.size()];
+		synchronized (this) {
+			for (int i = 0; i < contexts.size(); i++) {
+				IPCSCContext context = contexts.get(i);
+				CompletableFuture<List<IPCSCCardReader>> future = listings.get(context);
+				if (future == null || future.isDone()) {
+					future = PCSCFanOut.submit(context, IPCSCContext::listReaders);
+					// a late answer is kept for the next listing
+					future.thenAccept(contextReaders -> {
+						synchronized (this) {
+							readersByContext.put(context, contextReaders);
+						}
+					});
+					listings.put(context, future);
+				} else {
+					pending[i] = true;
+				}
+				futures.add(future);
+			}
+		}
+		long now = System.currentTimeMillis();
+		long deadline = now + timeout;
 		List<IPCSCCardReader> readers = new ArrayList<IPCSCCardReader>();
-		for (IPCSCContext context : contexts) {
-			readers.addAll(context.listReaders());
+		Map<String, IPCSCContext> index = new HashMap<>();
+		PCSCException cause = null;
+		int failed = 0;
+		for (int i = 0; i < contexts.size(); i++) {
+			IPCSCContext context = contexts.get(i);
+			List<IPCSCCardReader> contextReaders;
+			try {
+				contextReaders = PCSCFanOut.await(futures.get(i), pending[i] ? now : deadline);
+			} catch (TimeoutException e) {
+				if (pending[i]) {
+					Log.debug("{} list readers still pending", context); //$NON-NLS-1$
+				} else {
+					Log.warn("{} list readers timed out after {} ms", context, timeout); //$NON-NLS-1$
+				}
+				synchronized (this) {
+					contextReaders = readersByContext.getOrDefault(context, new ArrayList<>());
+				}
+			} catch (PCSCException e) {
+				Log.warn("{} list readers failed ({})", context, e.getErrorCode()); //$NON-NLS-1$
+				cause = e;
+				failed++;
+				continue;
+			}
+			for (IPCSCCardReader reader : contextReaders) {
+				if (index.putIfAbsent(reader.getName(), context) == null) {
+					readers.add(reader);
+				} else {
+					Log.warn("{} reader {} already listed by another library", context, reader.getName()); //$NON-NLS-1$
+				}
+			}
+		}
+		if (cause != null && failed == contexts.size()) {
+			throw cause;
+		}
+		synchronized (this) {
+			readerIndex = index;
 		}
 		return readers;
 	}
 
+	/**
+	 * @see #getTimeout()
+	 * 
+	 * @param timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
 }
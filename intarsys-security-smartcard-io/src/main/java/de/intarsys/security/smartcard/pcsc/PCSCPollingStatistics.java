@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.intarsys.security.smartcard.pcsc.nativec.LatencyHistogram;
+
+/**
+ * The statistics of the "getStatusChange" polling of the contexts of a
+ * library.
+ * 
+ * The detection latency is an upper bound, the wait before the poll that
+ * detected the change. Changes detected by a blocking "getStatusChange" are
+ * not recorded.
+ * 
+ */
+public class PCSCPollingStatistics {
+
+	private final AtomicLong wakeups = new AtomicLong();
+
+	private final LatencyHistogram detectionLatency = new LatencyHistogram();
+
+	private volatile long start = System.nanoTime();
+
+	/**
+	 * The summary of the detection latencies.
+	 * 
+	 * @return The summary of the detection latencies.
+	 */
+	public PCSCLatencySummary getDetectionLatency() {
+		return PCSCLatencySummary.create(detectionLatency);
+	}
+
+	/**
+	 * The number of polls since creation or the last {@link #reset()}.
+	 * 
+	 * @return The number of polls.
+	 */
+	public long getWakeups() {
+		return wakeups.get();
+	}
+
+	/**
+	 * The average number of polls per second since creation or the last
+	 * {@link #reset()}.
+	 * 
+	 * @return The average number of polls per second.
+	 */
+	public double getWakeupsPerSecond() {
+		long nanos = System.nanoTime() - start;
+		if (nanos <= 0) {
+			return 0;
+		}
+		return wakeups.get() * 1e9 / nanos;
+	}
+
+	protected void recordDetection(long delayMillis) {
+		detectionLatency.record(delayMillis * 1000000);
+	}
+
+	protected void recordWakeup() {
+		wakeups.incrementAndGet();
+	}
+
+	public void reset() {
+		wakeups.set(0);
+		detectionLatency.reset();
+		start = System.nanoTime();
+	}
+}
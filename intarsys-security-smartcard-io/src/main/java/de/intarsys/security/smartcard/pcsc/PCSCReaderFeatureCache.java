@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * The {@link PCSCReaderFeatures} discovered for each reader.
+ * 
+ * The features are discovered once per reader name and
+ * SCARD_ATTR_VENDOR_IFD_TYPE. The readers no longer listed are dropped in
+ * {@link #retainReaders(Collection)}, so that a different device showing up
+ * with the same reader name is discovered again.
+ * 
+ * This is shared by all contexts of a {@link CommonPCSCLib}. A
+ * <code>null</code> reader name (a connection created without one) is
+ * discovered on each request.
+ */
+public class PCSCReaderFeatureCache {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * The maximum size of the feature and property TLV responses.
+	 */
+	private static final int RESPONSE_SIZE = 256;
+
+	/**
+	 * <code>true</code> if e tells about the connection or service, not the
+	 * reader features. The result of such a failed discovery is not cached.
+	 * 
+	 * @param e
+	 * @return <code>true</code> if e tells about the connection or service.
+	 */
+	protected static boolean isTransient(PCSCException e) {
+		int code = e.getErrorCode();
+		return PCSCTools.isConnectionFailure(code) || code == _PCSC_RETURN_CODES.SCARD_E_SHARING_VIOLATION
+				|| code == _PCSC_RETURN_CODES.SCARD_E_TIMEOUT;
+	}
+
+	private final Map<String, PCSCReaderFeatures> featuresByReader = new ConcurrentHashMap<>();
+
+	public PCSCReaderFeatureCache() {
+	}
+
+	/**
+	 * Forget the features of all readers.
+	 */
+	public void clear() {
+		featuresByReader.clear();
+	}
+
+	protected PCSCReaderFeatures discover(String readerName, String ifdType, IPCSCConnection connection)
+			throws PCSCException {
+		Map<Integer, Integer> controlCodes;
+		try {
+			byte[] tlv = connection.controlMapped(_IPCSC.CM_IOCTL_GET_FEATURE_REQUEST, EMPTY, 0, 0, RESPONSE_SIZE);
+			controlCodes = PCSCReaderFeatures.parseFeatures(tlv);
+		} catch (PCSCException e) {
+			if (isTransient(e)) {
+				throw e;
+			}
+			Log.debug("{} feature request not supported ({})", readerName, e.getErrorCode()); //$NON-NLS-1$
+			controlCodes = Collections.emptyMap();
+		}
+		Map<Integer, byte[]> properties = Collections.emptyMap();
+		Integer propertiesCode = controlCodes.get(_IPCSC.FEATURE_GET_TLV_PROPERTIES);
+		if (propertiesCode != null) {
+			try {
+				byte[] tlv = connection.control(propertiesCode, EMPTY, 0, 0, RESPONSE_SIZE);
+				properties = PCSCReaderFeatures.parseProperties(tlv);
+			} catch (PCSCException e) {
+				if (isTransient(e)) {
+					throw e;
+				}
+				Log.debug("{} TLV properties not supported ({})", readerName, e.getErrorCode()); //$NON-NLS-1$
+			}
+		}
+		PCSCReaderFeatures result = new PCSCReaderFeatures(readerName, ifdType, controlCodes, properties);
+		Log.debug("{} discovered", result); //$NON-NLS-1$
+		return result;
+	}
+
+	/**
+	 * The {@link PCSCReaderFeatures} for the reader readerName, discovered via
+	 * connection if not yet known.
+	 * 
+	 * @param readerName
+	 * @param connection
+	 * @return The {@link PCSCReaderFeatures} for the reader.
+	 * @throws PCSCException
+	 */
+	public PCSCReaderFeatures getFeatures(String readerName, IPCSCConnection connection) throws PCSCException {
+		String ifdType = getIfdType(connection);
+		if (readerName == null) {
+			return discover(readerName, ifdType, connection);
+		}
+		PCSCReaderFeatures result = featuresByReader.get(readerName);
+		if (result != null && result.getIfdType().equals(ifdType)) {
+			return result;
+		}
+		result = discover(readerName, ifdType, connection);
+		featuresByReader.put(readerName, result);
+		return result;
+	}
+
+	protected String getIfdType(IPCSCConnection connection) throws PCSCException {
+		try {
+			byte[] value = connection.getAttrib(PCSCAttribute.SCARD_ATTR_VENDOR_IFD_TYPE);
+			int length = value.length;
+			while (length > 0 && value[length - 1] == 0) {
+				length--;
+			}
+			return new String(value, 0, length, StandardCharsets.US_ASCII);
+		} catch (PCSCException e) {
+			if (isTransient(e)) {
+				throw e;
+			}
+			return ""; //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * The {@link PCSCReaderFeatures} already discovered for readerName or
+	 * <code>null</code>.
+	 * 
+	 * @param readerName
+	 * @return The {@link PCSCReaderFeatures} already discovered or
+	 *         <code>null</code>.
+	 */
+	public PCSCReaderFeatures peek(String readerName) {
+		if (readerName == null) {
+			return null;
+		}
+		return featuresByReader.get(readerName);
+	}
+
+	/**
+	 * Forget the features of readerName.
+	 * 
+	 * @param readerName
+	 */
+	public void remove(String readerName) {
+		if (readerName == null) {
+			return;
+		}
+		featuresByReader.remove(readerName);
+	}
+
+	/**
+	 * Forget the features of all readers not in readerNames.
+	 * 
+	 * @param readerNames
+	 */
+	public void retainReaders(Collection<String> readerNames) {
+		featuresByReader.keySet().retainAll(readerNames);
+	}
+
+	@Override
+	public String toString() {
+		return "PCSCReaderFeatureCache " + featuresByReader.keySet(); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+
+/**
+ * The features of a card reader as reported by the CCID "feature request"
+ * (CM_IOCTL_GET_FEATURE_REQUEST) and "get TLV properties"
+ * (FEATURE_GET_TLV_PROPERTIES) control calls (PC/SC part 10).
+ * 
+ * The feature request maps each supported feature like
+ * {@link _IPCSC#FEATURE_VERIFY_PIN_DIRECT} to the control code to use with
+ * {@link IPCSCConnection#control(int, byte[], int, int, int)}.
+ * 
+ * This object is immutable. Numeric properties not reported by the reader
+ * are 0.
+ */
+public class PCSCReaderFeatures {
+
+	public static final int PROPERTY_LCD_LAYOUT = 0x01;
+	public static final int PROPERTY_ENTRY_VALIDATION_CONDITION = 0x02;
+	public static final int PROPERTY_TIMEOUT2 = 0x03;
+	public static final int PROPERTY_LCD_MAX_CHARACTERS = 0x04;
+	public static final int PROPERTY_LCD_MAX_LINES = 0x05;
+	public static final int PROPERTY_MIN_PIN_SIZE = 0x06;
+	public static final int PROPERTY_MAX_PIN_SIZE = 0x07;
+	public static final int PROPERTY_FIRMWARE_ID = 0x08;
+	public static final int PROPERTY_PPDU_SUPPORT = 0x09;
+	public static final int PROPERTY_MAX_APDU_DATA_SIZE = 0x0A;
+	public static final int PROPERTY_VENDOR_ID = 0x0B;
+	public static final int PROPERTY_PRODUCT_ID = 0x0C;
+
+	/**
+	 * A reader without any features.
+	 */
+	public static final PCSCReaderFeatures NONE = new PCSCReaderFeatures("", "", //$NON-NLS-1$ //$NON-NLS-2$
+			Collections.emptyMap(), Collections.emptyMap());
+
+	/**
+	 * Parse the response of CM_IOCTL_GET_FEATURE_REQUEST, a sequence of tag
+	 * (1 byte), length (1 byte, always 4) and control code (4 bytes, big
+	 * endian).
+	 * 
+	 * @param tlv
+	 * @return A map from feature to control code.
+	 */
+	public static Map<Integer, Integer> parseFeatures(byte[] tlv) {
+		Map<Integer, Integer> result = new HashMap<>();
+		int index = 0;
+		while (index + 2 <= tlv.length) {
+			int tag = tlv[index] & 0xff;
+			int length = tlv[index + 1] & 0xff;
+			index += 2;
+			if (index + length > tlv.length) {
+				break;
+			}
+			if (length == 4) {
+				int code = ((tlv[index] & 0xff) << 24) | ((tlv[index + 1] & 0xff) << 16)
+						| ((tlv[index + 2] & 0xff) << 8) | (tlv[index + 3] & 0xff);
+				result.put(tag, code);
+			}
+			index += length;
+		}
+		return result;
+	}
+
+	/**
+	 * Parse the response of FEATURE_GET_TLV_PROPERTIES, a sequence of tag (1
+	 * byte), length (1 byte) and value (little endian for numbers).
+	 * 
+	 * @param tlv
+	 * @return A map from property to value.
+	 */
+	public static Map<Integer, byte[]> parseProperties(byte[] tlv) {
+		Map<Integer, byte[]> result = new HashMap<>();
+		int index = 0;
+		while (index + 2 <= tlv.length) {
+			int tag = tlv[index] & 0xff;
+			int length = tlv[index + 1] & 0xff;
+			index += 2;
+			if (index + length > tlv.length) {
+				break;
+			}
+			byte[] value = new byte[length];
+			System.arraycopy(tlv, index, value, 0, length);
+			result.put(tag, value);
+			index += length;
+		}
+		return result;
+	}
+
+	private final String readerName;
+
+	private final String ifdType;
+
+	private final Map<Integer, Integer> controlCodes;
+
+	private final Map<Integer, byte[]> properties;
+
+	public PCSCReaderFeatures(String readerName, String ifdType, Map<Integer, Integer> controlCodes,
+			Map<Integer, byte[]> properties) {
+		this.readerName = readerName;
+		this.ifdType = ifdType;
+		this.controlCodes = Collections.unmodifiableMap(new HashMap<>(controlCodes));
+		Map<Integer, byte[]> tempProperties = new HashMap<>();
+		for (Map.Entry<Integer, byte[]> entry : properties.entrySet()) {
+			tempProperties.put(entry.getKey(), entry.getValue().clone());
+		}
+		this.properties = tempProperties;
+	}
+
+	/**
+	 * The control code for feature or 0 if not supported.
+	 * 
+	 * @param feature
+	 * @return The control code for feature or 0.
+	 */
+	public int getControlCode(int feature) {
+		Integer code = controlCodes.get(feature);
+		return code == null ? 0 : code;
+	}
+
+	/**
+	 * A map from all supported features to their control code.
+	 * 
+	 * @return A map from all supported features to their control code.
+	 */
+	public Map<Integer, Integer> getControlCodes() {
+		return controlCodes;
+	}
+
+	public int getEntryValidationCondition() {
+		return getPropertyInt(PROPERTY_ENTRY_VALIDATION_CONDITION);
+	}
+
+	public String getFirmwareId() {
+		byte[] value = properties.get(PROPERTY_FIRMWARE_ID);
+		if (value == null) {
+			return null;
+		}
+		return new String(value, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * The SCARD_ATTR_VENDOR_IFD_TYPE of the reader, an empty string if not
+	 * available.
+	 * 
+	 * @return The SCARD_ATTR_VENDOR_IFD_TYPE of the reader.
+	 */
+	public String getIfdType() {
+		return ifdType;
+	}
+
+	public int getLcdLayout() {
+		return getPropertyInt(PROPERTY_LCD_LAYOUT);
+	}
+
+	public int getLcdMaxCharacters() {
+		return getPropertyInt(PROPERTY_LCD_MAX_CHARACTERS);
+	}
+
+	public int getLcdMaxLines() {
+		return getPropertyInt(PROPERTY_LCD_MAX_LINES);
+	}
+
+	/**
+	 * The maximum size of the APDU data the reader can handle (dwMaxAPDUDataSize)
+	 * or 0 if unknown.
+	 * 
+	 * @return The maximum size of the APDU data or 0.
+	 */
+	public int getMaxApduDataSize() {
+		return getPropertyInt(PROPERTY_MAX_APDU_DATA_SIZE);
+	}
+
+	public int getMaxPinSize() {
+		return getPropertyInt(PROPERTY_MAX_PIN_SIZE);
+	}
+
+	public int getMinPinSize() {
+		return getPropertyInt(PROPERTY_MIN_PIN_SIZE);
+	}
+
+	public int getPpduSupport() {
+		return getPropertyInt(PROPERTY_PPDU_SUPPORT);
+	}
+
+	public int getProductId() {
+		return getPropertyInt(PROPERTY_PRODUCT_ID);
+	}
+
+	/**
+	 * The raw value of a TLV property or <code>null</code>.
+	 * 
+	 * @param property
+	 * @return The raw value of a TLV property or <code>null</code>.
+	 */
+	public byte[] getProperty(int property) {
+		byte[] value = properties.get(property);
+		return value == null ? null : value.clone();
+	}
+
+	/**
+	 * The value of a numeric (little endian) TLV property or 0.
+	 * 
+	 * @param property
+	 * @return The value of a numeric TLV property or 0.
+	 */
+	public int getPropertyInt(int property) {
+		byte[] value = properties.get(property);
+		if (value == null) {
+			return 0;
+		}
+		int result = 0;
+		for (int i = Math.min(value.length, 4) - 1; i >= 0; i--) {
+			result = (result << 8) | (value[i] & 0xff);
+		}
+		return result;
+	}
+
+	public String getReaderName() {
+		return readerName;
+	}
+
+	public int getTimeOut2() {
+		return getPropertyInt(PROPERTY_TIMEOUT2);
+	}
+
+	public int getVendorId() {
+		return getPropertyInt(PROPERTY_VENDOR_ID);
+	}
+
+	/**
+	 * <code>true</code> if the reader supports feature.
+	 * 
+	 * @param feature
+	 * @return <code>true</code> if the reader supports feature.
+	 */
+	public boolean hasFeature(int feature) {
+		return controlCodes.containsKey(feature);
+	}
+
+	/**
+	 * <code>true</code> if the reader has a PIN pad, either for verify or
+	 * modify.
+	 * 
+	 * @return <code>true</code> if the reader has a PIN pad.
+	 */
+	public boolean isPinPad() {
+		return hasFeature(_IPCSC.FEATURE_VERIFY_PIN_DIRECT) || hasFeature(_IPCSC.FEATURE_MODIFY_PIN_DIRECT)
+				|| hasFeature(_IPCSC.FEATURE_VERIFY_PIN_START);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("PCSCReaderFeatures "); //$NON-NLS-1$
+		sb.append(readerName);
+		sb.append(" ["); //$NON-NLS-1$
+		sb.append(ifdType);
+		sb.append("] features "); //$NON-NLS-1$
+		sb.append(controlCodes.keySet());
+		sb.append(" properties "); //$NON-NLS-1$
+		sb.append(properties.keySet());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+
+/**
+ * Preallocated native cells and buffers for the PC/SC calls of a single
+ * connection or context, so that recurring calls like "SCardStatus" from the
+ * keep alive don't allocate native memory.
+ * 
+ * A scratch area is used by one call at a time, see {@link #claim()}. Calls
+ * running concurrently get a temporary scratch area.
+ */
+class PCSCScratch {
+
+	private static final int DWORDS = 3;
+
+	private final AtomicBoolean inUse = new AtomicBoolean();
+
+	private NativePcscDword[] dwords = new NativePcscDword[DWORDS];
+
+	private NativeBuffer buffer;
+
+	private NativeLongLP64 handle;
+
+	private NativeString string;
+
+	private String stringValue;
+
+	private volatile boolean disposed;
+
+	/**
+	 * A native buffer of at least <code>size</code> bytes.
+	 * 
+	 * @param size
+	 * @return A native buffer of at least <code>size</code> bytes.
+	 */
+	public NativeBuffer buffer(int size) {
+		if (buffer == null || buffer.getSize() < size) {
+			buffer = new NativeBuffer(size);
+		}
+		return buffer;
+	}
+
+	/**
+	 * This scratch area if not in use, otherwise a temporary one. The result
+	 * must be handed back with {@link #release()}.
+	 * 
+	 * @return A scratch area for exclusive use.
+	 */
+	public PCSCScratch claim() {
+		if (!disposed && inUse.compareAndSet(false, true)) {
+			return this;
+		}
+		PCSCScratch temp = new PCSCScratch();
+		temp.inUse.set(true);
+		return temp;
+	}
+
+	/**
+	 * Drop the native memory. The scratch area is still usable, but each
+	 * {@link #claim()} returns a temporary one.
+	 */
+	public void dispose() {
+		disposed = true;
+		if (inUse.compareAndSet(false, true)) {
+			dwords = new NativePcscDword[DWORDS];
+			buffer = null;
+			handle = null;
+			string = null;
+			stringValue = null;
+		}
+	}
+
+	/**
+	 * The native DWORD number <code>index</code>, set to <code>value</code>.
+	 * 
+	 * @param index
+	 * @param value
+	 * @return The native DWORD number <code>index</code>
+	 */
+	public NativePcscDword dword(int index, long value) {
+		NativePcscDword result = dwords[index];
+		if (result == null) {
+			result = new NativePcscDword();
+			dwords[index] = result;
+		}
+		result.setValue(value);
+		return result;
+	}
+
+	/**
+	 * The native handle cell, set to 0.
+	 * 
+	 * @return The native handle cell.
+	 */
+	public NativeLongLP64 handle() {
+		if (handle == null) {
+			handle = new NativeLongLP64();
+		}
+		handle.setValue(0L);
+		return handle;
+	}
+
+	public void release() {
+		inUse.set(false);
+	}
+
+	/**
+	 * <code>value</code> as a native string, reused as long as the value
+	 * doesn't change.
+	 * 
+	 * @param value
+	 * @return <code>value</code> as a native string.
+	 */
+	public NativeString string(String value) {
+		if (string == null || !value.equals(stringValue)) {
+			string = new NativeString(value);
+			stringValue = value;
+		}
+		return string;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.tools.exception.ExceptionTools;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * A single thread monitoring all readers of an {@link INativePCSCLib}.
+ * 
+ * The states of all registered {@link PCSCStatusMonitor} instances are
+ * requested in a single "getStatusChange" call, using a single
+ * {@link IPCSCContext}. Changes are dispatched to the monitor of the respective
+ * reader.
+ * 
+ * A reader in a transient state is left out of the request for a while (see
+ * {@link PCSCStatusMonitor#getSkipUntil()}), the other readers are monitored
+ * without delay. The loop is dropped when its last monitor is unregistered.
+ * 
+ */
+class PCSCStatusEventLoop {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final Map<IPCSCContextFactory, PCSCStatusEventLoop> Loops = new HashMap<>();
+
+	/**
+	 * The maximum time to wait in a single "getStatusChange" call. This is a
+	 * safety net for a cancel request that is lost when issued right before
+	 * the call.
+	 */
+	private static final int LOOP_TIMEOUT = 5000;
+
+	/**
+	 * Register <code>monitor</code> with the loop for <code>factory</code>.
+	 * 
+	 * @param factory
+	 * @param monitor
+	 * @return The loop <code>monitor</code> is registered with.
+	 */
+	public static PCSCStatusEventLoop register(IPCSCContextFactory factory, PCSCStatusMonitor monitor) {
+		synchronized (Loops) {
+			PCSCStatusEventLoop loop = Loops.computeIfAbsent(factory, PCSCStatusEventLoop::new);
+			loop.register(monitor);
+			return loop;
+		}
+	}
+
+	private final IPCSCContextFactory factory;
+
+	private final List<PCSCStatusMonitor> monitors = new ArrayList<>();
+
+	private boolean changed;
+
+	private Thread loopThread;
+
+	private CommonPCSCContext pcscContext;
+
+	private final Object lock = new Object();
+
+	protected PCSCStatusEventLoop(IPCSCContextFactory factory) {
+		this.factory = factory;
+	}
+
+	protected void cancel() {
+		CommonPCSCContext tempContext;
+		synchronized (lock) {
+			if (Thread.currentThread() == loopThread) {
+				return;
+			}
+			tempContext = pcscContext;
+		}
+		if (tempContext != null) {
+			try {
+				tempContext.cancelGetStatusChange();
+			} catch (PCSCException e) {
+				Log.trace("{} cancel failed", this); //$NON-NLS-1$
+			}
+		}
+	}
+
+	protected void loop(CommonPCSCContext context) {
+		PCSCStatusMonitor[] tempMonitors = null;
+		SCARD_READERSTATE[] states = null;
+		NativeString[] names = null;
+		int[] currentStates = null;
+		/*
+		 * the reader states whose ATR is in the native structures, the steady
+		 * state loop only writes the state flags
+		 */
+		PCSCCardReaderState[] written = null;
+		while (true) {
+			synchronized (lock) {
+				if (loopThread != Thread.currentThread()) {
+					return;
+				}
+				if (monitors.isEmpty()) {
+					loopThread = null;
+					pcscContext = null;
+					return;
+				}
+				if (changed || tempMonitors == null) {
+					changed = false;
+					tempMonitors = monitors.toArray(new PCSCStatusMonitor[monitors.size()]);
+					states = SCARD_READERSTATE.createArray(tempMonitors.length);
+					names = new NativeString[tempMonitors.length];
+					currentStates = new int[tempMonitors.length];
+					written = new PCSCCardReaderState[tempMonitors.length];
+					for (int i = 0; i < tempMonitors.length; i++) {
+						names[i] = new NativeString(tempMonitors[i].getReader().getName());
+						states[i].setReader(names[i]);
+						states[i].setATR(null);
+					}
+				}
+			}
+			long now = System.currentTimeMillis();
+			int timeout = LOOP_TIMEOUT;
+			boolean monitored = false;
+			for (int i = 0; i < tempMonitors.length; i++) {
+				long skipUntil = tempMonitors[i].getSkipUntil();
+				if (skipUntil != 0 && skipUntil <= now) {
+					tempMonitors[i].resume(context);
+					skipUntil = tempMonitors[i].getSkipUntil();
+				}
+				if (skipUntil != 0) {
+					// leave the reader alone for a while
+					currentStates[i] = _IPCSC.SCARD_STATE_IGNORE;
+					written[i] = null;
+					timeout = (int) Math.max(Math.min(timeout, skipUntil - now), 1);
+				} else {
+					PCSCCardReaderState oldReaderState = tempMonitors[i].getOldReaderState();
+					if (oldReaderState == null) {
+						currentStates[i] = _IPCSC.SCARD_STATE_UNAWARE;
+					} else {
+						currentStates[i] = oldReaderState.getEventState();
+					}
+					if (oldReaderState != written[i]) {
+						states[i].setATR(oldReaderState == null ? null : oldReaderState.basicGetATR());
+						written[i] = oldReaderState;
+					}
+					monitored = true;
+				}
+				states[i].setCurrentState(currentStates[i]);
+				states[i].setEventState(currentStates[i]);
+			}
+			if (!monitored) {
+				// all readers are skipped, wait for the first to come back
+				synchronized (lock) {
+					if (!changed) {
+						try {
+							lock.wait(timeout);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+				}
+				continue;
+			}
+			try {
+				if (!context.waitStatusChange(states, timeout)) {
+					continue;
+				}
+				for (int i = 0; i < tempMonitors.length; i++) {
+					if (currentStates[i] == _IPCSC.SCARD_STATE_IGNORE) {
+						continue;
+					}
+					if (states[i].getEventState() != currentStates[i]) {
+						PCSCCardReaderState newReaderState = new PCSCCardReaderState(
+								tempMonitors[i].getReader().getName(), states[i]);
+						// the structure now holds the ATR of the new state
+						written[i] = newReaderState;
+						tempMonitors[i].onReaderState(context, newReaderState);
+					}
+				}
+			} catch (PCSCException e) {
+				if (context.isDisposed()) {
+					Log.trace("{} terminated", this); //$NON-NLS-1$
+					return;
+				}
+				if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_CANCELLED) {
+					Log.trace("{} canceled", this); //$NON-NLS-1$
+					continue;
+				}
+				// find out which reader is in trouble
+				Log.trace("{} PCSC Exception, probe readers", this, e); //$NON-NLS-1$
+				probe(context, tempMonitors);
+			}
+		}
+	}
+
+	/**
+	 * Request the state of each reader on its own after a failed request for
+	 * all readers. A reader in trouble is skipped for a while, if none can be
+	 * found all are.
+	 * 
+	 * @param context
+	 * @param tempMonitors
+	 */
+	protected void probe(CommonPCSCContext context, PCSCStatusMonitor[] tempMonitors) {
+		boolean found = false;
+		for (PCSCStatusMonitor monitor : tempMonitors) {
+			if (monitor.getSkipUntil() != 0) {
+				continue;
+			}
+			PCSCCardReaderState oldReaderState = monitor.getOldReaderState();
+			try {
+				PCSCCardReaderState newReaderState = context.getStatusChange(monitor.getReader().getName(),
+						oldReaderState, 0);
+				if (oldReaderState == null || newReaderState.getEventState() != oldReaderState.getEventState()) {
+					found |= monitor.onReaderState(context, newReaderState);
+				}
+			} catch (PCSCException e) {
+				found = true;
+				if (monitor.onReaderException(context, e)) {
+					monitor.skip(PCSCStatusMonitor.SLOW_DOWN);
+				} else {
+					monitor.stop();
+				}
+			} catch (TimeoutException e) {
+				// no change
+			}
+		}
+		if (!found) {
+			// give PC/SC time to fix the situation
+			for (PCSCStatusMonitor monitor : tempMonitors) {
+				monitor.skip(PCSCStatusMonitor.SLOW_DOWN);
+			}
+		}
+	}
+
+	protected void register(PCSCStatusMonitor monitor) {
+		synchronized (lock) {
+			monitors.add(monitor);
+			changed = true;
+			lock.notifyAll();
+			if (loopThread == null) {
+				start();
+				return;
+			}
+		}
+		cancel();
+	}
+
+	/**
+	 * Drop this loop if no monitor is registered and no thread is running.
+	 */
+	protected void release() {
+		synchronized (Loops) {
+			synchronized (lock) {
+				if (monitors.isEmpty() && loopThread == null) {
+					Loops.remove(factory, this);
+				}
+			}
+		}
+	}
+
+	protected void run() {
+		CommonPCSCContext context = null;
+		try {
+			IPCSCContext tempContext = factory.establishContext();
+			if (!(tempContext instanceof CommonPCSCContext)) {
+				tempContext.dispose();
+				throw new PCSCException(_PCSC_RETURN_CODES.SCARD_E_NO_SERVICE);
+			}
+			context = (CommonPCSCContext) tempContext;
+			synchronized (lock) {
+				if (loopThread != Thread.currentThread()) {
+					return;
+				}
+				pcscContext = context;
+			}
+			loop(context);
+		} catch (Exception e) {
+			Log.warn("{} error monitoring status ({})", this, ExceptionTools.getMessage(e)); //$NON-NLS-1$
+			List<PCSCStatusMonitor> tempMonitors;
+			synchronized (lock) {
+				tempMonitors = new ArrayList<>(monitors);
+			}
+			for (PCSCStatusMonitor monitor : tempMonitors) {
+				monitor.stop();
+			}
+		} finally {
+			synchronized (lock) {
+				if (loopThread == Thread.currentThread()) {
+					loopThread = null;
+					pcscContext = null;
+				}
+			}
+			release();
+			if (context != null) {
+				try {
+					context.dispose();
+				} catch (PCSCException e) {
+					Log.trace("{} error releasing context", this); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+
+	protected void start() {
+		loopThread = PCSCThreadTools.newThread(toString(), new Runnable() {
+			@Override
+			public void run() {
+				PCSCStatusEventLoop.this.run();
+			}
+		});
+		loopThread.start();
+	}
+
+	@Override
+	public String toString() {
+		return "pcsc status loop"; //$NON-NLS-1$
+	}
+
+	public void unregister(PCSCStatusMonitor monitor) {
+		synchronized (lock) {
+			if (!monitors.remove(monitor)) {
+				return;
+			}
+			changed = true;
+			lock.notifyAll();
+		}
+		cancel();
+	}
+}
@@ -40,7 +40,11 @@ import de.intarsys.tools.yalf.api.ILogger;
 /**
  * Monitor the state of an {@link IPCSCCardReader}.
  * 
- * This implementation is running in a thread of its own, using an
+ * Readers of a native PC/SC library are monitored by a single
+ * {@link PCSCStatusEventLoop}, sending a (blocking) "getStatusChange" request
+ * for all readers at once.
+ * 
+ * Other readers are monitored in a thread of their own, using an
  * {@link IPCSCContext} of its own to continuously send (blocking)
  * "getStatusChange" requests. This is the least common denominator for the
  * different platforms and versions of PCSC.
@@ -56,14 +60,35 @@ public class PCSCStatusMonitor {
 
 	private static final ILogger Log = PACKAGE.Log;
 
+	/**
+	 * The time in milliseconds a reader in a transient state is left alone.
+	 */
+	protected static final int SLOW_DOWN = 200;
+
+	/**
+	 * The time in milliseconds a PRESENT following EMPTY must be stable.
+	 */
+	protected static final int PRESENT_DELAY = 50;
+
 	private final IPCSCCardReader reader;
 
 	private Thread monitorThread;
 
-	private PCSCCardReaderState newReaderState = null;
+	private PCSCStatusEventLoop eventLoop;
 
 	private PCSCCardReaderState oldReaderState = null;
 
+	/*
+	 * the PRESENT state to be confirmed when the skip is over
+	 */
+	private PCSCCardReaderState presentReaderState = null;
+
+	/*
+	 * the time (System.currentTimeMillis()) until the reader is not requested, 0
+	 * if none
+	 */
+	private long skipUntil = 0;
+
 	private IPCSCContext pcscContext;
 
 	private final List<IStatusListener> listeners = new ArrayList<>();
@@ -84,6 +109,10 @@ public class PCSCStatusMonitor {
 		}
 	}
 
+	protected PCSCCardReaderState getOldReaderState() {
+		return oldReaderState;
+	}
+
 	protected IPCSCContext getPcscContext() {
 		return pcscContext;
 	}
@@ -92,6 +121,17 @@ public class PCSCStatusMonitor {
 		return reader;
 	}
 
+	/**
+	 * The time (in {@link System#currentTimeMillis()}) until the reader should
+	 * not be requested, 0 if it can be requested now. When the time is over,
+	 * {@link #resume(IPCSCContext)} must be called.
+	 * 
+	 * @return The time until the reader should not be requested.
+	 */
+	protected long getSkipUntil() {
+		return skipUntil;
+	}
+
 	protected boolean monitor() {
 		try {
 			synchronized (lock) {
@@ -99,63 +139,24 @@ public class PCSCStatusMonitor {
 					return false;
 				}
 			}
-			newReaderState = getPcscContext().getStatusChange(getReader().getName(), oldReaderState, -1);
-			if (newReaderState.isIgnore() || newReaderState.isMute() || newReaderState.isUnavailable()) {
-				oldReaderState = newReaderState;
-				// slow down, give PC/SC time to fix the situation
-				// BDR BERCA-1436 - 100% CPU Auslastung, wenn state UNAVAILABLE
-				// reader gets unavailable when direct connection to terminal is
-				// established!
-				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					return false;
-				}
-				return true;
-			}
-			/*
-			 * <pre> new "feature": on rfid devices (Reiner + nPA) it may happen to
-			 * - status -> Present, energy immediately breaks down
-			 * - status -> Empty
-			 * - status -> Present, now stable
-			 * 
-			 * To avoid unnecessary connects, we filter a "Present" event if
-			 * immediately followed by "Empty". The drawback is that we
-			 * "slow down" normal connects...
-			 */
-			if (newReaderState.isPresent() && (oldReaderState == null || oldReaderState.isEmpty())) {
-				// re-read
-				try {
-					newReaderState = getPcscContext().getStatusChange(getReader().getName(), newReaderState, 50);
-					oldReaderState = newReaderState;
-					if (newReaderState.isEmpty()) {
-						// ignore completely
-						Log.debug("{} ignore PRESENT", this); //$NON-NLS-1$
-						return true;
+			PCSCCardReaderState newReaderState = getPcscContext().getStatusChange(getReader().getName(),
+					oldReaderState, -1);
+			onReaderState(getPcscContext(), newReaderState);
+			if (skipUntil != 0) {
+				// this thread is on its own, simply wait
+				long delay = skipUntil - System.currentTimeMillis();
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
 					}
-				} catch (Exception e) {
-					//
 				}
+				resume(getPcscContext());
 			}
-			onStatusChange(newReaderState);
-			oldReaderState = newReaderState;
 		} catch (PCSCException e) {
-			if (getPcscContext().isDisposed()) {
-				Log.trace("{} terminated", this); //$NON-NLS-1$
-				return false;
-			} else if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_NO_READERS_AVAILABLE) {
-				Log.trace("{} reader disconnected", this);
-				return false;
-			} else if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_CANCELLED) {
-				Log.trace("{} canceled", this); //$NON-NLS-1$
-				return true;
-			} else {
-				Log.trace("{} PCSC Exception", this, e); //$NON-NLS-1$
-				oldReaderState = null;
-				onException(e);
-				return false;
-			}
+			return onReaderException(getPcscContext(), e);
 		} catch (TimeoutException e) {
 			Log.trace("{} Timeout Exception", this); //$NON-NLS-1$
 		}
@@ -192,6 +193,71 @@ public class PCSCStatusMonitor {
 		}
 	}
 
+	/**
+	 * Handle a failed "getStatusChange" request.
+	 * 
+	 * @param context
+	 * @param e
+	 * @return <code>true</code> if monitoring should go on.
+	 */
+	protected boolean onReaderException(IPCSCContext context, PCSCException e) {
+		if (context.isDisposed()) {
+			Log.trace("{} terminated", this); //$NON-NLS-1$
+			return false;
+		} else if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_NO_READERS_AVAILABLE) {
+			Log.trace("{} reader disconnected", this);
+			return false;
+		} else if (e.getErrorCode() == _PCSC_RETURN_CODES.SCARD_E_CANCELLED) {
+			Log.trace("{} canceled", this); //$NON-NLS-1$
+			return true;
+		} else {
+			Log.trace("{} PCSC Exception", this, e); //$NON-NLS-1$
+			oldReaderState = null;
+			onException(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Handle the result of a "getStatusChange" request.
+	 * 
+	 * @param context
+	 * @param newReaderState
+	 * @return <code>true</code> if the reader is in a transient state and is
+	 *         skipped for a while, see {@link #getSkipUntil()}.
+	 */
+	protected boolean onReaderState(IPCSCContext context, PCSCCardReaderState newReaderState) {
+		presentReaderState = null;
+		if (newReaderState.isIgnore() || newReaderState.isMute() || newReaderState.isUnavailable()) {
+			oldReaderState = newReaderState;
+			// BDR BERCA-1436 - 100% CPU Auslastung, wenn state UNAVAILABLE
+			// reader gets unavailable when direct connection to terminal is
+			// established!
+			skip(SLOW_DOWN);
+			return true;
+		}
+		/*
+		 * <pre> new "feature": on rfid devices (Reiner + nPA) it may happen to
+		 * - status -> Present, energy immediately breaks down
+		 * - status -> Empty
+		 * - status -> Present, now stable
+		 * 
+		 * To avoid unnecessary connects, we filter a "Present" event if
+		 * immediately followed by "Empty". The drawback is that we
+		 * "slow down" normal connects...
+		 */
+		if (newReaderState.isPresent() && (oldReaderState == null || oldReaderState.isEmpty())) {
+			// confirm upon resume
+			presentReaderState = newReaderState;
+			oldReaderState = newReaderState;
+			skip(PRESENT_DELAY);
+			return false;
+		}
+		onStatusChange(newReaderState);
+		oldReaderState = newReaderState;
+		return false;
+	}
+
 	protected void onStatusChange(PCSCCardReaderState cardReaderState) {
 		List<IStatusListener> temp;
 		synchronized (lock) {
@@ -202,6 +268,34 @@ public class PCSCStatusMonitor {
 		}
 	}
 
+	/**
+	 * The skip time is over, confirm a pending PRESENT state.
+	 * 
+	 * @param context
+	 */
+	protected void resume(IPCSCContext context) {
+		skipUntil = 0;
+		PCSCCardReaderState newReaderState = presentReaderState;
+		if (newReaderState == null) {
+			return;
+		}
+		presentReaderState = null;
+		// re-read
+		try {
+			newReaderState = context.getStatusChange(getReader().getName(), newReaderState, 0);
+			oldReaderState = newReaderState;
+			if (newReaderState.isEmpty()) {
+				// ignore completely
+				Log.debug("{} ignore PRESENT", this); //$NON-NLS-1$
+				return;
+			}
+		} catch (Exception e) {
+			//
+		}
+		onStatusChange(newReaderState);
+		oldReaderState = newReaderState;
+	}
+
 	public void removeStatusListener(IStatusListener listener) {
 		synchronized (lock) {
 			if (listeners.remove(listener)) {
@@ -212,19 +306,32 @@ public class PCSCStatusMonitor {
 		}
 	}
 
+	/**
+	 * Do not request the reader for <code>millis</code> milliseconds.
+	 * 
+	 * @param millis
+	 */
+	protected void skip(int millis) {
+		skipUntil = System.currentTimeMillis() + millis;
+	}
+
 	protected void start() {
 		synchronized (lock) {
-			if (monitorThread != null) {
+			if (monitorThread != null || eventLoop != null) {
+				return;
+			}
+			IPCSCContext readerContext = getReader().getContext();
+			if (readerContext instanceof CommonPCSCContext) {
+				eventLoop = PCSCStatusEventLoop.register(((CommonPCSCContext) readerContext).getLib(), this);
 				return;
 			}
 			String name = toString();
-			monitorThread = new Thread(new Runnable() {
+			monitorThread = PCSCThreadTools.newThread(name, new Runnable() {
 				@Override
 				public void run() {
 					monitorLoop();
 				}
-			}, name);
-			monitorThread.setDaemon(true);
+			});
 			monitorThread.start();
 		}
 	}
@@ -235,14 +342,20 @@ public class PCSCStatusMonitor {
 	 */
 	public void stop() {
 		IPCSCContext temp;
+		PCSCStatusEventLoop tempLoop;
 		synchronized (lock) {
-			if (monitorThread == null) {
+			if (monitorThread == null && eventLoop == null) {
 				return;
 			}
 			monitorThread = null;
+			tempLoop = eventLoop;
+			eventLoop = null;
 			temp = getPcscContext();
 			listeners.clear();
 		}
+		if (tempLoop != null) {
+			tempLoop.unregister(this);
+		}
 		if (temp != null) {
 			try {
 				temp.dispose();
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+import de.intarsys.tools.concurrent.ThreadTools;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * The factory for the threads created by the library.
+ * <p>
+ * By default we use platform daemon threads. On Java 21 and later, virtual
+ * threads can be requested using {@link #setVirtualThreads(boolean)}. This must
+ * be done before the card system is started. The virtual thread API is
+ * accessed via reflection, as we are still compiled against Java 17.
+ * <p>
+ * A native call pins the carrier of a virtual thread for its whole duration.
+ * This is why in virtual thread mode the PC/SC library is always accessed via
+ * the {@link de.intarsys.security.smartcard.pcsc.nativec._PCSCThreadedExecutor}
+ * lanes. The lanes are platform threads, the virtual threads simply park while
+ * waiting for the native call to complete. For the same reason no virtual
+ * thread should block in a <code>synchronized</code> section.
+ */
+public final class PCSCThreadTools {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	/** Thread.ofVirtual(), or null if not available */
+	private static final MethodHandle OF_VIRTUAL;
+
+	/** Thread.Builder.name(String) */
+	private static final MethodHandle BUILDER_NAME;
+
+	/** Thread.Builder.factory() */
+	private static final MethodHandle BUILDER_FACTORY;
+
+	private static volatile boolean virtualThreads;
+
+	static {
+		MethodHandle ofVirtual = null;
+		MethodHandle builderName = null;
+		MethodHandle builderFactory = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder"); //$NON-NLS-1$
+			Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual"); //$NON-NLS-1$
+			ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass)); //$NON-NLS-1$
+			builderName = lookup.findVirtual(builderClass, "name", //$NON-NLS-1$
+					MethodType.methodType(builderClass, String.class));
+			builderFactory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class)); //$NON-NLS-1$
+		} catch (Exception e) {
+			// Java < 21
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_FACTORY = builderFactory;
+	}
+
+	/**
+	 * <code>true</code> if the library creates virtual threads.
+	 * 
+	 * @return <code>true</code> if the library creates virtual threads.
+	 */
+	public static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * <code>true</code> if the runtime supports virtual threads.
+	 * 
+	 * @return <code>true</code> if the runtime supports virtual threads.
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create a new, not yet started thread.
+	 * 
+	 * @param name
+	 * @param runnable
+	 * @return A new, not yet started thread.
+	 */
+	public static Thread newThread(String name, Runnable runnable) {
+		return newThreadFactory(name).newThread(runnable);
+	}
+
+	/**
+	 * A {@link ThreadFactory} creating virtual threads if enabled and platform
+	 * daemon threads otherwise.
+	 * 
+	 * @param name
+	 * @return A {@link ThreadFactory} for threads named <code>name</code>.
+	 */
+	public static ThreadFactory newThreadFactory(String name) {
+		if (virtualThreads) {
+			try {
+				Object builder = OF_VIRTUAL.invoke();
+				builder = BUILDER_NAME.invoke(builder, name);
+				return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+			} catch (Throwable e) {
+				Log.warn("can't create virtual thread factory", e); //$NON-NLS-1$
+			}
+		}
+		return ThreadTools.newThreadFactoryDaemon(name);
+	}
+
+	/**
+	 * Request virtual threads for the threads created from now on. This is
+	 * ignored if the runtime doesn't support virtual threads.
+	 * 
+	 * @param value
+	 */
+	public static void setVirtualThreads(boolean value) {
+		if (value && !isVirtualThreadsAvailable()) {
+			Log.warn("virtual threads not available, using platform threads"); //$NON-NLS-1$
+			return;
+		}
+		virtualThreads = value;
+	}
+
+	private PCSCThreadTools() {
+	}
+}
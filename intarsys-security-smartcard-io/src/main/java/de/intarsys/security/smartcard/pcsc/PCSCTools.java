@@ -29,17 +29,24 @@
  */
 package de.intarsys.security.smartcard.pcsc;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.function.BiFunction;
 
 import de.intarsys.nativec.api.INativeHandle;
 import de.intarsys.nativec.type.NativeBuffer;
 import de.intarsys.nativec.type.NativeBufferType;
+import de.intarsys.nativec.type.NativeLongLP64;
 import de.intarsys.nativec.type.NativeObject;
+import de.intarsys.nativec.type.NativeString;
 import de.intarsys.nativec.type.NativeVoid;
 import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
 import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
 import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
 import de.intarsys.tools.string.StringTools;
+import de.intarsys.tools.yalf.api.ILogger;
 
 /**
  * Some tools for handling PC/SC.
@@ -52,15 +59,18 @@ public final class PCSCTools {
 	 * in turn with the needed input to have the native code autoallocate memory
 	 * for the buffer. We also avoid clogging the finalize queue with native
 	 * objects because allocate and free is done in native code.
+	 * 
+	 * This is not thread safe, it is used by a single thread at a time (see
+	 * {@link Pooled}).
 	 */
 	private static class Autoallocate implements IBufferHelper {
 
-		private NativePcscDword bufferSize = new NativePcscDword();
-		private NativeBuffer buffer = new NativeBuffer(NativeObject.SIZE_PTR);
+		private final NativePcscDword bufferSize = new NativePcscDword();
+		private final NativeBuffer buffer = new NativeBuffer(NativeObject.SIZE_PTR);
 
 		@Override
-		public synchronized byte[] call(CommonPCSCContext context,
-				BiFunction<NativeBuffer, NativePcscDword, Integer> function) throws PCSCException {
+		public byte[] call(CommonPCSCContext context, BiFunction<NativeBuffer, NativePcscDword, Integer> function)
+				throws PCSCException {
 			bufferSize.setValue(_IPCSC.SCARD_AUTOALLOCATE);
 			int rc = function.apply(buffer, bufferSize);
 			PCSCException.checkReturnCode(rc);
@@ -89,40 +99,233 @@ public final class PCSCTools {
 				throws PCSCException;
 	}
 
+	/**
+	 * An IBufferHelper lending a helper from a small pool for the duration of
+	 * each call. The lock is held only to take and return a helper, calls from
+	 * different threads run in parallel. At most {@link #MAX_POOLED} helpers
+	 * are kept, so many short lived (virtual) threads do not leave a helper
+	 * behind each.
+	 */
+	private static class Pooled implements IBufferHelper {
+
+		private static final int MAX_POOLED = 8;
+
+		private final Deque<IBufferHelper> helpers = new ArrayDeque<>();
+
+		@Override
+		public byte[] call(CommonPCSCContext context, BiFunction<NativeBuffer, NativePcscDword, Integer> function)
+				throws PCSCException {
+			IBufferHelper helper;
+			synchronized (helpers) {
+				helper = helpers.pollFirst();
+			}
+			if (helper == null) {
+				helper = createBufferHelper();
+			}
+			try {
+				return helper.call(context, function);
+			} finally {
+				synchronized (helpers) {
+					if (helpers.size() < MAX_POOLED) {
+						helpers.addFirst(helper);
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Variant of IBufferHelper that will when called call the provided function
 	 * in turn with a buffer allocated with a fixed size of memory and try again
 	 * with a larger buffer in case of an "insufficient buffer" error code. The
-	 * buffer object is reused and its size will always increase if needed but
-	 * never made smaller again. We assume that we won't encounter any insane
-	 * buffer requirements.
+	 * buffer object is reused, a buffer grown beyond
+	 * {@link #MAX_RETAINED_SIZE} is dropped again after the call.
+	 * 
+	 * This is not thread safe, it is used by a single thread at a time (see
+	 * {@link Pooled}).
 	 */
 	private static class Preallocate implements IBufferHelper {
 
-		NativePcscDword bufferSize = new NativePcscDword(0);
 		// arbitrary size
-		NativeBuffer buffer = new NativeBuffer(256);
+		private static final int INITIAL_SIZE = 256;
+
+		private static final int MAX_RETAINED_SIZE = 16 * 1024;
+
+		private final NativePcscDword bufferSize = new NativePcscDword(0);
+
+		private NativeBuffer buffer = new NativeBuffer(INITIAL_SIZE);
 
 		@Override
-		public synchronized byte[] call(CommonPCSCContext context,
-				BiFunction<NativeBuffer, NativePcscDword, Integer> function) throws PCSCException {
-			while (true) {
-				bufferSize.setValue(buffer.getSize());
-				int rc = function.apply(buffer, bufferSize);
-				if (rc == _PCSC_RETURN_CODES.SCARD_E_INSUFFICIENT_BUFFER) {
-					buffer = new NativeBuffer(bufferSize.intValue());
-					continue;
+		public byte[] call(CommonPCSCContext context, BiFunction<NativeBuffer, NativePcscDword, Integer> function)
+				throws PCSCException {
+			try {
+				while (true) {
+					bufferSize.setValue(buffer.getSize());
+					int rc = function.apply(buffer, bufferSize);
+					if (rc == _PCSC_RETURN_CODES.SCARD_E_INSUFFICIENT_BUFFER) {
+						buffer = new NativeBuffer(bufferSize.intValue());
+						continue;
+					}
+					PCSCException.checkReturnCode(rc);
+					return buffer.getByteArray(0, bufferSize.intValue());
+				}
+			} finally {
+				if (buffer.getSize() > MAX_RETAINED_SIZE) {
+					buffer = new NativeBuffer(INITIAL_SIZE);
 				}
-				PCSCException.checkReturnCode(rc);
-				return buffer.getByteArray(0, bufferSize.intValue());
 			}
 		}
 	}
 
-	public static IBufferHelper BufferHelper = _IPCSC.SupportsAutoallocate ? new Autoallocate() : new Preallocate();
+	private static final ILogger Log = PACKAGE.Log;
+
+	/**
+	 * The time in milliseconds a cancelled "getStatusChange" may take to
+	 * return in {@link #checkCancelSupported(_IPCSC)}.
+	 */
+	private static final int CANCEL_PROBE_TIMEOUT = 1000;
+
+	/**
+	 * The time in milliseconds between two "SCardCancel" requests in
+	 * {@link #checkCancelSupported(_IPCSC)}, the first may come too early.
+	 */
+	private static final int CANCEL_PROBE_RETRY = 20;
+
+	public static IBufferHelper BufferHelper = new Pooled();
 	public static int DirectConnectProtocol = _IPCSC.SupportsProtocolUndefined ? _IPCSC.SCARD_PROTOCOL_UNDEFINED
 			: _IPCSC.SCARD_PROTOCOL_Tx;
 
+	/**
+	 * Probe if a blocking "getStatusChange" on the PnP notification pseudo
+	 * reader is supported and can be interrupted by "SCardCancel". This is
+	 * what a blocking {@link CommonPCSCContext#getStatusChange} relies on.
+	 * 
+	 * The probe takes some milliseconds. "SCardCancel" is repeated until the
+	 * probe returns or {@link #CANCEL_PROBE_TIMEOUT} is over, as it has no
+	 * effect before the probe blocks.
+	 * 
+	 * @param pcsc
+	 * @return {@link Boolean#TRUE} if "SCardCancel" interrupts a blocking
+	 *         "getStatusChange", <code>null</code> if this can't be told now,
+	 *         for example when the PC/SC service is not available or a PnP
+	 *         event interfered.
+	 */
+	public static Boolean checkCancelSupported(_IPCSC pcsc) {
+		NativeLongLP64 phContext = new NativeLongLP64();
+		int rc = pcsc.SCardEstablishContext(_IPCSC.SCARD_SCOPE_SYSTEM, phContext);
+		if (rc != _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+			Log.debug("SCardCancel probe not possible ({})", Integer.toHexString(rc)); //$NON-NLS-1$
+			return null;
+		}
+		SCARDCONTEXT hContext = new SCARDCONTEXT(phContext.longValue());
+		try {
+			SCARD_READERSTATE state = new SCARD_READERSTATE();
+			state.setReader(new NativeString(_IPCSC.SCARD_PNP_NOTIFICATION));
+			state.setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
+			rc = pcsc.SCardGetStatusChange(hContext, 0, state, 1);
+			if (isServiceFailure(rc)) {
+				return null;
+			}
+			if (rc != _PCSC_RETURN_CODES.SCARD_S_SUCCESS && rc != _PCSC_RETURN_CODES.SCARD_E_TIMEOUT) {
+				Log.debug("PnP notification not supported ({})", Integer.toHexString(rc)); //$NON-NLS-1$
+				return Boolean.FALSE;
+			}
+			state.setCurrentState(state.getEventState() & ~_IPCSC.SCARD_STATE_CHANGED);
+			int[] result = new int[] { _PCSC_RETURN_CODES.SCARD_S_SUCCESS };
+			Thread thread = PCSCThreadTools.newThread("pcsc-cancel-probe", //$NON-NLS-1$
+					() -> result[0] = pcsc.SCardGetStatusChange(hContext, 10 * CANCEL_PROBE_TIMEOUT, state, 1));
+			thread.start();
+			long start = System.currentTimeMillis();
+			long time;
+			do {
+				pcsc.SCardCancel(hContext);
+				thread.join(CANCEL_PROBE_RETRY);
+				time = System.currentTimeMillis() - start;
+			} while (thread.isAlive() && time < CANCEL_PROBE_TIMEOUT);
+			if (thread.isAlive()) {
+				Log.debug("SCardCancel not supported, no return after {} ms", time); //$NON-NLS-1$
+				return Boolean.FALSE;
+			}
+			rc = result[0];
+			if (rc == _PCSC_RETURN_CODES.SCARD_E_CANCELLED) {
+				Log.debug("SCardCancel supported, {} ms", time); //$NON-NLS-1$
+				return Boolean.TRUE;
+			}
+			if (rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS || isServiceFailure(rc)) {
+				// a PnP event or the service went away before the cancel
+				Log.debug("SCardCancel probe inconclusive ({})", Integer.toHexString(rc)); //$NON-NLS-1$
+				return null;
+			}
+			Log.debug("SCardCancel not supported ({})", Integer.toHexString(rc)); //$NON-NLS-1$
+			return Boolean.FALSE;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			// also unblocks a probe still running
+			pcsc.SCardReleaseContext(hContext);
+		}
+	}
+
+	/**
+	 * A new, not thread safe, IBufferHelper for what the platform supports.
+	 * 
+	 * @return A new IBufferHelper.
+	 */
+	static IBufferHelper createBufferHelper() {
+		return _IPCSC.SupportsAutoallocate ? new Autoallocate() : new Preallocate();
+	}
+
+	/**
+	 * <code>true</code> if {@link #checkCancelSupported(_IPCSC)} tells so.
+	 * 
+	 * @param pcsc
+	 * @return <code>true</code> if "SCardCancel" interrupts a blocking
+	 *         "getStatusChange".
+	 */
+	public static boolean isCancelSupported(_IPCSC pcsc) {
+		return Boolean.TRUE.equals(checkCancelSupported(pcsc));
+	}
+
+	/**
+	 * <code>true</code> if the return code tells about the connection handle,
+	 * the card or the PC/SC service rather than about the request itself.
+	 * 
+	 * @param code
+	 * @return <code>true</code> if the connection or service failed.
+	 */
+	public static boolean isConnectionFailure(int code) {
+		return code == _PCSC_RETURN_CODES.ERROR_INVALID_HANDLE || code == _PCSC_RETURN_CODES.SCARD_E_INVALID_HANDLE
+				|| code == _PCSC_RETURN_CODES.SCARD_E_SERVICE_STOPPED || code == _PCSC_RETURN_CODES.SCARD_E_NO_SERVICE
+				|| code == _PCSC_RETURN_CODES.SCARD_E_READER_UNAVAILABLE
+				|| code == _PCSC_RETURN_CODES.SCARD_W_REMOVED_CARD || code == _PCSC_RETURN_CODES.SCARD_W_RESET_CARD;
+	}
+
+	/**
+	 * <code>true</code> if the return code of "SCardControl" tells that the
+	 * control code is not known to the reader driver, for example because it
+	 * is encoded for another platform.
+	 * 
+	 * @param code
+	 * @return <code>true</code> if the control code was not accepted.
+	 */
+	public static boolean isControlCodeFailure(int code) {
+		return code == _PCSC_RETURN_CODES.SCARD_E_INVALID_PARAMETER
+				|| code == _PCSC_RETURN_CODES.SCARD_E_UNSUPPORTED_FEATURE
+				|| code == _PCSC_RETURN_CODES.ERROR_INVALID_FUNCTION;
+	}
+
+	/**
+	 * <code>true</code> if the return code tells that the PC/SC service is not
+	 * available.
+	 * 
+	 * @param code
+	 * @return <code>true</code> if the PC/SC service is not available.
+	 */
+	public static boolean isServiceFailure(int code) {
+		return code == _PCSC_RETURN_CODES.SCARD_E_SERVICE_STOPPED || code == _PCSC_RETURN_CODES.SCARD_E_NO_SERVICE;
+	}
+
 	/**
 	 * Convert the resuilt of an {@link IPCSCConnection#getAttrib(int)} to a
 	 * String. You must be prepared to get a zero terminated byte array.
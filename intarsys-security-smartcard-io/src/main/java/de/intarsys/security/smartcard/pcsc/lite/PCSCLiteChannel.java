@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.lite;
+
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_STOP_WAITING_READER_STATE_CHANGE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_WAIT_READER_STATE_CHANGE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_HEADER;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pcsc-lite socket connection. pcsc-lite uses a connection per context, all
+ * calls for the context and its cards are serialized using {@link #lock()}.
+ * <p>
+ * Messages are assembled in and received to a single reusable heap buffer, so
+ * the data can be moved to and from the native objects of the
+ * {@link de.intarsys.security.smartcard.pcsc.nativec._IPCSC} API without
+ * further copies.
+ * <p>
+ * While registered for reader events, {@link #stopWaiting(Object)} may be
+ * called from another thread to end the wait. This is how a timeout is
+ * implemented on the blocking channel.
+ */
+class PCSCLiteChannel {
+
+	/**
+	 * Append <code>count</code> zero bytes to <code>buffer</code>.
+	 * 
+	 * @param buffer
+	 * @param count
+	 */
+	public static void fill(ByteBuffer buffer, int count) {
+		for (int i = 0; i < count; i++) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	public static PCSCLiteChannel open(Path socketPath) throws IOException {
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(socketPath));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new PCSCLiteChannel(channel);
+	}
+
+	private final SocketChannel channel;
+
+	private ByteBuffer buffer;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/*
+	 * the write lock orders the messages sent by the owner of lock and by
+	 * stopWaiting
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/*
+	 * for the messages sent concurrently to the owner of lock
+	 */
+	private final ByteBuffer signalBuffer;
+
+	/**
+	 * The token of the current event registration, <code>null</code> if not
+	 * registered or the registration is already stopped.
+	 */
+	private Object waitToken;
+
+	protected PCSCLiteChannel(SocketChannel channel) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(512).order(ByteOrder.nativeOrder());
+		this.signalBuffer = ByteBuffer.allocate(SIZE_HEADER).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Start a new message with the header for <code>command</code>. The
+	 * buffer has room for the command structure of <code>size</code> bytes
+	 * and <code>extra</code> bytes of raw data.
+	 * 
+	 * @param command
+	 * @param size
+	 * @param extra
+	 * @return The buffer, positioned after the header.
+	 */
+	public ByteBuffer begin(int command, int size, int extra) {
+		ensureCapacity(SIZE_HEADER + size + extra);
+		buffer.clear();
+		buffer.putInt(size);
+		buffer.putInt(command);
+		return buffer;
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//
+		}
+	}
+
+	/**
+	 * End the event registration, a {@link #stopWaiting(Object)} will no
+	 * longer send a message.
+	 */
+	public void endWaiting() {
+		writeLock.lock();
+		try {
+			waitToken = null;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	protected void ensureCapacity(int size) {
+		if (buffer.capacity() < size) {
+			buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2)).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	public void lock() {
+		lock.lock();
+	}
+
+	/**
+	 * Receive exactly <code>size</code> bytes.
+	 * 
+	 * @param size
+	 * @return The buffer, flipped for reading the data received.
+	 * @throws IOException
+	 */
+	public ByteBuffer receive(int size) throws IOException {
+		ensureCapacity(size);
+		buffer.clear();
+		buffer.limit(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("pcsc-lite connection closed"); //$NON-NLS-1$
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Receive exactly <code>size</code> bytes into <code>target</code>.
+	 * 
+	 * @param target
+	 * @param offset
+	 * @param size
+	 * @throws IOException
+	 */
+	public void receive(byte[] target, int offset, int size) throws IOException {
+		ByteBuffer temp = ByteBuffer.wrap(target, offset, size);
+		while (temp.hasRemaining()) {
+			if (channel.read(temp) < 0) {
+				throw new EOFException("pcsc-lite connection closed"); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Register for reader events, the daemon answers with its reader states.
+	 * 
+	 * @param token
+	 *            The token for {@link #stopWaiting(Object)}
+	 * @throws IOException
+	 */
+	public void register(Object token) throws IOException {
+		writeLock.lock();
+		try {
+			begin(CMD_WAIT_READER_STATE_CHANGE, 0, 0);
+			write(buffer);
+			waitToken = token;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Start a reply of <code>size</code> bytes, this is used by the daemon.
+	 * 
+	 * @param size
+	 * @return The buffer, cleared.
+	 */
+	public ByteBuffer reply(int size) {
+		ensureCapacity(size);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Send the message started by {@link #begin(int, int, int)}.
+	 * 
+	 * @throws IOException
+	 */
+	public void send() throws IOException {
+		writeLock.lock();
+		try {
+			write(buffer);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Send a wait structure with <code>rc</code> to a client registered for
+	 * reader events, this is used by the daemon.
+	 * 
+	 * @param rc
+	 * @throws IOException
+	 */
+	public void sendWait(int rc) throws IOException {
+		writeLock.lock();
+		try {
+			signalBuffer.clear();
+			signalBuffer.putInt(0);
+			signalBuffer.putInt(rc);
+			write(signalBuffer);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Stop waiting for reader events if the registration for
+	 * <code>token</code> is still active. The daemon answers with a
+	 * SCARD_E_TIMEOUT wait structure unless it has just signaled an event.
+	 * 
+	 * @param token
+	 * @return <code>true</code> if the stop message was sent.
+	 * @throws IOException
+	 */
+	public boolean stopWaiting(Object token) throws IOException {
+		writeLock.lock();
+		try {
+			if (token == null || waitToken != token) {
+				return false;
+			}
+			waitToken = null;
+			signalBuffer.clear();
+			signalBuffer.putInt(0);
+			signalBuffer.putInt(CMD_STOP_WAITING_READER_STATE_CHANGE);
+			write(signalBuffer);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "pcsc-lite channel " + channel; //$NON-NLS-1$
+	}
+
+	public void unlock() {
+		lock.unlock();
+	}
+
+	protected void write(ByteBuffer data) throws IOException {
+		data.flip();
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+	}
+}
@@ -0,0 +1,989 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.lite;
+
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_GET_READERS_STATE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_VERSION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_BUFFER_SIZE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_BUFFER_SIZE_EXTENDED;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_READERNAME;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_CARD_ATR;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_CARD_ATR_LENGTH;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_CARD_PROTOCOL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_EVENT_COUNTER;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_READER_SHARING;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_READER_STATE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PCSCLITE_MAX_READERS_CONTEXTS;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PCSCLITE_SHARING_EXCLUSIVE_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PROTOCOL_VERSION_MAJOR;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PROTOCOL_VERSION_MINOR;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_ABSENT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_BEGIN_TRANSACTION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_CANCEL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_CONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_CONTROL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_DISCONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_END_TRANSACTION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_ESTABLISH_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_GET_ATTRIB;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_PRESENT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_PROTOCOL_ANY;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_RECONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_RELEASE_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_STATUS;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_SWALLOWED;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_TRANSMIT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_UNKNOWN;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_BEGIN;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_CANCEL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_CONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_CONTROL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_DISCONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_END;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_ESTABLISH;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_GETSET;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_IO_REQUEST;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_READER_STATE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_READER_STATES;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_RECONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_RELEASE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_STATUS;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_TRANSMIT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_VERSION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_WAIT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.INativeObject;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeObject;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.nativec.type.NativeVoid;
+import de.intarsys.security.smartcard.pcsc.PCSCThreadTools;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * A pure Java {@link _IPCSC} implementation talking to the pcsc-lite daemon
+ * over its UNIX domain socket, bypassing <code>libpcsclite</code> and the
+ * native call for each function.
+ * <p>
+ * This follows the behavior of <code>libpcsclite</code>: each context uses a
+ * socket of its own, the calls for a context and its cards are serialized.
+ * The protocol version is negotiated with the daemon.
+ * <p>
+ * Interrupting a thread blocked in a call closes the socket of its context.
+ * Use SCardCancel to end an SCardGetStatusChange.
+ * <p>
+ * Use {@link de.intarsys.security.smartcard.pcsc.CommonPCSCLib#setSocketPath(String)}
+ * to install.
+ */
+public class PCSCLiteClient implements _IPCSC {
+
+	private static class Card {
+
+		private final long id;
+
+		private final Context context;
+
+		private final String readerName;
+
+		private int protocol;
+
+		protected Card(long id, Context context, String readerName, int protocol) {
+			this.id = id;
+			this.context = context;
+			this.readerName = readerName;
+			this.protocol = protocol;
+		}
+	}
+
+	private static class Context {
+
+		private final long id;
+
+		private final PCSCLiteChannel channel;
+
+		protected Context(long id, PCSCLiteChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+	}
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final long INFINITE = 0xFFFFFFFFL;
+
+	/**
+	 * The retry interval while a card is locked by another transaction
+	 * (PCSCLITE_LOCK_POLL_RATE)
+	 */
+	private static final long LOCK_POLL_RATE = 100;
+
+	private static ScheduledExecutorService Timer;
+
+	protected static synchronized ScheduledExecutorService getTimer() {
+		if (Timer == null) {
+			Timer = Executors.newSingleThreadScheduledExecutor(PCSCThreadTools.newThreadFactory("pcsc-lite timeout")); //$NON-NLS-1$
+		}
+		return Timer;
+	}
+
+	protected static int indexOf(ByteBuffer states, String readerName) {
+		for (int i = 0; i < PCSCLITE_MAX_READERS_CONTEXTS; i++) {
+			if (readerName.equals(readerName(states, i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	protected static byte[] readAtr(ByteBuffer states, int index) {
+		int base = index * SIZE_READER_STATE;
+		int length = Math.min(states.getInt(base + OFFSET_CARD_ATR_LENGTH), PCSCLiteProtocol.MAX_ATR_SIZE);
+		byte[] atr = new byte[Math.max(0, length)];
+		states.get(base + OFFSET_CARD_ATR, atr);
+		return atr;
+	}
+
+	/**
+	 * The name of the reader at <code>index</code> in the daemon's reader
+	 * states or <code>null</code> if the entry is not used.
+	 */
+	protected static String readerName(ByteBuffer states, int index) {
+		int base = index * SIZE_READER_STATE;
+		byte[] array = states.array();
+		int start = states.arrayOffset() + base;
+		int length = 0;
+		while (length < MAX_READERNAME && array[start + length] != 0) {
+			length++;
+		}
+		if (length == 0) {
+			return null;
+		}
+		return new String(array, start, length);
+	}
+
+	/**
+	 * Map the daemon's view of the reader at <code>index</code> to a
+	 * SCARD_READERSTATE event state, as done by <code>libpcsclite</code>.
+	 */
+	protected static int toEventState(ByteBuffer states, int index) {
+		int base = index * SIZE_READER_STATE;
+		int readerState = states.getInt(base + OFFSET_READER_STATE);
+		int sharing = states.getInt(base + OFFSET_READER_SHARING);
+		int eventState = (states.getInt(base + OFFSET_EVENT_COUNTER) & 0xFFFF) << 16;
+		if ((readerState & SCARD_UNKNOWN) != 0) {
+			eventState |= SCARD_STATE_UNAVAILABLE;
+		}
+		if ((readerState & SCARD_ABSENT) != 0) {
+			eventState |= SCARD_STATE_EMPTY;
+		} else if ((readerState & SCARD_PRESENT) != 0) {
+			eventState |= SCARD_STATE_PRESENT;
+			if ((readerState & SCARD_SWALLOWED) != 0) {
+				eventState |= SCARD_STATE_MUTE;
+			}
+			if (sharing == PCSCLITE_SHARING_EXCLUSIVE_CONTEXT) {
+				eventState |= SCARD_STATE_EXCLUSIVE;
+			} else if (sharing > 0) {
+				eventState |= SCARD_STATE_INUSE;
+			}
+		}
+		return eventState;
+	}
+
+	private final Path socketPath;
+
+	private volatile int protocolMinor = PROTOCOL_VERSION_MINOR;
+
+	private final Map<Long, Context> contexts = new ConcurrentHashMap<>();
+
+	private final Map<Long, Card> cards = new ConcurrentHashMap<>();
+
+	/**
+	 * Native memory handed out with SCARD_AUTOALLOCATE, by address.
+	 */
+	private final Map<Long, NativeBuffer> allocations = new ConcurrentHashMap<>();
+
+	public PCSCLiteClient() {
+		this(PCSCLiteProtocol.getDefaultSocketPath());
+	}
+
+	public PCSCLiteClient(Path socketPath) {
+		super();
+		this.socketPath = socketPath;
+	}
+
+	protected int failed(Context context, IOException e) {
+		Log.debug("{} communication failed ({})", this, e.getMessage()); //$NON-NLS-1$
+		context.channel.close();
+		return SCARD_E_NO_SERVICE;
+	}
+
+	/**
+	 * The minor version of the protocol used, negotiated with the daemon.
+	 * 
+	 * @return The minor version of the protocol used.
+	 */
+	public int getProtocolMinor() {
+		return protocolMinor;
+	}
+
+	/**
+	 * Read the daemon's reader states.
+	 */
+	protected ByteBuffer getReaderStates(PCSCLiteChannel channel) throws IOException {
+		channel.begin(CMD_GET_READERS_STATE, 0, 0);
+		channel.send();
+		return channel.receive(SIZE_READER_STATES);
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		return null;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T0() {
+		return null;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T1() {
+		return null;
+	}
+
+	public Path getSocketPath() {
+		return socketPath;
+	}
+
+	/**
+	 * Open a new connection to the daemon and agree on the protocol version.
+	 */
+	protected PCSCLiteChannel openChannel() throws IOException {
+		PCSCLiteChannel channel = PCSCLiteChannel.open(socketPath);
+		try {
+			int minor = protocolMinor;
+			ByteBuffer buffer = channel.begin(CMD_VERSION, SIZE_VERSION, 0);
+			buffer.putInt(PROTOCOL_VERSION_MAJOR);
+			buffer.putInt(minor);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			buffer = channel.receive(SIZE_VERSION);
+			int serverMajor = buffer.getInt(0);
+			int serverMinor = buffer.getInt(4);
+			if (buffer.getInt(8) == SCARD_S_SUCCESS) {
+				return channel;
+			}
+			channel.close();
+			if (serverMajor != PROTOCOL_VERSION_MAJOR || serverMinor == minor) {
+				throw new IOException("pcsc-lite protocol " + serverMajor + "." + serverMinor //$NON-NLS-1$ //$NON-NLS-2$
+						+ " not supported"); //$NON-NLS-1$
+			}
+			Log.info("{} switching to protocol {}.{}", this, serverMajor, serverMinor); //$NON-NLS-1$
+			protocolMinor = serverMinor;
+			return openChannel();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int SCardBeginTransaction(SCARDHANDLE hCard) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		while (true) {
+			int rc;
+			channel.lock();
+			try {
+				ByteBuffer buffer = channel.begin(SCARD_BEGIN_TRANSACTION, SIZE_BEGIN, 0);
+				buffer.putInt((int) card.id);
+				buffer.putInt(SCARD_S_SUCCESS);
+				channel.send();
+				rc = channel.receive(SIZE_BEGIN).getInt(4);
+			} catch (IOException e) {
+				return failed(card.context, e);
+			} finally {
+				channel.unlock();
+			}
+			if (rc != SCARD_E_SHARING_VIOLATION) {
+				return rc;
+			}
+			// the daemon does not queue, poll until the lock is released
+			try {
+				Thread.sleep(LOCK_POLL_RATE);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return rc;
+			}
+		}
+	}
+
+	@Override
+	public int SCardCancel(SCARDCONTEXT hContext) {
+		if (!contexts.containsKey(hContext.longValue())) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		// the context's connection is blocked, use a new one
+		PCSCLiteChannel channel = null;
+		try {
+			channel = openChannel();
+			ByteBuffer buffer = channel.begin(SCARD_CANCEL, SIZE_CANCEL, 0);
+			buffer.putInt((int) hContext.longValue());
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			return channel.receive(SIZE_CANCEL).getInt(4);
+		} catch (IOException e) {
+			Log.debug("{} cancel failed ({})", this, e.getMessage()); //$NON-NLS-1$
+			return SCARD_E_NO_SERVICE;
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	@Override
+	public int SCardConnect(SCARDCONTEXT hContext, NativeString szReader, long dwShareMode, long dwPreferredProtocols,
+			NativeLongLP64 phCard, NativePcscDword pdwActiveProtocol) {
+		Context context = contexts.get(hContext.longValue());
+		if (context == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		String readerName = szReader.stringValue();
+		byte[] name = readerName.getBytes();
+		if (name.length >= MAX_READERNAME) {
+			return SCARD_E_INVALID_VALUE;
+		}
+		PCSCLiteChannel channel = context.channel;
+		int rc;
+		long id;
+		int protocol;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_CONNECT, SIZE_CONNECT, 0);
+			buffer.putInt((int) context.id);
+			buffer.put(name);
+			PCSCLiteChannel.fill(buffer, MAX_READERNAME - name.length);
+			buffer.putInt((int) dwShareMode);
+			buffer.putInt((int) dwPreferredProtocols);
+			buffer.putInt(0);
+			buffer.putInt(0);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			buffer = channel.receive(SIZE_CONNECT);
+			id = buffer.getInt(MAX_READERNAME + 12);
+			protocol = buffer.getInt(MAX_READERNAME + 16);
+			rc = buffer.getInt(MAX_READERNAME + 20);
+		} catch (IOException e) {
+			return failed(context, e);
+		} finally {
+			channel.unlock();
+		}
+		if (rc == SCARD_S_SUCCESS) {
+			cards.put(id, new Card(id, context, readerName, protocol));
+			phCard.setValue(id);
+			pdwActiveProtocol.setValue(protocol);
+		}
+		return rc;
+	}
+
+	@Override
+	public int SCardControl(SCARDHANDLE hCard, long dwControlCode, NativeBuffer lpInBuffer, long nInBufferSize,
+			NativeBuffer lpOutBuffer, long nOutBufferSize, NativePcscDword lpBytesReturned) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		int sendLength = lpInBuffer == null ? 0 : (int) nInBufferSize;
+		if (sendLength > MAX_BUFFER_SIZE_EXTENDED || nOutBufferSize > MAX_BUFFER_SIZE_EXTENDED) {
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_CONTROL, SIZE_CONTROL, sendLength);
+			buffer.putInt((int) card.id);
+			buffer.putInt((int) dwControlCode);
+			buffer.putInt(sendLength);
+			buffer.putInt((int) nOutBufferSize);
+			buffer.putInt(0);
+			buffer.putInt(SCARD_S_SUCCESS);
+			if (sendLength > 0) {
+				buffer.put(lpInBuffer.getByteArray(0, sendLength));
+			}
+			channel.send();
+			buffer = channel.receive(SIZE_CONTROL);
+			int received = buffer.getInt(16);
+			int rc = buffer.getInt(20);
+			if (rc == SCARD_S_SUCCESS && received > 0) {
+				buffer = channel.receive(received);
+				lpOutBuffer.setByteArray(0, buffer.array(), buffer.arrayOffset(), received);
+			}
+			lpBytesReturned.setValue(received);
+			return rc;
+		} catch (IOException e) {
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+	}
+
+	@Override
+	public int SCardDisconnect(SCARDHANDLE hCard, long dwDisposition) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		int rc;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_DISCONNECT, SIZE_DISCONNECT, 0);
+			buffer.putInt((int) card.id);
+			buffer.putInt((int) dwDisposition);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			rc = channel.receive(SIZE_DISCONNECT).getInt(8);
+		} catch (IOException e) {
+			cards.remove(card.id);
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+		if (rc == SCARD_S_SUCCESS) {
+			cards.remove(card.id);
+		}
+		return rc;
+	}
+
+	@Override
+	public int SCardEndTransaction(SCARDHANDLE hCard, long dwDisposition) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_END_TRANSACTION, SIZE_END, 0);
+			buffer.putInt((int) card.id);
+			buffer.putInt((int) dwDisposition);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			return channel.receive(SIZE_END).getInt(8);
+		} catch (IOException e) {
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+	}
+
+	@Override
+	public int SCardEstablishContext(long dwScope, NativeLongLP64 phContext) {
+		PCSCLiteChannel channel;
+		try {
+			channel = openChannel();
+		} catch (IOException e) {
+			Log.debug("{} can't connect to {} ({})", this, socketPath, e.getMessage()); //$NON-NLS-1$
+			return SCARD_E_NO_SERVICE;
+		}
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_ESTABLISH_CONTEXT, SIZE_ESTABLISH, 0);
+			buffer.putInt((int) dwScope);
+			buffer.putInt(0);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			buffer = channel.receive(SIZE_ESTABLISH);
+			long id = buffer.getInt(4) & 0xFFFFFFFFL;
+			int rc = buffer.getInt(8);
+			if (rc != SCARD_S_SUCCESS) {
+				channel.close();
+				return rc;
+			}
+			contexts.put(id, new Context(id, channel));
+			phContext.setValue(id);
+			return SCARD_S_SUCCESS;
+		} catch (IOException e) {
+			Log.debug("{} establish context failed ({})", this, e.getMessage()); //$NON-NLS-1$
+			channel.close();
+			return SCARD_E_NO_SERVICE;
+		}
+	}
+
+	@Override
+	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
+		if (pvMem == null || allocations.remove(pvMem.getNativeHandle().getAddress()) == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardGetAttrib(SCARDHANDLE hCard, long dwAttrId, NativeBuffer pbAttr,
+			NativePcscDword pcbAttrLength) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		byte[] value;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_GET_ATTRIB, SIZE_GETSET, 0);
+			buffer.putInt((int) card.id);
+			buffer.putInt((int) dwAttrId);
+			PCSCLiteChannel.fill(buffer, MAX_BUFFER_SIZE);
+			buffer.putInt(MAX_BUFFER_SIZE);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			buffer = channel.receive(SIZE_GETSET);
+			int rc = buffer.getInt(MAX_BUFFER_SIZE + 12);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			int length = Math.min(buffer.getInt(MAX_BUFFER_SIZE + 8), MAX_BUFFER_SIZE);
+			value = new byte[length];
+			buffer.get(8, value);
+		} catch (IOException e) {
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+		return writeBuffer(pbAttr, pcbAttrLength, value);
+	}
+
+	@Override
+	public int SCardGetStatusChange(SCARDCONTEXT hContext, long dwTimeout, INativeObject rgReaderStates,
+			long cReaders) {
+		Context context = contexts.get(hContext.longValue());
+		if (context == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		int count = (int) cReaders;
+		SCARD_READERSTATE[] states = new SCARD_READERSTATE[count];
+		String[] names = new String[count];
+		int[] currentStates = new int[count];
+		int size = SCARD_READERSTATE.META.getByteCount();
+		for (int i = 0; i < count; i++) {
+			states[i] = (SCARD_READERSTATE) SCARD_READERSTATE.META
+					.createNative(rgReaderStates.getNativeHandle().offset(i * size));
+			names[i] = states[i].getReader();
+			currentStates[i] = states[i].getCurrentState();
+		}
+		boolean infinite = dwTimeout < 0 || dwTimeout == INFINITE;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(dwTimeout);
+		PCSCLiteChannel channel = context.channel;
+		Object token = new Object();
+		ScheduledFuture<?> timer = null;
+		channel.lock();
+		try {
+			/*
+			 * the daemon answers a registration with its reader states and
+			 * signals the next change with a wait structure. stopWaiting (from
+			 * the timer or below) forces the wait structure. We must consume
+			 * exactly one wait structure for each registration.
+			 */
+			channel.register(token);
+			boolean registered = true;
+			ByteBuffer daemonStates = channel.receive(SIZE_READER_STATES);
+			int rc;
+			while (true) {
+				if (update(daemonStates, states, names, currentStates)) {
+					rc = SCARD_S_SUCCESS;
+					break;
+				}
+				if (dwTimeout == 0 || (!infinite && deadline - System.nanoTime() <= 0)) {
+					rc = SCARD_E_TIMEOUT;
+					break;
+				}
+				if (!infinite) {
+					if (timer == null) {
+						long remaining = Math.max(0, deadline - System.nanoTime());
+						timer = getTimer().schedule(() -> stopWaiting(channel, token), remaining,
+								TimeUnit.NANOSECONDS);
+					} else if (timer.isDone()) {
+						// the timer is used up by a previous registration
+						channel.stopWaiting(token);
+					}
+				}
+				ByteBuffer wait = channel.receive(SIZE_WAIT);
+				registered = false;
+				channel.endWaiting();
+				rc = wait.getInt(4);
+				if (rc != SCARD_S_SUCCESS) {
+					break;
+				}
+				// an event or the end of a timed wait, look again
+				channel.register(token);
+				registered = true;
+				daemonStates = channel.receive(SIZE_READER_STATES);
+			}
+			if (registered) {
+				channel.stopWaiting(token);
+				channel.receive(SIZE_WAIT);
+			}
+			return rc;
+		} catch (IOException e) {
+			return failed(context, e);
+		} finally {
+			if (timer != null) {
+				timer.cancel(false);
+			}
+			channel.endWaiting();
+			channel.unlock();
+		}
+	}
+
+	@Override
+	public int SCardIsValidContext(SCARDCONTEXT hContext) {
+		Context context = contexts.get(hContext.longValue());
+		if (context == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		return context.channel.isOpen() ? SCARD_S_SUCCESS : SCARD_E_NO_SERVICE;
+	}
+
+	@Override
+	public int SCardListReaders(SCARDCONTEXT hContext, NativeString mszGroups, INativeObject mszReaders,
+			NativePcscDword pcchReaders) {
+		Context context = contexts.get(hContext.longValue());
+		if (context == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		PCSCLiteChannel channel = context.channel;
+		channel.lock();
+		try {
+			ByteBuffer daemonStates = getReaderStates(channel);
+			for (int i = 0; i < PCSCLITE_MAX_READERS_CONTEXTS; i++) {
+				String name = readerName(daemonStates, i);
+				if (name != null) {
+					byte[] bytes = name.getBytes();
+					names.write(bytes, 0, bytes.length);
+					names.write(0);
+				}
+			}
+		} catch (IOException e) {
+			return failed(context, e);
+		} finally {
+			channel.unlock();
+		}
+		if (names.size() == 0) {
+			return SCARD_E_NO_READERS_AVAILABLE;
+		}
+		names.write(0);
+		return writeBuffer(mszReaders, pcchReaders, names.toByteArray());
+	}
+
+	@Override
+	public int SCardReconnect(SCARDHANDLE hCard, long dwShareMode, long dwPreferredProtocols, long dwInitialization,
+			NativePcscDword pdwActiveProtocol) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		int rc;
+		int protocol;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_RECONNECT, SIZE_RECONNECT, 0);
+			buffer.putInt((int) card.id);
+			buffer.putInt((int) dwShareMode);
+			buffer.putInt((int) dwPreferredProtocols);
+			buffer.putInt((int) dwInitialization);
+			buffer.putInt(0);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			buffer = channel.receive(SIZE_RECONNECT);
+			protocol = buffer.getInt(16);
+			rc = buffer.getInt(20);
+		} catch (IOException e) {
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+		if (rc == SCARD_S_SUCCESS) {
+			card.protocol = protocol;
+			pdwActiveProtocol.setValue(protocol);
+		}
+		return rc;
+	}
+
+	@Override
+	public int SCardReleaseContext(SCARDCONTEXT hContext) {
+		Context context = contexts.remove(hContext.longValue());
+		if (context == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		// cards die with their context
+		for (Iterator<Card> it = cards.values().iterator(); it.hasNext();) {
+			if (it.next().context == context) {
+				it.remove();
+			}
+		}
+		PCSCLiteChannel channel = context.channel;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_RELEASE_CONTEXT, SIZE_RELEASE, 0);
+			buffer.putInt((int) context.id);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			return channel.receive(SIZE_RELEASE).getInt(4);
+		} catch (IOException e) {
+			return failed(context, e);
+		} finally {
+			channel.close();
+			channel.unlock();
+		}
+	}
+
+	@Override
+	public int SCardStatus(SCARDHANDLE hCard, INativeObject szReaderName, NativePcscDword pcchReaderLen,
+			NativePcscDword pdwState, NativePcscDword pdwProtocol, NativeBuffer pbAtr, NativePcscDword pcbAtrLen) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		int state;
+		int protocol;
+		byte[] atr;
+		channel.lock();
+		try {
+			// let the daemon check the handle and the card
+			ByteBuffer buffer = channel.begin(SCARD_STATUS, SIZE_STATUS, 0);
+			buffer.putInt((int) card.id);
+			buffer.putInt(SCARD_S_SUCCESS);
+			channel.send();
+			int rc = channel.receive(SIZE_STATUS).getInt(4);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			ByteBuffer daemonStates = getReaderStates(channel);
+			int index = indexOf(daemonStates, card.readerName);
+			if (index < 0) {
+				return SCARD_E_READER_UNAVAILABLE;
+			}
+			int base = index * SIZE_READER_STATE;
+			state = (daemonStates.getInt(base + OFFSET_EVENT_COUNTER) << 16)
+					+ daemonStates.getInt(base + OFFSET_READER_STATE);
+			protocol = daemonStates.getInt(base + OFFSET_CARD_PROTOCOL);
+			atr = readAtr(daemonStates, index);
+		} catch (IOException e) {
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+		byte[] nameBytes = (card.readerName + "\0\0").getBytes(); //$NON-NLS-1$
+		int rc = writeBuffer(szReaderName, pcchReaderLen, nameBytes);
+		if (rc != SCARD_S_SUCCESS) {
+			return rc;
+		}
+		if (pdwState != null) {
+			pdwState.setValue(state);
+		}
+		if (pdwProtocol != null) {
+			pdwProtocol.setValue(protocol);
+		}
+		if (pcbAtrLen != null) {
+			return writeBuffer(pbAtr, pcbAtrLen, atr);
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardTransmit(SCARDHANDLE hCard, INativeHandle pioSendPci, INativeObject pbSendBuffer,
+			long cbSendLength, INativeObject pioRecvPci, NativeBuffer pbRecvBuffer, NativePcscDword pcbRecvLength) {
+		Card card = cards.get(hCard.longValue());
+		if (card == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		int sendLength = (int) cbSendLength;
+		if (sendLength > MAX_BUFFER_SIZE_EXTENDED) {
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		int recvLength = Math.min(pcbRecvLength.intValue(), MAX_BUFFER_SIZE_EXTENDED);
+		int sendProtocol = card.protocol;
+		int sendPciLength = SIZE_IO_REQUEST;
+		if (pioSendPci != null) {
+			sendProtocol = (int) pioSendPci.getCLong(0);
+			sendPciLength = (int) pioSendPci.getCLong(NativeObject.SIZE_LONG);
+		}
+		PCSCLiteChannel channel = card.context.channel;
+		channel.lock();
+		try {
+			ByteBuffer buffer = channel.begin(SCARD_TRANSMIT, SIZE_TRANSMIT, sendLength);
+			buffer.putInt((int) card.id);
+			buffer.putInt(sendProtocol);
+			buffer.putInt(sendPciLength);
+			buffer.putInt(sendLength);
+			buffer.putInt(SCARD_PROTOCOL_ANY);
+			buffer.putInt(SIZE_IO_REQUEST);
+			buffer.putInt(recvLength);
+			buffer.putInt(SCARD_S_SUCCESS);
+			buffer.put(pbSendBuffer.getNativeHandle().getByteArray(0, sendLength));
+			channel.send();
+			buffer = channel.receive(SIZE_TRANSMIT);
+			int recvProtocol = buffer.getInt(16);
+			int recvPciLength = buffer.getInt(20);
+			int received = buffer.getInt(24);
+			int rc = buffer.getInt(28);
+			if (rc == SCARD_S_SUCCESS) {
+				buffer = channel.receive(received);
+				pbRecvBuffer.setByteArray(0, buffer.array(), buffer.arrayOffset(), received);
+				if (pioRecvPci != null) {
+					pioRecvPci.getNativeHandle().setCLong(0, recvProtocol);
+					pioRecvPci.getNativeHandle().setCLong(NativeObject.SIZE_LONG, recvPciLength);
+				}
+			}
+			pcbRecvLength.setValue(received);
+			return rc;
+		} catch (IOException e) {
+			return failed(card.context, e);
+		} finally {
+			channel.unlock();
+		}
+	}
+
+	protected void stopWaiting(PCSCLiteChannel channel, Object token) {
+		try {
+			channel.stopWaiting(token);
+		} catch (IOException e) {
+			// the waiting thread will fail, too
+			Log.debug("{} stop waiting failed ({})", this, e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "pcsc-lite client " + socketPath; //$NON-NLS-1$
+	}
+
+	/**
+	 * Update the event states in <code>states</code> from the daemon's reader
+	 * states.
+	 * 
+	 * @return <code>true</code> if any state differs from the current state.
+	 */
+	protected boolean update(ByteBuffer daemonStates, SCARD_READERSTATE[] states, String[] names,
+			int[] currentStates) {
+		boolean changed = false;
+		int readerCount = -1;
+		for (int i = 0; i < states.length; i++) {
+			int currentState = currentStates[i];
+			if ((currentState & SCARD_STATE_IGNORE) != 0) {
+				continue;
+			}
+			int eventState;
+			byte[] atr = null;
+			if (SCARD_PNP_NOTIFICATION.equals(names[i])) {
+				if (readerCount < 0) {
+					readerCount = 0;
+					for (int j = 0; j < PCSCLITE_MAX_READERS_CONTEXTS; j++) {
+						if (readerName(daemonStates, j) != null) {
+							readerCount++;
+						}
+					}
+				}
+				eventState = readerCount << 16;
+			} else {
+				int index = indexOf(daemonStates, names[i]);
+				if (index < 0) {
+					eventState = SCARD_STATE_UNKNOWN;
+				} else {
+					eventState = toEventState(daemonStates, index);
+					if ((eventState & SCARD_STATE_PRESENT) != 0) {
+						atr = readAtr(daemonStates, index);
+					}
+				}
+			}
+			if (currentState == SCARD_STATE_UNAWARE || (currentState & ~SCARD_STATE_CHANGED) != eventState) {
+				eventState |= SCARD_STATE_CHANGED;
+				changed = true;
+			}
+			states[i].setEventState(eventState);
+			states[i].setATR(atr);
+		}
+		return changed;
+	}
+
+	/**
+	 * Copy <code>value</code> to a PC/SC output buffer, following the
+	 * SCARD_AUTOALLOCATE and "query size" conventions.
+	 * 
+	 * @param buffer
+	 * @param length
+	 * @param value
+	 * @return A return code
+	 */
+	protected int writeBuffer(INativeObject buffer, NativePcscDword length, byte[] value) {
+		if (length.intValue() == SCARD_AUTOALLOCATE) {
+			NativeBuffer allocated = new NativeBuffer(Math.max(1, value.length));
+			allocated.setByteArray(0, value, 0, value.length);
+			allocations.put(allocated.getNativeHandle().getAddress(), allocated);
+			buffer.getNativeHandle().setNativeHandle(0, allocated.getNativeHandle());
+			length.setValue(value.length);
+			return SCARD_S_SUCCESS;
+		}
+		if (buffer == null) {
+			length.setValue(value.length);
+			return SCARD_S_SUCCESS;
+		}
+		if (length.intValue() < value.length) {
+			length.setValue(value.length);
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		buffer.getNativeHandle().setByteArray(0, value, 0, value.length);
+		length.setValue(value.length);
+		return SCARD_S_SUCCESS;
+	}
+}
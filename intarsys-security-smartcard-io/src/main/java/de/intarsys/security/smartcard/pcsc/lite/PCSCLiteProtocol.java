@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.lite;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The constants of the pcsc-lite client/server protocol as defined in
+ * <code>winscard_msg.h</code> and <code>eventhandler.h</code>.
+ * <p>
+ * A message is a header <code>{uint32 size; uint32 command}</code> followed
+ * by the fixed size command structure, all in host byte order. Transmit and
+ * control append their raw send data. The daemon answers with the same
+ * structure, followed by the raw receive data for transmit and control if
+ * successful.
+ * <p>
+ * SCardListReaders, SCardStatus and SCardGetStatusChange are implemented by
+ * the client using the daemon's table of {@link #PCSCLITE_MAX_READERS_CONTEXTS}
+ * READER_STATE structures.
+ */
+public final class PCSCLiteProtocol {
+
+	/**
+	 * The environment variable overriding the socket path.
+	 */
+	public static final String ENV_SOCKET = "PCSCLITE_CSOCK_NAME"; //$NON-NLS-1$
+
+	public static final String DEFAULT_SOCKET = "/run/pcscd/pcscd.comm"; //$NON-NLS-1$
+
+	public static final int PROTOCOL_VERSION_MAJOR = 4;
+
+	public static final int PROTOCOL_VERSION_MINOR = 4;
+
+	/*
+	 * commands
+	 */
+	public static final int SCARD_ESTABLISH_CONTEXT = 0x01;
+
+	public static final int SCARD_RELEASE_CONTEXT = 0x02;
+
+	public static final int SCARD_LIST_READERS = 0x03;
+
+	public static final int SCARD_CONNECT = 0x04;
+
+	public static final int SCARD_RECONNECT = 0x05;
+
+	public static final int SCARD_DISCONNECT = 0x06;
+
+	public static final int SCARD_BEGIN_TRANSACTION = 0x07;
+
+	public static final int SCARD_END_TRANSACTION = 0x08;
+
+	public static final int SCARD_TRANSMIT = 0x09;
+
+	public static final int SCARD_CONTROL = 0x0A;
+
+	public static final int SCARD_STATUS = 0x0B;
+
+	public static final int SCARD_GET_STATUS_CHANGE = 0x0C;
+
+	public static final int SCARD_CANCEL = 0x0D;
+
+	public static final int SCARD_CANCEL_TRANSACTION = 0x0E;
+
+	public static final int SCARD_GET_ATTRIB = 0x0F;
+
+	public static final int SCARD_SET_ATTRIB = 0x10;
+
+	public static final int CMD_VERSION = 0x11;
+
+	public static final int CMD_GET_READERS_STATE = 0x12;
+
+	public static final int CMD_WAIT_READER_STATE_CHANGE = 0x13;
+
+	public static final int CMD_STOP_WAITING_READER_STATE_CHANGE = 0x14;
+
+	/*
+	 * limits
+	 */
+	public static final int MAX_READERNAME = 128;
+
+	public static final int MAX_ATR_SIZE = 33;
+
+	public static final int MAX_BUFFER_SIZE = 264;
+
+	public static final int MAX_BUFFER_SIZE_EXTENDED = 4 + 3 + (1 << 16) + 3 + 2;
+
+	public static final int PCSCLITE_MAX_READERS_CONTEXTS = 16;
+
+	/*
+	 * structure sizes
+	 */
+	public static final int SIZE_HEADER = 8;
+
+	public static final int SIZE_VERSION = 12;
+
+	public static final int SIZE_ESTABLISH = 12;
+
+	public static final int SIZE_RELEASE = 8;
+
+	public static final int SIZE_CONNECT = 4 + MAX_READERNAME + 20;
+
+	public static final int SIZE_RECONNECT = 24;
+
+	public static final int SIZE_DISCONNECT = 12;
+
+	public static final int SIZE_BEGIN = 8;
+
+	public static final int SIZE_END = 12;
+
+	public static final int SIZE_CANCEL = 8;
+
+	public static final int SIZE_STATUS = 8;
+
+	public static final int SIZE_TRANSMIT = 32;
+
+	public static final int SIZE_CONTROL = 24;
+
+	public static final int SIZE_GETSET = 8 + MAX_BUFFER_SIZE + 8;
+
+	public static final int SIZE_WAIT = 8;
+
+	/*
+	 * READER_STATE, the daemon's view of a reader
+	 */
+	public static final int OFFSET_READER_NAME = 0;
+
+	public static final int OFFSET_EVENT_COUNTER = 128;
+
+	public static final int OFFSET_READER_STATE = 132;
+
+	public static final int OFFSET_READER_SHARING = 136;
+
+	public static final int OFFSET_CARD_ATR = 140;
+
+	public static final int OFFSET_CARD_ATR_LENGTH = 176;
+
+	public static final int OFFSET_CARD_PROTOCOL = 180;
+
+	public static final int SIZE_READER_STATE = 184;
+
+	public static final int SIZE_READER_STATES = SIZE_READER_STATE * PCSCLITE_MAX_READERS_CONTEXTS;
+
+	/*
+	 * READER_STATE readerState bits
+	 */
+	public static final int SCARD_UNKNOWN = 0x0001;
+
+	public static final int SCARD_ABSENT = 0x0002;
+
+	public static final int SCARD_PRESENT = 0x0004;
+
+	public static final int SCARD_SWALLOWED = 0x0008;
+
+	public static final int SCARD_POWERED = 0x0010;
+
+	public static final int SCARD_NEGOTIABLE = 0x0020;
+
+	public static final int SCARD_SPECIFIC = 0x0040;
+
+	/*
+	 * READER_STATE readerSharing values
+	 */
+	public static final int PCSCLITE_SHARING_EXCLUSIVE_CONTEXT = -1;
+
+	public static final int PCSCLITE_SHARING_NO_CONTEXT = 0;
+
+	public static final int PCSCLITE_SHARING_LAST_CONTEXT = 1;
+
+	public static final int SCARD_PROTOCOL_ANY = 0x0003;
+
+	/**
+	 * sizeof(SCARD_IO_REQUEST), two unsigned long
+	 */
+	public static final int SIZE_IO_REQUEST = 16;
+
+	/**
+	 * The path of the daemon socket, {@link #ENV_SOCKET} or
+	 * {@link #DEFAULT_SOCKET}.
+	 * 
+	 * @return The path of the daemon socket.
+	 */
+	public static Path getDefaultSocketPath() {
+		String path = System.getenv(ENV_SOCKET);
+		if (path == null || path.isEmpty()) {
+			path = DEFAULT_SOCKET;
+		}
+		return Paths.get(path);
+	}
+
+	private PCSCLiteProtocol() {
+	}
+}
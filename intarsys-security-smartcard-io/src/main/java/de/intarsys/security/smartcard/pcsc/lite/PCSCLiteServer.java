@@ -0,0 +1,903 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.lite;
+
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_GET_READERS_STATE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_STOP_WAITING_READER_STATE_CHANGE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_VERSION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.CMD_WAIT_READER_STATE_CHANGE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_ATR_SIZE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_BUFFER_SIZE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_BUFFER_SIZE_EXTENDED;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.MAX_READERNAME;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_CARD_ATR;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_CARD_ATR_LENGTH;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_CARD_PROTOCOL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_EVENT_COUNTER;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_READER_SHARING;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.OFFSET_READER_STATE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PCSCLITE_MAX_READERS_CONTEXTS;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PCSCLITE_SHARING_EXCLUSIVE_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PCSCLITE_SHARING_LAST_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PCSCLITE_SHARING_NO_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PROTOCOL_VERSION_MAJOR;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.PROTOCOL_VERSION_MINOR;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_ABSENT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_BEGIN_TRANSACTION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_CANCEL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_CONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_CONTROL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_DISCONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_END_TRANSACTION;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_ESTABLISH_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_GET_ATTRIB;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_NEGOTIABLE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_POWERED;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_PRESENT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_RECONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_RELEASE_CONTEXT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_SET_ATTRIB;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_STATUS;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_SWALLOWED;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_TRANSMIT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SCARD_UNKNOWN;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_BEGIN;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_CANCEL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_CONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_CONTROL;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_DISCONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_END;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_ESTABLISH;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_GETSET;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_HEADER;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_READER_STATE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_READER_STATES;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_RECONNECT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_RELEASE;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_STATUS;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_TRANSMIT;
+import static de.intarsys.security.smartcard.pcsc.lite.PCSCLiteProtocol.SIZE_VERSION;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.security.smartcard.pcsc.PCSCThreadTools;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * A minimal pcsc-lite daemon serving an {@link _IPCSC} implementation over a
+ * UNIX domain socket, typically a
+ * {@link de.intarsys.security.smartcard.pcsc.simulator.PCSCSimulator}. This
+ * allows to run {@link PCSCLiteClient} (or <code>libpcsclite</code>) without
+ * pcscd and card readers.
+ * 
+ * <pre>
+ * PCSCSimulator simulator = new PCSCSimulator();
+ * PCSCLiteServer server = new PCSCLiteServer(simulator, socketPath);
+ * server.start();
+ * </pre>
+ * 
+ * Each client connection is served by a thread of its own, reader events are
+ * observed by a monitor thread.
+ */
+public class PCSCLiteServer {
+
+	/**
+	 * A client connection.
+	 */
+	private class Client implements Runnable {
+
+		private final PCSCLiteChannel channel;
+
+		private final Set<Long> ownContexts = new HashSet<>();
+
+		private NativeBuffer sendBuffer = new NativeBuffer(MAX_BUFFER_SIZE);
+
+		private NativeBuffer recvBuffer = new NativeBuffer(MAX_BUFFER_SIZE);
+
+		protected Client(PCSCLiteChannel channel) {
+			this.channel = channel;
+		}
+
+		protected void beginTransaction(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			int rc = pcsc.SCardBeginTransaction(new SCARDHANDLE(hCard));
+			buffer = channel.reply(SIZE_BEGIN);
+			buffer.putInt(hCard);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void cancel(ByteBuffer buffer) throws IOException {
+			int hContext = buffer.getInt(0);
+			int rc = SCARD_E_INVALID_HANDLE;
+			lock.lock();
+			try {
+				Client owner = owners.get(hContext & 0xFFFFFFFFL);
+				if (owner != null) {
+					rc = SCARD_S_SUCCESS;
+					// signal only if still waiting
+					if (waiting.remove(owner)) {
+						owner.signal(SCARD_E_CANCELLED);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			buffer = channel.reply(SIZE_CANCEL);
+			buffer.putInt(hContext);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void close() {
+			channel.close();
+			lock.lock();
+			try {
+				waiting.remove(this);
+				clients.remove(this);
+				for (Long id : ownContexts) {
+					owners.remove(id);
+					pcsc.SCardReleaseContext(new SCARDCONTEXT(id));
+				}
+				ownContexts.clear();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		protected void connect(ByteBuffer buffer) throws IOException {
+			int hContext = buffer.getInt(0);
+			byte[] name = new byte[MAX_READERNAME];
+			buffer.get(4, name);
+			int length = 0;
+			while (length < MAX_READERNAME - 1 && name[length] != 0) {
+				length++;
+			}
+			String readerName = new String(name, 0, length);
+			int shareMode = buffer.getInt(4 + MAX_READERNAME);
+			int preferredProtocols = buffer.getInt(8 + MAX_READERNAME);
+			NativeLongLP64 phCard = new NativeLongLP64();
+			NativePcscDword activeProtocol = new NativePcscDword();
+			int rc = pcsc.SCardConnect(new SCARDCONTEXT(hContext & 0xFFFFFFFFL), new NativeString(readerName),
+					shareMode, preferredProtocols, phCard, activeProtocol);
+			int hCard = 0;
+			int protocol = 0;
+			if (rc == SCARD_S_SUCCESS) {
+				hCard = (int) phCard.longValue();
+				protocol = activeProtocol.intValue();
+				cards.put(hCard, readerName);
+				protocols.put(readerName, protocol);
+			}
+			buffer = channel.reply(SIZE_CONNECT);
+			buffer.putInt(hContext);
+			buffer.put(name, 0, length);
+			PCSCLiteChannel.fill(buffer, MAX_READERNAME - length);
+			buffer.putInt(shareMode);
+			buffer.putInt(preferredProtocols);
+			buffer.putInt(hCard);
+			buffer.putInt(protocol);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void control(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			int controlCode = buffer.getInt(4);
+			int sendLength = buffer.getInt(8);
+			int recvLength = buffer.getInt(12);
+			if (sendLength > MAX_BUFFER_SIZE_EXTENDED || recvLength > MAX_BUFFER_SIZE_EXTENDED) {
+				throw new IOException("invalid control length"); //$NON-NLS-1$
+			}
+			readSendData(sendLength);
+			if (recvBuffer.getSize() < recvLength) {
+				recvBuffer = new NativeBuffer(recvLength);
+			}
+			NativePcscDword bytesReturned = new NativePcscDword(0);
+			int rc = pcsc.SCardControl(new SCARDHANDLE(hCard), controlCode, sendBuffer, sendLength, recvBuffer,
+					recvLength, bytesReturned);
+			int received = rc == SCARD_S_SUCCESS ? bytesReturned.intValue() : 0;
+			buffer = channel.reply(SIZE_CONTROL + received);
+			buffer.putInt(hCard);
+			buffer.putInt(controlCode);
+			buffer.putInt(sendLength);
+			buffer.putInt(recvLength);
+			buffer.putInt(bytesReturned.intValue());
+			buffer.putInt(rc);
+			buffer.put(recvBuffer.getByteArray(0, received));
+			channel.send();
+		}
+
+		protected void disconnect(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			int disposition = buffer.getInt(4);
+			int rc = pcsc.SCardDisconnect(new SCARDHANDLE(hCard), disposition);
+			if (rc == SCARD_S_SUCCESS) {
+				cards.remove(hCard);
+			}
+			buffer = channel.reply(SIZE_DISCONNECT);
+			buffer.putInt(hCard);
+			buffer.putInt(disposition);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void endTransaction(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			int disposition = buffer.getInt(4);
+			int rc = pcsc.SCardEndTransaction(new SCARDHANDLE(hCard), disposition);
+			buffer = channel.reply(SIZE_END);
+			buffer.putInt(hCard);
+			buffer.putInt(disposition);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void establishContext(ByteBuffer buffer) throws IOException {
+			int scope = buffer.getInt(0);
+			NativeLongLP64 phContext = new NativeLongLP64();
+			int rc = pcsc.SCardEstablishContext(scope, phContext);
+			long id = 0;
+			if (rc == SCARD_S_SUCCESS) {
+				id = phContext.longValue() & 0xFFFFFFFFL;
+				lock.lock();
+				try {
+					owners.put(id, this);
+					ownContexts.add(id);
+				} finally {
+					lock.unlock();
+				}
+			}
+			buffer = channel.reply(SIZE_ESTABLISH);
+			buffer.putInt(scope);
+			buffer.putInt((int) id);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void getAttrib(ByteBuffer buffer, boolean set) throws IOException {
+			int hCard = buffer.getInt(0);
+			int attrId = buffer.getInt(4);
+			int rc;
+			byte[] value = new byte[0];
+			if (set) {
+				// not available in _IPCSC
+				rc = SCARD_E_UNSUPPORTED_FEATURE;
+			} else {
+				NativeBuffer attr = new NativeBuffer(MAX_BUFFER_SIZE);
+				NativePcscDword attrLength = new NativePcscDword(MAX_BUFFER_SIZE);
+				rc = pcsc.SCardGetAttrib(new SCARDHANDLE(hCard), attrId, attr, attrLength);
+				if (rc == SCARD_S_SUCCESS) {
+					value = attr.getByteArray(0, attrLength.intValue());
+				}
+			}
+			buffer = channel.reply(SIZE_GETSET);
+			buffer.putInt(hCard);
+			buffer.putInt(attrId);
+			buffer.put(value);
+			PCSCLiteChannel.fill(buffer, MAX_BUFFER_SIZE - value.length);
+			buffer.putInt(value.length);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void handle() throws IOException {
+			ByteBuffer buffer = channel.receive(SIZE_HEADER);
+			int size = buffer.getInt(0);
+			int command = buffer.getInt(4);
+			if (size != getMessageSize(command)) {
+				throw new IOException("unexpected message " + command + ", size " + size); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			buffer = channel.receive(size);
+			switch (command) {
+			case CMD_VERSION:
+				version(buffer);
+				break;
+			case SCARD_ESTABLISH_CONTEXT:
+				establishContext(buffer);
+				break;
+			case SCARD_RELEASE_CONTEXT:
+				releaseContext(buffer);
+				break;
+			case SCARD_CONNECT:
+				connect(buffer);
+				break;
+			case SCARD_RECONNECT:
+				reconnect(buffer);
+				break;
+			case SCARD_DISCONNECT:
+				disconnect(buffer);
+				break;
+			case SCARD_BEGIN_TRANSACTION:
+				beginTransaction(buffer);
+				break;
+			case SCARD_END_TRANSACTION:
+				endTransaction(buffer);
+				break;
+			case SCARD_TRANSMIT:
+				transmit(buffer);
+				break;
+			case SCARD_CONTROL:
+				control(buffer);
+				break;
+			case SCARD_STATUS:
+				status(buffer);
+				break;
+			case SCARD_CANCEL:
+				cancel(buffer);
+				break;
+			case SCARD_GET_ATTRIB:
+				getAttrib(buffer, false);
+				break;
+			case SCARD_SET_ATTRIB:
+				getAttrib(buffer, true);
+				break;
+			case CMD_GET_READERS_STATE:
+				buffer = channel.reply(SIZE_READER_STATES);
+				writeReaderStates(buffer);
+				channel.send();
+				break;
+			case CMD_WAIT_READER_STATE_CHANGE:
+				lock.lock();
+				try {
+					// no event may slip in before the reader states
+					buffer = channel.reply(SIZE_READER_STATES);
+					writeReaderStates(buffer);
+					channel.send();
+					waiting.add(this);
+				} finally {
+					lock.unlock();
+				}
+				break;
+			case CMD_STOP_WAITING_READER_STATE_CHANGE:
+				lock.lock();
+				try {
+					// answer only if the client was still waiting
+					if (waiting.remove(this)) {
+						channel.sendWait(SCARD_S_SUCCESS);
+					}
+				} finally {
+					lock.unlock();
+				}
+				break;
+			default:
+				throw new IOException("unexpected message " + command); //$NON-NLS-1$
+			}
+		}
+
+		protected void readSendData(int sendLength) throws IOException {
+			ByteBuffer data = channel.receive(sendLength);
+			if (sendBuffer.getSize() < sendLength) {
+				sendBuffer = new NativeBuffer(sendLength);
+			}
+			sendBuffer.setByteArray(0, data.array(), data.arrayOffset(), sendLength);
+		}
+
+		protected void reconnect(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			int shareMode = buffer.getInt(4);
+			int preferredProtocols = buffer.getInt(8);
+			int initialization = buffer.getInt(12);
+			NativePcscDword activeProtocol = new NativePcscDword();
+			int rc = pcsc.SCardReconnect(new SCARDHANDLE(hCard), shareMode, preferredProtocols, initialization,
+					activeProtocol);
+			int protocol = rc == SCARD_S_SUCCESS ? activeProtocol.intValue() : 0;
+			String readerName = cards.get(hCard);
+			if (rc == SCARD_S_SUCCESS && readerName != null) {
+				protocols.put(readerName, protocol);
+			}
+			buffer = channel.reply(SIZE_RECONNECT);
+			buffer.putInt(hCard);
+			buffer.putInt(shareMode);
+			buffer.putInt(preferredProtocols);
+			buffer.putInt(initialization);
+			buffer.putInt(protocol);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void releaseContext(ByteBuffer buffer) throws IOException {
+			int hContext = buffer.getInt(0);
+			long id = hContext & 0xFFFFFFFFL;
+			int rc = pcsc.SCardReleaseContext(new SCARDCONTEXT(id));
+			lock.lock();
+			try {
+				owners.remove(id);
+				ownContexts.remove(id);
+			} finally {
+				lock.unlock();
+			}
+			buffer = channel.reply(SIZE_RELEASE);
+			buffer.putInt(hContext);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					handle();
+				}
+			} catch (EOFException e) {
+				Log.trace("{} client disconnected", PCSCLiteServer.this); //$NON-NLS-1$
+			} catch (IOException e) {
+				if (!closed) {
+					Log.debug("{} client failed ({})", PCSCLiteServer.this, e.getMessage()); //$NON-NLS-1$
+				}
+			} finally {
+				close();
+			}
+		}
+
+		protected void signal(int rc) {
+			try {
+				channel.sendWait(rc);
+			} catch (IOException e) {
+				// the client thread will notice
+			}
+		}
+
+		protected void status(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			// the reader state is available to the client via the reader states
+			int rc = pcsc.SCardStatus(new SCARDHANDLE(hCard), null, new NativePcscDword(0), new NativePcscDword(),
+					new NativePcscDword(), null, null);
+			buffer = channel.reply(SIZE_STATUS);
+			buffer.putInt(hCard);
+			buffer.putInt(rc);
+			channel.send();
+		}
+
+		protected void transmit(ByteBuffer buffer) throws IOException {
+			int hCard = buffer.getInt(0);
+			int sendProtocol = buffer.getInt(4);
+			int sendPciLength = buffer.getInt(8);
+			int sendLength = buffer.getInt(12);
+			int recvProtocol = buffer.getInt(16);
+			int recvPciLength = buffer.getInt(20);
+			int recvLength = buffer.getInt(24);
+			if (sendLength > MAX_BUFFER_SIZE_EXTENDED || recvLength > MAX_BUFFER_SIZE_EXTENDED) {
+				throw new IOException("invalid transmit length"); //$NON-NLS-1$
+			}
+			readSendData(sendLength);
+			if (recvBuffer.getSize() < recvLength) {
+				recvBuffer = new NativeBuffer(recvLength);
+			}
+			INativeHandle pci = null;
+			if (sendProtocol == _IPCSC.SCARD_PROTOCOL_T0) {
+				pci = pcsc.getSCARD_PCI_T0();
+			} else if (sendProtocol == _IPCSC.SCARD_PROTOCOL_T1) {
+				pci = pcsc.getSCARD_PCI_T1();
+			} else if (sendProtocol == _IPCSC.SCARD_PROTOCOL_RAW) {
+				pci = pcsc.getSCARD_PCI_RAW();
+			}
+			NativePcscDword received = new NativePcscDword(recvLength);
+			int rc = pcsc.SCardTransmit(new SCARDHANDLE(hCard), pci, sendBuffer, sendLength, null, recvBuffer,
+					received);
+			int length = rc == SCARD_S_SUCCESS ? received.intValue() : 0;
+			buffer = channel.reply(SIZE_TRANSMIT + length);
+			buffer.putInt(hCard);
+			buffer.putInt(sendProtocol);
+			buffer.putInt(sendPciLength);
+			buffer.putInt(sendLength);
+			buffer.putInt(recvProtocol);
+			buffer.putInt(recvPciLength);
+			buffer.putInt(received.intValue());
+			buffer.putInt(rc);
+			buffer.put(recvBuffer.getByteArray(0, length));
+			channel.send();
+		}
+
+		protected void version(ByteBuffer buffer) throws IOException {
+			int major = buffer.getInt(0);
+			int minor = buffer.getInt(4);
+			int rc = SCARD_S_SUCCESS;
+			if (major != PROTOCOL_VERSION_MAJOR || minor != protocolMinor) {
+				Log.debug("{} client protocol {}.{} not supported", PCSCLiteServer.this, major, minor); //$NON-NLS-1$
+				rc = SCARD_E_NO_SERVICE;
+			}
+			buffer = channel.reply(SIZE_VERSION);
+			buffer.putInt(PROTOCOL_VERSION_MAJOR);
+			buffer.putInt(protocolMinor);
+			buffer.putInt(rc);
+			channel.send();
+		}
+	}
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final long INFINITE = 0xFFFFFFFFL;
+
+	private static final int SCARD_S_SUCCESS = _IPCSC.SCARD_S_SUCCESS;
+
+	private static final int SCARD_E_CANCELLED = _IPCSC.SCARD_E_CANCELLED;
+
+	private static final int SCARD_E_INVALID_HANDLE = _IPCSC.SCARD_E_INVALID_HANDLE;
+
+	private static final int SCARD_E_NO_SERVICE = _IPCSC.SCARD_E_NO_SERVICE;
+
+	private static final int SCARD_E_UNSUPPORTED_FEATURE = _IPCSC.SCARD_E_UNSUPPORTED_FEATURE;
+
+	/**
+	 * The size of the command structure for <code>command</code>.
+	 */
+	protected static int getMessageSize(int command) {
+		switch (command) {
+		case CMD_VERSION:
+			return SIZE_VERSION;
+		case SCARD_ESTABLISH_CONTEXT:
+			return SIZE_ESTABLISH;
+		case SCARD_RELEASE_CONTEXT:
+			return SIZE_RELEASE;
+		case SCARD_CONNECT:
+			return SIZE_CONNECT;
+		case SCARD_RECONNECT:
+			return SIZE_RECONNECT;
+		case SCARD_DISCONNECT:
+			return SIZE_DISCONNECT;
+		case SCARD_BEGIN_TRANSACTION:
+			return SIZE_BEGIN;
+		case SCARD_END_TRANSACTION:
+			return SIZE_END;
+		case SCARD_TRANSMIT:
+			return SIZE_TRANSMIT;
+		case SCARD_CONTROL:
+			return SIZE_CONTROL;
+		case SCARD_STATUS:
+			return SIZE_STATUS;
+		case SCARD_CANCEL:
+			return SIZE_CANCEL;
+		case SCARD_GET_ATTRIB:
+		case SCARD_SET_ATTRIB:
+			return SIZE_GETSET;
+		case CMD_GET_READERS_STATE:
+		case CMD_WAIT_READER_STATE_CHANGE:
+		case CMD_STOP_WAITING_READER_STATE_CHANGE:
+			return 0;
+		default:
+			return -1;
+		}
+	}
+
+	private final _IPCSC pcsc;
+
+	private final Path socketPath;
+
+	private int protocolMinor = PROTOCOL_VERSION_MINOR;
+
+	/*
+	 * guards the client bookkeeping and orders the reader states and wait
+	 * structures sent
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Map<Long, Client> owners = new HashMap<>();
+
+	private final Set<Client> clients = new HashSet<>();
+
+	private final Set<Client> waiting = new HashSet<>();
+
+	private final Map<Integer, String> cards = new ConcurrentHashMap<>();
+
+	private final Map<String, Integer> protocols = new ConcurrentHashMap<>();
+
+	/*
+	 * the reader states are queried concurrently by the clients
+	 */
+	private final ReentrantLock queryLock = new ReentrantLock();
+
+	private SCARDCONTEXT queryContext;
+
+	private SCARDCONTEXT monitorContext;
+
+	private ServerSocketChannel serverChannel;
+
+	private volatile boolean closed;
+
+	public PCSCLiteServer(_IPCSC pcsc, Path socketPath) {
+		super();
+		this.pcsc = pcsc;
+		this.socketPath = socketPath;
+	}
+
+	protected void accept() {
+		while (!closed) {
+			SocketChannel socket;
+			try {
+				socket = serverChannel.accept();
+			} catch (IOException e) {
+				if (!closed) {
+					Log.warn("{} accept failed ({})", this, e.getMessage()); //$NON-NLS-1$
+				}
+				return;
+			}
+			Client client = new Client(new PCSCLiteChannel(socket));
+			lock.lock();
+			try {
+				clients.add(client);
+			} finally {
+				lock.unlock();
+			}
+			PCSCThreadTools.newThread("pcsc-lite server client", client).start(); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Stop serving, all client connections are closed.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (monitorContext != null) {
+			pcsc.SCardCancel(monitorContext);
+		}
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
+			//
+		}
+		List<Client> tempClients;
+		lock.lock();
+		try {
+			tempClients = new ArrayList<>(clients);
+		} finally {
+			lock.unlock();
+		}
+		for (Client client : tempClients) {
+			client.close();
+		}
+		try {
+			Files.deleteIfExists(socketPath);
+		} catch (IOException e) {
+			//
+		}
+	}
+
+	protected SCARDCONTEXT establishContext() throws IOException {
+		NativeLongLP64 phContext = new NativeLongLP64();
+		int rc = pcsc.SCardEstablishContext(_IPCSC.SCARD_SCOPE_SYSTEM, phContext);
+		if (rc != SCARD_S_SUCCESS) {
+			throw new IOException("can't establish context (" + Integer.toHexString(rc) + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return new SCARDCONTEXT(phContext.longValue());
+	}
+
+	public int getProtocolMinor() {
+		return protocolMinor;
+	}
+
+	public Path getSocketPath() {
+		return socketPath;
+	}
+
+	protected List<String> listReaders(SCARDCONTEXT context) {
+		List<String> result = new ArrayList<>();
+		NativePcscDword length = new NativePcscDword(0);
+		int rc = pcsc.SCardListReaders(context, null, null, length);
+		if (rc != SCARD_S_SUCCESS || length.intValue() == 0) {
+			return result;
+		}
+		NativeBuffer buffer = new NativeBuffer(length.intValue());
+		rc = pcsc.SCardListReaders(context, null, buffer, length);
+		if (rc != SCARD_S_SUCCESS) {
+			return result;
+		}
+		byte[] bytes = buffer.getByteArray(0, length.intValue());
+		int start = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == 0) {
+				if (i > start) {
+					result.add(new String(bytes, start, i - start));
+				}
+				start = i + 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Wait for reader events and signal the clients waiting.
+	 */
+	protected void monitor() {
+		Map<String, Integer> known = new HashMap<>();
+		boolean first = true;
+		while (!closed) {
+			List<String> names = listReaders(monitorContext);
+			names.add(_IPCSC.SCARD_PNP_NOTIFICATION);
+			SCARD_READERSTATE[] states = SCARD_READERSTATE.createArray(names.size());
+			NativeString[] nativeNames = new NativeString[names.size()];
+			for (int i = 0; i < states.length; i++) {
+				nativeNames[i] = new NativeString(names.get(i));
+				states[i].setReader(nativeNames[i]);
+				states[i].setCurrentState(known.getOrDefault(names.get(i), _IPCSC.SCARD_STATE_UNAWARE));
+			}
+			int rc = pcsc.SCardGetStatusChange(monitorContext, INFINITE, states[0], states.length);
+			if (closed) {
+				return;
+			}
+			if (rc == SCARD_S_SUCCESS) {
+				known.clear();
+				for (int i = 0; i < states.length; i++) {
+					known.put(names.get(i), states[i].getEventState() & ~_IPCSC.SCARD_STATE_CHANGED);
+				}
+				if (!first) {
+					signalAll(SCARD_S_SUCCESS);
+				}
+				first = false;
+			} else if (rc != SCARD_E_CANCELLED) {
+				Log.warn("{} monitor failed ({})", this, Integer.toHexString(rc)); //$NON-NLS-1$
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accept only clients using protocol version 4.<code>protocolMinor</code>.
+	 * This must be set before {@link #start()}.
+	 * 
+	 * @param protocolMinor
+	 */
+	public void setProtocolMinor(int protocolMinor) {
+		this.protocolMinor = protocolMinor;
+	}
+
+	protected void signalAll(int rc) {
+		lock.lock();
+		try {
+			for (Client client : waiting) {
+				client.signal(rc);
+			}
+			waiting.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start serving at {@link #getSocketPath()}.
+	 * 
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		queryContext = establishContext();
+		monitorContext = establishContext();
+		Files.deleteIfExists(socketPath);
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+		PCSCThreadTools.newThread("pcsc-lite server accept", this::accept).start(); //$NON-NLS-1$
+		PCSCThreadTools.newThread("pcsc-lite server monitor", this::monitor).start(); //$NON-NLS-1$
+		Log.info("{} started", this); //$NON-NLS-1$
+	}
+
+	protected int toReaderState(int eventState) {
+		if ((eventState & (_IPCSC.SCARD_STATE_UNAVAILABLE | _IPCSC.SCARD_STATE_UNKNOWN)) != 0) {
+			return SCARD_UNKNOWN;
+		}
+		if ((eventState & _IPCSC.SCARD_STATE_PRESENT) == 0) {
+			return SCARD_ABSENT;
+		}
+		if ((eventState & _IPCSC.SCARD_STATE_MUTE) != 0) {
+			return SCARD_PRESENT | SCARD_SWALLOWED;
+		}
+		return SCARD_PRESENT | SCARD_POWERED | SCARD_NEGOTIABLE;
+	}
+
+	protected int toReaderSharing(int eventState) {
+		if ((eventState & _IPCSC.SCARD_STATE_EXCLUSIVE) != 0) {
+			return PCSCLITE_SHARING_EXCLUSIVE_CONTEXT;
+		}
+		if ((eventState & _IPCSC.SCARD_STATE_INUSE) != 0) {
+			return PCSCLITE_SHARING_LAST_CONTEXT;
+		}
+		return PCSCLITE_SHARING_NO_CONTEXT;
+	}
+
+	@Override
+	public String toString() {
+		return "pcsc-lite server " + socketPath; //$NON-NLS-1$
+	}
+
+	/**
+	 * Append the READER_STATE table to <code>buffer</code>.
+	 */
+	protected void writeReaderStates(ByteBuffer buffer) {
+		int base = buffer.position();
+		PCSCLiteChannel.fill(buffer, SIZE_READER_STATES);
+		queryLock.lock();
+		try {
+			List<String> names = listReaders(queryContext);
+			int count = Math.min(names.size(), PCSCLITE_MAX_READERS_CONTEXTS);
+			if (count == 0) {
+				return;
+			}
+			SCARD_READERSTATE[] states = SCARD_READERSTATE.createArray(count);
+			NativeString[] nativeNames = new NativeString[count];
+			for (int i = 0; i < count; i++) {
+				nativeNames[i] = new NativeString(names.get(i));
+				states[i].setReader(nativeNames[i]);
+				states[i].setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
+			}
+			int rc = pcsc.SCardGetStatusChange(queryContext, 0, states[0], count);
+			if (rc != SCARD_S_SUCCESS) {
+				Log.debug("{} reader states not available ({})", this, Integer.toHexString(rc)); //$NON-NLS-1$
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				int offset = base + i * SIZE_READER_STATE;
+				byte[] name = names.get(i).getBytes();
+				buffer.put(offset, name, 0, Math.min(name.length, MAX_READERNAME - 1));
+				int eventState = states[i].getEventState();
+				buffer.putInt(offset + OFFSET_EVENT_COUNTER, eventState >>> 16);
+				buffer.putInt(offset + OFFSET_READER_STATE, toReaderState(eventState));
+				buffer.putInt(offset + OFFSET_READER_SHARING, toReaderSharing(eventState));
+				byte[] atr = states[i].getATR();
+				int atrLength = Math.min(atr.length, MAX_ATR_SIZE);
+				buffer.put(offset + OFFSET_CARD_ATR, atr, 0, atrLength);
+				buffer.putInt(offset + OFFSET_CARD_ATR_LENGTH, atrLength);
+				buffer.putInt(offset + OFFSET_CARD_PROTOCOL, protocols.getOrDefault(names.get(i), 0));
+			}
+		} finally {
+			queryLock.unlock();
+		}
+	}
+}
@@ -33,6 +33,7 @@ import de.intarsys.nativec.api.INativeHandle;
 import de.intarsys.nativec.type.INativeObject;
 import de.intarsys.nativec.type.INativeType;
 import de.intarsys.nativec.type.NativeArray;
+import de.intarsys.nativec.type.NativeBuffer;
 import de.intarsys.nativec.type.NativeByte;
 import de.intarsys.nativec.type.NativeStaticStruct;
 import de.intarsys.nativec.type.NativeString;
@@ -91,6 +92,31 @@ public class SCARD_READERSTATE extends NativeStaticStruct {
 		rgbAtr = META.declare("rgbAtr", NativeByte.META.Array(36));//$NON-NLS-1$
 	}
 
+	/**
+	 * Create <code>count</code> consecutive structures in a single native
+	 * memory block, as expected for the <code>rgReaderStates</code> parameter
+	 * of SCardGetStatusChange. The first element is the address of the array.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public static SCARD_READERSTATE[] createArray(int count) {
+		int size = META.getByteCount();
+		NativeBuffer block = new NativeBuffer(size * count);
+		SCARD_READERSTATE[] result = new SCARD_READERSTATE[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = new SCARD_READERSTATE(block.getNativeHandle().offset(i * size));
+			result[i].block = block;
+		}
+		return result;
+	}
+
+	/**
+	 * The memory block containing this structure when allocated via
+	 * {@link #createArray(int)}.
+	 */
+	private NativeBuffer block;
+
 	public SCARD_READERSTATE() {
 		super();
 	}
@@ -146,11 +172,12 @@ public class SCARD_READERSTATE extends NativeStaticStruct {
 	}
 
 	public void setCurrentState(int state) {
-		dwCurrentState.setValue(this, state);
+		// no boxing, this is called in the status monitor loop
+		dwCurrentState.setInt(this, 0, state);
 	}
 
 	public void setEventState(int state) {
-		dwEventState.setValue(this, state);
+		dwEventState.setInt(this, 0, state);
 	}
 
 	public void setReader(NativeString name) {
@@ -29,6 +29,8 @@
  */
 package de.intarsys.security.smartcard.pcsc.nativec;
 
+import java.util.function.IntSupplier;
+
 import de.intarsys.nativec.api.INativeHandle;
 import de.intarsys.nativec.type.INativeObject;
 import de.intarsys.nativec.type.NativeBuffer;
@@ -50,6 +52,8 @@ public interface _IPCSC extends _PCSC_RETURN_CODES {
 
 	static int FEATURE_GET_KEY_PRESSED = 0x05;
 
+	static int FEATURE_GET_TLV_PROPERTIES = 0x12;
+
 	static int FEATURE_IFD_PIN_PROP = 0x0A;
 
 	static int FEATURE_MCT_READERDIRECT = 0x08;
@@ -96,6 +100,9 @@ public interface _IPCSC extends _PCSC_RETURN_CODES {
 
 	static int SCARD_AUTOALLOCATE = -1;
 
+	/** The pseudo reader to get notified on reader arrival and removal */
+	static String SCARD_PNP_NOTIFICATION = "\\\\?PnP?\\Notification"; //$NON-NLS-1$
+
 	/**
 	 * The context is the system context, and any database operations are
 	 * performed within the domain of the system. (The calling application must
@@ -210,6 +217,22 @@ public interface _IPCSC extends _PCSC_RETURN_CODES {
 	static boolean SupportsAutoallocate = !SystemTools.isMac();
 	static boolean SupportsProtocolUndefined = !SystemTools.isMac();
 
+	/**
+	 * Execute a sequence of calls for <code>hCard</code> as a single unit. This
+	 * is not part of PC/SC, it allows wrappers to dispatch a whole sequence at
+	 * once, for example {@link _PCSCThreadedExecutor} executes
+	 * <code>task</code> in the worker thread of <code>hCard</code>. Calls made
+	 * by <code>task</code> are handled by the wrapper as usual.
+	 * 
+	 * @param hCard
+	 * @param task
+	 *            The sequence of calls, returning a PC/SC return code
+	 * @return The return code of <code>task</code>
+	 */
+	default int dispatch(final SCARDHANDLE hCard, final IntSupplier task) {
+		return task.getAsInt();
+	}
+
 	/**
 	 * Get the reference to the global structure SCARD_PCI_RAW
 	 * 
@@ -885,6 +908,30 @@ public interface _IPCSC extends _PCSC_RETURN_CODES {
 	int SCardGetStatusChange(final SCARDCONTEXT hContext, final long dwTimeout, final INativeObject rgReaderStates,
 			final long cReaders);
 
+	/**
+	 * The SCardIsValidContext function determines whether a smart card context
+	 * handle is valid.
+	 * 
+	 * <pre>
+	 * LONG SCardIsValidContext(
+	 *   _In_ SCARDCONTEXT hContext
+	 * );
+	 * </pre>
+	 * 
+	 * Parameters
+	 * 
+	 * <dl>
+	 * <dt>hContext [in]</dt>
+	 * <dd>Handle that identifies the resource manager context. The resource
+	 * manager context is set by a previous call to
+	 * {@link #SCardEstablishContext}.</dd>
+	 * </dl>
+	 * 
+	 * @return SCARD_S_SUCCESS if the context is valid, ERROR_INVALID_HANDLE
+	 *         or SCARD_E_INVALID_HANDLE otherwise.
+	 */
+	int SCardIsValidContext(final SCARDCONTEXT hContext);
+
 	/**
 	 * The SCardListReaders function provides the list of readers within a set
 	 * of named reader groups, eliminating duplicates.
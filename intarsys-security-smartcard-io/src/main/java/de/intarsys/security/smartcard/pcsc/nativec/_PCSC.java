@@ -67,6 +67,7 @@ public class _PCSC implements _IPCSC {
 	private static final String SCARD_FREE_MEMORY = "SCardFreeMemory"; //$NON-NLS-1$
 	private static final String SCARD_GET_ATTRIB = "SCardGetAttrib"; //$NON-NLS-1$
 	private static final String SCARD_GET_STATUS_CHANGE = "SCardGetStatusChange"; //$NON-NLS-1$
+	private static final String SCARD_IS_VALID_CONTEXT = "SCardIsValidContext"; //$NON-NLS-1$
 	private static final String SCARD_LIST_READERS = "SCardListReaders"; //$NON-NLS-1$
 	private static final String SCARD_RELEASE_CONTEXT = "SCardReleaseContext"; //$NON-NLS-1$
 	private static final String SCARD_STATUS = "SCardStatus"; //$NON-NLS-1$
@@ -98,12 +99,21 @@ public class _PCSC implements _IPCSC {
 	private INativeFunction callSCardFreeMemory;
 	private INativeFunction callSCardGetAttrib;
 	private INativeFunction callSCardGetStatusChange;
+	private INativeFunction callSCardIsValidContext;
 	private INativeFunction callSCardListReaders;
 	private INativeFunction callSCardReleaseContext;
 	private INativeFunction callSCardTransmit;
 	private INativeFunction callSCardStatus;
 
-	public _PCSC(String pcscLibrary) {
+	/**
+	 * The platform specific path to the PC/SC library for
+	 * <code>pcscLibrary</code>, which may be empty (use the system default), a
+	 * directory or the library path itself.
+	 * 
+	 * @param pcscLibrary
+	 * @return The path to the PC/SC library.
+	 */
+	public static String resolveLibraryPath(String pcscLibrary) {
 		String defaultLibrary;
 
 		/*
@@ -119,21 +129,20 @@ public class _PCSC implements _IPCSC {
 		if (StringTools.isEmpty(pcscLibrary)) {
 			// not home-made after all; see above
 			if (SystemTools.isMac()) {
-				pcscLibraryPath = "PCSC"; //$NON-NLS-1$
-			} else {
-				pcscLibraryPath = SystemTools.mapLibraryName(defaultLibrary, "1");
-			}
-		} else {
-			File file;
-
-			file = new File(pcscLibrary);
-			if (file.isDirectory()) {
-				file = new File(file, SystemTools.mapLibraryName(defaultLibrary, "1"));
-				pcscLibraryPath = file.getAbsolutePath();
-			} else {
-				pcscLibraryPath = pcscLibrary;
+				return "PCSC"; //$NON-NLS-1$
 			}
+			return SystemTools.mapLibraryName(defaultLibrary, "1");
 		}
+		File file = new File(pcscLibrary);
+		if (file.isDirectory()) {
+			file = new File(file, SystemTools.mapLibraryName(defaultLibrary, "1"));
+			return file.getAbsolutePath();
+		}
+		return pcscLibrary;
+	}
+
+	public _PCSC(String pcscLibrary) {
+		pcscLibraryPath = resolveLibraryPath(pcscLibrary);
 		init();
 	}
 
@@ -185,6 +194,11 @@ public class _PCSC implements _IPCSC {
 		callSCardEndTransaction = lib.getFunction(SCARD_END_TRANSACTION);
 		callSCardEstablishContext = lib.getFunction(SCARD_ESTABLISH_CONTEXT);
 		callSCardGetAttrib = lib.getFunction(SCARD_GET_ATTRIB);
+		try {
+			callSCardIsValidContext = lib.getFunction(SCARD_IS_VALID_CONTEXT);
+		} catch (UnsatisfiedLinkError ignore) {
+			// assume all contexts valid
+		}
 		callSCardReleaseContext = lib.getFunction(SCARD_RELEASE_CONTEXT);
 		callSCardTransmit = lib.getFunction(SCARD_TRANSMIT);
 
@@ -340,6 +354,21 @@ public class _PCSC implements _IPCSC {
 		return rc.intValue();
 	}
 
+	/**
+	 * <pre>
+	 * PCSC_API LONG SCardIsValidContext(SCARDCONTEXT hContext);
+	 * </pre>
+	 */
+	@Override
+	public int SCardIsValidContext(final SCARDCONTEXT hContext) {
+		if (callSCardIsValidContext == null) {
+			return SCARD_S_SUCCESS;
+		}
+		Number rc = callSCardIsValidContext.invoke(NativePcscDwordType.primitiveClass(),
+				NativeLongLP64Type.coerce(hContext.longValue()));
+		return rc.intValue();
+	}
+
 	/**
 	 * <pre>
 	 * PCSC_API LONG SCardListReaders(SCARDCONTEXT hContext,
@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.nativec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.INativeObject;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.nativec.type.NativeVoid;
+
+/**
+ * This {@link _IPCSC} API implementation is a wrapper recording
+ * <ul>
+ * <li>a {@link LatencyHistogram} per PC/SC function,</li>
+ * <li>the number of calls per return code,</li>
+ * <li>the number of calls currently executing per card reader.</li>
+ * </ul>
+ * 
+ * Recording is lock free and does not allocate in the common case, so this
+ * wrapper may well be used in production.
+ * 
+ */
+public class _PCSCInstrumented implements _IPCSC {
+
+	/**
+	 * A card handle and the reader it is connected to.
+	 */
+	private static class Card {
+
+		private final long handle;
+
+		private final long context;
+
+		private final AtomicInteger inFlight;
+
+		protected Card(long handle, long context, AtomicInteger inFlight) {
+			this.handle = handle;
+			this.context = context;
+			this.inFlight = inFlight;
+		}
+	}
+
+	public static final String F_BEGIN_TRANSACTION = "SCardBeginTransaction"; //$NON-NLS-1$
+	public static final String F_CANCEL = "SCardCancel"; //$NON-NLS-1$
+	public static final String F_CONNECT = "SCardConnect"; //$NON-NLS-1$
+	public static final String F_CONTROL = "SCardControl"; //$NON-NLS-1$
+	public static final String F_DISCONNECT = "SCardDisconnect"; //$NON-NLS-1$
+	public static final String F_END_TRANSACTION = "SCardEndTransaction"; //$NON-NLS-1$
+	public static final String F_ESTABLISH_CONTEXT = "SCardEstablishContext"; //$NON-NLS-1$
+	public static final String F_FREE_MEMORY = "SCardFreeMemory"; //$NON-NLS-1$
+	public static final String F_GET_ATTRIB = "SCardGetAttrib"; //$NON-NLS-1$
+	public static final String F_GET_STATUS_CHANGE = "SCardGetStatusChange"; //$NON-NLS-1$
+	public static final String F_IS_VALID_CONTEXT = "SCardIsValidContext"; //$NON-NLS-1$
+	public static final String F_LIST_READERS = "SCardListReaders"; //$NON-NLS-1$
+	public static final String F_RECONNECT = "SCardReconnect"; //$NON-NLS-1$
+	public static final String F_RELEASE_CONTEXT = "SCardReleaseContext"; //$NON-NLS-1$
+	public static final String F_STATUS = "SCardStatus"; //$NON-NLS-1$
+	public static final String F_TRANSMIT = "SCardTransmit"; //$NON-NLS-1$
+
+	private static final String[] FUNCTIONS = { //
+			F_BEGIN_TRANSACTION, //
+			F_CANCEL, //
+			F_CONNECT, //
+			F_CONTROL, //
+			F_DISCONNECT, //
+			F_END_TRANSACTION, //
+			F_ESTABLISH_CONTEXT, //
+			F_FREE_MEMORY, //
+			F_GET_ATTRIB, //
+			F_GET_STATUS_CHANGE, //
+			F_IS_VALID_CONTEXT, //
+			F_LIST_READERS, //
+			F_RECONNECT, //
+			F_RELEASE_CONTEXT, //
+			F_STATUS, //
+			F_TRANSMIT, //
+	};
+
+	private static final int I_BEGIN_TRANSACTION = 0;
+	private static final int I_CANCEL = 1;
+	private static final int I_CONNECT = 2;
+	private static final int I_CONTROL = 3;
+	private static final int I_DISCONNECT = 4;
+	private static final int I_END_TRANSACTION = 5;
+	private static final int I_ESTABLISH_CONTEXT = 6;
+	private static final int I_FREE_MEMORY = 7;
+	private static final int I_GET_ATTRIB = 8;
+	private static final int I_GET_STATUS_CHANGE = 9;
+	private static final int I_IS_VALID_CONTEXT = 10;
+	private static final int I_LIST_READERS = 11;
+	private static final int I_RECONNECT = 12;
+	private static final int I_RELEASE_CONTEXT = 13;
+	private static final int I_STATUS = 14;
+	private static final int I_TRANSMIT = 15;
+
+	/**
+	 * The PC/SC return codes are 0x801000xx, these are counted in
+	 * {@link #scardCodes} by their low byte.
+	 */
+	private static final int SCARD_FACILITY = 0x80100000;
+
+	private final _IPCSC pcsc;
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[FUNCTIONS.length];
+
+	private final LongAdder successCount = new LongAdder();
+
+	private final AtomicLongArray scardCodes = new AtomicLongArray(256);
+
+	private final Map<Integer, LongAdder> otherCodes = new ConcurrentHashMap<>();
+
+	private final Map<String, AtomicInteger> readers = new ConcurrentHashMap<>();
+
+	/**
+	 * The connected cards. This is copied on the rare connect and disconnect,
+	 * so a lookup scans a snapshot without locking or boxing the handle.
+	 */
+	private volatile Card[] cards = new Card[0];
+
+	public _PCSCInstrumented(_IPCSC pcsc) {
+		this.pcsc = pcsc;
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	protected synchronized void addCard(Card card) {
+		Card[] tempCards = cards;
+		Card[] newCards = new Card[tempCards.length + 1];
+		int count = 0;
+		for (Card tempCard : tempCards) {
+			if (tempCard.handle != card.handle) {
+				newCards[count++] = tempCard;
+			}
+		}
+		newCards[count++] = card;
+		cards = Arrays.copyOf(newCards, count);
+	}
+
+	protected int count(int rc) {
+		if (rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+			successCount.increment();
+		} else if ((rc & 0xFFFFFF00) == SCARD_FACILITY) {
+			scardCodes.incrementAndGet(rc & 0xFF);
+		} else {
+			otherCodes.computeIfAbsent(rc, key -> new LongAdder()).increment();
+		}
+		return rc;
+	}
+
+	@Override
+	public int dispatch(final SCARDHANDLE hCard, final IntSupplier task) {
+		// the calls of the task are measured one by one
+		return pcsc.dispatch(hCard, task);
+	}
+
+	protected AtomicInteger enter(SCARDHANDLE hCard) {
+		long handle = hCard.longValue();
+		for (Card card : cards) {
+			if (card.handle == handle) {
+				card.inFlight.incrementAndGet();
+				return card.inFlight;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The PC/SC function names in this statistics.
+	 * 
+	 * @return The PC/SC function names in this statistics.
+	 */
+	public String[] getFunctionNames() {
+		return FUNCTIONS.clone();
+	}
+
+	/**
+	 * The {@link LatencyHistogram} for the PC/SC <code>function</code> or
+	 * <code>null</code>.
+	 * 
+	 * @param function
+	 * @return The {@link LatencyHistogram} for the PC/SC <code>function</code>
+	 */
+	public LatencyHistogram getHistogram(String function) {
+		for (int i = 0; i < FUNCTIONS.length; i++) {
+			if (FUNCTIONS[i].equals(function)) {
+				return histograms[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The number of calls currently executing, by reader name.
+	 * 
+	 * @return The number of calls currently executing, by reader name.
+	 */
+	public Map<String, Integer> getInFlight() {
+		Map<String, Integer> result = new TreeMap<>();
+		for (Map.Entry<String, AtomicInteger> entry : readers.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	public _IPCSC getPcsc() {
+		return pcsc;
+	}
+
+	/**
+	 * The number of calls by return code.
+	 * 
+	 * @return The number of calls by return code.
+	 */
+	public Map<Integer, Long> getReturnCodeCounts() {
+		Map<Integer, Long> result = new LinkedHashMap<>();
+		long success = successCount.sum();
+		if (success > 0) {
+			result.put(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, success);
+		}
+		for (int i = 0; i < 256; i++) {
+			long value = scardCodes.get(i);
+			if (value > 0) {
+				result.put(SCARD_FACILITY | i, value);
+			}
+		}
+		for (Map.Entry<Integer, LongAdder> entry : otherCodes.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		return pcsc.getSCARD_PCI_RAW();
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T0() {
+		return pcsc.getSCARD_PCI_T0();
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T1() {
+		return pcsc.getSCARD_PCI_T1();
+	}
+
+	protected void leave(AtomicInteger inFlight) {
+		if (inFlight != null) {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	protected void record(int function, long start) {
+		histograms[function].record(System.nanoTime() - start);
+	}
+
+	protected synchronized void removeCards(Predicate<Card> filter) {
+		Card[] tempCards = cards;
+		Card[] newCards = new Card[tempCards.length];
+		int count = 0;
+		for (Card tempCard : tempCards) {
+			if (!filter.test(tempCard)) {
+				newCards[count++] = tempCard;
+			}
+		}
+		if (count < tempCards.length) {
+			cards = Arrays.copyOf(newCards, count);
+		}
+	}
+
+	/**
+	 * Reset all statistics, the in flight gauges are left untouched.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+		successCount.reset();
+		for (int i = 0; i < 256; i++) {
+			scardCodes.set(i, 0);
+		}
+		otherCodes.clear();
+	}
+
+	@Override
+	public int SCardBeginTransaction(SCARDHANDLE hCard) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardBeginTransaction(hCard));
+		} finally {
+			record(I_BEGIN_TRANSACTION, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardCancel(SCARDCONTEXT hContext) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardCancel(hContext));
+		} finally {
+			record(I_CANCEL, start);
+		}
+	}
+
+	@Override
+	public int SCardConnect(SCARDCONTEXT hContext, NativeString szReader, long dwShareMode, long dwPreferredProtocols,
+			NativeLongLP64 phCard, NativePcscDword pdwActiveProtocol) {
+		AtomicInteger inFlight = readers.computeIfAbsent(szReader.stringValue(), key -> new AtomicInteger());
+		inFlight.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			int rc = count(pcsc.SCardConnect(hContext, szReader, dwShareMode, dwPreferredProtocols, phCard,
+					pdwActiveProtocol));
+			if (rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+				addCard(new Card(phCard.longValue(), hContext.longValue(), inFlight));
+			}
+			return rc;
+		} finally {
+			record(I_CONNECT, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardControl(SCARDHANDLE hCard, long dwControlCode, NativeBuffer lpInBuffer, long nInBufferSize,
+			NativeBuffer lpOutBuffer, long nOutBufferSize, NativePcscDword lpBytesReturned) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardControl(hCard, dwControlCode, lpInBuffer, nInBufferSize, lpOutBuffer,
+					nOutBufferSize, lpBytesReturned));
+		} finally {
+			record(I_CONTROL, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardDisconnect(SCARDHANDLE hCard, long dwDisposition) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardDisconnect(hCard, dwDisposition));
+		} finally {
+			record(I_DISCONNECT, start);
+			leave(inFlight);
+			long handle = hCard.longValue();
+			removeCards(card -> card.handle == handle);
+		}
+	}
+
+	@Override
+	public int SCardEndTransaction(SCARDHANDLE hCard, long dwDisposition) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardEndTransaction(hCard, dwDisposition));
+		} finally {
+			record(I_END_TRANSACTION, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardEstablishContext(long dwScope, NativeLongLP64 phContext) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardEstablishContext(dwScope, phContext));
+		} finally {
+			record(I_ESTABLISH_CONTEXT, start);
+		}
+	}
+
+	@Override
+	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardFreeMemory(hContext, pvMem));
+		} finally {
+			record(I_FREE_MEMORY, start);
+		}
+	}
+
+	@Override
+	public int SCardGetAttrib(SCARDHANDLE hCard, long dwAttrId, NativeBuffer pbAttr, NativePcscDword pcbAttrLength) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardGetAttrib(hCard, dwAttrId, pbAttr, pcbAttrLength));
+		} finally {
+			record(I_GET_ATTRIB, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardGetStatusChange(SCARDCONTEXT hContext, long dwTimeout, INativeObject rgReaderStates,
+			long cReaders) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardGetStatusChange(hContext, dwTimeout, rgReaderStates, cReaders));
+		} finally {
+			record(I_GET_STATUS_CHANGE, start);
+		}
+	}
+
+	@Override
+	public int SCardIsValidContext(SCARDCONTEXT hContext) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardIsValidContext(hContext));
+		} finally {
+			record(I_IS_VALID_CONTEXT, start);
+		}
+	}
+
+	@Override
+	public int SCardListReaders(SCARDCONTEXT hContext, NativeString mszGroups, INativeObject mszReaders,
+			NativePcscDword pcchReaders) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardListReaders(hContext, mszGroups, mszReaders, pcchReaders));
+		} finally {
+			record(I_LIST_READERS, start);
+		}
+	}
+
+	@Override
+	public int SCardReconnect(SCARDHANDLE hCard, long dwShareMode, long dwPreferredProtocols, long dwInitialization,
+			NativePcscDword pdwActiveProtocol) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardReconnect(hCard, dwShareMode, dwPreferredProtocols, dwInitialization,
+					pdwActiveProtocol));
+		} finally {
+			record(I_RECONNECT, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardReleaseContext(SCARDCONTEXT hContext) {
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardReleaseContext(hContext));
+		} finally {
+			record(I_RELEASE_CONTEXT, start);
+			// handles of a released context are invalid
+			long context = hContext.longValue();
+			removeCards(card -> card.context == context);
+		}
+	}
+
+	@Override
+	public int SCardStatus(SCARDHANDLE hCard, INativeObject szReaderName, NativePcscDword pcchReaderLen,
+			NativePcscDword pdwState, NativePcscDword pdwProtocol, NativeBuffer pbAtr, NativePcscDword pcbAtrLen) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardStatus(hCard, szReaderName, pcchReaderLen, pdwState, pdwProtocol, pbAtr,
+					pcbAtrLen));
+		} finally {
+			record(I_STATUS, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public int SCardTransmit(SCARDHANDLE hCard, INativeHandle pioSendPci, INativeObject pbSendBuffer,
+			long cbSendLength, INativeObject pioRecvPci, NativeBuffer pbRecvBuffer, NativePcscDword pcbRecvLength) {
+		AtomicInteger inFlight = enter(hCard);
+		long start = System.nanoTime();
+		try {
+			return count(pcsc.SCardTransmit(hCard, pioSendPci, pbSendBuffer, cbSendLength, pioRecvPci, pbRecvBuffer,
+					pcbRecvLength));
+		} finally {
+			record(I_TRANSMIT, start);
+			leave(inFlight);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "instrumented " + pcsc; //$NON-NLS-1$
+	}
+}
@@ -29,10 +29,15 @@
  */
 package de.intarsys.security.smartcard.pcsc.nativec;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
 
 import de.intarsys.nativec.api.INativeHandle;
 import de.intarsys.nativec.type.INativeObject;
@@ -41,313 +46,644 @@ import de.intarsys.nativec.type.NativeLongLP64;
 import de.intarsys.nativec.type.NativeString;
 import de.intarsys.nativec.type.NativeVoid;
 import de.intarsys.tools.concurrent.ThreadTools;
-import de.intarsys.tools.exception.ExceptionTools;
 
 /**
  * This {@link _IPCSC} API implementation is a simple wrapper to force all
- * requests in a single executor.
+ * requests in a dedicated worker thread.
  * 
  * This is an artifact needed as a workaround for bugs provided by some creative
  * hardware implementors drivers...
  * 
+ * Each SCARDCONTEXT is pinned to a worker ("lane") when it is established. All
+ * calls for this context and for the SCARDHANDLEs connected via this context
+ * are executed by this lane until the context is released. Released lanes are
+ * kept for reuse and retire after {@link #LANE_KEEP_ALIVE} milliseconds.
+ * 
+ * {@link #SCardCancel(SCARDCONTEXT)} is executed in the calling thread, as its
+ * very purpose is to interrupt a blocking call on the context lane.
+ * 
+ * Lanes are always platform threads. A caller waiting for its call only parks,
+ * so it may well be a virtual thread.
+ * 
+ * A caller interrupted while waiting abandons its call if possible and gets
+ * {@link _PCSC_RETURN_CODES#SCARD_E_CANCELLED}. A call still queued is
+ * dropped by the lane, except a disconnect or context release. A call already
+ * running is only left to the lane if it does not write to the caller's
+ * memory; a transaction begun for an abandoned call is ended again.
+ * 
  */
 public class _PCSCThreadedExecutor implements _IPCSC {
 
+	/**
+	 * A reusable call record. Each calling thread owns exactly one record, as it
+	 * is blocked until the call is complete. An abandoned record is left to the
+	 * lane and the thread gets a new one.
+	 */
+	private static class Call {
+
+		private static final int STATE_PENDING = 0;
+		private static final int STATE_RUNNING = 1;
+		private static final int STATE_DONE = 2;
+		private static final int STATE_ORPHANED = 3;
+
+		private static final int OP_BEGIN_TRANSACTION = 1;
+		private static final int OP_CONNECT = 2;
+		private static final int OP_CONTROL = 3;
+		private static final int OP_DISCONNECT = 4;
+		private static final int OP_END_TRANSACTION = 5;
+		private static final int OP_ESTABLISH_CONTEXT = 6;
+		private static final int OP_FREE_MEMORY = 7;
+		private static final int OP_GET_ATTRIB = 8;
+		private static final int OP_GET_STATUS_CHANGE = 9;
+		private static final int OP_LIST_READERS = 10;
+		private static final int OP_RECONNECT = 11;
+		private static final int OP_RELEASE_CONTEXT = 12;
+		private static final int OP_STATUS = 13;
+		private static final int OP_TRANSMIT = 14;
+		private static final int OP_IS_VALID_CONTEXT = 15;
+		private static final int OP_DISPATCH = 16;
+
+		private int op;
+
+		private SCARDCONTEXT context;
+
+		private SCARDHANDLE card;
+
+		private long l1;
+
+		private long l2;
+
+		private long l3;
+
+		private INativeHandle handle;
+
+		private Object o1;
+
+		private Object o2;
+
+		private Object o3;
+
+		private Object o4;
+
+		private Object o5;
+
+		private Object o6;
+
+		private int result;
+
+		private Throwable exception;
+
+		private Thread waiter;
+
+		private final AtomicInteger state = new AtomicInteger(STATE_DONE);
+
+		/**
+		 * Give up waiting for the call.
+		 * 
+		 * @return <code>true</code> if the call is now owned by the lane.
+		 */
+		protected boolean abandon() {
+			// cleanup must take place in any case
+			if (op == OP_DISCONNECT || op == OP_RELEASE_CONTEXT) {
+				return false;
+			}
+			if (state.compareAndSet(STATE_PENDING, STATE_ORPHANED)) {
+				return true;
+			}
+			// the lane may write to the memory of the caller
+			if (op == OP_BEGIN_TRANSACTION || op == OP_IS_VALID_CONTEXT) {
+				return state.compareAndSet(STATE_RUNNING, STATE_ORPHANED);
+			}
+			return false;
+		}
+
+		protected void execute(_IPCSC pcsc) {
+			if (!state.compareAndSet(STATE_PENDING, STATE_RUNNING)) {
+				// abandoned while queued
+				reset();
+				return;
+			}
+			try {
+				result = invoke(pcsc);
+			} catch (Throwable e) {
+				exception = e;
+			}
+			Thread tempWaiter = waiter;
+			if (!state.compareAndSet(STATE_RUNNING, STATE_DONE)) {
+				// abandoned while running
+				if (op == OP_BEGIN_TRANSACTION && exception == null && result == _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+					pcsc.SCardEndTransaction(card, _IPCSC.SCARD_LEAVE_CARD);
+				}
+				reset();
+				return;
+			}
+			LockSupport.unpark(tempWaiter);
+		}
+
+		protected int invoke(_IPCSC pcsc) {
+			switch (op) {
+			case OP_BEGIN_TRANSACTION:
+				return pcsc.SCardBeginTransaction(card);
+			case OP_CONNECT:
+				return pcsc.SCardConnect(context, (NativeString) o1, l1, l2, (NativeLongLP64) o2,
+						(NativePcscDword) o3);
+			case OP_CONTROL:
+				return pcsc.SCardControl(card, l1, (NativeBuffer) o1, l2, (NativeBuffer) o2, l3,
+						(NativePcscDword) o3);
+			case OP_DISCONNECT:
+				return pcsc.SCardDisconnect(card, l1);
+			case OP_DISPATCH:
+				// the calls of the task are reentrant now
+				return ((IntSupplier) o1).getAsInt();
+			case OP_END_TRANSACTION:
+				return pcsc.SCardEndTransaction(card, l1);
+			case OP_ESTABLISH_CONTEXT:
+				return pcsc.SCardEstablishContext(l1, (NativeLongLP64) o1);
+			case OP_FREE_MEMORY:
+				return pcsc.SCardFreeMemory(context, (NativeVoid) o1);
+			case OP_GET_ATTRIB:
+				return pcsc.SCardGetAttrib(card, l1, (NativeBuffer) o1, (NativePcscDword) o2);
+			case OP_GET_STATUS_CHANGE:
+				return pcsc.SCardGetStatusChange(context, l1, (INativeObject) o1, l2);
+			case OP_IS_VALID_CONTEXT:
+				return pcsc.SCardIsValidContext(context);
+			case OP_LIST_READERS:
+				return pcsc.SCardListReaders(context, (NativeString) o1, (INativeObject) o2,
+						(NativePcscDword) o3);
+			case OP_RECONNECT:
+				return pcsc.SCardReconnect(card, l1, l2, l3, (NativePcscDword) o1);
+			case OP_RELEASE_CONTEXT:
+				return pcsc.SCardReleaseContext(context);
+			case OP_STATUS:
+				return pcsc.SCardStatus(card, (INativeObject) o1, (NativePcscDword) o2, (NativePcscDword) o3,
+						(NativePcscDword) o4, (NativeBuffer) o5, (NativePcscDword) o6);
+			case OP_TRANSMIT:
+				return pcsc.SCardTransmit(card, handle, (INativeObject) o1, l1, (INativeObject) o2,
+						(NativeBuffer) o3, (NativePcscDword) o4);
+			default:
+				throw new IllegalStateException("unknown operation " + op); //$NON-NLS-1$
+			}
+		}
+
+		protected boolean isOrphaned() {
+			return state.get() == STATE_ORPHANED;
+		}
+
+		protected int join() {
+			boolean interrupted = false;
+			while (state.get() != STATE_DONE) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					interrupted = true;
+					if (abandon()) {
+						Thread.currentThread().interrupt();
+						return _PCSC_RETURN_CODES.SCARD_E_CANCELLED;
+					}
+					// the record is owned by the lane until done
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			Throwable tempException = exception;
+			int tempResult = result;
+			reset();
+			if (tempException instanceof RuntimeException) {
+				throw (RuntimeException) tempException;
+			}
+			if (tempException instanceof Error) {
+				throw (Error) tempException;
+			}
+			if (tempException != null) {
+				throw new RuntimeException(tempException);
+			}
+			return tempResult;
+		}
+
+		protected Call prepare(int pOp) {
+			op = pOp;
+			waiter = Thread.currentThread();
+			state.set(STATE_PENDING);
+			return this;
+		}
+
+		protected void reset() {
+			context = null;
+			card = null;
+			handle = null;
+			o1 = null;
+			o2 = null;
+			o3 = null;
+			o4 = null;
+			o5 = null;
+			o6 = null;
+			exception = null;
+			waiter = null;
+		}
+	}
+
+	/**
+	 * A single worker thread with its multiple producer / single consumer call
+	 * queue.
+	 */
+	private class Lane implements Runnable {
+
+		private static final int STATE_BOUND = 0;
+		private static final int STATE_IDLE = 1;
+		private static final int STATE_RETIRED = 2;
+
+		private final ConcurrentLinkedQueue<Call> queue = new ConcurrentLinkedQueue<>();
+
+		private final AtomicInteger backlog = new AtomicInteger();
+
+		private final AtomicInteger state = new AtomicInteger(STATE_BOUND);
+
+		private final Thread thread;
+
+		public Lane() {
+			thread = threadFactory.newThread(this);
+			thread.start();
+		}
+
+		protected int call(Call call) {
+			if (Thread.currentThread() == thread) {
+				// reentrant call from within the lane
+				call.execute(getPcsc());
+				return call.join();
+			}
+			if (backlog.incrementAndGet() > maxBacklog) {
+				backlog.decrementAndGet();
+				call.reset();
+				return _PCSC_RETURN_CODES.SCARD_E_SERVER_TOO_BUSY;
+			}
+			queue.offer(call);
+			LockSupport.unpark(thread);
+			int rc = call.join();
+			if (call.isOrphaned()) {
+				// the lane still refers to the record
+				calls.remove();
+			}
+			return rc;
+		}
+
+		protected boolean isRetired() {
+			return state.get() == STATE_RETIRED;
+		}
+
+		protected boolean reuse() {
+			return state.compareAndSet(STATE_IDLE, STATE_BOUND);
+		}
+
+		protected void release() {
+			if (state.compareAndSet(STATE_BOUND, STATE_IDLE)) {
+				idleLanes.push(this);
+				LockSupport.unpark(thread);
+			}
+		}
+
+		@Override
+		public void run() {
+			long idleSince = 0;
+			while (true) {
+				Call call = queue.poll();
+				if (call != null) {
+					backlog.decrementAndGet();
+					call.execute(getPcsc());
+					idleSince = 0;
+					continue;
+				}
+				if (state.get() != STATE_IDLE) {
+					idleSince = 0;
+					LockSupport.park(this);
+					continue;
+				}
+				long now = System.nanoTime();
+				if (idleSince == 0) {
+					idleSince = now;
+				}
+				long remaining = TimeUnit.MILLISECONDS.toNanos(LANE_KEEP_ALIVE) - (now - idleSince);
+				if (remaining > 0) {
+					LockSupport.parkNanos(this, remaining);
+					continue;
+				}
+				if (state.compareAndSet(STATE_IDLE, STATE_RETIRED)) {
+					idleLanes.remove(this);
+					// drain calls that raced with retirement
+					while ((call = queue.poll()) != null) {
+						backlog.decrementAndGet();
+						call.execute(getPcsc());
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The time an unused lane is kept for reuse.
+	 */
+	public static final long LANE_KEEP_ALIVE = 60000;
+
+	/**
+	 * The default number of calls waiting on a single lane.
+	 */
+	public static final int DEFAULT_MAX_BACKLOG = 64;
+
 	private final _IPCSC pcsc;
 
-	private final ExecutorService pcscExecutor;
+	private final ThreadFactory threadFactory;
+
+	private final int maxBacklog;
+
+	private final ThreadLocal<Call> calls = ThreadLocal.withInitial(Call::new);
+
+	private final ConcurrentLinkedDeque<Lane> idleLanes = new ConcurrentLinkedDeque<>();
+
+	private final Map<Long, Lane> contextLanes = new ConcurrentHashMap<>();
+
+	private final Map<Long, Lane> cardLanes = new ConcurrentHashMap<>();
+
+	/**
+	 * The lane for calls with a context or card handle that is unknown to us.
+	 */
+	private Lane defaultLane;
+
+	private final Object lock = new Object();
 
 	public _PCSCThreadedExecutor(_IPCSC pcsc) {
+		this(pcsc, DEFAULT_MAX_BACKLOG);
+	}
+
+	public _PCSCThreadedExecutor(_IPCSC pcsc, int maxBacklog) {
 		this.pcsc = pcsc;
-		pcscExecutor = Executors.newCachedThreadPool(ThreadTools.newThreadFactoryDaemon("pcsc worker queue")); //$NON-NLS-1$
+		this.maxBacklog = maxBacklog;
+		this.threadFactory = ThreadTools.newThreadFactoryDaemon("pcsc worker queue"); //$NON-NLS-1$
+	}
+
+	protected Lane acquireLane() {
+		Lane lane;
+		while ((lane = idleLanes.poll()) != null) {
+			if (lane.reuse()) {
+				return lane;
+			}
+		}
+		return new Lane();
+	}
+
+	protected int callCard(SCARDHANDLE card, Call call) {
+		return laneForCard(card).call(call);
+	}
+
+	protected int callContext(SCARDCONTEXT context, Call call) {
+		return laneForContext(context).call(call);
+	}
+
+	protected Call getCall() {
+		return calls.get();
+	}
+
+	protected Lane getDefaultLane() {
+		synchronized (lock) {
+			if (defaultLane == null || defaultLane.isRetired()) {
+				defaultLane = new Lane();
+			}
+			return defaultLane;
+		}
 	}
 
 	protected _IPCSC getPcsc() {
 		return pcsc;
 	}
 
+	/**
+	 * Execute <code>task</code> with a single hop to the lane of
+	 * <code>hCard</code>.
+	 */
 	@Override
-	public INativeHandle getSCARD_PCI_RAW() {
-		Callable<INativeHandle> callCallable;
-		Future<INativeHandle> callFuture;
+	public int dispatch(final SCARDHANDLE hCard, final IntSupplier task) {
+		Call call = getCall().prepare(Call.OP_DISPATCH);
+		call.card = hCard;
+		call.o1 = task;
+		return callCard(hCard, call);
+	}
 
-		callCallable = new Callable<INativeHandle>() {
-			@Override
-			public INativeHandle call() throws Exception {
-				return getPcsc().getSCARD_PCI_RAW();
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGet(callFuture);
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		// constant lookup, no need to dispatch
+		return getPcsc().getSCARD_PCI_RAW();
 	}
 
 	@Override
 	public INativeHandle getSCARD_PCI_T0() {
-		Callable<INativeHandle> callCallable;
-		Future<INativeHandle> callFuture;
-
-		callCallable = new Callable<INativeHandle>() {
-			@Override
-			public INativeHandle call() throws Exception {
-				return getPcsc().getSCARD_PCI_T0();
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGet(callFuture);
+		return getPcsc().getSCARD_PCI_T0();
 	}
 
 	@Override
 	public INativeHandle getSCARD_PCI_T1() {
-		Callable<INativeHandle> callCallable;
-		Future<INativeHandle> callFuture;
+		return getPcsc().getSCARD_PCI_T1();
+	}
 
-		callCallable = new Callable<INativeHandle>() {
-			@Override
-			public INativeHandle call() throws Exception {
-				return getPcsc().getSCARD_PCI_T1();
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGet(callFuture);
+	protected Lane laneForCard(SCARDHANDLE card) {
+		Lane lane = cardLanes.get(card.longValue());
+		return lane == null ? getDefaultLane() : lane;
+	}
+
+	protected Lane laneForContext(SCARDCONTEXT context) {
+		Lane lane = contextLanes.get(context.longValue());
+		return lane == null ? getDefaultLane() : lane;
 	}
 
 	@Override
 	public int SCardBeginTransaction(final SCARDHANDLE hCard) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardBeginTransaction(hCard);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_BEGIN_TRANSACTION);
+		call.card = hCard;
+		return callCard(hCard, call);
 	}
 
 	@Override
 	public int SCardCancel(final SCARDCONTEXT hContext) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardCancel(hContext);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		// must not wait for the lane that is blocked by the call to cancel
+		return getPcsc().SCardCancel(hContext);
 	}
 
 	@Override
 	public int SCardConnect(final SCARDCONTEXT context, final NativeString szReader, final long dwShareMode,
 			final long dwPreferredProtocols, final NativeLongLP64 phCard, final NativePcscDword pdwActiveProtocol) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardConnect(context, szReader, dwShareMode, dwPreferredProtocols, phCard,
-						pdwActiveProtocol);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Lane lane = laneForContext(context);
+		Call call = getCall().prepare(Call.OP_CONNECT);
+		call.context = context;
+		call.o1 = szReader;
+		call.l1 = dwShareMode;
+		call.l2 = dwPreferredProtocols;
+		call.o2 = phCard;
+		call.o3 = pdwActiveProtocol;
+		int rc = lane.call(call);
+		if (rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+			cardLanes.put(phCard.longValue(), lane);
+		}
+		return rc;
 	}
 
 	@Override
 	public int SCardControl(final SCARDHANDLE card, final long dwControlCode, final NativeBuffer lpInBuffer,
 			final long inBufferSize, final NativeBuffer lpOutBuffer, final long outBufferSize,
 			final NativePcscDword lpBytesReturned) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardControl(card, dwControlCode, lpInBuffer, inBufferSize, lpOutBuffer, outBufferSize,
-						lpBytesReturned);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_CONTROL);
+		call.card = card;
+		call.l1 = dwControlCode;
+		call.o1 = lpInBuffer;
+		call.l2 = inBufferSize;
+		call.o2 = lpOutBuffer;
+		call.l3 = outBufferSize;
+		call.o3 = lpBytesReturned;
+		return callCard(card, call);
 	}
 
 	@Override
 	public int SCardDisconnect(final SCARDHANDLE card, final long dwDisposition) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardDisconnect(card, dwDisposition);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_DISCONNECT);
+		call.card = card;
+		call.l1 = dwDisposition;
+		int rc = callCard(card, call);
+		cardLanes.remove(card.longValue());
+		return rc;
 	}
 
 	@Override
 	public int SCardEndTransaction(final SCARDHANDLE card, final long dwDisposition) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardEndTransaction(card, dwDisposition);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_END_TRANSACTION);
+		call.card = card;
+		call.l1 = dwDisposition;
+		return callCard(card, call);
 	}
 
 	@Override
 	public int SCardEstablishContext(final long dwScope, final NativeLongLP64 phContext) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardEstablishContext(dwScope, phContext);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Lane lane = acquireLane();
+		Call call = getCall().prepare(Call.OP_ESTABLISH_CONTEXT);
+		call.l1 = dwScope;
+		call.o1 = phContext;
+		int rc;
+		try {
+			rc = lane.call(call);
+		} catch (RuntimeException | Error e) {
+			lane.release();
+			throw e;
+		}
+		if (rc == _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+			contextLanes.put(phContext.longValue(), lane);
+		} else {
+			lane.release();
+		}
+		return rc;
 	}
 
 	@Override
 	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
 		// not sure, if we really want to put "free memory" into an executor
-		Callable<Integer> callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardFreeMemory(hContext, pvMem);
-			}
-		};
-		Future<Integer> callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_FREE_MEMORY);
+		call.context = hContext;
+		call.o1 = pvMem;
+		return callContext(hContext, call);
 	}
 
 	@Override
 	public int SCardGetAttrib(final SCARDHANDLE hCard, final long dwAttrId, final NativeBuffer pbAttr,
 			final NativePcscDword pcbAttrLength) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardGetAttrib(hCard, dwAttrId, pbAttr, pcbAttrLength);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_GET_ATTRIB);
+		call.card = hCard;
+		call.l1 = dwAttrId;
+		call.o1 = pbAttr;
+		call.o2 = pcbAttrLength;
+		return callCard(hCard, call);
 	}
 
 	@Override
 	public int SCardGetStatusChange(final SCARDCONTEXT context, final long dwTimeout,
 			final INativeObject rgReaderStates, final long readers) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
+		Call call = getCall().prepare(Call.OP_GET_STATUS_CHANGE);
+		call.context = context;
+		call.l1 = dwTimeout;
+		call.o1 = rgReaderStates;
+		call.l2 = readers;
+		return callContext(context, call);
+	}
 
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardGetStatusChange(context, dwTimeout, rgReaderStates, readers);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+	@Override
+	public int SCardIsValidContext(final SCARDCONTEXT hContext) {
+		Call call = getCall().prepare(Call.OP_IS_VALID_CONTEXT);
+		call.context = hContext;
+		return callContext(hContext, call);
 	}
 
 	@Override
 	public int SCardListReaders(final SCARDCONTEXT context, final NativeString mszGroups,
 			final INativeObject mszReaders, final NativePcscDword pcchReaders) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardListReaders(context, mszGroups, mszReaders, pcchReaders);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_LIST_READERS);
+		call.context = context;
+		call.o1 = mszGroups;
+		call.o2 = mszReaders;
+		call.o3 = pcchReaders;
+		return callContext(context, call);
 	}
 
 	@Override
 	public int SCardReconnect(final SCARDHANDLE hCard, final long dwShareMode, final long dwPreferredProtocols,
 			final long dwInitialization, final NativePcscDword pdwActiveProtocol) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardReconnect(hCard, dwShareMode, dwPreferredProtocols, dwInitialization,
-						pdwActiveProtocol);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_RECONNECT);
+		call.card = hCard;
+		call.l1 = dwShareMode;
+		call.l2 = dwPreferredProtocols;
+		call.l3 = dwInitialization;
+		call.o1 = pdwActiveProtocol;
+		return callCard(hCard, call);
 	}
 
 	@Override
 	public int SCardReleaseContext(final SCARDCONTEXT context) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardReleaseContext(context);
+		Lane lane = contextLanes.get(context.longValue());
+		Call call = getCall().prepare(Call.OP_RELEASE_CONTEXT);
+		call.context = context;
+		try {
+			return lane == null ? getDefaultLane().call(call) : lane.call(call);
+		} finally {
+			if (lane != null) {
+				// handles of a released context are invalid
+				cardLanes.values().removeIf(value -> value == lane);
+				contextLanes.remove(context.longValue());
+				lane.release();
 			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		}
 	}
 
 	@Override
 	public int SCardStatus(final SCARDHANDLE hCard, final INativeObject szReaderName,
 			final NativePcscDword pcchReaderLen, final NativePcscDword pdwState, final NativePcscDword pdwProtocol,
 			final NativeBuffer pbAtr, final NativePcscDword pcbAtrLen) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardStatus(hCard, szReaderName, pcchReaderLen, pdwState, pdwProtocol, pbAtr,
-						pcbAtrLen);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_STATUS);
+		call.card = hCard;
+		call.o1 = szReaderName;
+		call.o2 = pcchReaderLen;
+		call.o3 = pdwState;
+		call.o4 = pdwProtocol;
+		call.o5 = pbAtr;
+		call.o6 = pcbAtrLen;
+		return callCard(hCard, call);
 	}
 
 	@Override
 	public int SCardTransmit(final SCARDHANDLE card, final INativeHandle pioSendPci, final INativeObject pbSendBuffer,
 			final long cbSendLength, final INativeObject pioRecvPci, final NativeBuffer pbRecvBuffer,
 			final NativePcscDword pcbRecvLength) {
-		Callable<Integer> callCallable;
-		Future<Integer> callFuture;
-
-		callCallable = new Callable<Integer>() {
-			@Override
-			public Integer call() throws Exception {
-				return getPcsc().SCardTransmit(card, pioSendPci, pbSendBuffer, cbSendLength, pioRecvPci, pbRecvBuffer,
-						pcbRecvLength);
-			}
-		};
-		callFuture = pcscExecutor.submit(callCallable);
-		return ExceptionTools.futureSimpleGetNumber(callFuture);
+		Call call = getCall().prepare(Call.OP_TRANSMIT);
+		call.card = card;
+		call.handle = pioSendPci;
+		call.o1 = pbSendBuffer;
+		call.l1 = cbSendLength;
+		call.o2 = pioRecvPci;
+		call.o3 = pbRecvBuffer;
+		call.o4 = pcbRecvLength;
+		return callCard(card, call);
 	}
 
 }
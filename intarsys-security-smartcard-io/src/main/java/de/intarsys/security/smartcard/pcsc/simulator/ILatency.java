@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.simulator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The time a simulated PC/SC call takes.
+ */
+@FunctionalInterface
+public interface ILatency {
+
+	/**
+	 * No delay at all.
+	 */
+	public static final ILatency NONE = () -> 0;
+
+	/**
+	 * A constant delay.
+	 * 
+	 * @param nanos
+	 * @return A constant delay.
+	 */
+	public static ILatency fixed(long nanos) {
+		return () -> nanos;
+	}
+
+	/**
+	 * A normal distributed delay, negative values are cut off.
+	 * 
+	 * @param meanNanos
+	 * @param deviationNanos
+	 * @return A normal distributed delay.
+	 */
+	public static ILatency normal(long meanNanos, long deviationNanos) {
+		return () -> Math.max(0,
+				meanNanos + (long) (ThreadLocalRandom.current().nextGaussian() * deviationNanos));
+	}
+
+	/**
+	 * A uniformly distributed delay.
+	 * 
+	 * @param minNanos
+	 * @param maxNanos
+	 * @return A uniformly distributed delay.
+	 */
+	public static ILatency uniform(long minNanos, long maxNanos) {
+		return () -> ThreadLocalRandom.current().nextLong(minNanos, maxNanos + 1);
+	}
+
+	/**
+	 * The next delay in nanoseconds.
+	 * 
+	 * @return The next delay in nanoseconds.
+	 */
+	public long nextNanos();
+
+}
@@ -0,0 +1,1019 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.simulator;
+
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_CANCELLED;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_INSUFFICIENT_BUFFER;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_INVALID_HANDLE;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_NOT_TRANSACTED;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_NO_READERS_AVAILABLE;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_NO_SMARTCARD;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_PROTO_MISMATCH;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_READER_UNAVAILABLE;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_SHARING_VIOLATION;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_TIMEOUT;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_UNKNOWN_READER;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_UNSUPPORTED_FEATURE;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_S_SUCCESS;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_W_REMOVED_CARD;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_W_RESET_CARD;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.INativeObject;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.nativec.type.NativeVoid;
+import de.intarsys.security.smartcard.pcsc.PCSCAttribute;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * A pure Java {@link _IPCSC} implementation for testing and benchmarking
+ * without card readers.
+ * <p>
+ * The simulator manages a set of {@link SimulatedReader} instances. Cards are
+ * inserted and removed at will, their behavior is defined by an
+ * {@link ICardEmulation}. Each PC/SC function can be given an
+ * {@link ILatency} to model the time spent in the PC/SC service and the card.
+ * <p>
+ * The simulation covers
+ * <ul>
+ * <li>insertion and removal events for SCardGetStatusChange, including the PnP
+ * notification pseudo reader,</li>
+ * <li>shared, exclusive and direct connections, including
+ * SCARD_E_SHARING_VIOLATION,</li>
+ * <li>transactions, blocking other connections to the same card until
+ * ended,</li>
+ * <li>card reset and removal as seen by other connections.</li>
+ * </ul>
+ * <p>
+ * Use {@link SimulatorPCSCLib} to install the simulator.
+ */
+public class PCSCSimulator implements _IPCSC {
+
+	private static class Context {
+
+		private final long id;
+
+		private int cancelCount;
+
+		protected Context(long id) {
+			this.id = id;
+		}
+	}
+
+	private static class Handle {
+
+		private final long id;
+
+		private final Context context;
+
+		private final SimulatedReader reader;
+
+		private SimulatedCard card;
+
+		private int insertion;
+
+		private int resetCounter;
+
+		private int shareMode;
+
+		private int protocol;
+
+		protected Handle(long id, Context context, SimulatedReader reader) {
+			this.id = id;
+			this.context = context;
+			this.reader = reader;
+		}
+	}
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	/*
+	 * values for the SCardStatus dwState parameter
+	 */
+	private static final int SCARD_ABSENT = 1;
+
+	private static final int SCARD_SWALLOWED = 3;
+
+	private static final int SCARD_SPECIFIC = 6;
+
+	private static final long INFINITE = 0xFFFFFFFFL;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition changed = lock.newCondition();
+
+	private final Map<String, SimulatedReader> readers = new LinkedHashMap<>();
+
+	private final Map<Long, Context> contexts = new HashMap<>();
+
+	private final Map<Long, Handle> handles = new HashMap<>();
+
+	private int pnpCounter;
+
+	private final AtomicLong ids = new AtomicLong(0x1000);
+
+	/**
+	 * Native memory handed out with SCARD_AUTOALLOCATE, by address.
+	 */
+	private final Map<Long, NativeBuffer> allocations = new ConcurrentHashMap<>();
+
+	private final Map<String, ILatency> latencies = new ConcurrentHashMap<>();
+
+	private volatile ILatency defaultLatency = ILatency.NONE;
+
+	public PCSCSimulator() {
+		super();
+	}
+
+	/**
+	 * Add a new empty reader.
+	 * 
+	 * @param name
+	 * @return The new reader.
+	 */
+	public SimulatedReader addReader(String name) {
+		lock.lock();
+		try {
+			if (readers.containsKey(name)) {
+				throw new IllegalArgumentException("reader '" + name + "' already exists"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			SimulatedReader reader = new SimulatedReader(this, name);
+			readers.put(name, reader);
+			pnpCounter++;
+			changed.signalAll();
+			Log.debug("{} added {}", this, reader); //$NON-NLS-1$
+			return reader;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the card is available for <code>handle</code>, this is when
+	 * no other connection holds a transaction.
+	 * 
+	 * @param handle
+	 * @return A return code
+	 */
+	protected int awaitCard(Handle handle) {
+		while (true) {
+			int rc = checkCard(handle);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			Object owner = handle.reader.transactionOwner;
+			if (owner == null || owner == handle) {
+				return SCARD_S_SUCCESS;
+			}
+			changed.awaitUninterruptibly();
+		}
+	}
+
+	protected int checkCard(Handle handle) {
+		if (handles.get(handle.id) != handle) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		SimulatedReader reader = handle.reader;
+		if (reader.removed) {
+			return SCARD_E_READER_UNAVAILABLE;
+		}
+		if (handle.card == null) {
+			return SCARD_E_NO_SMARTCARD;
+		}
+		if (reader.card != handle.card || reader.insertion != handle.insertion) {
+			return SCARD_W_REMOVED_CARD;
+		}
+		if (reader.resetCounter != handle.resetCounter) {
+			return SCARD_W_RESET_CARD;
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	protected int checkSharing(SimulatedReader reader, Handle self, int shareMode) {
+		for (Handle other : handles.values()) {
+			if (other == self || other.reader != reader) {
+				continue;
+			}
+			if (other.shareMode == SCARD_SHARE_EXCLUSIVE || shareMode == SCARD_SHARE_EXCLUSIVE) {
+				return SCARD_E_SHARING_VIOLATION;
+			}
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	/**
+	 * Simulate the time spent in <code>function</code>.
+	 * 
+	 * @param function
+	 */
+	protected void delay(String function) {
+		ILatency latency = latencies.getOrDefault(function, defaultLatency);
+		long nanos = latency.nextNanos();
+		if (nanos <= 0) {
+			return;
+		}
+		long deadline = System.nanoTime() + nanos;
+		while (nanos > 0) {
+			LockSupport.parkNanos(this, nanos);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	public SimulatedCard getCard(SimulatedReader reader) {
+		lock.lock();
+		try {
+			return reader.card;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public ILatency getDefaultLatency() {
+		return defaultLatency;
+	}
+
+	public ILatency getLatency(String function) {
+		return latencies.get(function);
+	}
+
+	public SimulatedReader getReader(String name) {
+		lock.lock();
+		try {
+			return readers.get(name);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public List<SimulatedReader> getReaders() {
+		lock.lock();
+		try {
+			return new ArrayList<>(readers.values());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected int getReaderState(SimulatedReader reader) {
+		int state;
+		if (reader.removed) {
+			return SCARD_STATE_UNKNOWN | SCARD_STATE_IGNORE;
+		}
+		if (reader.card == null) {
+			state = SCARD_STATE_EMPTY;
+		} else {
+			state = SCARD_STATE_PRESENT;
+			for (Handle handle : handles.values()) {
+				if (handle.reader == reader) {
+					if (handle.shareMode == SCARD_SHARE_EXCLUSIVE) {
+						state = SCARD_STATE_PRESENT | SCARD_STATE_EXCLUSIVE;
+						break;
+					}
+					state = SCARD_STATE_PRESENT | SCARD_STATE_INUSE;
+				}
+			}
+		}
+		// the event counter is reported in the high word
+		return state | ((reader.eventCounter & 0xFFFF) << 16);
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		return null;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T0() {
+		return null;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T1() {
+		return null;
+	}
+
+	/**
+	 * Insert <code>card</code> in <code>reader</code>.
+	 * 
+	 * @param reader
+	 * @param card
+	 */
+	public void insertCard(SimulatedReader reader, SimulatedCard card) {
+		lock.lock();
+		try {
+			reader.card = card;
+			reader.insertion++;
+			reader.eventCounter++;
+			reader.transactionOwner = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (card != null) {
+			resetEmulation(card);
+		}
+		Log.debug("{} inserted card in {}", this, reader); //$NON-NLS-1$
+	}
+
+	/**
+	 * Insert <code>card</code> in the reader <code>readerName</code>.
+	 * 
+	 * @param readerName
+	 * @param card
+	 */
+	public void insertCard(String readerName, SimulatedCard card) {
+		SimulatedReader reader = getReader(readerName);
+		if (reader == null) {
+			throw new IllegalArgumentException("unknown reader '" + readerName + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		insertCard(reader, card);
+	}
+
+	protected boolean isInfinite(long timeout) {
+		return timeout < 0 || timeout == INFINITE;
+	}
+
+	/**
+	 * Remove the card from <code>reader</code>.
+	 * 
+	 * @param reader
+	 */
+	public void removeCard(SimulatedReader reader) {
+		lock.lock();
+		try {
+			if (reader.card == null) {
+				return;
+			}
+			reader.card = null;
+			reader.eventCounter++;
+			reader.transactionOwner = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		Log.debug("{} removed card from {}", this, reader); //$NON-NLS-1$
+	}
+
+	/**
+	 * Remove the card from the reader <code>readerName</code>.
+	 * 
+	 * @param readerName
+	 */
+	public void removeCard(String readerName) {
+		SimulatedReader reader = getReader(readerName);
+		if (reader != null) {
+			removeCard(reader);
+		}
+	}
+
+	/**
+	 * Unplug the reader <code>name</code>.
+	 * 
+	 * @param name
+	 */
+	public void removeReader(String name) {
+		lock.lock();
+		try {
+			SimulatedReader reader = readers.remove(name);
+			if (reader == null) {
+				return;
+			}
+			reader.removed = true;
+			reader.card = null;
+			reader.transactionOwner = null;
+			pnpCounter++;
+			changed.signalAll();
+			Log.debug("{} removed {}", this, reader); //$NON-NLS-1$
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void resetCard(SimulatedReader reader) {
+		reader.resetCounter++;
+		reader.transactionOwner = null;
+	}
+
+	protected void resetEmulation(SimulatedCard card) {
+		ICardEmulation emulation = card.getEmulation();
+		if (emulation != null) {
+			synchronized (card) {
+				emulation.reset();
+			}
+		}
+	}
+
+	@Override
+	public int SCardBeginTransaction(SCARDHANDLE hCard) {
+		delay("SCardBeginTransaction"); //$NON-NLS-1$
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			int rc = awaitCard(handle);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			handle.reader.transactionOwner = handle;
+			return SCARD_S_SUCCESS;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardCancel(SCARDCONTEXT hContext) {
+		lock.lock();
+		try {
+			Context context = contexts.get(hContext.longValue());
+			if (context == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			context.cancelCount++;
+			changed.signalAll();
+			return SCARD_S_SUCCESS;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardConnect(SCARDCONTEXT hContext, NativeString szReader, long dwShareMode, long dwPreferredProtocols,
+			NativeLongLP64 phCard, NativePcscDword pdwActiveProtocol) {
+		delay("SCardConnect"); //$NON-NLS-1$
+		String readerName = szReader.stringValue();
+		lock.lock();
+		try {
+			Context context = contexts.get(hContext.longValue());
+			if (context == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			SimulatedReader reader = readers.get(readerName);
+			if (reader == null) {
+				return SCARD_E_UNKNOWN_READER;
+			}
+			SimulatedCard card = reader.card;
+			int protocol = 0;
+			if (dwShareMode != SCARD_SHARE_DIRECT) {
+				if (card == null) {
+					return SCARD_E_NO_SMARTCARD;
+				}
+				protocol = card.selectProtocol((int) dwPreferredProtocols);
+				if (protocol == 0) {
+					return SCARD_E_PROTO_MISMATCH;
+				}
+			} else if (card != null && dwPreferredProtocols != SCARD_PROTOCOL_UNDEFINED) {
+				protocol = card.selectProtocol((int) dwPreferredProtocols);
+			}
+			int rc = checkSharing(reader, null, (int) dwShareMode);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			Handle handle = new Handle(ids.incrementAndGet(), context, reader);
+			handle.card = card;
+			handle.insertion = reader.insertion;
+			handle.resetCounter = reader.resetCounter;
+			handle.shareMode = (int) dwShareMode;
+			handle.protocol = protocol;
+			handles.put(handle.id, handle);
+			changed.signalAll();
+			phCard.setValue(handle.id);
+			pdwActiveProtocol.setValue(protocol);
+			return SCARD_S_SUCCESS;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardControl(SCARDHANDLE hCard, long dwControlCode, NativeBuffer lpInBuffer, long nInBufferSize,
+			NativeBuffer lpOutBuffer, long nOutBufferSize, NativePcscDword lpBytesReturned) {
+		delay("SCardControl"); //$NON-NLS-1$
+		SimulatedReader reader;
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			if (handle.reader.removed) {
+				return SCARD_E_READER_UNAVAILABLE;
+			}
+			reader = handle.reader;
+		} finally {
+			lock.unlock();
+		}
+		SimulatedReader.IControlHandler handler = reader.getControlHandler();
+		if (handler == null) {
+			return SCARD_E_UNSUPPORTED_FEATURE;
+		}
+		byte[] input = lpInBuffer == null || nInBufferSize == 0 ? new byte[0]
+				: lpInBuffer.getByteArray(0, (int) nInBufferSize);
+		byte[] output = handler.control((int) dwControlCode, input);
+		if (output == null) {
+			return SCARD_E_UNSUPPORTED_FEATURE;
+		}
+		if (output.length > nOutBufferSize) {
+			lpBytesReturned.setValue(output.length);
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		if (output.length > 0) {
+			lpOutBuffer.setByteArray(0, output, 0, output.length);
+		}
+		lpBytesReturned.setValue(output.length);
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardDisconnect(SCARDHANDLE hCard, long dwDisposition) {
+		delay("SCardDisconnect"); //$NON-NLS-1$
+		SimulatedCard resetCard = null;
+		lock.lock();
+		try {
+			Handle handle = handles.remove(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			SimulatedReader reader = handle.reader;
+			if (reader.transactionOwner == handle) {
+				reader.transactionOwner = null;
+			}
+			if (dwDisposition != SCARD_LEAVE_CARD && reader.card != null && reader.card == handle.card) {
+				resetCard(reader);
+				resetCard = reader.card;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (resetCard != null) {
+			resetEmulation(resetCard);
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardEndTransaction(SCARDHANDLE hCard, long dwDisposition) {
+		delay("SCardEndTransaction"); //$NON-NLS-1$
+		SimulatedCard resetCard = null;
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			SimulatedReader reader = handle.reader;
+			int rc = checkCard(handle);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			if (reader.transactionOwner != handle) {
+				return SCARD_E_NOT_TRANSACTED;
+			}
+			reader.transactionOwner = null;
+			if (dwDisposition != SCARD_LEAVE_CARD) {
+				resetCard(reader);
+				// the caller's view is still valid
+				handle.resetCounter = reader.resetCounter;
+				resetCard = reader.card;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (resetCard != null) {
+			resetEmulation(resetCard);
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardEstablishContext(long dwScope, NativeLongLP64 phContext) {
+		delay("SCardEstablishContext"); //$NON-NLS-1$
+		lock.lock();
+		try {
+			Context context = new Context(ids.incrementAndGet());
+			contexts.put(context.id, context);
+			phContext.setValue(context.id);
+			return SCARD_S_SUCCESS;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
+		if (pvMem == null || allocations.remove(pvMem.getNativeHandle().getAddress()) == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardGetAttrib(SCARDHANDLE hCard, long dwAttrId, NativeBuffer pbAttr,
+			NativePcscDword pcbAttrLength) {
+		delay("SCardGetAttrib"); //$NON-NLS-1$
+		byte[] value;
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			if (handle.reader.removed) {
+				return SCARD_E_READER_UNAVAILABLE;
+			}
+			if (dwAttrId == PCSCAttribute.SCARD_ATTR_ATR_STRING) {
+				if (handle.reader.card == null) {
+					return SCARD_W_REMOVED_CARD;
+				}
+				value = handle.reader.card.getAtr();
+			} else {
+				value = handle.reader.getAttrib((int) dwAttrId);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (value == null) {
+			return SCARD_E_UNSUPPORTED_FEATURE;
+		}
+		return writeBuffer(pbAttr, pcbAttrLength, value);
+	}
+
+	@Override
+	public int SCardGetStatusChange(SCARDCONTEXT hContext, long dwTimeout, INativeObject rgReaderStates,
+			long cReaders) {
+		delay("SCardGetStatusChange"); //$NON-NLS-1$
+		int count = (int) cReaders;
+		SCARD_READERSTATE[] states = new SCARD_READERSTATE[count];
+		String[] names = new String[count];
+		int[] currentStates = new int[count];
+		int size = SCARD_READERSTATE.META.getByteCount();
+		for (int i = 0; i < count; i++) {
+			states[i] = (SCARD_READERSTATE) SCARD_READERSTATE.META
+					.createNative(rgReaderStates.getNativeHandle().offset(i * size));
+			names[i] = states[i].getReader();
+			currentStates[i] = states[i].getCurrentState();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(dwTimeout);
+		lock.lock();
+		try {
+			Context context = contexts.get(hContext.longValue());
+			if (context == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			int cancelCount = context.cancelCount;
+			int[] newStates = new int[count];
+			while (true) {
+				boolean any = false;
+				for (int i = 0; i < count; i++) {
+					if (SCARD_PNP_NOTIFICATION.equals(names[i])) {
+						newStates[i] = (pnpCounter & 0xFFFF) << 16;
+					} else {
+						SimulatedReader reader = readers.get(names[i]);
+						newStates[i] = reader == null ? SCARD_STATE_UNKNOWN | SCARD_STATE_IGNORE
+								: getReaderState(reader);
+					}
+					if ((currentStates[i] & SCARD_STATE_IGNORE) != 0 && newStates[i] != SCARD_STATE_UNAWARE) {
+						continue;
+					}
+					if (currentStates[i] == SCARD_STATE_UNAWARE
+							|| (currentStates[i] & ~SCARD_STATE_CHANGED) != newStates[i]) {
+						newStates[i] |= SCARD_STATE_CHANGED;
+						any = true;
+					}
+				}
+				if (any) {
+					for (int i = 0; i < count; i++) {
+						states[i].setEventState(newStates[i]);
+						SimulatedReader reader = readers.get(names[i]);
+						if (reader != null && reader.card != null) {
+							states[i].setATR(reader.card.getAtr());
+						} else {
+							states[i].setATR(null);
+						}
+					}
+					return SCARD_S_SUCCESS;
+				}
+				if (context.cancelCount != cancelCount || contexts.get(context.id) != context) {
+					return SCARD_E_CANCELLED;
+				}
+				if (isInfinite(dwTimeout)) {
+					changed.awaitUninterruptibly();
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return SCARD_E_TIMEOUT;
+					}
+					try {
+						changed.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return SCARD_E_CANCELLED;
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardIsValidContext(SCARDCONTEXT hContext) {
+		lock.lock();
+		try {
+			return contexts.containsKey(hContext.longValue()) ? SCARD_S_SUCCESS : SCARD_E_INVALID_HANDLE;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardListReaders(SCARDCONTEXT hContext, NativeString mszGroups, INativeObject mszReaders,
+			NativePcscDword pcchReaders) {
+		delay("SCardListReaders"); //$NON-NLS-1$
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		lock.lock();
+		try {
+			if (!contexts.containsKey(hContext.longValue())) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			if (readers.isEmpty()) {
+				return SCARD_E_NO_READERS_AVAILABLE;
+			}
+			for (String name : readers.keySet()) {
+				byte[] bytes = name.getBytes();
+				names.write(bytes, 0, bytes.length);
+				names.write(0);
+			}
+		} finally {
+			lock.unlock();
+		}
+		names.write(0);
+		return writeBuffer(mszReaders, pcchReaders, names.toByteArray());
+	}
+
+	@Override
+	public int SCardReconnect(SCARDHANDLE hCard, long dwShareMode, long dwPreferredProtocols, long dwInitialization,
+			NativePcscDword pdwActiveProtocol) {
+		delay("SCardReconnect"); //$NON-NLS-1$
+		SimulatedCard resetCard = null;
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			SimulatedReader reader = handle.reader;
+			if (reader.removed) {
+				return SCARD_E_READER_UNAVAILABLE;
+			}
+			if (reader.card == null) {
+				return SCARD_E_NO_SMARTCARD;
+			}
+			int rc = checkSharing(reader, handle, (int) dwShareMode);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			int protocol = reader.card.selectProtocol((int) dwPreferredProtocols);
+			if (protocol == 0 && dwShareMode != SCARD_SHARE_DIRECT) {
+				return SCARD_E_PROTO_MISMATCH;
+			}
+			if (dwInitialization != SCARD_LEAVE_CARD) {
+				resetCard(reader);
+				resetCard = reader.card;
+			}
+			handle.card = reader.card;
+			handle.insertion = reader.insertion;
+			handle.resetCounter = reader.resetCounter;
+			handle.shareMode = (int) dwShareMode;
+			handle.protocol = protocol;
+			changed.signalAll();
+			pdwActiveProtocol.setValue(protocol);
+		} finally {
+			lock.unlock();
+		}
+		if (resetCard != null) {
+			resetEmulation(resetCard);
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardReleaseContext(SCARDCONTEXT hContext) {
+		delay("SCardReleaseContext"); //$NON-NLS-1$
+		lock.lock();
+		try {
+			Context context = contexts.remove(hContext.longValue());
+			if (context == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			// connections die with their context
+			for (Iterator<Handle> it = handles.values().iterator(); it.hasNext();) {
+				Handle handle = it.next();
+				if (handle.context == context) {
+					if (handle.reader.transactionOwner == handle) {
+						handle.reader.transactionOwner = null;
+					}
+					it.remove();
+				}
+			}
+			changed.signalAll();
+			return SCARD_S_SUCCESS;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int SCardStatus(SCARDHANDLE hCard, INativeObject szReaderName, NativePcscDword pcchReaderLen,
+			NativePcscDword pdwState, NativePcscDword pdwProtocol, NativeBuffer pbAtr, NativePcscDword pcbAtrLen) {
+		delay("SCardStatus"); //$NON-NLS-1$
+		String readerName;
+		byte[] atr;
+		int state;
+		int protocol;
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			int rc = checkCard(handle);
+			if (rc != SCARD_S_SUCCESS && rc != SCARD_E_NO_SMARTCARD) {
+				return rc;
+			}
+			readerName = handle.reader.getName();
+			SimulatedCard card = handle.reader.card;
+			atr = card == null ? new byte[0] : card.getAtr();
+			if (card == null) {
+				state = SCARD_ABSENT;
+			} else if (handle.protocol == 0) {
+				state = SCARD_SWALLOWED;
+			} else {
+				state = SCARD_SPECIFIC;
+			}
+			protocol = handle.protocol;
+		} finally {
+			lock.unlock();
+		}
+		byte[] nameBytes = (readerName + "\0\0").getBytes(); //$NON-NLS-1$
+		int rc = writeBuffer(szReaderName, pcchReaderLen, nameBytes);
+		if (rc != SCARD_S_SUCCESS) {
+			return rc;
+		}
+		if (pdwState != null) {
+			pdwState.setValue(state);
+		}
+		if (pdwProtocol != null) {
+			pdwProtocol.setValue(protocol);
+		}
+		if (pcbAtrLen != null) {
+			return writeBuffer(pbAtr, pcbAtrLen, atr);
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardTransmit(SCARDHANDLE hCard, INativeHandle pioSendPci, INativeObject pbSendBuffer,
+			long cbSendLength, INativeObject pioRecvPci, NativeBuffer pbRecvBuffer, NativePcscDword pcbRecvLength) {
+		delay("SCardTransmit"); //$NON-NLS-1$
+		byte[] request = pbSendBuffer.getNativeHandle().getByteArray(0, (int) cbSendLength);
+		SimulatedCard card;
+		lock.lock();
+		try {
+			Handle handle = handles.get(hCard.longValue());
+			if (handle == null) {
+				return SCARD_E_INVALID_HANDLE;
+			}
+			// a transaction of some other connection blocks
+			int rc = awaitCard(handle);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			card = handle.card;
+		} finally {
+			lock.unlock();
+		}
+		ICardEmulation emulation = card.getEmulation();
+		if (emulation == null) {
+			return SCARD_E_UNSUPPORTED_FEATURE;
+		}
+		byte[] response;
+		synchronized (card) {
+			response = emulation.transmit(request);
+		}
+		if (response.length > pcbRecvLength.intValue()) {
+			pcbRecvLength.setValue(response.length);
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		pbRecvBuffer.setByteArray(0, response, 0, response.length);
+		pcbRecvLength.setValue(response.length);
+		return SCARD_S_SUCCESS;
+	}
+
+	public void setDefaultLatency(ILatency defaultLatency) {
+		this.defaultLatency = defaultLatency == null ? ILatency.NONE : defaultLatency;
+	}
+
+	/**
+	 * Define the latency for the PC/SC <code>function</code>, for example
+	 * "SCardTransmit".
+	 * 
+	 * @param function
+	 * @param latency
+	 */
+	public void setLatency(String function, ILatency latency) {
+		if (latency == null) {
+			latencies.remove(function);
+		} else {
+			latencies.put(function, latency);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PC/SC simulator"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Copy <code>value</code> to a PC/SC output buffer, following the
+	 * SCARD_AUTOALLOCATE and "query size" conventions.
+	 * 
+	 * @param buffer
+	 * @param length
+	 * @param value
+	 * @return A return code
+	 */
+	protected int writeBuffer(INativeObject buffer, NativePcscDword length, byte[] value) {
+		if (length.intValue() == SCARD_AUTOALLOCATE) {
+			NativeBuffer allocated = new NativeBuffer(Math.max(1, value.length));
+			allocated.setByteArray(0, value, 0, value.length);
+			allocations.put(allocated.getNativeHandle().getAddress(), allocated);
+			buffer.getNativeHandle().setNativeHandle(0, allocated.getNativeHandle());
+			length.setValue(value.length);
+			return SCARD_S_SUCCESS;
+		}
+		if (buffer == null) {
+			length.setValue(value.length);
+			return SCARD_S_SUCCESS;
+		}
+		if (length.intValue() < value.length) {
+			length.setValue(value.length);
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		buffer.getNativeHandle().setByteArray(0, value, 0, value.length);
+		length.setValue(value.length);
+		return SCARD_S_SUCCESS;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.simulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * An {@link ICardEmulation} answering APDUs from a list of rules.
+ * 
+ * A rule matches either the complete request or a request prefix (for example
+ * the header only). The first matching rule wins. If no rule matches, the
+ * default response is returned, "6D00" (instruction not supported) unless
+ * defined otherwise.
+ */
+public class RuleCardEmulation implements ICardEmulation {
+
+	private static class Rule {
+
+		private final byte[] request;
+
+		private final boolean prefix;
+
+		private final byte[] response;
+
+		protected Rule(byte[] request, boolean prefix, byte[] response) {
+			this.request = request;
+			this.prefix = prefix;
+			this.response = response;
+		}
+
+		protected boolean matches(byte[] apdu) {
+			if (prefix) {
+				return apdu.length >= request.length
+						&& Arrays.equals(apdu, 0, request.length, request, 0, request.length);
+			}
+			return Arrays.equals(apdu, request);
+		}
+	}
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	private byte[] defaultResponse = new byte[] { 0x6D, 0x00 };
+
+	public RuleCardEmulation() {
+		super();
+	}
+
+	/**
+	 * Answer any request starting with <code>prefix</code> with
+	 * <code>response</code>.
+	 * 
+	 * @param prefix
+	 * @param response
+	 * @return this
+	 */
+	public RuleCardEmulation addPrefixRule(byte[] prefix, byte[] response) {
+		synchronized (rules) {
+			rules.add(new Rule(prefix.clone(), true, response.clone()));
+		}
+		return this;
+	}
+
+	/**
+	 * Answer any request starting with the hex string <code>prefix</code> with
+	 * the hex string <code>response</code>.
+	 * 
+	 * @param prefix
+	 * @param response
+	 * @return this
+	 */
+	public RuleCardEmulation addPrefixRule(String prefix, String response) {
+		return addPrefixRule(HexTools.hexStringToBytes(prefix), HexTools.hexStringToBytes(response));
+	}
+
+	/**
+	 * Answer <code>request</code> with <code>response</code>.
+	 * 
+	 * @param request
+	 * @param response
+	 * @return this
+	 */
+	public RuleCardEmulation addRule(byte[] request, byte[] response) {
+		synchronized (rules) {
+			rules.add(new Rule(request.clone(), false, response.clone()));
+		}
+		return this;
+	}
+
+	/**
+	 * Answer the hex string <code>request</code> with the hex string
+	 * <code>response</code>.
+	 * 
+	 * @param request
+	 * @param response
+	 * @return this
+	 */
+	public RuleCardEmulation addRule(String request, String response) {
+		return addRule(HexTools.hexStringToBytes(request), HexTools.hexStringToBytes(response));
+	}
+
+	public byte[] getDefaultResponse() {
+		return defaultResponse.clone();
+	}
+
+	public void setDefaultResponse(byte[] defaultResponse) {
+		this.defaultResponse = defaultResponse.clone();
+	}
+
+	@Override
+	public byte[] transmit(byte[] request) {
+		synchronized (rules) {
+			for (Rule rule : rules) {
+				if (rule.matches(request)) {
+					return rule.response.clone();
+				}
+			}
+		}
+		return defaultResponse.clone();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.simulator;
+
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+
+/**
+ * A card that can be inserted in a {@link SimulatedReader}.
+ */
+public class SimulatedCard {
+
+	private final byte[] atr;
+
+	private final int protocols;
+
+	private final ICardEmulation emulation;
+
+	/**
+	 * A T=1 card.
+	 * 
+	 * @param atr
+	 * @param emulation
+	 */
+	public SimulatedCard(byte[] atr, ICardEmulation emulation) {
+		this(atr, _IPCSC.SCARD_PROTOCOL_T1, emulation);
+	}
+
+	/**
+	 * A card supporting <code>protocols</code> (some combination of
+	 * SCARD_PROTOCOL_T0 and SCARD_PROTOCOL_T1).
+	 * 
+	 * @param atr
+	 * @param protocols
+	 * @param emulation
+	 */
+	public SimulatedCard(byte[] atr, int protocols, ICardEmulation emulation) {
+		super();
+		this.atr = atr.clone();
+		this.protocols = protocols;
+		this.emulation = emulation;
+	}
+
+	public byte[] getAtr() {
+		return atr.clone();
+	}
+
+	public ICardEmulation getEmulation() {
+		return emulation;
+	}
+
+	public int getProtocols() {
+		return protocols;
+	}
+
+	/**
+	 * The protocol selected for <code>preferredProtocols</code>, or 0 if none
+	 * matches.
+	 * 
+	 * @param preferredProtocols
+	 * @return The protocol selected.
+	 */
+	protected int selectProtocol(int preferredProtocols) {
+		int common = protocols & preferredProtocols;
+		if ((common & _IPCSC.SCARD_PROTOCOL_T1) != 0) {
+			return _IPCSC.SCARD_PROTOCOL_T1;
+		}
+		if ((common & _IPCSC.SCARD_PROTOCOL_T0) != 0) {
+			return _IPCSC.SCARD_PROTOCOL_T0;
+		}
+		return 0;
+	}
+}
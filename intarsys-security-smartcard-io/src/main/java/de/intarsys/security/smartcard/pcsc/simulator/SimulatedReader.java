@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.simulator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A card reader in the {@link PCSCSimulator}.
+ * 
+ * The reader state (card, connections, transaction) is guarded by the
+ * simulator.
+ */
+public class SimulatedReader {
+
+	/**
+	 * The behavior of SCardControl for a {@link SimulatedReader}.
+	 */
+	@FunctionalInterface
+	public interface IControlHandler {
+
+		/**
+		 * Answer the control request. Return <code>null</code> if the control
+		 * code is not supported.
+		 * 
+		 * @param controlCode
+		 * @param input
+		 * @return The response bytes or <code>null</code>
+		 */
+		public byte[] control(int controlCode, byte[] input);
+	}
+
+	private final PCSCSimulator simulator;
+
+	private final String name;
+
+	private final Map<Integer, byte[]> attributes = new HashMap<>();
+
+	private volatile IControlHandler controlHandler;
+
+	/*
+	 * the state below is guarded by the simulator lock
+	 */
+
+	SimulatedCard card;
+
+	/** incremented for each card insertion */
+	int insertion;
+
+	/** incremented with each card insertion or removal */
+	int eventCounter;
+
+	/** incremented with each card reset */
+	int resetCounter;
+
+	/** the connection holding the transaction */
+	Object transactionOwner;
+
+	boolean removed;
+
+	protected SimulatedReader(PCSCSimulator simulator, String name) {
+		this.simulator = simulator;
+		this.name = name;
+	}
+
+	/**
+	 * The attribute <code>attribId</code> or <code>null</code>.
+	 * 
+	 * @param attribId
+	 * @return The attribute <code>attribId</code> or <code>null</code>.
+	 */
+	public byte[] getAttrib(int attribId) {
+		synchronized (attributes) {
+			byte[] value = attributes.get(attribId);
+			return value == null ? null : value.clone();
+		}
+	}
+
+	/**
+	 * The card currently inserted or <code>null</code>.
+	 * 
+	 * @return The card currently inserted or <code>null</code>.
+	 */
+	public SimulatedCard getCard() {
+		return simulator.getCard(this);
+	}
+
+	public IControlHandler getControlHandler() {
+		return controlHandler;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Insert <code>card</code>, replacing the card currently present.
+	 * 
+	 * @param card
+	 */
+	public void insertCard(SimulatedCard card) {
+		simulator.insertCard(this, card);
+	}
+
+	/**
+	 * Remove the card currently present.
+	 */
+	public void removeCard() {
+		simulator.removeCard(this);
+	}
+
+	public void setAttrib(int attribId, byte[] value) {
+		synchronized (attributes) {
+			if (value == null) {
+				attributes.remove(attribId);
+			} else {
+				attributes.put(attribId, value.clone());
+			}
+		}
+	}
+
+	public void setControlHandler(IControlHandler controlHandler) {
+		this.controlHandler = controlHandler;
+	}
+
+	@Override
+	public String toString() {
+		return "simulated reader " + name; //$NON-NLS-1$
+	}
+}
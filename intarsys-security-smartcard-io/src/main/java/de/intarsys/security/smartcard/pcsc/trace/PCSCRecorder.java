@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.IntSupplier;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.INativeObject;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.nativec.type.NativeVoid;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * This {@link _IPCSC} API implementation is a wrapper writing all calls to a
+ * {@link PCSCTrace}.
+ * <p>
+ * Transmissions marked as sensitive via {@link #setSensitiveContent(boolean)}
+ * are redacted when {@link #isRedactSensitiveContent()}: only the command
+ * header and the status word are kept, all data bytes are zeroed. The marker
+ * is thread bound, so the recorder must see the calling thread (it is
+ * installed as the outermost wrapper).
+ * <p>
+ * A recording failure is logged and ends the recording, the PC/SC calls are
+ * not affected.
+ */
+public class PCSCRecorder implements _IPCSC {
+
+	/**
+	 * Writes the operation specific payload.
+	 */
+	@FunctionalInterface
+	protected interface IPayload {
+		public void write(DataOutput out) throws IOException;
+	}
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final ThreadLocal<Boolean> SensitiveContent = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	private static final IPayload EMPTY = out -> {
+	};
+
+	public static boolean isSensitiveContent() {
+		return SensitiveContent.get();
+	}
+
+	protected static byte[] redactRequest(byte[] request) {
+		if (request == null) {
+			return null;
+		}
+		byte[] result = new byte[request.length];
+		// keep CLA INS P1 P2
+		System.arraycopy(request, 0, result, 0, Math.min(4, request.length));
+		return result;
+	}
+
+	protected static byte[] redactResponse(byte[] response) {
+		if (response == null) {
+			return null;
+		}
+		byte[] result = new byte[response.length];
+		// keep SW1 SW2
+		int sw = Math.min(2, response.length);
+		System.arraycopy(response, response.length - sw, result, result.length - sw, sw);
+		return result;
+	}
+
+	/**
+	 * Mark the following transmissions of the current thread as sensitive.
+	 * 
+	 * @param value
+	 */
+	public static void setSensitiveContent(boolean value) {
+		SensitiveContent.set(value);
+	}
+
+	private final _IPCSC pcsc;
+
+	private final DataOutputStream out;
+
+	private final long startNanos;
+
+	private boolean redactSensitiveContent = true;
+
+	private volatile boolean failed;
+
+	public PCSCRecorder(_IPCSC pcsc, OutputStream os) throws IOException {
+		this.pcsc = pcsc;
+		this.out = new DataOutputStream(os);
+		this.startNanos = System.nanoTime();
+		synchronized (this.out) {
+			out.writeInt(PCSCTrace.MAGIC);
+			out.writeInt(PCSCTrace.VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.flush();
+		}
+	}
+
+	/**
+	 * Stop recording and close the trace.
+	 */
+	public void close() {
+		synchronized (out) {
+			failed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				Log.warn("{} close failed ({})", this, e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	@Override
+	public int dispatch(SCARDHANDLE hCard, IntSupplier task) {
+		// the calls of the task are recorded one by one
+		return pcsc.dispatch(hCard, task);
+	}
+
+	/**
+	 * Flush the recorded calls.
+	 */
+	public void flush() {
+		synchronized (out) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				Log.warn("{} flush failed ({})", this, e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	public _IPCSC getPcsc() {
+		return pcsc;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		return pcsc.getSCARD_PCI_RAW();
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T0() {
+		return pcsc.getSCARD_PCI_T0();
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T1() {
+		return pcsc.getSCARD_PCI_T1();
+	}
+
+	public boolean isRedactSensitiveContent() {
+		return redactSensitiveContent;
+	}
+
+	/**
+	 * Read a PC/SC output buffer after the call.
+	 * 
+	 * @param buffer
+	 * @param requested
+	 *            The buffer length before the call
+	 * @param length
+	 * @param rc
+	 * @return The buffer content or <code>null</code> if the call failed.
+	 */
+	protected byte[] readOutput(INativeObject buffer, int requested, NativePcscDword length, int rc) {
+		if (rc != _PCSC_RETURN_CODES.SCARD_S_SUCCESS) {
+			return null;
+		}
+		int size = length.intValue();
+		if (requested == SCARD_AUTOALLOCATE) {
+			return buffer.getNativeHandle().getNativeHandle(0).getByteArray(0, size);
+		}
+		if (buffer == null) {
+			// a size query, the content is irrelevant
+			return new byte[size];
+		}
+		return buffer.getNativeHandle().getByteArray(0, size);
+	}
+
+	protected void record(int op, long start, int rc, long handle, IPayload payload) {
+		if (failed) {
+			return;
+		}
+		long end = System.nanoTime();
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			payload.write(new DataOutputStream(bos));
+			synchronized (out) {
+				if (failed) {
+					return;
+				}
+				out.writeByte(op);
+				out.writeLong(start - startNanos);
+				out.writeLong(end - start);
+				out.writeInt(rc);
+				out.writeLong(handle);
+				out.writeInt(bos.size());
+				bos.writeTo(out);
+			}
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			Log.warn("{} recording failed ({})", this, e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	@Override
+	public int SCardBeginTransaction(SCARDHANDLE hCard) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardBeginTransaction(hCard);
+		record(PCSCTrace.OP_BEGIN_TRANSACTION, start, rc, hCard.longValue(), EMPTY);
+		return rc;
+	}
+
+	@Override
+	public int SCardCancel(SCARDCONTEXT hContext) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardCancel(hContext);
+		record(PCSCTrace.OP_CANCEL, start, rc, hContext.longValue(), EMPTY);
+		return rc;
+	}
+
+	@Override
+	public int SCardConnect(SCARDCONTEXT hContext, NativeString szReader, long dwShareMode, long dwPreferredProtocols,
+			NativeLongLP64 phCard, NativePcscDword pdwActiveProtocol) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardConnect(hContext, szReader, dwShareMode, dwPreferredProtocols, phCard, pdwActiveProtocol);
+		record(PCSCTrace.OP_CONNECT, start, rc, hContext.longValue(), out -> {
+			out.writeUTF(szReader.stringValue());
+			out.writeInt((int) dwShareMode);
+			out.writeInt((int) dwPreferredProtocols);
+			out.writeLong(phCard.longValue());
+			out.writeInt(pdwActiveProtocol.intValue());
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardControl(SCARDHANDLE hCard, long dwControlCode, NativeBuffer lpInBuffer, long nInBufferSize,
+			NativeBuffer lpOutBuffer, long nOutBufferSize, NativePcscDword lpBytesReturned) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardControl(hCard, dwControlCode, lpInBuffer, nInBufferSize, lpOutBuffer, nOutBufferSize,
+				lpBytesReturned);
+		record(PCSCTrace.OP_CONTROL, start, rc, hCard.longValue(), out -> {
+			out.writeInt((int) dwControlCode);
+			PCSCTrace.writeBytes(out, lpInBuffer == null ? null : lpInBuffer.getByteArray(0, (int) nInBufferSize));
+			PCSCTrace.writeBytes(out, readOutput(lpOutBuffer, (int) nOutBufferSize, lpBytesReturned, rc));
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardDisconnect(SCARDHANDLE hCard, long dwDisposition) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardDisconnect(hCard, dwDisposition);
+		record(PCSCTrace.OP_DISCONNECT, start, rc, hCard.longValue(), out -> out.writeInt((int) dwDisposition));
+		return rc;
+	}
+
+	@Override
+	public int SCardEndTransaction(SCARDHANDLE hCard, long dwDisposition) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardEndTransaction(hCard, dwDisposition);
+		record(PCSCTrace.OP_END_TRANSACTION, start, rc, hCard.longValue(), out -> out.writeInt((int) dwDisposition));
+		return rc;
+	}
+
+	@Override
+	public int SCardEstablishContext(long dwScope, NativeLongLP64 phContext) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardEstablishContext(dwScope, phContext);
+		record(PCSCTrace.OP_ESTABLISH_CONTEXT, start, rc, 0, out -> {
+			out.writeInt((int) dwScope);
+			out.writeLong(phContext.longValue());
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardFreeMemory(hContext, pvMem);
+		record(PCSCTrace.OP_FREE_MEMORY, start, rc, hContext.longValue(), EMPTY);
+		return rc;
+	}
+
+	@Override
+	public int SCardGetAttrib(SCARDHANDLE hCard, long dwAttrId, NativeBuffer pbAttr, NativePcscDword pcbAttrLength) {
+		int requested = pcbAttrLength.intValue();
+		long start = System.nanoTime();
+		int rc = pcsc.SCardGetAttrib(hCard, dwAttrId, pbAttr, pcbAttrLength);
+		record(PCSCTrace.OP_GET_ATTRIB, start, rc, hCard.longValue(), out -> {
+			out.writeInt((int) dwAttrId);
+			PCSCTrace.writeBytes(out, readOutput(pbAttr, requested, pcbAttrLength, rc));
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardGetStatusChange(SCARDCONTEXT hContext, long dwTimeout, INativeObject rgReaderStates,
+			long cReaders) {
+		int count = (int) cReaders;
+		SCARD_READERSTATE[] states = new SCARD_READERSTATE[count];
+		int[] currentStates = new int[count];
+		int size = SCARD_READERSTATE.META.getByteCount();
+		for (int i = 0; i < count; i++) {
+			states[i] = (SCARD_READERSTATE) SCARD_READERSTATE.META
+					.createNative(rgReaderStates.getNativeHandle().offset(i * size));
+			currentStates[i] = states[i].getCurrentState();
+		}
+		long start = System.nanoTime();
+		int rc = pcsc.SCardGetStatusChange(hContext, dwTimeout, rgReaderStates, cReaders);
+		record(PCSCTrace.OP_GET_STATUS_CHANGE, start, rc, hContext.longValue(), out -> {
+			out.writeLong(dwTimeout);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeUTF(states[i].getReader());
+				out.writeInt(currentStates[i]);
+				out.writeInt(states[i].getEventState());
+				PCSCTrace.writeBytes(out, states[i].getATR());
+			}
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardIsValidContext(SCARDCONTEXT hContext) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardIsValidContext(hContext);
+		record(PCSCTrace.OP_IS_VALID_CONTEXT, start, rc, hContext.longValue(), EMPTY);
+		return rc;
+	}
+
+	@Override
+	public int SCardListReaders(SCARDCONTEXT hContext, NativeString mszGroups, INativeObject mszReaders,
+			NativePcscDword pcchReaders) {
+		int requested = pcchReaders.intValue();
+		long start = System.nanoTime();
+		int rc = pcsc.SCardListReaders(hContext, mszGroups, mszReaders, pcchReaders);
+		record(PCSCTrace.OP_LIST_READERS, start, rc, hContext.longValue(),
+				out -> PCSCTrace.writeBytes(out, readOutput(mszReaders, requested, pcchReaders, rc)));
+		return rc;
+	}
+
+	@Override
+	public int SCardReconnect(SCARDHANDLE hCard, long dwShareMode, long dwPreferredProtocols, long dwInitialization,
+			NativePcscDword pdwActiveProtocol) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardReconnect(hCard, dwShareMode, dwPreferredProtocols, dwInitialization, pdwActiveProtocol);
+		record(PCSCTrace.OP_RECONNECT, start, rc, hCard.longValue(), out -> {
+			out.writeInt((int) dwShareMode);
+			out.writeInt((int) dwPreferredProtocols);
+			out.writeInt((int) dwInitialization);
+			out.writeInt(pdwActiveProtocol.intValue());
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardReleaseContext(SCARDCONTEXT hContext) {
+		long start = System.nanoTime();
+		int rc = pcsc.SCardReleaseContext(hContext);
+		record(PCSCTrace.OP_RELEASE_CONTEXT, start, rc, hContext.longValue(), EMPTY);
+		return rc;
+	}
+
+	@Override
+	public int SCardStatus(SCARDHANDLE hCard, INativeObject szReaderName, NativePcscDword pcchReaderLen,
+			NativePcscDword pdwState, NativePcscDword pdwProtocol, NativeBuffer pbAtr, NativePcscDword pcbAtrLen) {
+		int requestedReader = pcchReaderLen.intValue();
+		int requestedAtr = pcbAtrLen == null ? 0 : pcbAtrLen.intValue();
+		long start = System.nanoTime();
+		int rc = pcsc.SCardStatus(hCard, szReaderName, pcchReaderLen, pdwState, pdwProtocol, pbAtr, pcbAtrLen);
+		record(PCSCTrace.OP_STATUS, start, rc, hCard.longValue(), out -> {
+			PCSCTrace.writeBytes(out, readOutput(szReaderName, requestedReader, pcchReaderLen, rc));
+			out.writeInt(pdwState == null ? 0 : pdwState.intValue());
+			out.writeInt(pdwProtocol == null ? 0 : pdwProtocol.intValue());
+			PCSCTrace.writeBytes(out, pcbAtrLen == null ? null : readOutput(pbAtr, requestedAtr, pcbAtrLen, rc));
+		});
+		return rc;
+	}
+
+	@Override
+	public int SCardTransmit(SCARDHANDLE hCard, INativeHandle pioSendPci, INativeObject pbSendBuffer,
+			long cbSendLength, INativeObject pioRecvPci, NativeBuffer pbRecvBuffer, NativePcscDword pcbRecvLength) {
+		boolean redact = redactSensitiveContent && isSensitiveContent();
+		// read before the call, the buffer may be cleared afterwards
+		byte[] request = pbSendBuffer.getNativeHandle().getByteArray(0, (int) cbSendLength);
+		if (redact) {
+			request = redactRequest(request);
+		}
+		byte[] recordedRequest = request;
+		long start = System.nanoTime();
+		int rc = pcsc.SCardTransmit(hCard, pioSendPci, pbSendBuffer, cbSendLength, pioRecvPci, pbRecvBuffer,
+				pcbRecvLength);
+		record(PCSCTrace.OP_TRANSMIT, start, rc, hCard.longValue(), out -> {
+			byte[] response = readOutput(pbRecvBuffer, 0, pcbRecvLength, rc);
+			PCSCTrace.writeBytes(out, recordedRequest);
+			PCSCTrace.writeBytes(out, redact ? redactResponse(response) : response);
+		});
+		return rc;
+	}
+
+	public void setRedactSensitiveContent(boolean redactSensitiveContent) {
+		this.redactSensitiveContent = redactSensitiveContent;
+	}
+
+	@Override
+	public String toString() {
+		return "PC/SC recorder for " + pcsc; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.trace;
+
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_CANCELLED;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_INSUFFICIENT_BUFFER;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_INVALID_HANDLE;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_NO_SERVICE;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_E_TIMEOUT;
+import static de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES.SCARD_S_SUCCESS;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import de.intarsys.nativec.api.INativeHandle;
+import de.intarsys.nativec.type.INativeObject;
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.nativec.type.NativeVoid;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.tools.yalf.api.ILogger;
+
+/**
+ * An {@link _IPCSC} implementation serving a recorded {@link PCSCTrace}.
+ * <p>
+ * Calls are matched to records by operation and SCARDCONTEXT/SCARDHANDLE, in
+ * recording order. As the replay hands out the recorded handle values, a
+ * session replays as long as the application issues the same calls per
+ * context and connection - independent of thread interleaving. SCardConnect
+ * and SCardGetStatusChange additionally match the reader names.
+ * <p>
+ * Each call takes its recorded duration divided by {@link #getSpeed()}, a
+ * speed of 0 replays without any delay. When no matching record is left,
+ * SCardGetStatusChange waits for its timeout or cancellation, other calls
+ * fail with SCARD_E_NO_SERVICE.
+ */
+public class PCSCReplay implements _IPCSC {
+
+	private static final ILogger Log = PACKAGE.Log;
+
+	private static final long INFINITE = 0xFFFFFFFFL;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition cancelled = lock.newCondition();
+
+	/**
+	 * The pending records by handle, indexed by operation.
+	 */
+	private final Map<Long, Deque<PCSCTraceRecord>[]> pending = new HashMap<>();
+
+	private final Map<Long, Integer> cancelCounts = new HashMap<>();
+
+	/**
+	 * Native memory handed out with SCARD_AUTOALLOCATE, by address.
+	 */
+	private final Map<Long, NativeBuffer> allocations = new ConcurrentHashMap<>();
+
+	private volatile double speed = 1;
+
+	public PCSCReplay(List<PCSCTraceRecord> records) {
+		for (PCSCTraceRecord record : records) {
+			getQueue(record.getOp(), record.getHandle()).add(record);
+		}
+	}
+
+	/**
+	 * Wait for <code>nanos</code>. Return false if the context was cancelled
+	 * meanwhile.
+	 * 
+	 * @param context
+	 * @param nanos
+	 * @param infinite
+	 * @return false if cancelled
+	 */
+	protected boolean await(long context, long nanos, boolean infinite) {
+		lock.lock();
+		try {
+			int cancelCount = cancelCounts.getOrDefault(context, 0);
+			long deadline = System.nanoTime() + nanos;
+			while (cancelCounts.getOrDefault(context, 0) == cancelCount) {
+				if (infinite) {
+					cancelled.awaitUninterruptibly();
+					continue;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return true;
+				}
+				try {
+					cancelled.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void delay(PCSCTraceRecord record) {
+		long nanos = scaled(record.getDuration());
+		long deadline = System.nanoTime() + nanos;
+		while (nanos > 0) {
+			LockSupport.parkNanos(this, nanos);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	/**
+	 * The number of records not yet replayed.
+	 * 
+	 * @return The number of records not yet replayed.
+	 */
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			int count = 0;
+			for (Deque<PCSCTraceRecord>[] queues : pending.values()) {
+				for (Deque<PCSCTraceRecord> queue : queues) {
+					count += queue == null ? 0 : queue.size();
+				}
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected Deque<PCSCTraceRecord> getQueue(int op, long handle) {
+		Deque<PCSCTraceRecord>[] queues = pending.computeIfAbsent(handle, key -> new Deque[PCSCTrace.OP_TRANSMIT + 1]);
+		if (queues[op] == null) {
+			queues[op] = new ArrayDeque<>();
+		}
+		return queues[op];
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_RAW() {
+		return null;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T0() {
+		return null;
+	}
+
+	@Override
+	public INativeHandle getSCARD_PCI_T1() {
+		return null;
+	}
+
+	/**
+	 * The replay speed factor.
+	 * 
+	 * @return The replay speed factor.
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * The next pending record for <code>op</code> on <code>handle</code> or
+	 * <code>null</code>.
+	 * 
+	 * @param op
+	 * @param handle
+	 * @param filter
+	 * @return The next pending record or <code>null</code>
+	 */
+	protected PCSCTraceRecord next(int op, long handle, Predicate<PCSCTraceRecord> filter) {
+		lock.lock();
+		try {
+			Deque<PCSCTraceRecord> queue = getQueue(op, handle);
+			for (Iterator<PCSCTraceRecord> it = queue.iterator(); it.hasNext();) {
+				PCSCTraceRecord record = it.next();
+				if (filter == null || filter.test(record)) {
+					it.remove();
+					return record;
+				}
+			}
+			Log.debug("{} no pending {} for 0x{}", this, PCSCTrace.getOpName(op), Long.toHexString(handle)); //$NON-NLS-1$
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected long scaled(long nanos) {
+		double tempSpeed = speed;
+		if (tempSpeed <= 0) {
+			return 0;
+		}
+		return (long) (nanos / tempSpeed);
+	}
+
+	/**
+	 * Replay the simple calls that have no result besides the return code.
+	 * 
+	 * @param op
+	 * @param handle
+	 * @param missing
+	 *            The return code when no record is left
+	 * @return The recorded return code
+	 */
+	protected int replay(int op, long handle, int missing) {
+		PCSCTraceRecord record = next(op, handle, null);
+		if (record == null) {
+			return missing;
+		}
+		delay(record);
+		return record.getReturnCode();
+	}
+
+	@Override
+	public int SCardBeginTransaction(SCARDHANDLE hCard) {
+		return replay(PCSCTrace.OP_BEGIN_TRANSACTION, hCard.longValue(), SCARD_E_NO_SERVICE);
+	}
+
+	@Override
+	public int SCardCancel(SCARDCONTEXT hContext) {
+		next(PCSCTrace.OP_CANCEL, hContext.longValue(), null);
+		lock.lock();
+		try {
+			cancelCounts.merge(hContext.longValue(), 1, Integer::sum);
+			cancelled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardConnect(SCARDCONTEXT hContext, NativeString szReader, long dwShareMode, long dwPreferredProtocols,
+			NativeLongLP64 phCard, NativePcscDword pdwActiveProtocol) {
+		String readerName = szReader.stringValue();
+		PCSCTraceRecord record = next(PCSCTrace.OP_CONNECT, hContext.longValue(), candidate -> {
+			try {
+				return readerName.equals(candidate.getPayload().readUTF());
+			} catch (IOException e) {
+				return false;
+			}
+		});
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			in.readUTF();
+			in.readInt();
+			in.readInt();
+			phCard.setValue(in.readLong());
+			pdwActiveProtocol.setValue(in.readInt());
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+		return record.getReturnCode();
+	}
+
+	@Override
+	public int SCardControl(SCARDHANDLE hCard, long dwControlCode, NativeBuffer lpInBuffer, long nInBufferSize,
+			NativeBuffer lpOutBuffer, long nOutBufferSize, NativePcscDword lpBytesReturned) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_CONTROL, hCard.longValue(), null);
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			in.readInt();
+			PCSCTrace.readBytes(in);
+			byte[] response = PCSCTrace.readBytes(in);
+			if (response == null) {
+				return record.getReturnCode();
+			}
+			lpBytesReturned.setValue(nOutBufferSize);
+			return writeOutput(lpOutBuffer, lpBytesReturned, response);
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+	}
+
+	@Override
+	public int SCardDisconnect(SCARDHANDLE hCard, long dwDisposition) {
+		return replay(PCSCTrace.OP_DISCONNECT, hCard.longValue(), SCARD_S_SUCCESS);
+	}
+
+	@Override
+	public int SCardEndTransaction(SCARDHANDLE hCard, long dwDisposition) {
+		return replay(PCSCTrace.OP_END_TRANSACTION, hCard.longValue(), SCARD_E_NO_SERVICE);
+	}
+
+	@Override
+	public int SCardEstablishContext(long dwScope, NativeLongLP64 phContext) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_ESTABLISH_CONTEXT, 0, null);
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			in.readInt();
+			phContext.setValue(in.readLong());
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+		return record.getReturnCode();
+	}
+
+	@Override
+	public int SCardFreeMemory(SCARDCONTEXT hContext, NativeVoid pvMem) {
+		next(PCSCTrace.OP_FREE_MEMORY, hContext.longValue(), null);
+		if (pvMem == null || allocations.remove(pvMem.getNativeHandle().getAddress()) == null) {
+			return SCARD_E_INVALID_HANDLE;
+		}
+		return SCARD_S_SUCCESS;
+	}
+
+	@Override
+	public int SCardGetAttrib(SCARDHANDLE hCard, long dwAttrId, NativeBuffer pbAttr, NativePcscDword pcbAttrLength) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_GET_ATTRIB, hCard.longValue(), candidate -> {
+			try {
+				return candidate.getPayload().readInt() == (int) dwAttrId;
+			} catch (IOException e) {
+				return false;
+			}
+		});
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			in.readInt();
+			byte[] value = PCSCTrace.readBytes(in);
+			if (value == null) {
+				return record.getReturnCode();
+			}
+			return writeOutput(pbAttr, pcbAttrLength, value);
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+	}
+
+	@Override
+	public int SCardGetStatusChange(SCARDCONTEXT hContext, long dwTimeout, INativeObject rgReaderStates,
+			long cReaders) {
+		int count = (int) cReaders;
+		SCARD_READERSTATE[] states = new SCARD_READERSTATE[count];
+		int size = SCARD_READERSTATE.META.getByteCount();
+		for (int i = 0; i < count; i++) {
+			states[i] = (SCARD_READERSTATE) SCARD_READERSTATE.META
+					.createNative(rgReaderStates.getNativeHandle().offset(i * size));
+		}
+		PCSCTraceRecord record = next(PCSCTrace.OP_GET_STATUS_CHANGE, hContext.longValue(), candidate -> {
+			try {
+				DataInputStream in = candidate.getPayload();
+				in.readLong();
+				if (in.readInt() != count) {
+					return false;
+				}
+				for (int i = 0; i < count; i++) {
+					if (!states[i].getReader().equals(in.readUTF())) {
+						return false;
+					}
+					in.readInt();
+					in.readInt();
+					PCSCTrace.readBytes(in);
+				}
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		});
+		boolean infinite = dwTimeout < 0 || dwTimeout == INFINITE;
+		if (record == null) {
+			// nothing will ever change
+			if (!await(hContext.longValue(), TimeUnit.MILLISECONDS.toNanos(dwTimeout), infinite)) {
+				return SCARD_E_CANCELLED;
+			}
+			return SCARD_E_TIMEOUT;
+		}
+		if (!await(hContext.longValue(), scaled(record.getDuration()), false)) {
+			return SCARD_E_CANCELLED;
+		}
+		try {
+			DataInputStream in = record.getPayload();
+			in.readLong();
+			in.readInt();
+			for (int i = 0; i < count; i++) {
+				in.readUTF();
+				in.readInt();
+				int eventState = in.readInt();
+				byte[] atr = PCSCTrace.readBytes(in);
+				if (record.getReturnCode() == SCARD_S_SUCCESS) {
+					states[i].setEventState(eventState);
+					states[i].setATR(atr);
+				}
+			}
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+		return record.getReturnCode();
+	}
+
+	@Override
+	public int SCardIsValidContext(SCARDCONTEXT hContext) {
+		return replay(PCSCTrace.OP_IS_VALID_CONTEXT, hContext.longValue(), SCARD_S_SUCCESS);
+	}
+
+	@Override
+	public int SCardListReaders(SCARDCONTEXT hContext, NativeString mszGroups, INativeObject mszReaders,
+			NativePcscDword pcchReaders) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_LIST_READERS, hContext.longValue(), null);
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			byte[] readers = PCSCTrace.readBytes(record.getPayload());
+			if (readers == null) {
+				return record.getReturnCode();
+			}
+			return writeOutput(mszReaders, pcchReaders, readers);
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+	}
+
+	@Override
+	public int SCardReconnect(SCARDHANDLE hCard, long dwShareMode, long dwPreferredProtocols, long dwInitialization,
+			NativePcscDword pdwActiveProtocol) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_RECONNECT, hCard.longValue(), null);
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			in.readInt();
+			in.readInt();
+			in.readInt();
+			pdwActiveProtocol.setValue(in.readInt());
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+		return record.getReturnCode();
+	}
+
+	@Override
+	public int SCardReleaseContext(SCARDCONTEXT hContext) {
+		int rc = replay(PCSCTrace.OP_RELEASE_CONTEXT, hContext.longValue(), SCARD_S_SUCCESS);
+		lock.lock();
+		try {
+			// a blocked status change returns
+			cancelCounts.merge(hContext.longValue(), 1, Integer::sum);
+			cancelled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return rc;
+	}
+
+	@Override
+	public int SCardStatus(SCARDHANDLE hCard, INativeObject szReaderName, NativePcscDword pcchReaderLen,
+			NativePcscDword pdwState, NativePcscDword pdwProtocol, NativeBuffer pbAtr, NativePcscDword pcbAtrLen) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_STATUS, hCard.longValue(), null);
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			byte[] readerName = PCSCTrace.readBytes(in);
+			int state = in.readInt();
+			int protocol = in.readInt();
+			byte[] atr = PCSCTrace.readBytes(in);
+			if (readerName == null) {
+				return record.getReturnCode();
+			}
+			int rc = writeOutput(szReaderName, pcchReaderLen, readerName);
+			if (rc != SCARD_S_SUCCESS) {
+				return rc;
+			}
+			if (pdwState != null) {
+				pdwState.setValue(state);
+			}
+			if (pdwProtocol != null) {
+				pdwProtocol.setValue(protocol);
+			}
+			if (pcbAtrLen != null && atr != null) {
+				return writeOutput(pbAtr, pcbAtrLen, atr);
+			}
+			return record.getReturnCode();
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+	}
+
+	@Override
+	public int SCardTransmit(SCARDHANDLE hCard, INativeHandle pioSendPci, INativeObject pbSendBuffer,
+			long cbSendLength, INativeObject pioRecvPci, NativeBuffer pbRecvBuffer, NativePcscDword pcbRecvLength) {
+		PCSCTraceRecord record = next(PCSCTrace.OP_TRANSMIT, hCard.longValue(), null);
+		if (record == null) {
+			return SCARD_E_NO_SERVICE;
+		}
+		delay(record);
+		try {
+			DataInputStream in = record.getPayload();
+			PCSCTrace.readBytes(in);
+			byte[] response = PCSCTrace.readBytes(in);
+			if (response == null) {
+				return record.getReturnCode();
+			}
+			return writeOutput(pbRecvBuffer, pcbRecvLength, response);
+		} catch (IOException e) {
+			return SCARD_E_NO_SERVICE;
+		}
+	}
+
+	/**
+	 * Set the replay speed factor, 1 is the original speed, 0 is as fast as
+	 * possible.
+	 * 
+	 * @param speed
+	 */
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	@Override
+	public String toString() {
+		return "PC/SC replay"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Copy <code>value</code> to a PC/SC output buffer, following the
+	 * SCARD_AUTOALLOCATE and "query size" conventions.
+	 * 
+	 * @param buffer
+	 * @param length
+	 * @param value
+	 * @return A return code
+	 */
+	protected int writeOutput(INativeObject buffer, NativePcscDword length, byte[] value) {
+		if (length.intValue() == SCARD_AUTOALLOCATE) {
+			NativeBuffer allocated = new NativeBuffer(Math.max(1, value.length));
+			allocated.setByteArray(0, value, 0, value.length);
+			allocations.put(allocated.getNativeHandle().getAddress(), allocated);
+			buffer.getNativeHandle().setNativeHandle(0, allocated.getNativeHandle());
+			length.setValue(value.length);
+			return SCARD_S_SUCCESS;
+		}
+		if (buffer == null) {
+			length.setValue(value.length);
+			return SCARD_S_SUCCESS;
+		}
+		if (length.intValue() < value.length) {
+			length.setValue(value.length);
+			return SCARD_E_INSUFFICIENT_BUFFER;
+		}
+		buffer.getNativeHandle().setByteArray(0, value, 0, value.length);
+		length.setValue(value.length);
+		return SCARD_S_SUCCESS;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.trace;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary PC/SC trace format written by {@link PCSCRecorder} and served by
+ * {@link PCSCReplay}.
+ * 
+ * <pre>
+ * trace   := MAGIC version:int startMillis:long record*
+ * record  := op:byte start:long duration:long rc:int handle:long payloadLength:int payload
+ * bytes   := length:int (-1 for null) byte*
+ * </pre>
+ * 
+ * The payload of each operation:
+ * 
+ * <pre>
+ * OP_ESTABLISH_CONTEXT  scope:int context:long
+ * OP_LIST_READERS       readers:bytes
+ * OP_CONNECT            reader:utf share:int protocols:int card:long protocol:int
+ * OP_RECONNECT          share:int protocols:int init:int protocol:int
+ * OP_DISCONNECT, OP_BEGIN_TRANSACTION, OP_END_TRANSACTION  disposition:int
+ * OP_STATUS             reader:bytes state:int protocol:int atr:bytes
+ * OP_TRANSMIT           request:bytes response:bytes
+ * OP_CONTROL            code:int request:bytes response:bytes
+ * OP_GET_ATTRIB         attrib:int value:bytes
+ * OP_GET_STATUS_CHANGE  timeout:long count:int (reader:utf current:int event:int atr:bytes)*
+ * other                 empty
+ * </pre>
+ * 
+ * "response" and "value" bytes are <code>null</code> if the call failed.
+ */
+public class PCSCTrace {
+
+	public static final int MAGIC = 0x50435343; // "PCSC"
+
+	public static final int VERSION = 1;
+
+	public static final int OP_BEGIN_TRANSACTION = 1;
+	public static final int OP_CANCEL = 2;
+	public static final int OP_CONNECT = 3;
+	public static final int OP_CONTROL = 4;
+	public static final int OP_DISCONNECT = 5;
+	public static final int OP_END_TRANSACTION = 6;
+	public static final int OP_ESTABLISH_CONTEXT = 7;
+	public static final int OP_FREE_MEMORY = 8;
+	public static final int OP_GET_ATTRIB = 9;
+	public static final int OP_GET_STATUS_CHANGE = 10;
+	public static final int OP_IS_VALID_CONTEXT = 11;
+	public static final int OP_LIST_READERS = 12;
+	public static final int OP_RECONNECT = 13;
+	public static final int OP_RELEASE_CONTEXT = 14;
+	public static final int OP_STATUS = 15;
+	public static final int OP_TRANSMIT = 16;
+
+	private static final String[] OP_NAMES = { null, //
+			"SCardBeginTransaction", //$NON-NLS-1$
+			"SCardCancel", //$NON-NLS-1$
+			"SCardConnect", //$NON-NLS-1$
+			"SCardControl", //$NON-NLS-1$
+			"SCardDisconnect", //$NON-NLS-1$
+			"SCardEndTransaction", //$NON-NLS-1$
+			"SCardEstablishContext", //$NON-NLS-1$
+			"SCardFreeMemory", //$NON-NLS-1$
+			"SCardGetAttrib", //$NON-NLS-1$
+			"SCardGetStatusChange", //$NON-NLS-1$
+			"SCardIsValidContext", //$NON-NLS-1$
+			"SCardListReaders", //$NON-NLS-1$
+			"SCardReconnect", //$NON-NLS-1$
+			"SCardReleaseContext", //$NON-NLS-1$
+			"SCardStatus", //$NON-NLS-1$
+			"SCardTransmit", //$NON-NLS-1$
+	};
+
+	public static String getOpName(int op) {
+		if (op > 0 && op < OP_NAMES.length) {
+			return OP_NAMES[op];
+		}
+		return "op " + op; //$NON-NLS-1$
+	}
+
+	/**
+	 * Read all records from a trace.
+	 * 
+	 * @param is
+	 * @return The records, in order of completion.
+	 * @throws IOException
+	 */
+	public static List<PCSCTraceRecord> read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a PC/SC trace"); //$NON-NLS-1$
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported PC/SC trace version " + version); //$NON-NLS-1$
+		}
+		in.readLong();
+		List<PCSCTraceRecord> records = new ArrayList<>();
+		while (true) {
+			int op;
+			try {
+				op = in.readUnsignedByte();
+			} catch (EOFException e) {
+				break;
+			}
+			long start = in.readLong();
+			long duration = in.readLong();
+			int rc = in.readInt();
+			long handle = in.readLong();
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			records.add(new PCSCTraceRecord(op, start, duration, rc, handle, payload));
+		}
+		return records;
+	}
+
+	public static byte[] readBytes(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private PCSCTrace() {
+	}
+}
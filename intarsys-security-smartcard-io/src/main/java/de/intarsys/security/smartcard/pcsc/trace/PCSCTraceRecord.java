@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+/**
+ * A single recorded {@link de.intarsys.security.smartcard.pcsc.nativec._IPCSC}
+ * call.
+ * <p>
+ * The payload holds the call specific arguments and results, see
+ * {@link PCSCTrace}.
+ */
+public class PCSCTraceRecord {
+
+	private final int op;
+
+	private final long start;
+
+	private final long duration;
+
+	private final int returnCode;
+
+	private final long handle;
+
+	private final byte[] payload;
+
+	public PCSCTraceRecord(int op, long start, long duration, int returnCode, long handle, byte[] payload) {
+		this.op = op;
+		this.start = start;
+		this.duration = duration;
+		this.returnCode = returnCode;
+		this.handle = handle;
+		this.payload = payload;
+	}
+
+	/**
+	 * The call duration in nanoseconds.
+	 * 
+	 * @return The call duration in nanoseconds.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * The SCARDCONTEXT or SCARDHANDLE value the call was made for, 0 for
+	 * SCardEstablishContext.
+	 * 
+	 * @return The SCARDCONTEXT or SCARDHANDLE value the call was made for.
+	 */
+	public long getHandle() {
+		return handle;
+	}
+
+	public int getOp() {
+		return op;
+	}
+
+	public DataInputStream getPayload() {
+		return new DataInputStream(new ByteArrayInputStream(payload));
+	}
+
+	public int getReturnCode() {
+		return returnCode;
+	}
+
+	/**
+	 * The call start in nanoseconds, relative to the trace start.
+	 * 
+	 * @return The call start in nanoseconds.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	@Override
+	public String toString() {
+		return PCSCTrace.getOpName(op) + " 0x" + Long.toHexString(handle) + " -> 0x" //$NON-NLS-1$ //$NON-NLS-2$
+				+ Integer.toHexString(returnCode) + " (" + duration + "ns)"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.trace;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import de.intarsys.security.smartcard.pcsc.NativePCSCLib;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+
+/**
+ * An {@link de.intarsys.security.smartcard.pcsc.INativePCSCLib} serving a
+ * recorded {@link PCSCTrace} via {@link PCSCReplay}.
+ * 
+ * <pre>
+ * ReplayPCSCLib lib = new ReplayPCSCLib(Paths.get("session.pcsc"));
+ * lib.getReplay().setSpeed(10);
+ * lib.initialize();
+ * </pre>
+ */
+public class ReplayPCSCLib extends NativePCSCLib {
+
+	private final PCSCReplay replay;
+
+	public ReplayPCSCLib(Path trace) throws IOException {
+		super();
+		try (InputStream is = new BufferedInputStream(Files.newInputStream(trace))) {
+			this.replay = new PCSCReplay(PCSCTrace.read(is));
+		}
+		setPath(trace.toString());
+		setUseBlockingGetStatusChange(true);
+	}
+
+	public ReplayPCSCLib(PCSCReplay replay) {
+		super();
+		this.replay = replay;
+		setPath("replay"); //$NON-NLS-1$
+		setUseBlockingGetStatusChange(true);
+	}
+
+	@Override
+	protected _IPCSC createPcsc() {
+		return replay;
+	}
+
+	public PCSCReplay getReplay() {
+		return replay;
+	}
+}
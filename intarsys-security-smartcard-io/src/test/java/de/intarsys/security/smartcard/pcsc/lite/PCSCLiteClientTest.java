@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013, intarsys GmbH
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of intarsys nor the names of its contributors may be used
+ *   to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.intarsys.security.smartcard.pcsc.lite;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.intarsys.nativec.type.NativeBuffer;
+import de.intarsys.nativec.type.NativeLongLP64;
+import de.intarsys.nativec.type.NativeString;
+import de.intarsys.security.smartcard.pcsc.nativec.NativePcscDword;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDCONTEXT;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARDHANDLE;
+import de.intarsys.security.smartcard.pcsc.nativec.SCARD_READERSTATE;
+import de.intarsys.security.smartcard.pcsc.nativec._IPCSC;
+import de.intarsys.security.smartcard.pcsc.nativec._PCSC_RETURN_CODES;
+import de.intarsys.security.smartcard.pcsc.simulator.PCSCSimulator;
+import de.intarsys.security.smartcard.pcsc.simulator.RuleCardEmulation;
+import de.intarsys.security.smartcard.pcsc.simulator.SimulatedCard;
+import de.intarsys.tools.hex.HexTools;
+
+/**
+ * {@link PCSCLiteClient} talking to a {@link PCSCLiteServer} that serves a
+ * {@link PCSCSimulator}.
+ */
+class PCSCLiteClientTest {
+
+	private static final String ATR = "3B8F8001804F0CA000000306030001000000006A"; //$NON-NLS-1$
+
+	private static final String READER = "simulated reader"; //$NON-NLS-1$
+
+	@TempDir
+	Path tempDir;
+
+	private PCSCLiteServer server;
+
+	private PCSCLiteClient client;
+
+	private SCARDCONTEXT hContext;
+
+	@Test
+	void cancel() throws InterruptedException {
+		SCARD_READERSTATE state = getCurrentState();
+		int[] rc = new int[] { _PCSC_RETURN_CODES.SCARD_S_SUCCESS };
+		Thread waiter = new Thread(() -> rc[0] = client.SCardGetStatusChange(hContext, 10000, state, 1));
+		long start = System.currentTimeMillis();
+		waiter.start();
+		// let the request reach the server
+		Thread.sleep(200);
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, client.SCardCancel(hContext));
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(_PCSC_RETURN_CODES.SCARD_E_CANCELLED, rc[0]);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	void connectTransmit() {
+		NativeLongLP64 phCard = new NativeLongLP64();
+		NativePcscDword protocol = new NativePcscDword();
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, client.SCardConnect(hContext, new NativeString(READER),
+				_IPCSC.SCARD_SHARE_SHARED, _IPCSC.SCARD_PROTOCOL_T1, phCard, protocol));
+		assertEquals(_IPCSC.SCARD_PROTOCOL_T1, protocol.intValue());
+		SCARDHANDLE hCard = new SCARDHANDLE(phCard.longValue());
+
+		byte[] apdu = HexTools.hexStringToBytes("00B0000000"); //$NON-NLS-1$
+		NativeBuffer sendBuffer = new NativeBuffer(apdu.length);
+		sendBuffer.setByteArray(0, apdu, 0, apdu.length);
+		NativeBuffer recvBuffer = new NativeBuffer(258);
+		NativePcscDword recvLength = new NativePcscDword(258);
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, client.SCardTransmit(hCard, client.getSCARD_PCI_T1(),
+				sendBuffer, apdu.length, null, recvBuffer, recvLength));
+		assertArrayEquals(HexTools.hexStringToBytes("CAFE9000"), //$NON-NLS-1$
+				recvBuffer.getByteArray(0, recvLength.intValue()));
+
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, client.SCardDisconnect(hCard, _IPCSC.SCARD_LEAVE_CARD));
+	}
+
+	/**
+	 * The state of {@link #READER} as known to the client, a wait with this
+	 * state returns on the next change only.
+	 */
+	private SCARD_READERSTATE getCurrentState() {
+		SCARD_READERSTATE state = new SCARD_READERSTATE();
+		state.setReader(new NativeString(READER));
+		state.setCurrentState(_IPCSC.SCARD_STATE_UNAWARE);
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, client.SCardGetStatusChange(hContext, 0, state, 1));
+		assertTrue((state.getEventState() & _IPCSC.SCARD_STATE_PRESENT) != 0);
+		state.setCurrentState(state.getEventState() & ~_IPCSC.SCARD_STATE_CHANGED);
+		return state;
+	}
+
+	@BeforeEach
+	void setUp() throws IOException {
+		PCSCSimulator simulator = new PCSCSimulator();
+		simulator.addReader(READER).insertCard(new SimulatedCard(HexTools.hexStringToBytes(ATR),
+				new RuleCardEmulation().addPrefixRule("00B0", "CAFE9000"))); //$NON-NLS-1$ //$NON-NLS-2$
+		server = new PCSCLiteServer(simulator, tempDir.resolve("pcscd.comm")); //$NON-NLS-1$
+		server.start();
+		client = new PCSCLiteClient(server.getSocketPath());
+		NativeLongLP64 phContext = new NativeLongLP64();
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS,
+				client.SCardEstablishContext(_IPCSC.SCARD_SCOPE_SYSTEM, phContext));
+		hContext = new SCARDCONTEXT(phContext.longValue());
+		assertEquals(_PCSC_RETURN_CODES.SCARD_S_SUCCESS, client.SCardIsValidContext(hContext));
+	}
+
+	@Test
+	void statusChangeTimeout() {
+		SCARD_READERSTATE state = getCurrentState();
+		long start = System.currentTimeMillis();
+		assertEquals(_PCSC_RETURN_CODES.SCARD_E_TIMEOUT, client.SCardGetStatusChange(hContext, 300, state, 1));
+		assertTrue(System.currentTimeMillis() - start >= 250);
+	}
+
+	@AfterEach
+	void tearDown() {
+		client.SCardReleaseContext(hContext);
+		server.close();
+	}
+}